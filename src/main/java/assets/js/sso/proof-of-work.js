@@ -0,0 +1,107 @@
+/**<#-- This javascript source is a Freemarker template and is supposed to be included. -->*/
+(function() {
+  var proofOfWork = document.getElementById('proofOfWork');
+  if (!proofOfWork) {
+    return;
+  }
+  /**<#-- Solution is a decimal counter such that SHA-256 of "challenge:counter" starts with difficulty zero bits,
+    see services.sso.captcha.ProofOfWork. Hashes in short slices, so the page stays responsive. -->*/
+  var challenge = proofOfWork.getAttribute('data-challenge');
+  var difficulty = parseInt(proofOfWork.getAttribute('data-difficulty'), 10);
+  var submit = $(proofOfWork).closest('form').find('[type=submit]');
+  var K = [
+    0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+    0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+    0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+    0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+    0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+    0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+    0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+    0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+  ];
+  var w = new Array(64);
+
+  function utf8(s) {
+    var encoded = unescape(encodeURIComponent(s));
+    var bytes = [];
+    for (var i = 0; i < encoded.length; i++) {
+      bytes.push(encoded.charCodeAt(i));
+    }
+    return bytes;
+  }
+
+  /**<#-- Returns the first 32-bit word of SHA-256 of the bytes. -->*/
+  function sha256FirstWord(bytes) {
+    var length = bytes.length;
+    var padded = bytes.slice();
+    padded.push(0x80);
+    while (padded.length % 64 !== 56) {
+      padded.push(0);
+    }
+    var bits = length * 8;
+    padded.push(0, 0, 0, (bits / 0x100000000) & 0xff, (bits >>> 24) & 0xff, (bits >>> 16) & 0xff,
+        (bits >>> 8) & 0xff, bits & 0xff);
+    var h0 = 0x6a09e667, h1 = 0xbb67ae85, h2 = 0x3c6ef372, h3 = 0xa54ff53a,
+        h4 = 0x510e527f, h5 = 0x9b05688c, h6 = 0x1f83d9ab, h7 = 0x5be0cd19;
+    for (var offset = 0; offset < padded.length; offset += 64) {
+      var i, t1, t2;
+      for (i = 0; i < 16; i++) {
+        var j = offset + i * 4;
+        w[i] = (padded[j] << 24) | (padded[j + 1] << 16) | (padded[j + 2] << 8) | padded[j + 3];
+      }
+      for (i = 16; i < 64; i++) {
+        var x = w[i - 15], y = w[i - 2];
+        var s0 = ((x >>> 7) | (x << 25)) ^ ((x >>> 18) | (x << 14)) ^ (x >>> 3);
+        var s1 = ((y >>> 17) | (y << 15)) ^ ((y >>> 19) | (y << 13)) ^ (y >>> 10);
+        w[i] = (w[i - 16] + s0 + w[i - 7] + s1) | 0;
+      }
+      var a = h0, b = h1, c = h2, d = h3, e = h4, f = h5, g = h6, h = h7;
+      for (i = 0; i < 64; i++) {
+        t1 = (h + (((e >>> 6) | (e << 26)) ^ ((e >>> 11) | (e << 21)) ^ ((e >>> 25) | (e << 7)))
+            + ((e & f) ^ (~e & g)) + K[i] + w[i]) | 0;
+        t2 = ((((a >>> 2) | (a << 30)) ^ ((a >>> 13) | (a << 19)) ^ ((a >>> 22) | (a << 10)))
+            + ((a & b) ^ (a & c) ^ (b & c))) | 0;
+        h = g;
+        g = f;
+        f = e;
+        e = (d + t1) | 0;
+        d = c;
+        c = b;
+        b = a;
+        a = (t1 + t2) | 0;
+      }
+      h0 = (h0 + a) | 0;
+      h1 = (h1 + b) | 0;
+      h2 = (h2 + c) | 0;
+      h3 = (h3 + d) | 0;
+      h4 = (h4 + e) | 0;
+      h5 = (h5 + f) | 0;
+      h6 = (h6 + g) | 0;
+      h7 = (h7 + h) | 0;
+    }
+    return h0 >>> 0;
+  }
+
+  /**<#-- Difficulty is capped on the server well below 32 bits, the first word is enough. -->*/
+  var mask = difficulty >= 32 ? 0xffffffff : ~(0xffffffff >>> difficulty) >>> 0;
+  var prefix = utf8(challenge + ':');
+  var counter = 0;
+
+  function solve() {
+    var deadline = Date.now() + 50;
+    while (Date.now() < deadline) {
+      for (var i = 0; i < 1000; i++, counter++) {
+        if ((sha256FirstWord(prefix.concat(utf8(String(counter)))) & mask) === 0) {
+          $('#captchaCode').val(String(counter));
+          $('#proofOfWorkStatus').text(proofOfWork.getAttribute('data-solved'));
+          submit.removeAttr('disabled');
+          return;
+        }
+      }
+    }
+    setTimeout(solve, 0);
+  }
+
+  submit.attr('disabled', 'disabled');
+  setTimeout(solve, 0);
+ })();
@@ -1,6 +1,7 @@
 package conf;
 
 import controllers.sso.filters.ClearEntityManagerFilter;
+import controllers.sso.filters.PasswordHashingOverloadFilter;
 import ninja.Filter;
 import ninja.application.ApplicationFilters;
 
@@ -14,5 +15,6 @@ public class Filters implements ApplicationFilters {
     @Override
     public void addFilters(List<Class<? extends Filter>> filters) {
         filters.add(ClearEntityManagerFilter.class);
+        filters.add(PasswordHashingOverloadFilter.class);
     }
 }
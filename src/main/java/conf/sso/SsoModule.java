@@ -1,5 +1,7 @@
 package conf.sso;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.base.Strings;
 import com.google.common.collect.Lists;
 import com.google.inject.AbstractModule;
@@ -11,14 +13,30 @@ import services.sso.annotations.entitiestopreload.PreloadedCountries;
 import controllers.sso.auth.policy.AppendAuthTokenPolicy;
 import controllers.sso.auth.policy.DeviceAuthPolicy;
 import models.sso.Country;
+import models.sso.PasswordHashAlgorithm;
+import models.sso.token.ExpirableTokenType;
+import ninja.metrics.MetricsService;
 import ninja.utils.NinjaProperties;
 import org.dozer.DozerBeanMapper;
 import org.dozer.Mapper;
 import org.slf4j.Logger;
 import services.sso.annotations.ExclusionDictionary;
 import services.sso.annotations.ExclusionSubstrings;
+import services.sso.limits.NinjaCacheSharedCounterStore;
+import services.sso.limits.SharedCounterStore;
+import services.sso.limits.SharedCountersFlusher;
+import services.sso.password.PasswordCostCalibrator;
+import services.sso.password.PasswordHasher;
+import services.sso.password.PasswordHashingCalibration;
+import services.sso.password.Pbkdf2PasswordHasher;
+import services.sso.password.Sha512PasswordHasher;
+import services.sso.PasswordHistoryService;
+import services.sso.TokenRevocationService;
+import services.sso.token.AesGcmPasswordBasedEncryptor;
 import services.sso.token.AesPasswordBasedEncryptor;
+import services.sso.token.EcdsaTokenSigner;
 import services.sso.token.ExpirableTokenEncryptor;
+import services.sso.token.HmacTokenSigner;
 import services.sso.token.PasswordBasedEncryptor;
 
 import javax.inject.Singleton;
@@ -32,11 +50,16 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.CodeSource;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPublicKey;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -72,28 +95,197 @@ public class SsoModule extends AbstractModule {
 
     @Override
     protected void configure() {
-        // Configure password and expirable token encryptors.
-        bind(ExpirableTokenEncryptor.class);
-
         // Configure Dozer.
         bind(Mapper.class).toInstance(new DozerBeanMapper());
 
         // Configure start up actions.
         bind(SsoStartupActions.class);
+
+        // Configure access token revocation loading.
+        bind(TokenRevocationService.class);
+
+        // Configure migration of former passwords of legacy password change events.
+        bind(PasswordHistoryService.class);
+
+        // Configure counters shared between nodes and their flushing.
+        bind(SharedCounterStore.class).to(NinjaCacheSharedCounterStore.class);
+        bind(SharedCountersFlusher.class);
     }
 
     /**
-     * Provides password based encryptor.
+     * Provides password based encryptor. Singleton, since master key is derived from the password on construction.
      *
      * @param properties Properties.
+     * @param logger     Logger.
      * @return Password based encryptor.
      */
     @Provides
-    PasswordBasedEncryptor providesPasswordBasedEncryptor(NinjaProperties properties) {
+    @Singleton
+    PasswordBasedEncryptor providesPasswordBasedEncryptor(NinjaProperties properties, Logger logger) {
         char[] key = properties.getOrDie("application.sso.tokens.encryption.aes.key").toCharArray();
         short strength = Short.valueOf(
                 properties.getWithDefault("application.sso.tokens.encryption.aes.strength", "128"));
-        return new AesPasswordBasedEncryptor(key, strength);
+        String property = "application.sso.tokens.encryption.aes.keyDerivation";
+        String keyDerivationName =
+                properties.getWithDefault(property, AesPasswordBasedEncryptor.KeyDerivation.PBKDF2.toString());
+        AesPasswordBasedEncryptor.KeyDerivation keyDerivation;
+        try {
+            keyDerivation = AesPasswordBasedEncryptor.KeyDerivation.valueOf(keyDerivationName);
+        } catch (IllegalArgumentException e) {
+            logger.error("Error while parsing " + property + ": " + keyDerivationName, e);
+            keyDerivation = AesPasswordBasedEncryptor.KeyDerivation.PBKDF2;
+        }
+        AesPasswordBasedEncryptor cbcEncryptor = new AesPasswordBasedEncryptor(key, strength, keyDerivation);
+
+        String modeProperty = "application.sso.tokens.encryption.mode";
+        String mode = properties.getWithDefault(modeProperty, "CBC");
+        if ("GCM".equals(mode)) {
+            // Previously issued CBC tokens are still accepted.
+            return new AesGcmPasswordBasedEncryptor(key, strength, cbcEncryptor);
+        } else if (!"CBC".equals(mode)) {
+            logger.error("Error while parsing {}: {}. Using CBC.", modeProperty, mode);
+        }
+        return cbcEncryptor;
+    }
+
+    /**
+     * Provides password hashing calibration: hasher of configured algorithm with the highest cost whose latency on this
+     * machine fits "application.sso.password.targetMillis". Configured cost is the minimum. Benchmarks on startup and
+     * reports chosen cost and measured latency as metrics.
+     *
+     * @param properties     Properties.
+     * @param metricsService Metrics service.
+     * @param logger         Logger.
+     * @return Password hashing calibration.
+     */
+    @Provides
+    @Singleton
+    PasswordHashingCalibration providesPasswordHashingCalibration(
+            NinjaProperties properties,
+            MetricsService metricsService,
+            Logger logger) {
+        String property = "application.sso.password.algorithm";
+        String algorithmName = properties.getWithDefault(property, PasswordHashAlgorithm.SHA512.toString());
+        PasswordHashAlgorithm algorithm;
+        try {
+            algorithm = PasswordHashAlgorithm.valueOf(algorithmName);
+        } catch (IllegalArgumentException e) {
+            logger.error("Error while parsing " + property + ": " + algorithmName, e);
+            algorithm = PasswordHashAlgorithm.SHA512;
+        }
+        int targetMillis = properties.getIntegerWithDefault("application.sso.password.targetMillis", 0);
+        int samples = properties.getIntegerWithDefault("application.sso.password.calibrationSamples", 5);
+        PasswordCostCalibrator calibrator = new PasswordCostCalibrator(System::nanoTime, samples);
+        PasswordHashingCalibration calibration;
+        if (PasswordHashAlgorithm.SHA512.equals(algorithm)) {
+            calibration = calibrator.measure(new Sha512PasswordHasher());
+        } else {
+            int iterations = properties.getIntegerWithDefault("application.sso.password.pbkdf2.iterations", 100_000);
+            if (targetMillis > 0) {
+                int maxIterations = properties.getIntegerWithDefault(
+                        "application.sso.password.pbkdf2.maxIterations", 10_000_000);
+                calibration = calibrator.calibrate(Pbkdf2PasswordHasher::new, iterations, maxIterations, targetMillis);
+            } else {
+                calibration = calibrator.measure(new Pbkdf2PasswordHasher(iterations));
+            }
+        }
+        logger.info("Password hashing: {}.", calibration);
+
+        MetricRegistry registry = metricsService.getMetricRegistry();
+        String prefix = MetricRegistry.name(PasswordHashingCalibration.class);
+        registry.register(MetricRegistry.name(prefix, "cost"), (Gauge<Integer>) calibration::getCost);
+        registry.register(MetricRegistry.name(prefix, "p99Millis"), (Gauge<Double>) calibration::getP99Millis);
+        registry.register(MetricRegistry.name(prefix, "hashesPerSecond"),
+                (Gauge<Double>) calibration::getHashesPerSecond);
+        return calibration;
+    }
+
+    /**
+     * Provides password hasher chosen by calibration.
+     *
+     * @param calibration Password hashing calibration.
+     * @return Password hasher.
+     */
+    @Provides
+    @Singleton
+    PasswordHasher providesPasswordHasher(PasswordHashingCalibration calibration) {
+        return calibration.getHasher();
+    }
+
+    /**
+     * Provides expirable token encryptor.
+     *
+     * @param encryptor  Password based encryptor.
+     * @param accessTokenSigner Access token signer with public keys.
+     * @param properties Properties.
+     * @param logger     Logger.
+     * @return Expirable token encryptor.
+     */
+    @Provides
+    @Singleton
+    ExpirableTokenEncryptor providesExpirableTokenEncryptor(
+            PasswordBasedEncryptor encryptor,
+            EcdsaTokenSigner accessTokenSigner,
+            NinjaProperties properties,
+            Logger logger) {
+        String property = "application.sso.tokens.format";
+        String formatName = properties.getWithDefault(property, ExpirableTokenEncryptor.Format.JSON.toString());
+        ExpirableTokenEncryptor.Format format;
+        try {
+            format = ExpirableTokenEncryptor.Format.valueOf(formatName);
+        } catch (IllegalArgumentException e) {
+            logger.error("Error while parsing " + property + ": " + formatName, e);
+            format = ExpirableTokenEncryptor.Format.JSON;
+        }
+
+        String signedTypesProperty = "application.sso.tokens.signedTypes";
+        String[] signedTypeNames = properties.getStringArray(signedTypesProperty);
+        Set<ExpirableTokenType> signedTypes = EnumSet.noneOf(ExpirableTokenType.class);
+        if (signedTypeNames != null) {
+            for (String signedTypeName : signedTypeNames) {
+                signedTypeName = Strings.nullToEmpty(signedTypeName).trim();
+                if (signedTypeName.isEmpty()) {
+                    continue;
+                }
+                try {
+                    signedTypes.add(ExpirableTokenType.valueOf(signedTypeName));
+                } catch (IllegalArgumentException e) {
+                    logger.error("Error while parsing " + signedTypesProperty + ": " + signedTypeName, e);
+                }
+            }
+        }
+        // Signer is always present to verify previously issued signed tokens.
+        char[] key = properties.getOrDie("application.sso.tokens.encryption.aes.key").toCharArray();
+        return new ExpirableTokenEncryptor(encryptor, format, new HmacTokenSigner(key), signedTypes,
+                accessTokenSigner);
+    }
+
+    /**
+     * Provides access token signer with public keys. Signs new access tokens if current key id is set in
+     * "application.sso.accessToken.signing.keyId", verifies access tokens signed with any of the published keys.
+     *
+     * @param properties Properties.
+     * @return Access token signer.
+     */
+    @Provides
+    @Singleton
+    EcdsaTokenSigner providesAccessTokenSigner(NinjaProperties properties) {
+        String keyId = Strings.emptyToNull(
+                properties.getWithDefault("application.sso.accessToken.signing.keyId", "").trim());
+        String[] keyIds = properties.getStringArray("application.sso.accessToken.signing.keys");
+        Map<String, ECPublicKey> publishedKeys = new LinkedHashMap<>();
+        if (keyIds != null) {
+            for (String publishedKeyId : keyIds) {
+                publishedKeyId = Strings.nullToEmpty(publishedKeyId).trim();
+                if (!publishedKeyId.isEmpty()) {
+                    publishedKeys.put(publishedKeyId, EcdsaTokenSigner.decodePublicKey(properties.getOrDie(
+                            "application.sso.accessToken.signing.key." + publishedKeyId + ".public")));
+                }
+            }
+        }
+        PrivateKey signingKey = keyId == null ? null : EcdsaTokenSigner.decodePrivateKey(
+                properties.getOrDie("application.sso.accessToken.signing.key." + keyId + ".private"));
+        return new EcdsaTokenSigner(keyId, signingKey, publishedKeys);
     }
 
     /**
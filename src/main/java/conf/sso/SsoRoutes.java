@@ -1,5 +1,6 @@
 package conf.sso;
 
+import controllers.sso.KeysController;
 import controllers.sso.UserController;
 import controllers.sso.admin.ApplicationStatisticsController;
 import controllers.sso.admin.users.EditAccessController;
@@ -10,6 +11,7 @@ import controllers.sso.admin.users.SendEmailController;
 import controllers.sso.admin.users.UsersController;
 import controllers.sso.admin.users.ViewAccessLogController;
 import controllers.sso.auth.ForgotPasswordController;
+import controllers.sso.auth.RefreshController;
 import controllers.sso.auth.RestorePasswordController;
 import controllers.sso.auth.SignInController;
 import controllers.sso.auth.SignOutController;
@@ -40,6 +42,9 @@ public class SsoRoutes implements ApplicationRoutes {
         // User JSON controller.
         router.GET().route(subRoute + "/user").with(UserController::user);
 
+        // Public keys to verify access tokens.
+        router.GET().route(subRoute + "/keys").with(KeysController::keys);
+
         // Captcha.
         router.GET().route(subRoute + "/captcha").with(CaptchaController::captcha);
 
@@ -62,6 +67,9 @@ public class SsoRoutes implements ApplicationRoutes {
         // Sign out.
         router.POST().route(subRoute + "/signout").with(SignOutController::signOut);
 
+        // Refresh tokens.
+        router.POST().route(subRoute + "/refresh").with(RefreshController::refresh);
+
         // Forgot password.
         router.GET().route(subRoute +"/forgot")
                 .with(ForgotPasswordController::forgotGet);
@@ -111,5 +119,7 @@ public class SsoRoutes implements ApplicationRoutes {
                 .with(ApplicationStatisticsController::get);
         router.GET().route(subRoute + "/admin/statistics/json")
                 .with(ApplicationStatisticsController::json);
+        router.GET().route(subRoute + "/admin/statistics/top-ips")
+                .with(ApplicationStatisticsController::topIps);
     }
 }
@@ -0,0 +1,22 @@
+package controllers.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Cost of the controller method's request for the rate limiter, in hits: cheap pages cost 1, requests that hash
+ * passwords, send emails or render images cost more. Property "counters.cost.[Controller].[method]" overrides it.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface RequestCost {
+
+    /**
+     * Cost of the request, in hits.
+     *
+     * @return Cost of the request.
+     */
+    int value();
+}
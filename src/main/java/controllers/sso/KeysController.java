@@ -0,0 +1,55 @@
+package controllers.sso;
+
+import ninja.Result;
+import ninja.Results;
+import ninja.metrics.Timed;
+import ninja.utils.NinjaProperties;
+import services.sso.token.EcdsaTokenSigner;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collections;
+
+/**
+ * Rest controller that publishes public keys of access token signer as JSON web key set (RFC 7517), so relying
+ * services verify access tokens locally. The key set is cacheable for "application.sso.accessToken.signing.keys.maxAge"
+ * seconds.
+ */
+@Singleton
+public class KeysController {
+
+    /**
+     * Access token signer.
+     */
+    private final EcdsaTokenSigner accessTokenSigner;
+
+    /**
+     * Cache control header value.
+     */
+    private final String cacheControl;
+
+    /**
+     * Constructs keys controller.
+     *
+     * @param accessTokenSigner Access token signer.
+     * @param properties Application properties.
+     */
+    @Inject
+    public KeysController(EcdsaTokenSigner accessTokenSigner, NinjaProperties properties) {
+        this.accessTokenSigner = accessTokenSigner;
+        this.cacheControl = "public, max-age=" +
+                properties.getIntegerWithDefault("application.sso.accessToken.signing.keys.maxAge", 3600);
+    }
+
+    /**
+     * Returns published keys as JSON web key set.
+     *
+     * @return JSON web key set.
+     */
+    @Timed
+    public Result keys() {
+        return Results.json()
+                .render(Collections.singletonMap("keys", accessTokenSigner.getJsonWebKeys()))
+                .addHeader(Result.CACHE_CONTROL, cacheControl);
+    }
+}
@@ -13,6 +13,8 @@ import ninja.Result;
 import ninja.utils.NinjaProperties;
 import services.sso.UserService;
 import services.sso.admin.ApplicationStatisticsService;
+import services.sso.limits.IPCounterService;
+import services.sso.password.PasswordHashingCalibration;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -50,6 +52,16 @@ public class ApplicationStatisticsController {
      */
     private UserService userService;
 
+    /**
+     * Password hashing calibration.
+     */
+    private final PasswordHashingCalibration passwordHashingCalibration;
+
+    /**
+     * IP counter service.
+     */
+    private final IPCounterService ipCounterService;
+
     /**
      * Application properties.
      */
@@ -60,10 +72,14 @@ public class ApplicationStatisticsController {
             ApplicationStatisticsService applicationStatisticsService,
             UserService userService,
             @SecureHtmlHeadersForAdmin Provider<Result> htmlAdminSecureHeadersProvider,
+            PasswordHashingCalibration passwordHashingCalibration,
+            IPCounterService ipCounterService,
             NinjaProperties properties) {
         this.applicationStatisticsService = applicationStatisticsService;
         this.userService = userService;
         this.htmlAdminSecureHeadersProvider = htmlAdminSecureHeadersProvider;
+        this.passwordHashingCalibration = passwordHashingCalibration;
+        this.ipCounterService = ipCounterService;
         this.properties = properties;
     }
 
@@ -76,6 +92,8 @@ public class ApplicationStatisticsController {
         return htmlAdminSecureHeadersProvider.get()
                 .render("context", context)
                 .render("loggedInUser", userService.get((Long) context.getAttribute(AuthenticationFilter.USER_ID)))
+                .render("passwordHashing", passwordHashingCalibration)
+                .render("topIps", ipCounterService.getTopIps())
                 .template(TEMPLATE);
     }
 
@@ -92,4 +110,14 @@ public class ApplicationStatisticsController {
             return result.render(RestResponse.serverError(mbe));
         }
     }
+
+    /**
+     * Renders JSON with IPs that exceeded the limit, with their number of hits, from the largest.
+     *
+     * @return Result with top IPs JSON.
+     */
+    public Result topIps() {
+        return htmlAdminSecureHeadersProvider.get().json()
+                .render(RestResponse.newResponse(ipCounterService.getTopIps()));
+    }
 }
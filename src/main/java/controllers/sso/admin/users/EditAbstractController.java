@@ -127,6 +127,16 @@ public abstract class EditAbstractController<C extends Converter<User, DTO>, DTO
      */
     protected abstract String getTemplate();
 
+    /**
+     * Called after the user is updated, within the same transaction. Does nothing by default.
+     *
+     * @param user Updated user.
+     * @param oldRole Role before the update.
+     * @param oldSignInState Sign in state before the update.
+     */
+    protected void onUpdate(User user, UserRole oldRole, UserSignInState oldSignInState) {
+    }
+
     /**
      * Renders edit user data template for given user, logging access or redirects to the list of users if the given
      * user was not found.
@@ -199,6 +209,7 @@ public abstract class EditAbstractController<C extends Converter<User, DTO>, DTO
 
         // Update user.
         userService.update(user);
+        onUpdate(user, oldRole, oldSignInState);
 
         // Produce change events.
         UserRole newRole = user.getRole();
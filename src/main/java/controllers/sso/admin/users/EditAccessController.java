@@ -12,6 +12,7 @@ import converters.sso.admin.users.EditAccessConverter;
 import dto.sso.admin.users.EditAccessDto;
 import models.sso.User;
 import models.sso.UserRole;
+import models.sso.UserSignInState;
 import ninja.Context;
 import ninja.FilterWith;
 import ninja.Result;
@@ -22,6 +23,7 @@ import ninja.utils.NinjaProperties;
 import ninja.validation.JSR303Validation;
 import ninja.validation.Validation;
 import services.sso.CountryService;
+import services.sso.TokenRevocationService;
 import services.sso.UserEventService;
 import services.sso.UserService;
 
@@ -47,6 +49,11 @@ public class EditAccessController extends EditAbstractController<EditAccessConve
      */
     private static final String TEMPLATE = "views/sso/admin/users/edit-access.ftl.html";
 
+    /**
+     * Token revocation service.
+     */
+    private final TokenRevocationService tokenRevocationService;
+
     /**
      * Constructs controller.
      *
@@ -56,6 +63,7 @@ public class EditAccessController extends EditAbstractController<EditAccessConve
      * @param converter Contact data converter.
      * @param urlBuilderProvider URL builder provider.
      * @param htmlAdminSecureHeadersProvider HTML with secure headers provider for admin.
+     * @param tokenRevocationService Token revocation service.
      * @param properties Application properties.
      */
     @Inject
@@ -66,9 +74,11 @@ public class EditAccessController extends EditAbstractController<EditAccessConve
             EditAccessConverter converter,
             Provider<UrlBuilder> urlBuilderProvider,
             @SecureHtmlHeadersForAdmin Provider<Result> htmlAdminSecureHeadersProvider,
+            TokenRevocationService tokenRevocationService,
             NinjaProperties properties) {
         super(userService, userEventService, countryService, converter, urlBuilderProvider,
                 htmlAdminSecureHeadersProvider, properties);
+        this.tokenRevocationService = tokenRevocationService;
     }
 
     /**
@@ -125,4 +135,15 @@ public class EditAccessController extends EditAbstractController<EditAccessConve
     protected String getTemplate() {
         return TEMPLATE;
     }
+
+    @Override
+    protected void onUpdate(User user, UserRole oldRole, UserSignInState oldSignInState) {
+        // Access tokens carry the role, so issued tokens must not outlive role change or disabled sign in.
+        boolean roleChanged = !oldRole.equals(user.getRole());
+        boolean signInDisabled = UserSignInState.ENABLED.equals(oldSignInState)
+                && !UserSignInState.ENABLED.equals(user.getSignInState());
+        if (roleChanged || signInDisabled) {
+            tokenRevocationService.revokeAllTokens(user.getId());
+        }
+    }
 }
@@ -11,7 +11,6 @@ import controllers.sso.web.Controllers;
 import controllers.sso.web.UrlBuilder;
 import dto.sso.common.Constants;
 import models.sso.User;
-import models.sso.UserCredentials;
 import ninja.Context;
 import ninja.FilterWith;
 import ninja.Result;
@@ -149,12 +148,9 @@ public class EditPasswordController {
         String ip = (String) context.getAttribute(IpAddressFilter.REMOTE_IP);
 
         User admin = userService.get((Long) context.getAttribute(AuthenticationFilter.USER_ID));
-        UserCredentials credentials = userService.getCredentials(user);
 
-        byte[] oldSalt = credentials.getPasswordSalt();
-        byte[] oldHash = credentials.getPasswordHash();
         userService.updatePassword(user, newPassword);
-        userEventService.onUserPasswordUpdate(admin, user, oldSalt, oldHash, ip, context.getHeaders());
+        userEventService.onUserPasswordUpdate(admin, user, ip, context.getHeaders());
 
         flashScope.success(PASSWORD_CHANGED_MESSAGE);
         return Controllers.redirect(urlBuilderProvider.get().getAdminEditPasswordUrl(userId, query, page));
@@ -1,6 +1,7 @@
 package controllers.sso.auth;
 
 import com.google.common.base.Strings;
+import controllers.annotations.RequestCost;
 import controllers.annotations.SecureHtmlHeaders;
 import controllers.sso.auth.state.SignInState;
 import controllers.sso.filters.AuthenticationFilter;
@@ -204,6 +205,7 @@ public class ForgotPasswordController {
      */
     @Timed
     @Transactional
+    @RequestCost(20)
     public Result forgot(@JSR303Validation ForgotPasswordDto user, Context context, Validation validation) {
         if (validation.hasViolations() || user == null) {
             return createResult(user, context, validation);
@@ -314,12 +316,19 @@ public class ForgotPasswordController {
     }
 
     /**
-     * Adds information about the captcha to given result.
+     * Adds information about the captcha to given result: proof of work challenge if enabled, captcha image otherwise.
      *
      * @param result Result.
      * @param context Context.
      */
     private void regenerateCaptchaTokenAndUrl(Result result, Context context) {
+        int difficulty = captchaTokenService.getProofOfWorkDifficulty(
+                (String) context.getAttribute(IpAddressFilter.REMOTE_IP));
+        if (difficulty > 0) {
+            result.render("captchaToken", captchaTokenService.newProofOfWorkToken(difficulty));
+            result.render("proofOfWorkDifficulty", difficulty);
+            return;
+        }
         String captchaToken = captchaTokenService.newCaptchaToken();
         result.render("captchaToken", captchaToken);
         result.render("captchaUrl", urlBuilderProvider.get().getCaptchaUrl(captchaToken));
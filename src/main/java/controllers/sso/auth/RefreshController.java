@@ -0,0 +1,114 @@
+package controllers.sso.auth;
+
+import controllers.sso.rest.RestResponse;
+import models.sso.User;
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenEncryptorException;
+import models.sso.token.ExpirableTokenType;
+import ninja.Result;
+import ninja.Results;
+import ninja.jpa.UnitOfWork;
+import ninja.metrics.Timed;
+import org.slf4j.Logger;
+import services.sso.TokenRevocationService;
+import services.sso.UserService;
+import services.sso.token.ExpirableTokenEncryptor;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+/**
+ * Refresh controller that exchanges refresh token for new access and refresh tokens. Access tokens are verified by
+ * relying services without database, so user's role and sign-in state are checked here, against the database.
+ * Used refresh token is revoked before new tokens are issued and the revocation is unique in the database, so each
+ * refresh token is exchanged only once, even by concurrent requests to different nodes.
+ */
+@Singleton
+public class RefreshController {
+
+    /**
+     * Authentication response builder.
+     */
+    private final Provider<SignInResponseBuilder> responseBuilderProvider;
+
+    /**
+     * Expirable token encryptor.
+     */
+    private final ExpirableTokenEncryptor encryptor;
+
+    /**
+     * Token revocation service.
+     */
+    private final TokenRevocationService tokenRevocationService;
+
+    /**
+     * User service.
+     */
+    private final UserService userService;
+
+    /**
+     * Logger.
+     */
+    private final Logger logger;
+
+    /**
+     * Controller constructor.
+     *
+     * @param responseBuilderProvider Authentication response builder provider.
+     * @param encryptor Expirable token encryptor.
+     * @param tokenRevocationService Token revocation service.
+     * @param userService User service.
+     * @param logger Logger.
+     */
+    @Inject
+    public RefreshController(
+            Provider<SignInResponseBuilder> responseBuilderProvider,
+            ExpirableTokenEncryptor encryptor,
+            TokenRevocationService tokenRevocationService,
+            UserService userService,
+            Logger logger) {
+        this.responseBuilderProvider = responseBuilderProvider;
+        this.encryptor = encryptor;
+        this.tokenRevocationService = tokenRevocationService;
+        this.userService = userService;
+        this.logger = logger;
+    }
+
+    /**
+     * Exchanges refresh token from the request for new access and refresh tokens.
+     *
+     * @return JSON with new tokens or not authorized response.
+     */
+    @Timed
+    @UnitOfWork
+    public Result refresh() {
+        SignInResponseBuilder responseBuilder = responseBuilderProvider.get();
+        String refreshTokenAsString = responseBuilder.getRequestRefreshToken();
+        if (refreshTokenAsString == null) {
+            return Results.json().render(RestResponse.notAuthorized("No refresh token."));
+        }
+        ExpirableToken refreshToken;
+        try {
+            refreshToken = encryptor.decrypt(refreshTokenAsString);
+        } catch (ExpirableTokenEncryptorException ex) {
+            logger.info("Error while decrypting refresh token.", ex);
+            return Results.json().render(RestResponse.notAuthorized("Invalid refresh token."));
+        }
+        Long userId = refreshToken.getAttributeAsLong("userId");
+        if (!ExpirableTokenType.REFRESH.equals(refreshToken.getType()) || userId == null) {
+            return Results.json().render(RestResponse.notAuthorized("Invalid refresh token."));
+        }
+        if (tokenRevocationService.isRevoked(userId, refreshToken)) {
+            return Results.json().render(RestResponse.notAuthorized("Revoked refresh token."));
+        }
+        User user = userService.get(userId);
+        if (user == null || !user.isSignInEnabled()) {
+            return Results.json().render(RestResponse.notAuthorized("Sign in is disabled."));
+        }
+        if (!tokenRevocationService.revokeTokenOnce(userId, refreshToken)) {
+            return Results.json().render(RestResponse.notAuthorized("Revoked refresh token."));
+        }
+        return responseBuilder.getRefreshResponse(user, responseBuilder.isRequestRefreshTokenInCookie());
+    }
+}
@@ -2,6 +2,7 @@ package controllers.sso.auth;
 
 import com.google.common.base.Strings;
 import com.google.inject.persist.Transactional;
+import controllers.annotations.RequestCost;
 import controllers.annotations.SecureHtmlHeaders;
 import controllers.sso.auth.state.SignInState;
 import controllers.sso.filters.AuthenticationFilter;
@@ -13,7 +14,6 @@ import controllers.sso.web.Controllers;
 import controllers.sso.web.UrlBuilder;
 import dto.sso.common.Constants;
 import models.sso.User;
-import models.sso.UserCredentials;
 import models.sso.token.ExpirableToken;
 import models.sso.token.ExpiredTokenException;
 import models.sso.token.IllegalTokenException;
@@ -143,6 +143,7 @@ public class RestorePasswordController {
      */
     @Timed
     @Transactional
+    @RequestCost(10)
     public Result restorePassword(Context context,
                                   @Param(value = "restoreToken") String restoreToken,
                                   @Param(value = "password") String password,
@@ -160,11 +161,8 @@ public class RestorePasswordController {
             }
             if (isValidPassword(password, confirmPassword)) {
                 String ip = (String) context.getAttribute(IpAddressFilter.REMOTE_IP);
-                UserCredentials credentials = userService.getCredentials(user);
-                byte[] oldSalt = credentials.getPasswordSalt();
-                byte[] oldHash = credentials.getPasswordHash();
                 userService.updatePasswordAndConfirm(user, password);
-                userEventService.onUserPasswordUpdate(user, oldSalt, oldHash, ip, context.getHeaders());
+                userEventService.onUserPasswordUpdate(user, ip, context.getHeaders());
                 String url = urlBuilderProvider.get().getSignInUrl(SignInState.PASSWORD_CHANGED);
                 return Controllers.redirect(url);
             } else {
@@ -1,6 +1,7 @@
 package controllers.sso.auth;
 
 import com.google.inject.persist.Transactional;
+import controllers.annotations.RequestCost;
 import controllers.annotations.SecureHtmlHeaders;
 import controllers.sso.auth.state.SignInState;
 import controllers.sso.filters.AuthenticationFilter;
@@ -28,9 +29,12 @@ import ninja.validation.JSR303Validation;
 import ninja.validation.Validation;
 import org.slf4j.Logger;
 import services.sso.CaptchaTokenService;
+import services.sso.PasswordHistoryService;
+import services.sso.PasswordRehashService;
 import services.sso.UserEventService;
 import services.sso.UserService;
 import services.sso.limits.IPCounterService;
+import services.sso.limits.SignInBackoffService;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -72,6 +76,21 @@ public class SignInController {
      */
     private final UserEventService userEventService;
 
+    /**
+     * Password history service.
+     */
+    private final PasswordHistoryService passwordHistoryService;
+
+    /**
+     * Password rehash service.
+     */
+    private final PasswordRehashService passwordRehashService;
+
+    /**
+     * Sign in backoff service.
+     */
+    private final SignInBackoffService signInBackoffService;
+
     /**
      * Captcha token service.
      */
@@ -122,6 +141,9 @@ public class SignInController {
      *
      * @param userService         User service.
      * @param userEventService    User's event service.
+     * @param passwordHistoryService Password history service.
+     * @param passwordRehashService Password rehash service.
+     * @param signInBackoffService Sign in backoff service.
      * @param captchaTokenService Captcha token service.
      * @param urlBuilderProvider  URL builder provider.
      * @param properties          Application properties./
@@ -132,6 +154,9 @@ public class SignInController {
     @Inject
     public SignInController(UserService userService,
                             UserEventService userEventService,
+                            PasswordHistoryService passwordHistoryService,
+                            PasswordRehashService passwordRehashService,
+                            SignInBackoffService signInBackoffService,
                             CaptchaTokenService captchaTokenService,
                             IPCounterService ipCounterService,
                             Provider<UrlBuilder> urlBuilderProvider,
@@ -143,6 +168,9 @@ public class SignInController {
                             Logger logger) {
         this.userService = userService;
         this.userEventService = userEventService;
+        this.passwordHistoryService = passwordHistoryService;
+        this.passwordRehashService = passwordRehashService;
+        this.signInBackoffService = signInBackoffService;
         this.captchaTokenService = captchaTokenService;
         this.ipCounterService = ipCounterService;
         this.urlBuilderProvider = urlBuilderProvider;
@@ -177,6 +205,7 @@ public class SignInController {
      */
     @Timed
     @Transactional
+    @RequestCost(10)
     public Result signIn(Context context, Validation validation, @JSR303Validation UserSignInDto userSignInDto) {
         if (userSignInDto == null) {
             return signInGet(context);
@@ -196,16 +225,33 @@ public class SignInController {
             }
         }
 
-        User user = userService.getUserByEmailOrUsername(userSignInDto.getEmailOrUsername());
+        // Reject attempts with recent failures of the same email or username before the user lookup.
+        String login = getLoginBackoffKey(userSignInDto.getEmailOrUsername());
+        long retryAfterMillis = signInBackoffService.getRetryAfterMillis(login);
+        if (retryAfterMillis > 0L) {
+            return createBackoffResult(userSignInDto, context, validation, retryAfterMillis);
+        }
+
         // Check if user exists.
+        User user = userService.getUserByEmailOrUsername(userSignInDto.getEmailOrUsername());
         if (user == null) {
+            signInBackoffService.onFailure(login);
             return createResult(userSignInDto, context, validation, "emailOrPassword");
         }
 
+        // Reject attempts into the account with recent failures by its other email or username before password hashing.
+        String account = getAccountBackoffKey(user);
+        retryAfterMillis = signInBackoffService.getRetryAfterMillis(account);
+        if (retryAfterMillis > 0L) {
+            return createBackoffResult(userSignInDto, context, validation, retryAfterMillis);
+        }
+
         // Check password.
         if (!userService.isValidPassword(user, userSignInDto.getPassword())) {
+            signInBackoffService.onFailure(login);
+            signInBackoffService.onFailure(account);
             Optional<Date> lastPasswordChangeDate =
-                    userEventService.getLastPasswordChangeDate(user, userSignInDto.getPassword());
+                    passwordHistoryService.getLastPasswordChangeDate(user, userSignInDto.getPassword());
             // Check if the password was changed recently.
             if (lastPasswordChangeDate.isPresent()) {
                 return createResult(userSignInDto, context, validation, "passwordChanged")
@@ -214,6 +260,9 @@ public class SignInController {
             return createResult(userSignInDto, context, validation, "emailOrPassword");
         }
 
+        signInBackoffService.onSuccess(login);
+        signInBackoffService.onSuccess(account);
+
         // Check if the user is confirmed.
         if (!user.isConfirmed()) {
             return createResult(userSignInDto, context, validation, "emailNotConfirmed");
@@ -232,6 +281,9 @@ public class SignInController {
 
         // Remember sign in event.
         userEventService.onSignIn(user, ip, context.getHeaders());
+
+        // Rehash outdated password in background, while the password is known.
+        passwordRehashService.rehashIfOutdated(user, userSignInDto.getPassword());
         return signInResponseSupplierProvider.get().getSignInResponse(user);
     }
 
@@ -271,7 +323,7 @@ public class SignInController {
                 .render("config", properties);
 
         if (ipHitsExceeded) {
-            regenerateCaptchaTokenAndUrl(result);
+            regenerateCaptchaTokenAndUrl(result, context);
         }
 
         SignInState state = SignInState.fromString(context.getParameter("state"));
@@ -283,11 +335,54 @@ public class SignInController {
     }
 
     /**
-     * Adds information about the captcha to given result.
+     * Creates response result for the attempt rejected by sign-in backoff.
+     *
+     * @param user             User to use in response.
+     * @param context          Context.
+     * @param validation       Validation.
+     * @param retryAfterMillis Time to wait before the next attempt, in milliseconds.
+     * @return Sign in response object.
+     */
+    private Result createBackoffResult(UserSignInDto user, Context context, Validation validation,
+                                       long retryAfterMillis) {
+        return createResult(user, context, validation, "signInBackoff")
+                .render("retryAfterSeconds", (retryAfterMillis + 999L) / 1000L);
+    }
+
+    /**
+     * Returns key of sign-in backoff by entered email or username, checked before the user lookup.
+     *
+     * @param emailOrUsername Email or username.
+     * @return Backoff key.
+     */
+    private static String getLoginBackoffKey(String emailOrUsername) {
+        return "login:" + emailOrUsername.trim().toLowerCase();
+    }
+
+    /**
+     * Returns key of sign-in backoff by user id, so that email and username of the user share one backoff.
+     *
+     * @param user User.
+     * @return Backoff key.
+     */
+    private static String getAccountBackoffKey(User user) {
+        return "id:" + user.getId();
+    }
+
+    /**
+     * Adds information about the captcha to given result: proof of work challenge if enabled, captcha image otherwise.
      *
      * @param result Result.
+     * @param context Context.
      */
-    private void regenerateCaptchaTokenAndUrl(Result result) {
+    private void regenerateCaptchaTokenAndUrl(Result result, Context context) {
+        int difficulty = captchaTokenService.getProofOfWorkDifficulty(
+                (String) context.getAttribute(IpAddressFilter.REMOTE_IP));
+        if (difficulty > 0) {
+            result.render("captchaToken", captchaTokenService.newProofOfWorkToken(difficulty));
+            result.render("proofOfWorkDifficulty", difficulty);
+            return;
+        }
         String token = captchaTokenService.newCaptchaToken();
         result.render("captchaToken", token);
         result.render("captchaUrl", urlBuilderProvider.get().getCaptchaUrl(token));
@@ -1,5 +1,6 @@
 package controllers.sso.auth;
 
+import com.google.common.base.Strings;
 import com.google.inject.servlet.RequestScoped;
 import controllers.annotations.ApplicationPolicy;
 import controllers.annotations.BrowserPolicy;
@@ -11,6 +12,7 @@ import controllers.sso.filters.DeviceTypeFilter;
 import controllers.sso.web.Controllers;
 import controllers.sso.web.Escapers;
 import controllers.sso.web.UrlBuilder;
+import dto.sso.TokensDto;
 import models.sso.User;
 import models.sso.UserSignInState;
 import models.sso.token.ExpirableToken;
@@ -24,9 +26,11 @@ import services.sso.token.ExpirableTokenEncryptor;
 import services.sso.token.PasswordBasedEncryptor;
 
 import javax.inject.Inject;
+import java.util.Collections;
 
 /**
- * Provides Sign In response with appropriate URL redirect and needed headers.
+ * Provides Sign In response with appropriate URL redirect and needed headers. Sign In response carries short-lived
+ * access token and long-lived refresh token, the latter is exchanged for new tokens with refresh response.
  */
 @RequestScoped
 public class SignInResponseBuilder {
@@ -76,6 +80,26 @@ public class SignInResponseBuilder {
      */
     private final String authCookieName;
 
+    /**
+     * Refresh token cookie name.
+     */
+    private final String refreshCookieName;
+
+    /**
+     * Refresh token cookie path, SSO sub route, since refresh token is used only there.
+     */
+    private final String refreshCookiePath;
+
+    /**
+     * Access token time to live, in seconds.
+     */
+    private final int accessTokenTimeToLive;
+
+    /**
+     * Refresh token time to live, in seconds.
+     */
+    private final int refreshTokenTimeToLive;
+
     /**
      * Whether to force insecure cookie for authentication token in case of browser response.
      */
@@ -106,6 +130,10 @@ public class SignInResponseBuilder {
         this.properties = properties;
         this.domain = properties.getOrDie("application.domain");
         this.authCookieName = properties.getOrDie("application.sso.device.auth.policy.append.cookie");
+        this.refreshCookieName = properties.getOrDie("application.sso.device.auth.policy.append.refreshCookie");
+        this.refreshCookiePath = context.getContextPath() + properties.getOrDie("application.sso.subRoute");
+        this.accessTokenTimeToLive = properties.getIntegerOrDie("application.sso.accessToken.ttl");
+        this.refreshTokenTimeToLive = properties.getIntegerOrDie("application.sso.refreshToken.ttl");
         this.forceInsecureCookie =
                 properties.getBooleanWithDefault("application.sso.accessToken.forceInsecureCookie", false);
     }
@@ -138,7 +166,60 @@ public class SignInResponseBuilder {
     }
 
     /**
-     * Builds sign out response with authentication cookie reset.
+     * Supplies JSON response with new access and refresh tokens for the user. Tokens are set as cookies and omitted
+     * from the response body if the refresh token came in a cookie.
+     *
+     * @param user User to use for tokens.
+     * @param cookies Whether to set tokens as cookies.
+     * @return Refresh response.
+     */
+    public Result getRefreshResponse(User user, boolean cookies) {
+        TokensDto tokens = new TokensDto();
+        tokens.setExpiresIn(accessTokenTimeToLive);
+        try {
+            String accessTokenAsString = buildNewUserToken(user);
+            String refreshTokenAsString = buildNewRefreshToken(user);
+            if (cookies) {
+                return Controllers.json(tokens)
+                        .addCookie(buildAccessTokenCookie(accessTokenAsString))
+                        .addCookie(buildRefreshTokenCookie(refreshTokenAsString));
+            }
+            tokens.setAccessToken(accessTokenAsString);
+            tokens.setRefreshToken(refreshTokenAsString);
+            return Controllers.json(tokens);
+        } catch (ExpirableTokenEncryptorException ee) {
+            throw new RuntimeException(ee);
+        }
+    }
+
+    /**
+     * Returns refresh token from the refresh cookie or, if there is no cookie, from the refresh parameter of the current
+     * request. Returns null if there is no refresh token.
+     *
+     * @return Refresh token as encrypted string or null.
+     */
+    public String getRequestRefreshToken() {
+        Cookie cookie = context.getCookie(refreshCookieName);
+        String cookieToken = cookie != null ? Strings.emptyToNull(cookie.getValue()) : null;
+        if (cookieToken != null) {
+            return cookieToken;
+        }
+        return Strings.emptyToNull(context.getParameter(
+                properties.getOrDie("application.sso.device.auth.policy.append.refreshParameter")));
+    }
+
+    /**
+     * Returns whether the refresh token of the current request came in a cookie.
+     *
+     * @return Whether the refresh token of the current request came in a cookie.
+     */
+    public boolean isRequestRefreshTokenInCookie() {
+        Cookie cookie = context.getCookie(refreshCookieName);
+        return cookie != null && !Strings.isNullOrEmpty(cookie.getValue());
+    }
+
+    /**
+     * Builds sign out response with authentication and refresh cookies reset.
      *
      * @return Sign out response.
      */
@@ -151,7 +232,14 @@ public class SignInResponseBuilder {
                 .setHttpOnly(true)
                 .setMaxAge(1)
                 .build();
-        return Controllers.redirect(urlBuilder.getSignInUrl(), resetCookie);
+        Cookie resetRefreshCookie = Cookie.builder(refreshCookieName, "")
+                .setDomain(domain)
+                .setSecure(properties.isProd() && !forceInsecureCookie)
+                .setPath(refreshCookiePath)
+                .setHttpOnly(true)
+                .setMaxAge(1)
+                .build();
+        return Controllers.redirect(urlBuilder.getSignInUrl(), resetCookie, resetRefreshCookie);
     }
 
     /**
@@ -164,18 +252,14 @@ public class SignInResponseBuilder {
     private Result getBrowserSignInResponse(User user) throws ExpirableTokenEncryptorException {
         String continueUrl = urlBuilder.getContinueUrlParameter();
         String accessTokenAsString = buildNewUserToken(user);
+        String refreshTokenAsString = buildNewRefreshToken(user);
 
         if (AppendAuthTokenPolicy.COOKIE.equals(browserAppendTokenPolicy)) {
             // Remember access token is a secure, HTTP only cookie. HTTP proxy servers are expected to pass it to
             // upstream, ignoring or disabling secure parameter.
-            Cookie cookie = Cookie.builder(authCookieName, accessTokenAsString)
-                    .setDomain(domain)
-                    .setMaxAge(properties.getIntegerOrDie("application.sso.accessToken.ttl"))
-                    .setSecure(properties.isProd() && !forceInsecureCookie)
-                    .setHttpOnly(true)
-                    .setPath("/")
-                    .build();
-            return Controllers.redirect(continueUrl, cookie);
+            return Controllers.redirect(continueUrl,
+                    buildAccessTokenCookie(accessTokenAsString),
+                    buildRefreshTokenCookie(refreshTokenAsString));
         }
 
         // Otherwise, append access token as a parameter to URL.
@@ -185,11 +269,7 @@ public class SignInResponseBuilder {
         } else {
             resultUrlBuilder.append(continueUrl.contains("#") ? "&" : "#");
         }
-        String parameterName = properties.getOrDie("application.sso.device.auth.policy.append.parameter");
-        resultUrlBuilder
-                .append(Escapers.encodePercent(parameterName))
-                .append("=")
-                .append(Escapers.encodePercent(accessTokenAsString));
+        appendTokens(resultUrlBuilder, accessTokenAsString, refreshTokenAsString);
         return Controllers.redirect(resultUrlBuilder.toString());
     }
 
@@ -204,16 +284,13 @@ public class SignInResponseBuilder {
         String applicationDefinedBaseUrl = properties.getOrDie("application.sso.device.auth.policy.application.url");
         StringBuilder resultUrlBuilder = new StringBuilder(applicationDefinedBaseUrl);
         String accessTokenAsString = buildNewUserToken(user);
+        String refreshTokenAsString = buildNewRefreshToken(user);
         if (AppendAuthTokenPolicy.URL_PARAM.equals(applicationAppendTokenPolicy)) {
             resultUrlBuilder.append(applicationDefinedBaseUrl.contains("?") ? "&" : "?");
         } else {
             resultUrlBuilder.append(applicationDefinedBaseUrl.contains("#") ? "&" : "#");
         }
-        String parameterName = properties.getOrDie("application.sso.device.auth.policy.append.parameter");
-        resultUrlBuilder
-                .append(Escapers.encodePercent(parameterName))
-                .append("=")
-                .append(Escapers.encodePercent(accessTokenAsString));
+        appendTokens(resultUrlBuilder, accessTokenAsString, refreshTokenAsString);
         return Controllers.redirect(resultUrlBuilder.toString());
     }
 
@@ -231,18 +308,88 @@ public class SignInResponseBuilder {
             throw new IllegalStateException("Unable to provide access token for the user who's sign-in " +
                     "state is disabled. User id: " + user.getId());
         }
-        long ttl = 1000L * properties.getIntegerOrDie("application.sso.accessToken.ttl");
+        long ttl = 1000L * accessTokenTimeToLive;
         ExpirableToken token;
         if (user.isModeratorOrAdmin()) {
-            token = ExpirableToken.newUserToken(
+            token = ExpirableToken.newRevocableUserToken(
                     ExpirableTokenType.ACCESS,
                     user.getId(),
-                    "role",
-                    user.getRole().toString(),
+                    Collections.singletonMap("role", user.getRole().toString()),
                     ttl);
         } else {
-            token = ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, user.getId(), ttl);
+            token = ExpirableToken.newRevocableUserToken(
+                    ExpirableTokenType.ACCESS, user.getId(), Collections.emptyMap(), ttl);
         }
         return encryptor.encrypt(token);
     }
+
+    /**
+     * Builds new user refresh token and returns it as encrypted string. Refresh token contains only user id, the role
+     * and sign-in state are checked against the database on refresh.
+     *
+     * @param user User.
+     * @return New refresh token as encrypted string.
+     * @throws ExpirableTokenEncryptorException If there was an error related to encryption of the token.
+     */
+    private String buildNewRefreshToken(User user) throws ExpirableTokenEncryptorException {
+        long ttl = 1000L * refreshTokenTimeToLive;
+        return encryptor.encrypt(ExpirableToken.newRevocableUserToken(
+                ExpirableTokenType.REFRESH, user.getId(), Collections.emptyMap(), ttl));
+    }
+
+    /**
+     * Builds secure, HTTP only access token cookie for the whole domain.
+     *
+     * @param accessTokenAsString Access token as encrypted string.
+     * @return Access token cookie.
+     */
+    private Cookie buildAccessTokenCookie(String accessTokenAsString) {
+        return Cookie.builder(authCookieName, accessTokenAsString)
+                .setDomain(domain)
+                .setMaxAge(accessTokenTimeToLive)
+                .setSecure(properties.isProd() && !forceInsecureCookie)
+                .setHttpOnly(true)
+                .setPath("/")
+                .build();
+    }
+
+    /**
+     * Builds secure, HTTP only refresh token cookie, sent only to SSO sub route.
+     *
+     * @param refreshTokenAsString Refresh token as encrypted string.
+     * @return Refresh token cookie.
+     */
+    private Cookie buildRefreshTokenCookie(String refreshTokenAsString) {
+        return Cookie.builder(refreshCookieName, refreshTokenAsString)
+                .setDomain(domain)
+                .setMaxAge(refreshTokenTimeToLive)
+                .setSecure(properties.isProd() && !forceInsecureCookie)
+                .setHttpOnly(true)
+                .setPath(refreshCookiePath)
+                .build();
+    }
+
+    /**
+     * Appends access and refresh tokens as parameters to given URL builder.
+     *
+     * @param resultUrlBuilder URL builder, ends with parameter separator.
+     * @param accessTokenAsString Access token as encrypted string.
+     * @param refreshTokenAsString Refresh token as encrypted string.
+     */
+    private void appendTokens(
+            StringBuilder resultUrlBuilder,
+            String accessTokenAsString,
+            String refreshTokenAsString) {
+        String parameterName = properties.getOrDie("application.sso.device.auth.policy.append.parameter");
+        String refreshParameterName =
+                properties.getOrDie("application.sso.device.auth.policy.append.refreshParameter");
+        resultUrlBuilder
+                .append(Escapers.encodePercent(parameterName))
+                .append("=")
+                .append(Escapers.encodePercent(accessTokenAsString))
+                .append("&")
+                .append(Escapers.encodePercent(refreshParameterName))
+                .append("=")
+                .append(Escapers.encodePercent(refreshTokenAsString));
+    }
 }
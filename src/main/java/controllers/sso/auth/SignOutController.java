@@ -1,20 +1,29 @@
 package controllers.sso.auth;
 
+import controllers.sso.filters.AuthenticationFilter;
 import controllers.sso.filters.LanguageFilter;
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenEncryptorException;
+import models.sso.token.ExpirableTokenType;
+import ninja.Context;
 import ninja.FilterWith;
 import ninja.Result;
 import ninja.metrics.Timed;
+import services.sso.TokenRevocationService;
+import services.sso.token.ExpirableTokenEncryptor;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 
 /**
- * Sign out controller that resets cookies for browser based authentication and redirects to continue URL.
+ * Sign out controller that revokes current access and refresh tokens, resets cookies for browser based authentication and
+ * redirects to continue URL.
  */
 @Singleton
 @FilterWith({
-        LanguageFilter.class
+        LanguageFilter.class,
+        AuthenticationFilter.class
 })
 public class SignOutController {
 
@@ -23,23 +32,59 @@ public class SignOutController {
      */
     private final Provider<SignInResponseBuilder> responseBuilderProvider;
 
+    /**
+     * Token revocation service.
+     */
+    private final TokenRevocationService tokenRevocationService;
+
+    /**
+     * Expirable token encryptor.
+     */
+    private final ExpirableTokenEncryptor encryptor;
+
     /**
      * Controller constructor.
      *
      * @param responseBuilderProvider Authentication response builder provider.
+     * @param tokenRevocationService Token revocation service.
+     * @param encryptor Expirable token encryptor.
      */
     @Inject
-    public SignOutController(Provider<SignInResponseBuilder> responseBuilderProvider) {
+    public SignOutController(
+            Provider<SignInResponseBuilder> responseBuilderProvider,
+            TokenRevocationService tokenRevocationService,
+            ExpirableTokenEncryptor encryptor) {
         this.responseBuilderProvider = responseBuilderProvider;
+        this.tokenRevocationService = tokenRevocationService;
+        this.encryptor = encryptor;
     }
 
     /**
-     * Signs out current user by resetting authentication cookie.
+     * Signs out current user by revoking access and refresh tokens and resetting authentication cookies.
      *
+     * @param context Context.
      * @return Sign out result.
      */
     @Timed
-    public Result signOut() {
-        return responseBuilderProvider.get().getSignOutResponse();
+    public Result signOut(Context context) {
+        Long userId = (Long) context.getAttribute(AuthenticationFilter.USER_ID);
+        ExpirableToken accessToken = (ExpirableToken) context.getAttribute(AuthenticationFilter.TOKEN);
+        if (userId != null && accessToken != null) {
+            tokenRevocationService.revokeTokenOnce(userId, accessToken);
+        }
+        SignInResponseBuilder responseBuilder = responseBuilderProvider.get();
+        String refreshTokenAsString = responseBuilder.getRequestRefreshToken();
+        if (refreshTokenAsString != null) {
+            try {
+                ExpirableToken refreshToken = encryptor.decrypt(refreshTokenAsString);
+                Long refreshUserId = refreshToken.getAttributeAsLong("userId");
+                if (ExpirableTokenType.REFRESH.equals(refreshToken.getType()) && refreshUserId != null) {
+                    tokenRevocationService.revokeTokenOnce(refreshUserId, refreshToken);
+                }
+            } catch (ExpirableTokenEncryptorException ex) {
+                // Nothing to revoke.
+            }
+        }
+        return responseBuilder.getSignOutResponse();
     }
 }
@@ -2,6 +2,7 @@ package controllers.sso.auth;
 
 import com.google.common.base.Strings;
 import com.google.inject.persist.Transactional;
+import controllers.annotations.RequestCost;
 import controllers.annotations.SecureHtmlHeaders;
 import controllers.sso.auth.state.SignInState;
 import controllers.sso.filters.AuthenticationFilter;
@@ -264,6 +265,7 @@ public class SignUpController {
      */
     @Timed
     @Transactional
+    @RequestCost(20)
     public Result signUp(Context context, Validation validation, @JSR303Validation UserSignUpDto userDto) {
         if (userDto == null) {
             return signUpGet(context);
@@ -428,12 +430,19 @@ public class SignUpController {
     }
 
     /**
-     * Adds information about the captcha to given result.
+     * Adds information about the captcha to given result: proof of work challenge if enabled, captcha image otherwise.
      *
      * @param result Result.
      * @param context Context.
      */
     private void regenerateCaptchaTokenAndUrl(Result result, Context context) {
+        int difficulty = captchaTokenService.getProofOfWorkDifficulty(
+                (String) context.getAttribute(IpAddressFilter.REMOTE_IP));
+        if (difficulty > 0) {
+            result.render("token", captchaTokenService.newProofOfWorkToken(difficulty));
+            result.render("proofOfWorkDifficulty", difficulty);
+            return;
+        }
         String token = captchaTokenService.newCaptchaToken();
         result.render("token", token);
         result.render("captchaUrl", urlBuilderProvider.get().getCaptchaUrl(token));
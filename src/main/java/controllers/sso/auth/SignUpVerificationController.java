@@ -1,6 +1,7 @@
 package controllers.sso.auth;
 
 import com.google.inject.persist.Transactional;
+import controllers.annotations.RequestCost;
 import controllers.annotations.SecureHtmlHeaders;
 import controllers.sso.auth.state.SignInState;
 import controllers.sso.filters.AuthenticationFilter;
@@ -130,6 +131,7 @@ public class SignUpVerificationController {
      */
     @Timed
     @Transactional
+    @RequestCost(5)
     public Result verifySignUp(@Param("token") String tokenAsString, Context context) {
         String continueUrl = urlBuilderProvider.get().getContinueUrlParameter();
         String errorType = null;
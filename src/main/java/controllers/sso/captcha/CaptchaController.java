@@ -1,26 +1,31 @@
 package controllers.sso.captcha;
 
+import controllers.annotations.RequestCost;
+import controllers.sso.filters.HitsPerIpCheckFilter;
+import controllers.sso.filters.IpAddressFilter;
 import models.sso.token.ExpiredTokenException;
 import models.sso.token.IllegalTokenException;
 import ninja.Context;
+import ninja.FilterWith;
 import ninja.Result;
 import ninja.metrics.Timed;
 import ninja.params.Param;
 import ninja.utils.NinjaProperties;
-import nl.captcha.Captcha;
-import nl.captcha.backgrounds.GradiatedBackgroundProducer;
-import nl.captcha.noise.CurvedLineNoiseProducer;
 import org.slf4j.Logger;
 import services.sso.CaptchaTokenService;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.awt.Color;
 
 /**
- * Captcha controller.
+ * Captcha controller. Serves pre-rendered images from the captcha pool, rendering still costs server work when the
+ * pool is starved, so captcha images are counted by the rate limiter too.
  */
 @Singleton
+@FilterWith({
+        IpAddressFilter.class,
+        HitsPerIpCheckFilter.class
+})
 public class CaptchaController {
 
     /**
@@ -38,41 +43,11 @@ public class CaptchaController {
      */
     private final StubImageRenderable stubImageRenderable;
 
-    /**
-     * Fish eye renderer.
-     */
-    private final SimpleFishEyeGimpyRenderer fishEyeGimpyRenderer;
-
-    /**
-     * Curved line.
-     */
-    private final CurvedLineNoiseProducer curvedLineNoiseProducer;
-
-    /**
-     * Background.
-     */
-    private final GradiatedBackgroundProducer backgroundLeftToRight;
-
-    /**
-     * Background.
-     */
-    private final GradiatedBackgroundProducer backgroundRightToLeft;
-
     /**
      * Logger.
      */
     private final Logger logger;
 
-    /**
-     * Captcha width.
-     */
-    private final int width;
-
-    /**
-     * Captcha height.
-     */
-    private final int height;
-
     /**
      * Constructs captcha controller.
      *
@@ -83,20 +58,8 @@ public class CaptchaController {
     @Inject
     public CaptchaController(CaptchaTokenService captchaTokenService, NinjaProperties properties, Logger logger) {
         this.captchaTokenService = captchaTokenService;
-        this.fishEyeGimpyRenderer = new SimpleFishEyeGimpyRenderer();
         this.stubImageRenderable = new StubImageRenderable(
                 properties.get("application.sso.captcha.expiredImage"), logger);
-        this.curvedLineNoiseProducer = new CurvedLineNoiseProducer(Color.BLACK, 4);
-        this.backgroundLeftToRight = new GradiatedBackgroundProducer();
-        this.backgroundLeftToRight.setFromColor(Color.LIGHT_GRAY);
-        this.backgroundLeftToRight.setToColor(Color.WHITE);
-        this.backgroundRightToLeft = new GradiatedBackgroundProducer();
-        this.backgroundRightToLeft.setFromColor(Color.WHITE);
-        this.backgroundRightToLeft.setToColor(Color.LIGHT_GRAY);
-
-        this.width = properties.getIntegerWithDefault("application.sso.captcha.width", 240);
-        this.height = properties.getIntegerWithDefault("application.sso.captcha.height", 50);
-
         this.logger = logger;
     }
 
@@ -108,18 +71,11 @@ public class CaptchaController {
      * @return Image result.
      */
     @Timed
+    @RequestCost(2)
     public Result captcha(Context context, @Param(CAPTCHA_PARAMETER) String captchaToken) {
         Result result = new Result(Result.SC_200_OK).doNotCacheContent();
         try {
-            String displaySequence = captchaTokenService.extractCaptchaText(captchaToken);
-            Captcha captcha = new Captcha.Builder(this.width, this.height)
-                    .addText(() -> displaySequence)
-                    .addBorder()
-                    .gimp(fishEyeGimpyRenderer)
-                    .addNoise(curvedLineNoiseProducer)
-                    .addBackground(Math.random() > 0.5D ? backgroundLeftToRight : backgroundRightToLeft)
-                    .build();
-            return result.render(new CaptchaRenderable(captcha, logger));
+            return result.render(new CaptchaRenderable(captchaTokenService.getCaptchaImage(captchaToken), logger));
         } catch (CaptchaTokenService.AlreadyUsedTokenException | ExpiredTokenException |
                 IllegalTokenException ex) {
             return result.render(stubImageRenderable);
@@ -4,24 +4,19 @@ import ninja.Context;
 import ninja.Renderable;
 import ninja.Result;
 import ninja.utils.ResponseStreams;
-import nl.captcha.Captcha;
 import org.slf4j.Logger;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
 import java.io.IOException;
 
 /**
- * Renderable for captcha.
+ * Renderable for captcha PNG image, written with its length.
  */
 class CaptchaRenderable implements Renderable {
 
     /**
-     * Captcha.
+     * Captcha PNG image.
      */
-    private final Captcha captcha;
+    private final byte[] image;
 
     /**
      * Logger.
@@ -31,23 +26,21 @@ class CaptchaRenderable implements Renderable {
     /**
      * Construcs renderable captcha.
      *
-     * @param captcha Captcha.
+     * @param image Captcha PNG image.
      * @param logger Logger.
      */
-    public CaptchaRenderable(Captcha captcha, Logger logger) {
-        this.captcha = captcha;
+    public CaptchaRenderable(byte[] image, Logger logger) {
+        this.image = image;
         this.logger = logger;
     }
 
     @Override
     public void render(Context context, Result result) {
         result.contentType("image/png");
+        result.addHeader("Content-Length", Integer.toString(image.length));
         try {
             ResponseStreams responseStreams = context.finalizeHeaders(result);
-            ImageOutputStream ios = ImageIO.createImageOutputStream(responseStreams.getOutputStream());
-            ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
-            writer.setOutput(ios);
-            writer.write(null, new IIOImage(captcha.getImage(), null, null), writer.getDefaultWriteParam());
+            responseStreams.getOutputStream().write(image);
         } catch (IOException ioe) {
             logger.error("Error while rendering captcha.", ioe);
         }
@@ -33,6 +33,7 @@ class StubImageRenderable implements Renderable {
     @Override
     public void render(Context context, Result result) {
         result.contentType("image/png");
+        result.addHeader("Content-Length", Integer.toString(stubBytes.length));
         ResponseStreams responseStreams = context.finalizeHeaders(result);
         try {
             responseStreams.getOutputStream().write(stubBytes);
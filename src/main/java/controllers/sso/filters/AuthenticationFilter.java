@@ -13,7 +13,10 @@ import ninja.FilterChain;
 import ninja.Result;
 import ninja.utils.NinjaProperties;
 import org.slf4j.Logger;
-import services.sso.token.ExpirableTokenEncryptor;
+import services.sso.TokenRevocationService;
+import services.sso.token.AccessTokenCache;
+import services.sso.token.LazyXsrfToken;
+import services.sso.token.XsrfTokenService;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
@@ -23,7 +26,7 @@ import javax.inject.Singleton;
  * and places it into the attributes as {@link AuthenticationFilter#USER_ID}, {@link AuthenticationFilter#USER_ROLE} and
  * {@link AuthenticationFilter#TOKEN}.
  * Unauthenticated users have no {@link AuthenticationFilter#USER_ID}, {@link AuthenticationFilter#USER_ROLE}
- * and {@link AuthenticationFilter#TOKEN} attributes in context.
+ * and {@link AuthenticationFilter#TOKEN} attributes in context. Revoked access tokens don't authenticate users.
  */
 @Singleton
 public class AuthenticationFilter implements Filter {
@@ -50,12 +53,12 @@ public class AuthenticationFilter implements Filter {
     public static final String TOKEN = "token";
 
     /**
-     * Attribute key name for newly generated XSRF token as string.
+     * Attribute key name for XSRF token, {@link LazyXsrfToken} that renders as string.
      */
     public static final String XSRF_TOKEN = "xsrfToken";
 
     /**
-     * Attribute key name for XSRF token time to live.
+     * Attribute key name for minimum remaining XSRF token time to live, in milliseconds.
      */
     public static final String XSRF_TOKEN_TTL = "xsrfTokenTimeToLive";
 
@@ -65,14 +68,19 @@ public class AuthenticationFilter implements Filter {
     public static final String PROPERTIES = "properties";
 
     /**
-     * Encryptor to extract data from token.
+     * Cache of verified access tokens.
      */
-    private final ExpirableTokenEncryptor encryptor;
+    private final AccessTokenCache accessTokenCache;
 
     /**
-     * XSRF token time to live, in milliseconds.
+     * Token revocation service.
      */
-    private final long xsrfTokenTimeToLive;
+    private final TokenRevocationService tokenRevocationService;
+
+    /**
+     * XSRF token service.
+     */
+    private final XsrfTokenService xsrfTokenService;
 
     /**
      * Device auth policy.
@@ -102,54 +110,61 @@ public class AuthenticationFilter implements Filter {
     /**
      * Constructs authorization filter.
      *
-     * @param encryptor  Encryptor.
+     * @param accessTokenCache Cache of verified access tokens.
+     * @param tokenRevocationService Token revocation service.
+     * @param xsrfTokenService XSRF token service.
      * @param deviceAuthPolicy Device authorization policy.
      * @param properties Properties.
      * @param logger Logger.
      */
     @Inject
     public AuthenticationFilter(
-            ExpirableTokenEncryptor encryptor,
+            AccessTokenCache accessTokenCache,
+            TokenRevocationService tokenRevocationService,
+            XsrfTokenService xsrfTokenService,
             DeviceAuthPolicy deviceAuthPolicy,
             NinjaProperties properties,
             Logger logger) {
-        this.encryptor = encryptor;
+        this.accessTokenCache = accessTokenCache;
+        this.tokenRevocationService = tokenRevocationService;
+        this.xsrfTokenService = xsrfTokenService;
         this.deviceAuthPolicy = deviceAuthPolicy;
         this.logger = logger;
         this.properties = properties;
         this.parameterName = properties.getOrDie("application.sso.device.auth.policy.append.parameter");
         this.cookieName = properties.getOrDie("application.sso.device.auth.policy.append.cookie");
-        this.xsrfTokenTimeToLive = properties.getIntegerOrDie("application.sso.xsrfToken.ttl") * 1800L;
     }
 
     @Override
     public Result filter(FilterChain filterChain, Context context) {
         try {
             String token = getToken(context);
-            ExpirableToken expirableToken = token != null ? encryptor.decrypt(token) : null;
+            ExpirableToken expirableToken = token != null ? accessTokenCache.decrypt(token) : null;
             if (expirableToken != null && ExpirableTokenType.ACCESS.equals(expirableToken.getType())) {
                 Long userId = expirableToken.getAttributeAsLong("userId");
                 if (userId == null) {
                     throw new IllegalStateException("Access token is expected to contain user id: " + token);
                 }
-
-                // Populate user information.
-                context.setAttribute(USER_ROLE, UserRole.fromString(expirableToken.getAttributeValue("role")));
-                context.setAttribute(USER_ID, userId);
-                context.setAttribute(USER_AUTHENTICATED, true);
-
-                context.setAttribute(TOKEN, expirableToken);
-                ExpirableToken xsrfToken =
-                        ExpirableToken.newUserToken(ExpirableTokenType.XSRF, userId, xsrfTokenTimeToLive);
-
-                // Populate XSRF token data.
-                context.setAttribute(XSRF_TOKEN, encryptor.encrypt(xsrfToken));
-                context.setAttribute(XSRF_TOKEN_TTL, xsrfTokenTimeToLive);
+                if (tokenRevocationService.isRevoked(userId, expirableToken)) {
+                    // Signed out or user's access has been changed since the token was issued.
+                    context.setAttribute(USER_AUTHENTICATED, false);
+                } else {
+                    // Populate user information.
+                    context.setAttribute(USER_ROLE, UserRole.fromString(expirableToken.getAttributeValue("role")));
+                    context.setAttribute(USER_ID, userId);
+                    context.setAttribute(USER_AUTHENTICATED, true);
+
+                    context.setAttribute(TOKEN, expirableToken);
+
+                    // Populate XSRF token data, the token is encrypted only if a page or response renders it.
+                    context.setAttribute(XSRF_TOKEN, xsrfTokenService.getLazyXsrfToken(userId));
+                    context.setAttribute(XSRF_TOKEN_TTL, xsrfTokenService.getMinimumTimeToLive());
+                }
             } else {
                 context.setAttribute(USER_AUTHENTICATED, false);
             }
         } catch (ExpirableTokenEncryptorException ex) {
-            logger.info("Error while encrypting/decrypting user or XSRF token.", ex);
+            logger.info("Error while decrypting access token.", ex);
             context.setAttribute(USER_AUTHENTICATED, false);
         }
         context.setAttribute(PROPERTIES, properties);
@@ -1,19 +1,31 @@
 package controllers.sso.filters;
 
+import controllers.annotations.RequestCost;
 import ninja.Context;
 import ninja.Filter;
 import ninja.FilterChain;
 import ninja.Result;
-import services.sso.limits.IPCounterService;
+import ninja.Results;
+import ninja.Route;
+import ninja.utils.NinjaProperties;
+import services.sso.limits.HierarchicalRateLimiter;
+import services.sso.limits.RateLimitAction;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * Checks if number of requests from given IP is exceeded and places special boolean attribute
+ * Checks if number of requests from given IP, its subnet, for the target account or in total is exceeded and places
+ * special boolean attribute
  * <p>
- * {@link HitsPerIpCheckFilter#HITS_PER_IP_LIMIT_EXCEEDED} into the request. Must be invoked after
- * {@link IpAddressFilter}.
+ * {@link HitsPerIpCheckFilter#HITS_PER_IP_LIMIT_EXCEEDED} into the request, so captcha is required. Responds with 429
+ * (Too Many Requests) and "Retry-After" header right away when a reject threshold is reached. Each request counts as
+ * its cost: property "counters.cost.[Controller].[method]", {@link RequestCost} of the controller method or 1.
+ * Must be invoked after {@link IpAddressFilter}.
  */
 @Singleton
 public class HitsPerIpCheckFilter implements Filter {
@@ -24,24 +36,91 @@ public class HitsPerIpCheckFilter implements Filter {
     public static final String HITS_PER_IP_LIMIT_EXCEEDED = "hitsPerIpLimitExceeded";
 
     /**
-     * IP counter service.
+     * Target account (email or username) parameter name.
      */
-    private final IPCounterService ipCounterService;
+    static final String EMAIL_OR_USERNAME = "emailOrUsername";
+
+    /**
+     * Too Many Requests status code.
+     */
+    private static final int SC_429_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Seconds for the client to wait before retry.
+     */
+    private static final String RETRY_AFTER = "30";
+
+    /**
+     * Response body.
+     */
+    private static final byte[] BODY = "Too many requests, please retry later.".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Hierarchical rate limiter.
+     */
+    private final HierarchicalRateLimiter rateLimiter;
+
+    /**
+     * Properties.
+     */
+    private final NinjaProperties properties;
+
+    /**
+     * Costs of controller methods.
+     */
+    private final Map<Method, Integer> costs = new ConcurrentHashMap<>();
 
     /**
      * Constructs per IP checker.
      *
-     * @param ipCounterService IP counter service.
+     * @param rateLimiter Hierarchical rate limiter.
+     * @param properties Properties.
      */
     @Inject
-    public HitsPerIpCheckFilter(IPCounterService ipCounterService) {
-        this.ipCounterService = ipCounterService;
+    public HitsPerIpCheckFilter(HierarchicalRateLimiter rateLimiter, NinjaProperties properties) {
+        this.rateLimiter = rateLimiter;
+        this.properties = properties;
     }
 
     @Override
     public Result filter(FilterChain filterChain, Context context) {
         String ip = (String) context.getAttribute(IpAddressFilter.REMOTE_IP);
-        context.setAttribute(HITS_PER_IP_LIMIT_EXCEEDED, ipCounterService.incrementAndCheckLimit(ip));
+        RateLimitAction action = rateLimiter.hit(ip, context.getParameter(EMAIL_OR_USERNAME), getCost(context));
+        if (RateLimitAction.REJECT.equals(action)) {
+            return Results.status(SC_429_TOO_MANY_REQUESTS)
+                    .addHeader("Retry-After", RETRY_AFTER)
+                    .text()
+                    .renderRaw(BODY);
+        }
+        context.setAttribute(HITS_PER_IP_LIMIT_EXCEEDED, RateLimitAction.CAPTCHA.equals(action));
         return filterChain.next(context);
     }
+
+    /**
+     * Returns cost of the request's controller method.
+     *
+     * @param context Context.
+     * @return Cost of the request.
+     */
+    int getCost(Context context) {
+        Route route = context.getRoute();
+        if (route == null || route.getControllerMethod() == null) {
+            return 1;
+        }
+        return costs.computeIfAbsent(route.getControllerMethod(), this::getCost);
+    }
+
+    /**
+     * Returns cost of the controller method.
+     *
+     * @param method Controller method.
+     * @return Cost of the method.
+     */
+    private int getCost(Method method) {
+        RequestCost requestCost = method.getAnnotation(RequestCost.class);
+        int cost = properties.getIntegerWithDefault(
+                "counters.cost." + method.getDeclaringClass().getSimpleName() + "." + method.getName(),
+                requestCost != null ? requestCost.value() : 1);
+        return Math.max(cost, 1);
+    }
 }
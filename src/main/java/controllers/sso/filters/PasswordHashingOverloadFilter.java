@@ -0,0 +1,64 @@
+package controllers.sso.filters;
+
+import ninja.Context;
+import ninja.Filter;
+import ninja.FilterChain;
+import ninja.Result;
+import ninja.Results;
+import org.slf4j.Logger;
+import services.sso.password.PasswordHashingOverloadedException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Responds with 503 (Service Unavailable) and "Retry-After" header right away when password hashing capacity is
+ * exhausted, instead of making the request wait for a hashing thread. The transaction of the request is rolled back.
+ */
+@Singleton
+public class PasswordHashingOverloadFilter implements Filter {
+
+    /**
+     * Service Unavailable status code.
+     */
+    private static final int SC_503_SERVICE_UNAVAILABLE = 503;
+
+    /**
+     * Seconds for the client to wait before retry.
+     */
+    private static final String RETRY_AFTER = "1";
+
+    /**
+     * Response body.
+     */
+    private static final byte[] BODY = "Service is busy, please retry.".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Logger.
+     */
+    private final Logger logger;
+
+    /**
+     * Constructs the filter.
+     *
+     * @param logger Logger.
+     */
+    @Inject
+    public PasswordHashingOverloadFilter(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public Result filter(FilterChain filterChain, Context context) {
+        try {
+            return filterChain.next(context);
+        } catch (PasswordHashingOverloadedException e) {
+            logger.warn("Password hashing overloaded: {} {}", context.getRequestPath(), e.getMessage());
+            return Results.status(SC_503_SERVICE_UNAVAILABLE)
+                    .addHeader("Retry-After", RETRY_AFTER)
+                    .text()
+                    .renderRaw(BODY);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package dto.sso;
+
+import java.io.Serializable;
+
+/**
+ * Access and refresh tokens data transfer object. Public DTO. Tokens are omitted when they are sent in cookies.
+ */
+public class TokensDto implements Serializable {
+
+    /**
+     * Access token.
+     */
+    private String accessToken;
+
+    /**
+     * Refresh token.
+     */
+    private String refreshToken;
+
+    /**
+     * Access token time to live, in seconds.
+     */
+    private long expiresIn;
+
+    /**
+     * Returns access token.
+     *
+     * @return Access token.
+     */
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    /**
+     * Sets access token.
+     *
+     * @param accessToken Access token.
+     */
+    public void setAccessToken(String accessToken) {
+        this.accessToken = accessToken;
+    }
+
+    /**
+     * Returns refresh token.
+     *
+     * @return Refresh token.
+     */
+    public String getRefreshToken() {
+        return refreshToken;
+    }
+
+    /**
+     * Sets refresh token.
+     *
+     * @param refreshToken Refresh token.
+     */
+    public void setRefreshToken(String refreshToken) {
+        this.refreshToken = refreshToken;
+    }
+
+    /**
+     * Returns access token time to live, in seconds.
+     *
+     * @return Access token time to live, in seconds.
+     */
+    public long getExpiresIn() {
+        return expiresIn;
+    }
+
+    /**
+     * Sets access token time to live, in seconds.
+     *
+     * @param expiresIn Access token time to live, in seconds.
+     */
+    public void setExpiresIn(long expiresIn) {
+        this.expiresIn = expiresIn;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
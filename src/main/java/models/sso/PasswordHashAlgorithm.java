@@ -0,0 +1,18 @@
+package models.sso;
+
+/**
+ * Password hashing algorithm of stored credentials. Stored along with the hash, so hashes of every historical
+ * algorithm remain verifiable.
+ */
+public enum PasswordHashAlgorithm {
+
+    /**
+     * Single SHA-512 over salt and password, legacy. See {@link services.sso.password.Sha512PasswordHasher}.
+     */
+    SHA512,
+
+    /**
+     * PBKDF2-HMAC-SHA512, cost is the number of iterations. See {@link services.sso.password.Pbkdf2PasswordHasher}.
+     */
+    PBKDF2_SHA512
+}
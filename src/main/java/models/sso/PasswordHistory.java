@@ -0,0 +1,166 @@
+package models.sso;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import java.io.Serializable;
+
+/**
+ * Former password of the user: salt and hash with its algorithm and cost, replaced at given time. Only the last few
+ * entries per user are kept.
+ */
+@Entity
+@Table(name = "passwordHistory", indexes = {
+        @Index(name = "userId_changed_idx", columnList = "userId,changed")
+})
+@NamedQueries({
+        @NamedQuery(name = "PasswordHistory.byUserChangedSince",
+                query = "SELECT ph FROM PasswordHistory ph WHERE ph.userId = :userId AND ph.changed >= :changed " +
+                        "ORDER BY ph.changed DESC"),
+
+        @NamedQuery(name = "PasswordHistory.byUser",
+                query = "SELECT ph FROM PasswordHistory ph WHERE ph.userId = :userId ORDER BY ph.changed DESC"),
+
+        @NamedQuery(name = "PasswordHistory.removeByUser",
+                query = "DELETE FROM PasswordHistory ph WHERE ph.userId = :userId")
+})
+public class PasswordHistory implements Serializable {
+
+    /**
+     * Entry id.
+     */
+    @Id
+    @GeneratedValue(strategy = GenerationType.TABLE)
+    Long id;
+
+    /**
+     * User id.
+     */
+    @Column(nullable = false, updatable = false)
+    long userId;
+
+    /**
+     * Time when the password was replaced, in milliseconds since Jan 1, 1970 UTC.
+     */
+    @Column(nullable = false, updatable = false)
+    long changed;
+
+    /**
+     * Password salt.
+     */
+    @Column(nullable = false, updatable = false, length = 512)
+    byte[] passwordSalt;
+
+    /**
+     * Password hash.
+     */
+    @Column(nullable = false, updatable = false, length = 512)
+    byte[] passwordHash;
+
+    /**
+     * Password hashing algorithm.
+     */
+    @Column(nullable = false, updatable = false, length = 32)
+    @Enumerated(EnumType.STRING)
+    PasswordHashAlgorithm passwordAlgorithm;
+
+    /**
+     * Password hashing cost, algorithm specific.
+     */
+    @Column(nullable = false, updatable = false)
+    int passwordCost;
+
+    /**
+     * Constructs entry.
+     */
+    public PasswordHistory() {
+    }
+
+    /**
+     * Constructs entry from replaced credentials.
+     *
+     * @param credentials Replaced credentials.
+     * @param changed Time when the password was replaced.
+     */
+    public PasswordHistory(UserCredentials credentials, long changed) {
+        this.userId = credentials.getUserId();
+        this.changed = changed;
+        this.passwordSalt = credentials.getPasswordSalt();
+        this.passwordHash = credentials.getPasswordHash();
+        this.passwordAlgorithm = credentials.getPasswordAlgorithm();
+        this.passwordCost = credentials.getPasswordCost();
+    }
+
+    /**
+     * Returns entry id.
+     *
+     * @return Entry id.
+     */
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * Returns user id.
+     *
+     * @return User id.
+     */
+    public long getUserId() {
+        return userId;
+    }
+
+    /**
+     * Returns time when the password was replaced, in milliseconds since Jan 1, 1970 UTC.
+     *
+     * @return Time when the password was replaced.
+     */
+    public long getChanged() {
+        return changed;
+    }
+
+    /**
+     * Returns password salt.
+     *
+     * @return Password salt.
+     */
+    public byte[] getPasswordSalt() {
+        return passwordSalt;
+    }
+
+    /**
+     * Returns password hash.
+     *
+     * @return Password hash.
+     */
+    public byte[] getPasswordHash() {
+        return passwordHash;
+    }
+
+    /**
+     * Returns password hashing algorithm.
+     *
+     * @return Password hashing algorithm.
+     */
+    public PasswordHashAlgorithm getPasswordAlgorithm() {
+        return passwordAlgorithm;
+    }
+
+    /**
+     * Returns password hashing cost.
+     *
+     * @return Password hashing cost.
+     */
+    public int getPasswordCost() {
+        return passwordCost;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
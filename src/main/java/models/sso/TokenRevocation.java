@@ -0,0 +1,153 @@
+package models.sso;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import java.io.Serializable;
+
+/**
+ * Access token revocation. Either revokes single access token of the user (identified by its random id) or all
+ * access tokens of the user issued at or before the revocation time. Single token is revoked once: user id and token
+ * id are unique.
+ */
+@Entity
+@Table(name = "tokenRevocations", indexes = {
+        @Index(name = "created_idx", columnList = "created"),
+        @Index(name = "expires_idx", columnList = "expires")
+}, uniqueConstraints = {
+        @UniqueConstraint(name = "userId_tokenId_idx", columnNames = {"userId", "tokenId"})
+})
+@NamedQueries({
+        @NamedQuery(name = "TokenRevocation.createdSince",
+                query = "SELECT tr FROM TokenRevocation tr WHERE tr.created >= :created AND tr.expires > :now"),
+
+        @NamedQuery(name = "TokenRevocation.removeExpired",
+                query = "DELETE FROM TokenRevocation tr WHERE tr.expires <= :now")
+})
+public class TokenRevocation implements Serializable {
+
+    /**
+     * Revocation id.
+     */
+    @Id
+    @GeneratedValue(strategy = GenerationType.TABLE)
+    Long id;
+
+    /**
+     * User id.
+     */
+    @Column(nullable = false, updatable = false)
+    long userId;
+
+    /**
+     * Revocation time, in milliseconds since Jan 1, 1970 UTC.
+     */
+    @Column(nullable = false, updatable = false)
+    long created;
+
+    /**
+     * Id of the revoked token or null if all user's tokens issued at or before revocation time are revoked.
+     */
+    @Column(nullable = true, updatable = false)
+    Long tokenId;
+
+    /**
+     * Expiration time of the revoked token or null if all user's tokens issued at or before revocation time are
+     * revoked.
+     */
+    @Column(nullable = true, updatable = false)
+    Long tokenExpires;
+
+    /**
+     * Time when the revocation becomes obsolete, since all tokens it revokes are expired.
+     */
+    @Column(nullable = false, updatable = false)
+    long expires;
+
+    /**
+     * Constructs revocation.
+     */
+    public TokenRevocation() {
+    }
+
+    /**
+     * Constructs revocation.
+     *
+     * @param userId User id.
+     * @param created Revocation time.
+     * @param tokenId Id of the revoked token or null if all user's tokens are revoked.
+     * @param tokenExpires Expiration time of the revoked token or null if all user's tokens are revoked.
+     * @param expires Time when the revocation becomes obsolete.
+     */
+    public TokenRevocation(long userId, long created, Long tokenId, Long tokenExpires, long expires) {
+        this.userId = userId;
+        this.created = created;
+        this.tokenId = tokenId;
+        this.tokenExpires = tokenExpires;
+        this.expires = expires;
+    }
+
+    /**
+     * Returns revocation id.
+     *
+     * @return Revocation id.
+     */
+    public Long getId() {
+        return id;
+    }
+
+    /**
+     * Returns user id.
+     *
+     * @return User id.
+     */
+    public long getUserId() {
+        return userId;
+    }
+
+    /**
+     * Returns revocation time, in milliseconds since Jan 1, 1970 UTC.
+     *
+     * @return Revocation time.
+     */
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * Returns id of the revoked token or null if all user's tokens issued at or before revocation time are revoked.
+     *
+     * @return Id of the revoked token or null.
+     */
+    public Long getTokenId() {
+        return tokenId;
+    }
+
+    /**
+     * Returns expiration time of the revoked token or null if all user's tokens issued at or before revocation time
+     * are revoked.
+     *
+     * @return Expiration time of the revoked token or null.
+     */
+    public Long getTokenExpires() {
+        return tokenExpires;
+    }
+
+    /**
+     * Returns time when the revocation becomes obsolete.
+     *
+     * @return Time when the revocation becomes obsolete.
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    private static final long serialVersionUID = 1L;
+}
@@ -3,10 +3,18 @@ package models.sso;
 import javax.persistence.*;
 
 /**
- * User credentials.
+ * User credentials. Password hash is stored with its algorithm and cost, so hashes of any historical algorithm and cost
+ * are verified and then replaced with hashes of the current ones. Algorithm and cost columns are nullable, so they can
+ * be added to existing tables as is: rows without them are legacy SHA-512 hashes.
  */
 @Entity
 @Table(name = "userCredentials")
+@NamedQueries({
+        @NamedQuery(name = "UserCredentials.replaceHash",
+                query = "UPDATE UserCredentials uc SET uc.passwordSalt = :salt, uc.passwordHash = :hash, " +
+                        "uc.passwordAlgorithm = :algorithm, uc.passwordCost = :cost " +
+                        "WHERE uc.userId = :userId AND uc.passwordHash = :oldHash")
+})
 public class UserCredentials {
 
     /**
@@ -27,6 +35,19 @@ public class UserCredentials {
     @Column(nullable = false, length = 512)
     byte[] passwordHash;
 
+    /**
+     * Password hashing algorithm, null for credentials stored before algorithm was recorded.
+     */
+    @Column(length = 32)
+    @Enumerated(EnumType.STRING)
+    PasswordHashAlgorithm passwordAlgorithm;
+
+    /**
+     * Password hashing cost, algorithm specific, null for credentials stored before cost was recorded.
+     */
+    @Column
+    Integer passwordCost;
+
     /**
      * User id.
      *
@@ -81,6 +102,42 @@ public class UserCredentials {
         this.passwordSalt = passwordSalt;
     }
 
+    /**
+     * Password hashing algorithm.
+     *
+     * @return Password hashing algorithm, legacy one if it is not recorded.
+     */
+    public PasswordHashAlgorithm getPasswordAlgorithm() {
+        return passwordAlgorithm != null ? passwordAlgorithm : PasswordHashAlgorithm.SHA512;
+    }
+
+    /**
+     * Sets password hashing algorithm.
+     *
+     * @param passwordAlgorithm Password hashing algorithm.
+     */
+    public void setPasswordAlgorithm(PasswordHashAlgorithm passwordAlgorithm) {
+        this.passwordAlgorithm = passwordAlgorithm;
+    }
+
+    /**
+     * Password hashing cost, algorithm specific.
+     *
+     * @return Password hashing cost, 0 if it is not recorded.
+     */
+    public int getPasswordCost() {
+        return passwordCost != null ? passwordCost : 0;
+    }
+
+    /**
+     * Sets password hashing cost, algorithm specific.
+     *
+     * @param passwordCost Password hashing cost.
+     */
+    public void setPasswordCost(int passwordCost) {
+        this.passwordCost = passwordCost;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (o == null || getClass() != o.getClass()) {
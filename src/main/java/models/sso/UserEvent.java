@@ -54,6 +54,12 @@ import java.time.ZonedDateTime;
                         "WHERE ue.user.id = :userId AND ue.type = :type AND ue.targetUser IS NULL " +
                         "ORDER BY ue.time DESC"),
 
+        @NamedQuery(name = "UserEvent.ownByTypeAndDataAfterId",
+                query = "SELECT ue FROM UserEvent ue " +
+                        "WHERE ue.type = :type AND ue.targetUser IS NULL AND ue.id > :afterId " +
+                        "AND cast(ue.data as string) LIKE :data " +
+                        "ORDER BY ue.id"),
+
         @NamedQuery(name = "UserEvent.removeByUser",
                 query = "DELETE FROM UserEvent ue WHERE ue.user.id = :userId")
 })
@@ -1,6 +1,7 @@
 package models.sso.token;
 
 import java.io.Serializable;
+import java.security.SecureRandom;
 import java.time.Clock;
 import java.util.Collections;
 import java.util.LinkedHashMap;
@@ -12,6 +13,26 @@ import java.util.Objects;
  */
 public final class ExpirableToken implements Serializable {
 
+    /**
+     * Attribute name of the issue time of revocable tokens, in milliseconds since Jan 1, 1970 UTC.
+     */
+    public static final String ISSUED_AT = "iat";
+
+    /**
+     * Attribute name of the random id of revocable tokens, non-negative long.
+     */
+    public static final String TOKEN_ID = "jti";
+
+    /**
+     * Upper bound of random token ids: 59 bits, so that ids fit into 18 decimal digits.
+     */
+    private static final long TOKEN_ID_BOUND = 1L << 59;
+
+    /**
+     * Random generator of token ids.
+     */
+    private static final SecureRandom random = new SecureRandom();
+
     /**
      * Expiration time. In milliseconds, since January, 1, 1970, GMT.
      */
@@ -126,6 +147,24 @@ public final class ExpirableToken implements Serializable {
         return v == null ? null : Long.valueOf(v);
     }
 
+    /**
+     * Returns issue time of the revocable token.
+     *
+     * @return Issue time, in milliseconds since Jan 1, 1970 UTC, or null if the token has no issue time.
+     */
+    public Long getIssuedAt() {
+        return getAttributeAsLong(ISSUED_AT);
+    }
+
+    /**
+     * Returns random id of the revocable token.
+     *
+     * @return Token id or null if the token has no id.
+     */
+    public Long getTokenId() {
+        return getAttributeAsLong(TOKEN_ID);
+    }
+
     /**
      * Returns attribute value for the given attribute name as double value.
      *
@@ -337,6 +376,41 @@ public final class ExpirableToken implements Serializable {
                 build();
     }
 
+    /**
+     * Static factory for revocable user token of given type, like access and refresh tokens. The token has issue time
+     * and random id, so it is revoked by id and by "all tokens issued before" revocations.
+     *
+     * @param type Token type.
+     * @param userId User id.
+     * @param data Attributes data.
+     * @param timeToLive Time to live, in milliseconds.
+     * @return Expirable token.
+     */
+    public static ExpirableToken newRevocableUserToken(
+            ExpirableTokenType type,
+            long userId,
+            Map<String, String> data,
+            long timeToLive) {
+        long now = Clock.systemUTC().millis();
+        return new Builder().
+                setType(type).
+                setExpires(now + timeToLive).
+                addDataEntries(data).
+                addDataEntry("userId", userId).
+                addDataEntry(ISSUED_AT, now).
+                addDataEntry(TOKEN_ID, newTokenId()).
+                build();
+    }
+
+    /**
+     * Returns new random token id.
+     *
+     * @return Non-negative token id.
+     */
+    static long newTokenId() {
+        return random.nextLong() & (TOKEN_ID_BOUND - 1);
+    }
+
     /**
      * Static factory for access token.
      *
@@ -5,26 +5,52 @@ import models.sso.token.ExpirableTokenEncryptorException;
 import models.sso.token.ExpirableTokenType;
 import models.sso.token.ExpiredTokenException;
 import models.sso.token.IllegalTokenException;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import ninja.cache.NinjaCache;
 import ninja.utils.NinjaProperties;
+import services.sso.captcha.CaptchaImageRenderer;
+import services.sso.captcha.CaptchaPool;
+import services.sso.captcha.ProofOfWork;
+import services.sso.limits.IPCounterService;
 import services.sso.token.ExpirableTokenEncryptor;
+import services.sso.token.ReplaySet;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.security.SecureRandom;
-import java.util.Random;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
- * Captcha token service. Generates random human readable values to be displayed on captcha and validates user input.
- * Loads dictionary into the memory.
+ * Captcha token service. Issues tokens with random human readable values to be displayed on captcha, preferably
+ * pre-rendered ones from {@link CaptchaPool}, returns their images and validates user input. Optionally issues
+ * {@link ProofOfWork} challenges instead, solved by the browser, with difficulty growing with hits from the IP.
  */
 @Singleton
 public class CaptchaTokenService {
 
     /**
-     * Random.
+     * Token attribute with captcha text.
      */
-    private final Random random = new SecureRandom();
+    private static final String CAPTCHA_ATTRIBUTE = "captcha";
+
+    /**
+     * Token attribute with id of pre-rendered image.
+     */
+    private static final String IMAGE_ATTRIBUTE = "image";
+
+    /**
+     * Token attribute with proof of work difficulty.
+     */
+    private static final String PROOF_OF_WORK_ATTRIBUTE = "pow";
+
+    /**
+     * Prefix of shared cache keys of used tokens.
+     */
+    private static final String USED_KEY_PREFIX = "captchaUsed:";
 
     /**
      * Token encryptor.
@@ -32,10 +58,15 @@ public class CaptchaTokenService {
     private final ExpirableTokenEncryptor encryptor;
 
     /**
-     * Caches used tokens for some time (to prevent subsequent usage). Use clustered cache for scalability
-     * (configured in conf/application.conf).
+     * Digests of used tokens, kept for captcha time to live (to prevent subsequent usage).
+     */
+    private final ReplaySet usedTokens;
+
+    /**
+     * Shares digests of used tokens between nodes, null if they are not shared. Use clustered cache (configured in
+     * conf/application.conf).
      */
-    private final NinjaCache cache;
+    private final NinjaCache sharedCache;
 
     /**
      * Time to live for captcha token, as string, in seconds.
@@ -48,79 +79,148 @@ public class CaptchaTokenService {
     private final long ttlInMillis;
 
     /**
-     * Captcha alphabet.
+     * Captcha image renderer.
+     */
+    private final CaptchaImageRenderer renderer;
+
+    /**
+     * Pool of pre-rendered captcha images.
      */
-    private final String alphabet;
+    private final CaptchaPool pool;
 
     /**
-     * Number of characters in captcha.
+     * IP counter service, for proof of work difficulty.
      */
-    private final long length;
+    private final IPCounterService ipCounterService;
+
+    /**
+     * Whether proof of work challenges are issued instead of captcha images.
+     */
+    private final boolean proofOfWorkEnabled;
+
+    /**
+     * Proof of work difficulty at the IP hits limit, in leading zero bits.
+     */
+    private final int proofOfWorkBaseDifficulty;
+
+    /**
+     * Maximal proof of work difficulty, in leading zero bits.
+     */
+    private final int proofOfWorkMaxDifficulty;
 
     /**
      * Constructs captcha token service.
      *
-     * @param cache Cache.
+     * @param cache Cache, shares used tokens between nodes if enabled.
      * @param properties Properties.
      * @param encryptor Encryptor.
+     * @param renderer Captcha image renderer.
+     * @param pool Pool of pre-rendered captcha images.
+     * @param ipCounterService IP counter service.
      */
     @Inject
-    public CaptchaTokenService(NinjaCache cache, NinjaProperties properties, ExpirableTokenEncryptor encryptor) {
+    public CaptchaTokenService(
+            NinjaCache cache,
+            NinjaProperties properties,
+            ExpirableTokenEncryptor encryptor,
+            CaptchaImageRenderer renderer,
+            CaptchaPool pool,
+            IPCounterService ipCounterService) {
         this.encryptor = encryptor;
-        this.cache = cache;
-        this.alphabet = properties.getWithDefault(
-                "application.sso.captcha.aphabet",
-                "123456789ABCDEFGHJKLMNPQRSTUVWXYZ"); // No I, 0 and O.
-        this.length = properties.getIntegerWithDefault("application.sso.captcha.length", 5);
+        this.renderer = renderer;
+        this.pool = pool;
+        this.ipCounterService = ipCounterService;
+        this.proofOfWorkEnabled = properties.getBooleanWithDefault("application.sso.captcha.proofOfWork.enabled", false);
+        this.proofOfWorkBaseDifficulty =
+                properties.getIntegerWithDefault("application.sso.captcha.proofOfWork.baseDifficulty", 16);
+        this.proofOfWorkMaxDifficulty =
+                properties.getIntegerWithDefault("application.sso.captcha.proofOfWork.maxDifficulty", 22);
         int ttlInSeconds = properties.getIntegerWithDefault("application.sso.captcha.ttl", 300);
         this.ttlAsString = ttlInSeconds + "s";
         this.ttlInMillis = ttlInSeconds * 1000L;
+        this.usedTokens = new ReplaySet(ttlInMillis,
+                properties.getIntegerWithDefault("application.sso.captcha.replay.capacity", 65536),
+                properties.getIntegerWithDefault("application.sso.captcha.replay.maxCapacity", 1 << 20),
+                System::currentTimeMillis);
+        this.sharedCache = properties.getBooleanWithDefault("application.sso.captcha.replay.sharedCache", true)
+                ? cache : null;
     }
 
     /**
-     * Generates new captcha random word.
+     * Creates expirable encrypted token with captcha.
      *
-     * @return New captcha random word.
+     * @param word Word to encrypt in captcha token.
+     * @return Expirable encrypted token with captcha.
+     * @throws IllegalStateException In case token encryptor is not set up properly.
      */
-    private String nextCaptchaRandomWord() {
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
-        }
-        return sb.toString();
+    public String newCaptchaToken(String word) {
+        return encrypt(ExpirableToken.newCaptchaToken(CAPTCHA_ATTRIBUTE, word, ttlInMillis));
     }
 
     /**
-     * Creates expirable encrypted token with captcha.
+     * Creates expirable encrypted token with captcha, pre-rendered one if the pool has any.
      *
-     * @param word Word to encrypt in captcha token.
      * @return Expirable encrypted token with captcha.
      * @throws IllegalStateException In case token encryptor is not set up properly.
      */
-    public String newCaptchaToken(String word) {
-        ExpirableToken token = ExpirableToken.newCaptchaToken("captcha", word, ttlInMillis);
-        try {
-            return encryptor.encrypt(token);
-        } catch (ExpirableTokenEncryptorException ee) {
-            throw new IllegalStateException("Unexpected exception while encrypting the captcha.", ee);
+    public String newCaptchaToken() {
+        CaptchaPool.Entry entry = pool.take();
+        if (entry == null) {
+            return newCaptchaToken(renderer.nextWord());
         }
+        Map<String, String> data = new HashMap<>();
+        data.put(CAPTCHA_ATTRIBUTE, entry.getWord());
+        data.put(IMAGE_ATTRIBUTE, Long.toString(entry.getId()));
+        return encrypt(ExpirableToken.newToken(ExpirableTokenType.CAPTCHA, data, ttlInMillis));
     }
 
     /**
-     * Creates expirable encrypted token with captcha.
+     * Returns difficulty of proof of work challenge for the IP: base difficulty up to the IP hits limit, one more bit
+     * each time the hits double over the limit.
      *
-     * @return Expirable encrypted token with captcha.
+     * @param remoteIp Remote IP.
+     * @return Difficulty in leading zero bits, 0 if proof of work is disabled and captcha image should be used.
+     */
+    public int getProofOfWorkDifficulty(String remoteIp) {
+        if (!proofOfWorkEnabled) {
+            return 0;
+        }
+        return ProofOfWork.difficulty(ipCounterService.getCounter(remoteIp), ipCounterService.getUpperLimit(),
+                proofOfWorkBaseDifficulty, proofOfWorkMaxDifficulty);
+    }
+
+    /**
+     * Creates expirable encrypted token with proof of work challenge, the token itself is the challenge.
+     *
+     * @param difficulty Difficulty, in leading zero bits.
+     * @return Expirable encrypted token with proof of work challenge.
      * @throws IllegalStateException In case token encryptor is not set up properly.
      */
-    public String newCaptchaToken() {
-        return newCaptchaToken(nextCaptchaRandomWord());
+    public String newProofOfWorkToken(int difficulty) {
+        return encrypt(ExpirableToken.newCaptchaToken(PROOF_OF_WORK_ATTRIBUTE, Integer.toString(difficulty),
+                ttlInMillis));
+    }
+
+    /**
+     * Encrypts captcha token.
+     *
+     * @param token Captcha token.
+     * @return Encrypted token.
+     * @throws IllegalStateException In case token encryptor is not set up properly.
+     */
+    private String encrypt(ExpirableToken token) {
+        try {
+            return encryptor.encrypt(token);
+        } catch (ExpirableTokenEncryptorException ee) {
+            throw new IllegalStateException("Unexpected exception while encrypting the captcha.", ee);
+        }
     }
 
     /**
-     * Verifies given token and captcha user input.
+     * Verifies given token and captcha user input, or proof of work solution for proof of work tokens.
      *
      * @param token Token to verify.
-     * @param userProvidedValue User input.
+     * @param userProvidedValue User input or proof of work solution.
      * @throws AlreadyUsedTokenException In case if token is valid but has been already used.
      * @throws ExpiredTokenException In case when captcha token is expired.
      * @throws IllegalTokenException In case when invalid token is given.
@@ -128,9 +228,16 @@ public class CaptchaTokenService {
      */
     public void verifyCaptchaToken(String token, String userProvidedValue)
             throws AlreadyUsedTokenException, ExpiredTokenException, IllegalTokenException, InvalidTokenValueException {
-        String captchaValue = extractCaptchaText(token);
-        if (captchaValue.equalsIgnoreCase(userProvidedValue)) {
-            invalidateToken(token);
+        ExpirableToken captchaToken = extractCaptchaToken(token);
+        Long difficulty = captchaToken.getAttributeAsLong(PROOF_OF_WORK_ATTRIBUTE);
+        boolean solved = difficulty != null
+                ? ProofOfWork.verify(token, userProvidedValue, difficulty.intValue())
+                : captchaToken.getAttributeValue(CAPTCHA_ATTRIBUTE).equalsIgnoreCase(userProvidedValue);
+        if (solved) {
+            if (!invalidateToken(token)) {
+                // Token was used concurrently.
+                throw new AlreadyUsedTokenException();
+            }
         } else {
             throw new InvalidTokenValueException();
         }
@@ -147,6 +254,43 @@ public class CaptchaTokenService {
      */
     public String extractCaptchaText(String captchaToken)
             throws AlreadyUsedTokenException, ExpiredTokenException, IllegalTokenException {
+        return extractCaptchaToken(captchaToken).getAttributeValue(CAPTCHA_ATTRIBUTE);
+    }
+
+    /**
+     * Returns PNG image of the captcha if the token is correct and not expired. Pre-rendered image is returned once,
+     * after that the image is rendered again.
+     *
+     * @param captchaToken Token.
+     * @return PNG image.
+     * @throws CaptchaTokenService.AlreadyUsedTokenException When token is already used.
+     * @throws ExpiredTokenException Expired token.
+     * @throws IllegalTokenException Wrong/illegal token.
+     */
+    public byte[] getCaptchaImage(String captchaToken)
+            throws AlreadyUsedTokenException, ExpiredTokenException, IllegalTokenException {
+        ExpirableToken token = extractCaptchaToken(captchaToken);
+        String word = token.getAttributeValue(CAPTCHA_ATTRIBUTE);
+        if (word == null) {
+            // Proof of work token, nothing to render.
+            throw new IllegalTokenException();
+        }
+        Long imageId = token.getAttributeAsLong(IMAGE_ATTRIBUTE);
+        byte[] image = imageId != null ? pool.claim(imageId, word) : null;
+        return image != null ? image : renderer.render(word);
+    }
+
+    /**
+     * Parses given token if it is correct, not expired and not used.
+     *
+     * @param captchaToken Token.
+     * @return Captcha token.
+     * @throws CaptchaTokenService.AlreadyUsedTokenException When token is already used.
+     * @throws ExpiredTokenException Expired token.
+     * @throws IllegalTokenException Wrong/illegal token.
+     */
+    private ExpirableToken extractCaptchaToken(String captchaToken)
+            throws AlreadyUsedTokenException, ExpiredTokenException, IllegalTokenException {
         if (captchaToken == null || captchaToken.isEmpty()) {
             throw new IllegalTokenException();
         }
@@ -156,28 +300,51 @@ public class CaptchaTokenService {
         }
         ExpirableToken tok = encryptor.decrypt(captchaToken);
         if (ExpirableTokenType.CAPTCHA.equals(tok.getType())) {
-            return tok.getAttributeValue("captcha");
+            return tok;
         }
         throw new IllegalTokenException();
     }
 
     /**
-     * Checks in cache if the given token is used.
+     * Checks if the given token is used, by its digest.
      *
      * @param captchaToken Captcha token to check.
      * @return Whether the given token is used.
      */
     private boolean isUsedToken(String captchaToken) {
-        return cache.get(captchaToken, String.class) != null;
+        HashCode digest = digest(captchaToken);
+        ByteBuffer bytes = ByteBuffer.wrap(digest.asBytes());
+        return usedTokens.contains(bytes.getLong(), bytes.getLong())
+                || sharedCache != null && sharedCache.get(USED_KEY_PREFIX + digest, String.class) != null;
     }
 
     /**
-     * Invalidates given token by remembering it in cache for time, equal to lifetime of captcha.
+     * Invalidates given token by remembering its digest for time, equal to lifetime of captcha. When the in-memory set
+     * is full, the token is remembered in the shared cache only, or not at all if there is none: a flood of used
+     * tokens must not make legitimate ones look used.
      *
      * @param token Token to invalidate.
+     * @return Whether the token is invalidated: false if it is used already.
+     */
+    private boolean invalidateToken(String token) {
+        HashCode digest = digest(token);
+        ByteBuffer bytes = ByteBuffer.wrap(digest.asBytes());
+        ReplaySet.Result result = usedTokens.add(bytes.getLong(), bytes.getLong());
+        if (result == ReplaySet.Result.PRESENT) {
+            return false;
+        }
+        return sharedCache == null || sharedCache.safeAdd(USED_KEY_PREFIX + digest, "", ttlAsString);
+    }
+
+    /**
+     * Returns 128-bit digest of the token: truncated SHA-256.
+     *
+     * @param token Token.
+     * @return Digest.
      */
-    private void invalidateToken(String token) {
-        cache.add(token, "", ttlAsString);
+    private static HashCode digest(String token) {
+        return HashCode.fromBytes(Arrays.copyOf(
+                Hashing.sha256().hashString(token, StandardCharsets.UTF_8).asBytes(), 16));
     }
 
     /**
@@ -0,0 +1,243 @@
+package services.sso;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.BaseEncoding;
+import com.google.inject.persist.Transactional;
+import models.sso.PasswordHashAlgorithm;
+import models.sso.PasswordHistory;
+import models.sso.User;
+import models.sso.UserCredentials;
+import models.sso.UserEvent;
+import models.sso.UserEventType;
+import ninja.lifecycle.Start;
+import ninja.utils.NinjaProperties;
+import org.slf4j.Logger;
+import services.sso.password.PasswordHashingOverloadedException;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Password history service. Keeps the last "application.sso.password.history.size" former passwords per user in
+ * a dedicated indexed table. Used for the "password was changed" hint on failed sign-in: only the latest password
+ * replaced within "application.sso.password.history.hintDays" is checked, so a failed sign-in costs at most one
+ * indexed query and one extra hash, and no hash at all for users who didn't change password recently.
+ * <p>
+ * Password changes made before the history table was introduced kept the former password in the data of the
+ * password change event. These former passwords are moved from the event data to the history table once, on start.
+ */
+@Singleton
+public class PasswordHistoryService {
+
+    /**
+     * Event data keys of the former password in legacy password change events.
+     */
+    private static final String LEGACY_SALT = "password.old.salt";
+    private static final String LEGACY_HASH = "password.old.hash";
+    private static final String LEGACY_ALGORITHM = "password.old.algorithm";
+    private static final String LEGACY_COST = "password.old.cost";
+
+    /**
+     * Number of legacy password change events migrated per transaction.
+     */
+    private static final int MIGRATION_BATCH_SIZE = 100;
+
+    /**
+     * Entity manager provider.
+     */
+    private final Provider<EntityManager> entityManagerProvider;
+
+    /**
+     * Password service.
+     */
+    private final PasswordService passwordService;
+
+    /**
+     * Number of former passwords to keep per user.
+     */
+    private final int size;
+
+    /**
+     * Period to give the hint about changed password, in milliseconds.
+     */
+    private final long hintPeriod;
+
+    /**
+     * Json serializer, for legacy event data.
+     */
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Encoding of legacy salts and hashes.
+     */
+    private final BaseEncoding baseEncoding = BaseEncoding.base64Url().omitPadding();
+
+    /**
+     * Logger.
+     */
+    private final Logger logger;
+
+    /**
+     * Constructs password history service.
+     *
+     * @param entityManagerProvider Entity manager provider.
+     * @param passwordService Password service.
+     * @param objectMapper Json serializer.
+     * @param properties Properties.
+     * @param logger Logger.
+     */
+    @Inject
+    public PasswordHistoryService(
+            Provider<EntityManager> entityManagerProvider,
+            PasswordService passwordService,
+            ObjectMapper objectMapper,
+            NinjaProperties properties,
+            Logger logger) {
+        this.entityManagerProvider = entityManagerProvider;
+        this.passwordService = passwordService;
+        this.objectMapper = objectMapper;
+        this.logger = logger;
+        this.size = Math.max(1, properties.getIntegerWithDefault("application.sso.password.history.size", 5));
+        this.hintPeriod = TimeUnit.DAYS.toMillis(
+                properties.getIntegerWithDefault("application.sso.password.history.hintDays", 30));
+    }
+
+    /**
+     * Remembers credentials that are about to be replaced and removes entries beyond the history size.
+     *
+     * @param credentials Credentials to be replaced.
+     */
+    public void remember(UserCredentials credentials) {
+        EntityManager em = entityManagerProvider.get();
+        em.persist(new PasswordHistory(credentials, System.currentTimeMillis()));
+        removeEntriesBeyondSize(em, credentials.getUserId());
+    }
+
+    /**
+     * Returns the date of the last password change if the given password matches the password replaced recently.
+     *
+     * @param user User.
+     * @param password Password to check.
+     * @return Optional of the date of the last password change.
+     * @throws PasswordHashingOverloadedException When password hashing capacity is exhausted.
+     */
+    @Transactional
+    public Optional<Date> getLastPasswordChangeDate(User user, String password) {
+        List<PasswordHistory> entries = entityManagerProvider.get()
+                .createNamedQuery("PasswordHistory.byUserChangedSince", PasswordHistory.class)
+                .setParameter("userId", user.getId())
+                .setParameter("changed", System.currentTimeMillis() - hintPeriod)
+                .setMaxResults(1)
+                .getResultList();
+        for (PasswordHistory entry : entries) {
+            if (passwordService.isValidPassword(password, entry.getPasswordSalt(), entry.getPasswordHash(),
+                    entry.getPasswordAlgorithm(), entry.getPasswordCost())) {
+                return Optional.of(new Date(entry.getChanged()));
+            }
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Moves former passwords from the data of all own password change events made before the history table was
+     * introduced to the history table, in batches. Migrated events no longer contain the former password, so the
+     * following starts find nothing to migrate.
+     */
+    @Start(order = 100)
+    public void migrateLegacyPasswordChanges() {
+        logger.info("Migrating legacy password changes...");
+        long afterId = 0L;
+        int migrated = 0;
+        List<UserEvent> events;
+        do {
+            events = migrateLegacyPasswordChanges(afterId);
+            if (!events.isEmpty()) {
+                afterId = events.get(events.size() - 1).getId();
+                migrated += events.size();
+            }
+        } while (events.size() == MIGRATION_BATCH_SIZE);
+        logger.info(String.format("Migrating legacy password changes: done, events: %d.", migrated));
+    }
+
+    /**
+     * Moves former passwords from the data of the next batch of legacy password change events to the history table.
+     *
+     * @param afterId Id of the last event of the previous batch, 0 for the first batch.
+     * @return Events of the batch, ordered by id.
+     */
+    @Transactional
+    @SuppressWarnings("unchecked")
+    List<UserEvent> migrateLegacyPasswordChanges(long afterId) {
+        EntityManager em = entityManagerProvider.get();
+        Set<Long> userIds = new HashSet<>();
+        List<UserEvent> events = em.createNamedQuery("UserEvent.ownByTypeAndDataAfterId", UserEvent.class)
+                .setParameter("type", UserEventType.PASSWORD_CHANGE)
+                .setParameter("afterId", afterId)
+                .setParameter("data", "%\"" + LEGACY_HASH + "\"%")
+                .setMaxResults(MIGRATION_BATCH_SIZE)
+                .getResultList();
+        for (UserEvent event : events) {
+            try {
+                Map<String, Object> data = objectMapper.readValue(event.getData(), Map.class);
+                UserCredentials former = new UserCredentials();
+                former.setUserId(event.getUser().getId());
+                former.setPasswordSalt(baseEncoding.decode((String) data.remove(LEGACY_SALT)));
+                former.setPasswordHash(baseEncoding.decode((String) data.remove(LEGACY_HASH)));
+                // Events recorded before algorithm was stored contain SHA-512 hashes.
+                Object algorithm = data.remove(LEGACY_ALGORITHM);
+                Object cost = data.remove(LEGACY_COST);
+                former.setPasswordAlgorithm(algorithm != null
+                        ? PasswordHashAlgorithm.valueOf((String) algorithm) : PasswordHashAlgorithm.SHA512);
+                former.setPasswordCost(cost != null ? ((Number) cost).intValue() : 0);
+                em.persist(new PasswordHistory(former, event.getTime().toInstant().toEpochMilli()));
+                event.setData(objectMapper.writeValueAsBytes(data));
+                userIds.add(former.getUserId());
+            } catch (IOException | RuntimeException e) {
+                logger.warn(String.format("Error migrating event data: %d", event.getId()), e);
+            }
+        }
+        for (long userId : userIds) {
+            removeEntriesBeyondSize(em, userId);
+        }
+        return events;
+    }
+
+    /**
+     * Removes history entries of the user beyond the history size, the oldest ones.
+     *
+     * @param em Entity manager.
+     * @param userId User id.
+     */
+    private void removeEntriesBeyondSize(EntityManager em, long userId) {
+        em.flush();
+        List<PasswordHistory> entries = em.createNamedQuery("PasswordHistory.byUser", PasswordHistory.class)
+                .setParameter("userId", userId)
+                .setFirstResult(size)
+                .getResultList();
+        for (PasswordHistory entry : entries) {
+            em.remove(entry);
+        }
+    }
+
+    /**
+     * Removes password history of the user.
+     *
+     * @param user User.
+     * @return Number of entries removed.
+     */
+    public int removeHistory(User user) {
+        return entityManagerProvider.get().createNamedQuery("PasswordHistory.removeByUser")
+                .setParameter("userId", user.getId())
+                .executeUpdate();
+    }
+}
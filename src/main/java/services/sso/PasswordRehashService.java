@@ -0,0 +1,109 @@
+package services.sso;
+
+import com.google.inject.persist.Transactional;
+import models.sso.User;
+import models.sso.UserCredentials;
+import org.slf4j.Logger;
+import services.sso.password.PasswordHashingService;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+
+/**
+ * Rehashes passwords stored with former algorithm or cost after successful sign-in, when the plain password is known.
+ * Hash is computed on password hashing executor without delaying sign-in response, and only when the executor has no
+ * queued hashes, so rehashing never competes with sign-ins. Skipped rehash is retried on the next sign-in.
+ */
+@Singleton
+public class PasswordRehashService {
+
+    /**
+     * Entity manager provider.
+     */
+    private final Provider<EntityManager> entityManagerProvider;
+
+    /**
+     * Password service.
+     */
+    private final PasswordService passwordService;
+
+    /**
+     * Password hashing service.
+     */
+    private final PasswordHashingService hashingService;
+
+    /**
+     * Logger.
+     */
+    private final Logger logger;
+
+    /**
+     * Constructs password rehash service.
+     *
+     * @param entityManagerProvider Entity manager provider.
+     * @param passwordService Password service.
+     * @param hashingService Password hashing service.
+     * @param logger Logger.
+     */
+    @Inject
+    public PasswordRehashService(
+            Provider<EntityManager> entityManagerProvider,
+            PasswordService passwordService,
+            PasswordHashingService hashingService,
+            Logger logger) {
+        this.entityManagerProvider = entityManagerProvider;
+        this.passwordService = passwordService;
+        this.hashingService = hashingService;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts rehash of the user's password with current algorithm and cost, if the stored hash is outdated. Expects the
+     * password to be verified against stored credentials.
+     *
+     * @param user User.
+     * @param password Verified password.
+     * @return Whether the rehash was started.
+     */
+    public boolean rehashIfOutdated(User user, String password) {
+        UserCredentials credentials = entityManagerProvider.get().find(UserCredentials.class, user.getId());
+        if (credentials == null || passwordService.isCurrent(credentials) || hashingService.getQueueDepth() > 0) {
+            return false;
+        }
+        byte[] oldHash = credentials.getPasswordHash();
+        UserCredentials rehashed = new UserCredentials();
+        rehashed.setUserId(credentials.getUserId());
+        passwordService.setPasswordAsync(rehashed, password)
+                .thenAccept(newCredentials -> replaceHash(oldHash, newCredentials))
+                .exceptionally(e -> {
+                    logger.warn("Unable to rehash password of user: " + rehashed.getUserId(), e);
+                    return null;
+                });
+        return true;
+    }
+
+    /**
+     * Replaces the stored hash with the new one, unless the password was changed in the meantime.
+     *
+     * @param oldHash Outdated hash the new one was computed for.
+     * @param credentials New credentials.
+     */
+    @Transactional
+    public void replaceHash(byte[] oldHash, UserCredentials credentials) {
+        int updated = entityManagerProvider.get()
+                .createNamedQuery("UserCredentials.replaceHash")
+                .setParameter("salt", credentials.getPasswordSalt())
+                .setParameter("hash", credentials.getPasswordHash())
+                .setParameter("algorithm", credentials.getPasswordAlgorithm())
+                .setParameter("cost", credentials.getPasswordCost())
+                .setParameter("userId", credentials.getUserId())
+                .setParameter("oldHash", oldHash)
+                .executeUpdate();
+        if (updated > 0) {
+            logger.info("Rehashed password of user {} with {}.", credentials.getUserId(),
+                    credentials.getPasswordAlgorithm());
+        }
+    }
+}
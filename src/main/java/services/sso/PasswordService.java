@@ -1,23 +1,29 @@
 package services.sso;
 
-import com.google.common.hash.HashFunction;
-import com.google.common.hash.Hashing;
-import com.google.common.io.BaseEncoding;
+import models.sso.PasswordHashAlgorithm;
 import models.sso.UserCredentials;
+import services.sso.password.PasswordHasher;
+import services.sso.password.PasswordHashingOverloadedException;
+import services.sso.password.PasswordHashingService;
+import services.sso.password.Pbkdf2PasswordHasher;
+import services.sso.password.Sha512PasswordHasher;
 
+import javax.inject.Inject;
 import javax.inject.Singleton;
-import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.security.SecureRandom;
-import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Password service to generate salts and password hashes. Uses SHA-512 and {@link SecureRandom}.
+ * Password service to generate salts and password hashes. Uses {@link SecureRandom} and configured password hasher,
+ * which runs on bounded {@link PasswordHashingService} executor. New hashes are computed with current algorithm and
+ * cost, stored hashes are verified with the algorithm and cost stored along with them.
  */
 @Singleton
 public class PasswordService {
 
     /**
-     * Length of hash.
+     * Length of salt.
      */
     static final int HASHING_LENGTH = 64;
 
@@ -27,22 +33,25 @@ public class PasswordService {
     final SecureRandom random;
 
     /**
-     * Hash function: sha-512.
+     * Password hashing service.
      */
-    final HashFunction hashFunction;
+    final PasswordHashingService hashingService;
 
     /**
-     * Base 64 encoding.
+     * Current password hasher.
      */
-    final BaseEncoding baseEncoding;
+    final PasswordHasher hasher;
 
     /**
      * Constructs service.
+     *
+     * @param hashingService Password hashing service.
      */
-    public PasswordService() {
+    @Inject
+    public PasswordService(PasswordHashingService hashingService) {
         this.random = new SecureRandom();
-        this.hashFunction = Hashing.sha512();
-        this.baseEncoding = BaseEncoding.base64Url().omitPadding();
+        this.hashingService = hashingService;
+        this.hasher = hashingService.getHasher();
     }
 
     /**
@@ -57,31 +66,66 @@ public class PasswordService {
     }
 
     /**
-     * Generates password hash for given password and salt.
+     * Sets new salt and hash of the given password, with current algorithm and cost, to the credentials.
      *
+     * @param credentials Credentials to update.
      * @param password Password.
-     * @param salt Salt.
-     * @return Password hash.
+     * @throws PasswordHashingOverloadedException When password hashing capacity is exhausted.
+     */
+    public void setPassword(UserCredentials credentials, String password) {
+        byte[] salt = newSalt();
+        setHash(credentials, salt, hashingService.hash(password, salt));
+    }
+
+    /**
+     * Computes new salt and hash of the given password, with current algorithm and cost, without waiting. Sets them to
+     * the credentials when the hash is computed, on hashing thread.
+     *
+     * @param credentials Credentials to update.
+     * @param password Password.
+     * @return Future of updated credentials, completed exceptionally with {@link PasswordHashingOverloadedException}
+     * when password hashing capacity is exhausted.
+     */
+    public CompletableFuture<UserCredentials> setPasswordAsync(UserCredentials credentials, String password) {
+        byte[] salt = newSalt();
+        return hashingService.hashAsync(password, salt).thenApply(hash -> {
+            setHash(credentials, salt, hash);
+            return credentials;
+        });
+    }
+
+    /**
+     * Returns whether the credentials are hashed with current algorithm and at least current cost. Calibrated cost
+     * differs between nodes and restarts, so hashes are only ever rehashed up: hashes of a stronger node are kept.
+     *
+     * @param credentials Credentials.
+     * @return Whether the credentials are hashed with current algorithm and at least current cost.
      */
-    public byte[] passwordHash(String password, byte[] salt) {
-        return hashFunction.newHasher(HASHING_LENGTH)
-                .putBytes(salt)
-                .putString(password, StandardCharsets.UTF_8)
-                .hash()
-                .asBytes();
+    public boolean isCurrent(UserCredentials credentials) {
+        return hasher.getAlgorithm().equals(credentials.getPasswordAlgorithm())
+                && credentials.getPasswordCost() >= hasher.getCost();
     }
 
     /**
-     * Checks if the given password and salt matches given hash.
+     * Checks if the given password and salt matches given hash of given algorithm and cost. Compares hashes in constant
+     * time.
      *
      * @param password Password to check.
      * @param salt Salt to use.
      * @param passwordHash Password hash for comparison.
+     * @param algorithm Algorithm of the password hash, null for legacy SHA-512 hash.
+     * @param cost Cost of the password hash.
      * @return Whether the given password and salt matches given hash.
+     * @throws PasswordHashingOverloadedException When password hashing capacity is exhausted.
      */
-    public boolean isValidPassword(String password, byte[] salt, byte[] passwordHash) {
-        byte[] hashToCompare = passwordHash(password, salt);
-        return Arrays.equals(hashToCompare, passwordHash);
+    public boolean isValidPassword(
+            String password,
+            byte[] salt,
+            byte[] passwordHash,
+            PasswordHashAlgorithm algorithm,
+            int cost) {
+        byte[] hashToCompare = hashingService.hash(getHasher(algorithm, cost), password, salt);
+        return MessageDigest.isEqual(hashToCompare, passwordHash);
     }
 
     /**
@@ -90,10 +134,51 @@ public class PasswordService {
      * @param password Password.
      * @param userCredentials User.
      * @return Whether the given password matches password of the given user.
+     * @throws PasswordHashingOverloadedException When password hashing capacity is exhausted.
      */
     public boolean isValidPassword(String password, UserCredentials userCredentials) {
         return isValidPassword(password,
                 userCredentials.getPasswordSalt(),
-                userCredentials.getPasswordHash());
+                userCredentials.getPasswordHash(),
+                userCredentials.getPasswordAlgorithm(),
+                userCredentials.getPasswordCost());
+    }
+
+    /**
+     * Returns password hasher of given algorithm and cost.
+     *
+     * @param algorithm Algorithm, null for legacy SHA-512 hashes stored without algorithm.
+     * @param cost Cost.
+     * @return Password hasher.
+     */
+    PasswordHasher getHasher(PasswordHashAlgorithm algorithm, int cost) {
+        if (algorithm == null) {
+            algorithm = PasswordHashAlgorithm.SHA512;
+        }
+        if (hasher.getAlgorithm().equals(algorithm) && hasher.getCost() == cost) {
+            return hasher;
+        }
+        switch (algorithm) {
+            case SHA512:
+                return new Sha512PasswordHasher();
+            case PBKDF2_SHA512:
+                return new Pbkdf2PasswordHasher(cost);
+            default:
+                throw new IllegalArgumentException("Unsupported password hashing algorithm: " + algorithm);
+        }
+    }
+
+    /**
+     * Sets salt and hash computed by current hasher to the credentials.
+     *
+     * @param credentials Credentials.
+     * @param salt Salt.
+     * @param hash Hash.
+     */
+    private void setHash(UserCredentials credentials, byte[] salt, byte[] hash) {
+        credentials.setPasswordSalt(salt);
+        credentials.setPasswordHash(hash);
+        credentials.setPasswordAlgorithm(hasher.getAlgorithm());
+        credentials.setPasswordCost(hasher.getCost());
     }
 }
@@ -0,0 +1,237 @@
+package services.sso;
+
+import com.google.inject.persist.Transactional;
+import models.sso.TokenRevocation;
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenType;
+import ninja.lifecycle.Start;
+import ninja.scheduler.Schedule;
+import ninja.utils.NinjaProperties;
+import org.slf4j.Logger;
+import services.sso.token.RevokedTokens;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Access and refresh token revocation service. Revocations are stored in database and mirrored in memory by
+ * {@link RevokedTokens}, so the check for every request doesn't hit the database. Revocations made on other nodes are
+ * loaded incrementally every "application.sso.tokens.revocation.refreshInterval" seconds.
+ * <p>
+ * Tokens are revoked by their random id and issue time, see {@link ExpirableToken#newRevocableUserToken}. Tokens
+ * issued without them are identified by their expiration time and their issue time is derived from it.
+ * <p>
+ * Expects "application.sso.accessToken.ttl" and "application.sso.refreshToken.ttl" to be defined in project properties.
+ */
+@Singleton
+public class TokenRevocationService {
+
+    /**
+     * Overlap of incremental loads, in milliseconds. Covers clock difference between nodes and commit delays.
+     */
+    private static final long LOAD_OVERLAP = TimeUnit.MINUTES.toMillis(1L);
+
+    /**
+     * Entity manager provider.
+     */
+    private final Provider<EntityManager> entityManagerProvider;
+
+    /**
+     * In-memory revoked tokens.
+     */
+    private final RevokedTokens revokedTokens;
+
+    /**
+     * Access token time to live, in milliseconds.
+     */
+    private final long accessTokenTimeToLive;
+
+    /**
+     * Refresh token time to live, in milliseconds.
+     */
+    private final long refreshTokenTimeToLive;
+
+    /**
+     * Logger.
+     */
+    private final Logger logger;
+
+    /**
+     * Creation time of revocations loaded last time, minus overlap.
+     */
+    private volatile long loadedSince = 0L;
+
+    /**
+     * Constructs token revocation service.
+     *
+     * @param entityManagerProvider Entity manager provider.
+     * @param properties Properties.
+     * @param logger Logger.
+     */
+    @Inject
+    public TokenRevocationService(
+            Provider<EntityManager> entityManagerProvider,
+            NinjaProperties properties,
+            Logger logger) {
+        this.entityManagerProvider = entityManagerProvider;
+        this.accessTokenTimeToLive = 1000L * properties.getIntegerOrDie("application.sso.accessToken.ttl");
+        this.refreshTokenTimeToLive = 1000L * properties.getIntegerOrDie("application.sso.refreshToken.ttl");
+        this.revokedTokens = new RevokedTokens(Math.max(accessTokenTimeToLive, refreshTokenTimeToLive));
+        this.logger = logger;
+    }
+
+    /**
+     * Returns whether given access or refresh token of the user is revoked. Doesn't hit the database.
+     *
+     * @param userId User id.
+     * @param token Access or refresh token.
+     * @return Whether the token is revoked.
+     */
+    public boolean isRevoked(long userId, ExpirableToken token) {
+        return revokedTokens.isRevoked(userId, getIssuedAt(token), getTokenId(token));
+    }
+
+    /**
+     * Revokes given access or refresh token.
+     *
+     * @param userId User id.
+     * @param token Access or refresh token to revoke.
+     */
+    @Transactional
+    public void revokeToken(long userId, ExpirableToken token) {
+        long now = System.currentTimeMillis();
+        long tokenId = getTokenId(token);
+        long tokenExpires = token.getExpires();
+        save(new TokenRevocation(userId, now, tokenId, tokenExpires, tokenExpires));
+        revokedTokens.revokeToken(userId, tokenId, tokenExpires);
+    }
+
+    /**
+     * Revokes given access or refresh token unless it is revoked already, on this or another node. Database accepts
+     * single revocation of the token, so only one of concurrent calls for the same token succeeds. Must be called
+     * outside of transaction, since failed revocation rolls back the transaction.
+     *
+     * @param userId User id.
+     * @param token Access or refresh token to revoke.
+     * @return Whether the token is revoked by this call, false if it was revoked already.
+     */
+    public boolean revokeTokenOnce(long userId, ExpirableToken token) {
+        if (isRevoked(userId, token)) {
+            return false;
+        }
+        try {
+            revokeToken(userId, token);
+            return true;
+        } catch (PersistenceException ex) {
+            // Revoked concurrently, on this or another node.
+            logger.info("Token of user {} is revoked already: {}", userId, ex.toString());
+            revokedTokens.revokeToken(userId, getTokenId(token), token.getExpires());
+            return false;
+        }
+    }
+
+    /**
+     * Revokes all access and refresh tokens of the given user issued up to the current moment.
+     *
+     * @param userId User id.
+     */
+    @Transactional
+    public void revokeAllTokens(long userId) {
+        long now = System.currentTimeMillis();
+        save(new TokenRevocation(userId, now, null, null, now + Math.max(accessTokenTimeToLive, refreshTokenTimeToLive)));
+        revokedTokens.revokeAllTokens(userId, now);
+    }
+
+    /**
+     * Loads revocations stored since the last load (including revocations from other nodes) into memory.
+     */
+    @Start(order = 100)
+    @Schedule(delay = 10, delayProperty = "application.sso.tokens.revocation.refreshInterval",
+            initialDelay = 10, initialDelayProperty = "application.sso.tokens.revocation.refreshInterval",
+            timeUnit = TimeUnit.SECONDS)
+    @Transactional
+    public void loadRevocations() {
+        long now = System.currentTimeMillis();
+        List<TokenRevocation> revocations = entityManagerProvider.get()
+                .createNamedQuery("TokenRevocation.createdSince", TokenRevocation.class)
+                .setParameter("created", loadedSince)
+                .setParameter("now", now)
+                .getResultList();
+        for (TokenRevocation revocation : revocations) {
+            if (revocation.getTokenId() == null) {
+                revokedTokens.revokeAllTokens(revocation.getUserId(), revocation.getCreated());
+            } else {
+                revokedTokens.revokeToken(revocation.getUserId(), revocation.getTokenId(),
+                        revocation.getTokenExpires());
+            }
+        }
+        loadedSince = now - LOAD_OVERLAP;
+        revokedTokens.removeExpired(now);
+    }
+
+    /**
+     * Removes obsolete revocations from database.
+     */
+    @Schedule(delay = 1, initialDelay = 1, timeUnit = TimeUnit.HOURS)
+    @Transactional
+    public void removeExpiredRevocations() {
+        int removed = entityManagerProvider.get()
+                .createNamedQuery("TokenRevocation.removeExpired")
+                .setParameter("now", System.currentTimeMillis())
+                .executeUpdate();
+        logger.info("Removed {} expired token revocations.", removed);
+    }
+
+    /**
+     * Returns number of users with revoked tokens in memory.
+     *
+     * @return Number of users with revoked tokens in memory.
+     */
+    public int getRevokedUsersCount() {
+        return revokedTokens.size();
+    }
+
+    /**
+     * Returns issue time of the token, derived from its expiration time and time to live of its type when the token
+     * has no issue time.
+     *
+     * @param token Access or refresh token.
+     * @return Issue time, in milliseconds since Jan 1, 1970 UTC.
+     */
+    private long getIssuedAt(ExpirableToken token) {
+        Long issuedAt = token.getIssuedAt();
+        if (issuedAt != null) {
+            return issuedAt;
+        }
+        long timeToLive = ExpirableTokenType.REFRESH.equals(token.getType())
+                ? refreshTokenTimeToLive : accessTokenTimeToLive;
+        return token.getExpires() - timeToLive;
+    }
+
+    /**
+     * Returns id of the token, its expiration time when the token has no id.
+     *
+     * @param token Access or refresh token.
+     * @return Token id.
+     */
+    private static long getTokenId(ExpirableToken token) {
+        Long tokenId = token.getTokenId();
+        return tokenId != null ? tokenId : token.getExpires();
+    }
+
+    /**
+     * Saves given revocation.
+     *
+     * @param revocation Revocation.
+     */
+    private void save(TokenRevocation revocation) {
+        EntityManager em = entityManagerProvider.get();
+        em.persist(revocation);
+        em.flush();
+    }
+}
@@ -2,7 +2,6 @@ package services.sso;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.io.BaseEncoding;
 import models.sso.PaginationResult;
 import models.sso.User;
 import models.sso.UserEvent;
@@ -14,14 +13,9 @@ import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.persistence.EntityManager;
-import javax.persistence.Query;
-import java.io.IOException;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 
 /**
  * Service for user's events.
@@ -39,16 +33,6 @@ public class UserEventService implements Paginatable<UserEvent> {
      */
     final Provider<EntityManager> entityManagerProvider;
 
-    /**
-     * Password service.
-     */
-    final PasswordService passwordService;
-
-    /**
-     * Base encoding.
-     */
-    final BaseEncoding baseEncoding;
-
     /**
      * Json serializer.
      */
@@ -68,13 +52,10 @@ public class UserEventService implements Paginatable<UserEvent> {
     @Inject
     public UserEventService(
             Provider<EntityManager> entityManagerProvider,
-            PasswordService passwordService,
             ObjectMapper objectMapper,
             Logger logger) {
         this.entityManagerProvider = entityManagerProvider;
-        this.passwordService = passwordService;
         this.objectMapper = objectMapper;
-        this.baseEncoding = BaseEncoding.base64Url().omitPadding();
         this.logger = logger;
     }
 
@@ -94,41 +75,6 @@ public class UserEventService implements Paginatable<UserEvent> {
         return userEvent;
     }
 
-    /**
-     * Returns a hint duration of the last password change if the given password matches previous
-     * password.
-     *
-     * @param user User.
-     * @param password Old password to search for.
-     * @return Optional of the duration of the last password change.
-     */
-    @SuppressWarnings("unchecked")
-    public Optional<Date> getLastPasswordChangeDate(User user, String password) {
-        Query query = entityManagerProvider.get().createNamedQuery("UserEvent.ownByUserAndType");
-        query.setParameter("userId", user.getId());
-        query.setParameter("type", UserEventType.PASSWORD_CHANGE);
-        query.setMaxResults(1);
-        List<UserEvent> events = (List<UserEvent>) query.getResultList();
-        for (UserEvent event : events) {
-            if (event.getData() == null || event.getData().length == 0) {
-                continue;
-            }
-            try {
-                Map<String, Object> dataMap = objectMapper.readValue(event.getData(), Map.class);
-                byte[] oldSalt = baseEncoding.decode((String) dataMap.get("password.old.salt"));
-                byte[] oldHash = baseEncoding.decode((String) dataMap.get("password.old.hash"));
-                if (passwordService.isValidPassword(password, oldSalt, oldHash)) {
-                    return Optional.of(new Date(event.getTime().toEpochSecond() * 1000L));
-                }
-            } catch (IOException e) {
-                String message = String.format(
-                        "Error parsing event data: %d / user: %d", event.getId(), user.getId());
-                logger.warn(message, e);
-            }
-        }
-        return Optional.empty();
-    }
-
     /**
      * Remembers user sign in time and remote IP as a new event.
      *
@@ -218,38 +164,31 @@ public class UserEventService implements Paginatable<UserEvent> {
     }
 
     /**
-     * Creates user event when the user updates his password. Data may contain old salt and old password hash to
-     * create hint for user when he tries to log in with the old credentials.
+     * Creates user event when the user updates his password. Former password is kept by
+     * {@link PasswordHistoryService}.
      *
      * @param user User who updates password.
-     * @param oldSalt Old password salt.
-     * @param oldHash Old password hash.
      * @param ip Remove IP address.
      * @param data Additional data for event, headers here.
      * @return Created user event with {@link UserEventType#PASSWORD_CHANGE}.
      */
-    public UserEvent onUserPasswordUpdate(User user, byte[] oldSalt, byte[] oldHash, String ip, Map<String, ?> data) {
-        return onUserPasswordUpdate(user, null, oldSalt, oldHash, ip, data);
+    public UserEvent onUserPasswordUpdate(User user, String ip, Map<String, ?> data) {
+        return onUserPasswordUpdate(user, null, ip, data);
     }
 
     /**
-     * Creates user event when the user updates someone's password. Data may contain old salt and old password hash to
-     * create hint for user when he tries to log in with the old credentials.
+     * Creates user event when the user updates someone's password. Former password is kept by
+     * {@link PasswordHistoryService}.
      *
      * @param user Admin who changes the password.
      * @param targetUser User whose password was updated.
-     * @param oldSalt Old password salt.
-     * @param oldHash Old password hash.
      * @param ip Remove IP address.
      * @param data Additional data for event, headers here.
      * @return Created user event with {@link UserEventType#PASSWORD_CHANGE}.
      */
-    public UserEvent onUserPasswordUpdate(User user, User targetUser, byte[] oldSalt, byte[] oldHash,
-                                          String ip, Map<String, ?> data) {
+    public UserEvent onUserPasswordUpdate(User user, User targetUser, String ip, Map<String, ?> data) {
         Map<String, Object> dataToSave = new HashMap<>();
         dataToSave.put(EVENT_DATA_NAMESPACE, data);
-        dataToSave.put("password.old.salt", baseEncoding.encode(oldSalt));
-        dataToSave.put("password.old.hash", baseEncoding.encode(oldHash));
         UserEvent userEvent = newEvent(user, UserEventType.PASSWORD_CHANGE, ip, dataToSave);
         userEvent.setTargetUser(targetUser);
         entityManagerProvider.get().persist(userEvent);
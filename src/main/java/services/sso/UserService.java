@@ -4,6 +4,7 @@ import models.sso.User;
 import models.sso.UserCredentials;
 import services.sso.annotations.ExclusionDictionary;
 import services.sso.annotations.ExclusionSubstrings;
+import services.sso.password.PasswordHashingOverloadedException;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -11,7 +12,6 @@ import javax.inject.Singleton;
 import javax.persistence.EntityManager;
 import javax.persistence.NoResultException;
 import javax.persistence.Query;
-import java.util.Arrays;
 import java.util.Set;
 
 /**
@@ -40,23 +40,31 @@ public class UserService implements Paginatable<User> {
      */
     final PasswordService passwordService;
 
+    /**
+     * Password history service.
+     */
+    final PasswordHistoryService passwordHistoryService;
+
     /**
      * Constructs user service.
      *
      * @param entityManagerProvider       Entity manager provider.
      * @param usernameExclusionDictionary Username exclusion dictionary.
      * @param passwordService             Password service.
+     * @param passwordHistoryService      Password history service.
      */
     @Inject
     public UserService(
             Provider<EntityManager> entityManagerProvider,
             @ExclusionDictionary Set<String> usernameExclusionDictionary,
             @ExclusionSubstrings Set<String> usernameExclusionSubstrings,
-            PasswordService passwordService) {
+            PasswordService passwordService,
+            PasswordHistoryService passwordHistoryService) {
         this.entityManagerProvider = entityManagerProvider;
         this.usernameExclusionDictionary = usernameExclusionDictionary;
         this.usernameExclusionSubstrings = usernameExclusionSubstrings;
         this.passwordService = passwordService;
+        this.passwordHistoryService = passwordHistoryService;
     }
 
     /**
@@ -139,12 +147,11 @@ public class UserService implements Paginatable<User> {
      *
      * @param user User to save.
      * @return Created user (as as argument, attached instance).
+     * @throws PasswordHashingOverloadedException When password hashing capacity is exhausted.
      */
     public User createNew(User user, String password) {
-        byte[] salt = passwordService.newSalt();
         UserCredentials credentials = new UserCredentials();
-        credentials.setPasswordSalt(salt);
-        credentials.setPasswordHash(passwordService.passwordHash(password, salt));
+        passwordService.setPassword(credentials, password);
 
         EntityManager em = entityManagerProvider.get();
         em.persist(user);
@@ -188,31 +195,33 @@ public class UserService implements Paginatable<User> {
      * @param user     User to check.
      * @param password Password to check.
      * @return Whether the given password is a valid user password.
+     * @throws PasswordHashingOverloadedException When password hashing capacity is exhausted.
      */
     public boolean isValidPassword(User user, String password) {
         UserCredentials credentials = getCredentials(user);
         if (credentials == null) {
             return false;
         }
-        byte[] passwordHash = passwordService.passwordHash(password, credentials.getPasswordSalt());
-        return Arrays.equals(passwordHash, credentials.getPasswordHash());
+        return passwordService.isValidPassword(password, credentials);
     }
 
     /**
-     * Updates user password.
+     * Updates user password. Former password is remembered in password history.
      *
      * @param user     User.
      * @param password New password.
      * @return Updated user entity.
+     * @throws PasswordHashingOverloadedException When password hashing capacity is exhausted.
      */
     public User updatePassword(User user, String password) {
         UserCredentials credentials = getCredentials(user);
         if (credentials == null) {
             credentials = new UserCredentials();
             credentials.setUserId(user.getId());
+        } else {
+            passwordHistoryService.remember(credentials);
         }
-        credentials.setPasswordSalt(passwordService.newSalt());
-        credentials.setPasswordHash(passwordService.passwordHash(password, credentials.getPasswordSalt()));
+        passwordService.setPassword(credentials, password);
         entityManagerProvider.get().persist(credentials);
         entityManagerProvider.get().flush();
         return user;
@@ -0,0 +1,140 @@
+package services.sso.captcha;
+
+import ninja.utils.NinjaProperties;
+import nl.captcha.Captcha;
+import nl.captcha.backgrounds.GradiatedBackgroundProducer;
+import nl.captcha.noise.CurvedLineNoiseProducer;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.awt.Color;
+import java.security.SecureRandom;
+import java.util.Random;
+
+/**
+ * Captcha image renderer. Generates random human readable words and renders them as PNG images: gradient background,
+ * text, fish eye distortion and curved line noise, encoded in memory with {@link PngEncoder}. Thread safe.
+ * <p>
+ * Expects "application.sso.captcha.aphabet", "application.sso.captcha.length", "application.sso.captcha.width",
+ * "application.sso.captcha.height" and "application.sso.captcha.compressionLevel" to be defined in project properties.
+ */
+@Singleton
+public class CaptchaImageRenderer {
+
+    /**
+     * Random.
+     */
+    private final Random random = new SecureRandom();
+
+    /**
+     * Captcha alphabet.
+     */
+    private final String alphabet;
+
+    /**
+     * Number of characters in captcha.
+     */
+    private final int length;
+
+    /**
+     * Captcha width.
+     */
+    private final int width;
+
+    /**
+     * Captcha height.
+     */
+    private final int height;
+
+    /**
+     * PNG encoder.
+     */
+    private final PngEncoder encoder;
+
+    /**
+     * Fish eye renderer.
+     */
+    private final SimpleFishEyeGimpyRenderer fishEyeGimpyRenderer = new SimpleFishEyeGimpyRenderer();
+
+    /**
+     * Curved line.
+     */
+    private final CurvedLineNoiseProducer curvedLineNoiseProducer = new CurvedLineNoiseProducer(Color.BLACK, 4);
+
+    /**
+     * Background.
+     */
+    private final GradiatedBackgroundProducer backgroundLeftToRight = new GradiatedBackgroundProducer();
+
+    /**
+     * Background.
+     */
+    private final GradiatedBackgroundProducer backgroundRightToLeft = new GradiatedBackgroundProducer();
+
+    /**
+     * Constructs captcha image renderer.
+     *
+     * @param alphabet Captcha alphabet.
+     * @param length Number of characters in captcha.
+     * @param width Captcha width.
+     * @param height Captcha height.
+     * @param compressionLevel PNG compression level, from 0 to 9.
+     */
+    public CaptchaImageRenderer(String alphabet, int length, int width, int height, int compressionLevel) {
+        this.alphabet = alphabet;
+        this.length = length;
+        this.width = width;
+        this.height = height;
+        this.encoder = new PngEncoder(compressionLevel);
+        this.backgroundLeftToRight.setFromColor(Color.LIGHT_GRAY);
+        this.backgroundLeftToRight.setToColor(Color.WHITE);
+        this.backgroundRightToLeft.setFromColor(Color.WHITE);
+        this.backgroundRightToLeft.setToColor(Color.LIGHT_GRAY);
+    }
+
+    /**
+     * Constructs captcha image renderer from properties.
+     *
+     * @param properties Properties.
+     */
+    @Inject
+    public CaptchaImageRenderer(NinjaProperties properties) {
+        this(properties.getWithDefault(
+                "application.sso.captcha.aphabet",
+                "123456789ABCDEFGHJKLMNPQRSTUVWXYZ"), // No I, 0 and O.
+                properties.getIntegerWithDefault("application.sso.captcha.length", 5),
+                properties.getIntegerWithDefault("application.sso.captcha.width", 240),
+                properties.getIntegerWithDefault("application.sso.captcha.height", 50),
+                properties.getIntegerWithDefault("application.sso.captcha.compressionLevel", 6));
+    }
+
+    /**
+     * Generates new captcha random word.
+     *
+     * @return New captcha random word.
+     */
+    public String nextWord() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Renders captcha image with given word.
+     *
+     * @param word Word to display.
+     * @return PNG image.
+     */
+    public byte[] render(String word) {
+        Captcha captcha = new Captcha.Builder(this.width, this.height)
+                .addText(() -> word)
+                .addBorder()
+                .gimp(fishEyeGimpyRenderer)
+                .addNoise(curvedLineNoiseProducer)
+                .addBackground(random.nextBoolean() ? backgroundLeftToRight : backgroundRightToLeft)
+                .build();
+        return encoder.encode(captcha.getImage());
+    }
+}
@@ -0,0 +1,315 @@
+package services.sso.captcha;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import ninja.lifecycle.Dispose;
+import ninja.metrics.MetricsService;
+import ninja.utils.NinjaProperties;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.security.SecureRandom;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of pre-rendered captcha images. Background producer threads render random words into a bounded ring buffer,
+ * so pages that need a captcha take a ready word and the image endpoint only writes its bytes, instead of rendering
+ * on request threads. Taken entries wait for their image request for captcha time to live; each image is served
+ * at most once, later requests of the same captcha (and requests served by other nodes) fall back to rendering.
+ * <p>
+ * Reports rendered images (refill rate), taken and served entries, starvation (takes from empty pool) and pool size
+ * as metrics. Thread safe.
+ * <p>
+ * Expects "application.sso.captcha.pool.size" (0 disables the pool), "application.sso.captcha.pool.threads",
+ * "application.sso.captcha.pool.issued" and "application.sso.captcha.ttl" to be defined in project properties.
+ */
+@Singleton
+public class CaptchaPool {
+
+    /**
+     * Random for entry ids.
+     */
+    private final Random random = new SecureRandom();
+
+    /**
+     * Captcha image renderer.
+     */
+    private final CaptchaImageRenderer renderer;
+
+    /**
+     * Rendered entries, null if the pool is disabled.
+     */
+    private final BlockingQueue<Entry> ready;
+
+    /**
+     * Taken entries waiting for their image request, by id.
+     */
+    private final Cache<Long, Entry> issued;
+
+    /**
+     * Producer threads, null if there are none.
+     */
+    private final ExecutorService producers;
+
+    /**
+     * Logger.
+     */
+    private final Logger logger;
+
+    /**
+     * Rendered entries.
+     */
+    private final Meter rendered;
+
+    /**
+     * Entries taken from the pool.
+     */
+    private final Meter taken;
+
+    /**
+     * Takes from empty pool.
+     */
+    private final Meter starved;
+
+    /**
+     * Pre-rendered images served.
+     */
+    private final Meter served;
+
+    /**
+     * Constructs captcha pool and starts producer threads.
+     *
+     * @param renderer Captcha image renderer.
+     * @param size Maximal number of rendered entries, 0 disables the pool.
+     * @param threads Number of producer threads, 0 for none.
+     * @param maxIssued Maximal number of taken entries waiting for their image request.
+     * @param ttlSeconds Time to live of taken entries, in seconds.
+     * @param registry Metric registry.
+     * @param logger Logger.
+     */
+    public CaptchaPool(
+            CaptchaImageRenderer renderer,
+            int size,
+            int threads,
+            int maxIssued,
+            long ttlSeconds,
+            MetricRegistry registry,
+            Logger logger) {
+        this.renderer = renderer;
+        this.logger = logger;
+        this.ready = size > 0 ? new ArrayBlockingQueue<>(size) : null;
+        this.issued = CacheBuilder.newBuilder()
+                .maximumSize(Math.max(maxIssued, 1))
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+        this.rendered = registry.meter(MetricRegistry.name(CaptchaPool.class, "rendered"));
+        this.taken = registry.meter(MetricRegistry.name(CaptchaPool.class, "taken"));
+        this.starved = registry.meter(MetricRegistry.name(CaptchaPool.class, "starved"));
+        this.served = registry.meter(MetricRegistry.name(CaptchaPool.class, "served"));
+        registry.register(MetricRegistry.name(CaptchaPool.class, "size"), (Gauge<Integer>) this::size);
+        if (ready != null && threads > 0) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.producers = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "captcha-pool-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            });
+            for (int i = 0; i < threads; i++) {
+                producers.execute(this::produce);
+            }
+        } else {
+            this.producers = null;
+        }
+    }
+
+    /**
+     * Constructs captcha pool from properties and registers its metrics.
+     *
+     * @param renderer Captcha image renderer.
+     * @param metricsService Metrics service.
+     * @param properties Properties.
+     * @param logger Logger.
+     */
+    @Inject
+    public CaptchaPool(
+            CaptchaImageRenderer renderer,
+            MetricsService metricsService,
+            NinjaProperties properties,
+            Logger logger) {
+        this(renderer,
+                properties.getIntegerWithDefault("application.sso.captcha.pool.size", 256),
+                properties.getIntegerWithDefault("application.sso.captcha.pool.threads", 1),
+                properties.getIntegerWithDefault("application.sso.captcha.pool.issued", 4096),
+                properties.getIntegerWithDefault("application.sso.captcha.ttl", 300),
+                metricsService.getMetricRegistry(),
+                logger);
+    }
+
+    /**
+     * Takes rendered entry from the pool. The entry's image can be claimed once, within time to live.
+     *
+     * @return Rendered entry or null if the pool is empty or disabled.
+     */
+    public Entry take() {
+        if (ready == null) {
+            return null;
+        }
+        Entry entry = ready.poll();
+        if (entry == null) {
+            starved.mark();
+            return null;
+        }
+        issued.put(entry.getId(), entry);
+        taken.mark();
+        return entry;
+    }
+
+    /**
+     * Claims image of taken entry. Each image is returned once.
+     *
+     * @param id Entry id.
+     * @param word Word of the entry.
+     * @return PNG image or null if there is no such entry, it was claimed already or has expired.
+     */
+    public byte[] claim(long id, String word) {
+        Entry entry = issued.asMap().remove(id);
+        if (entry == null || !entry.getWord().equals(word)) {
+            return null;
+        }
+        served.mark();
+        return entry.getImage();
+    }
+
+    /**
+     * Returns number of rendered entries in the pool.
+     *
+     * @return Number of rendered entries.
+     */
+    public int size() {
+        return ready == null ? 0 : ready.size();
+    }
+
+    /**
+     * Stops producer threads.
+     */
+    @Dispose
+    public void shutdown() {
+        if (producers != null) {
+            producers.shutdownNow();
+        }
+    }
+
+    /**
+     * Renders one entry into the pool unless it is full.
+     *
+     * @return Whether the entry was added.
+     */
+    boolean fill() {
+        return ready != null && ready.offer(render());
+    }
+
+    /**
+     * Renders entries into the pool until interrupted, waiting while the pool is full.
+     */
+    private void produce() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                ready.put(render());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.error("Error while rendering captcha.", e);
+                try {
+                    TimeUnit.SECONDS.sleep(1L);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Renders new entry with random word.
+     *
+     * @return New entry.
+     */
+    private Entry render() {
+        String word = renderer.nextWord();
+        Entry entry = new Entry(random.nextLong(), word, renderer.render(word));
+        rendered.mark();
+        return entry;
+    }
+
+    /**
+     * Pre-rendered captcha: id, word and PNG image.
+     */
+    public static final class Entry {
+
+        /**
+         * Random id.
+         */
+        private final long id;
+
+        /**
+         * Word.
+         */
+        private final String word;
+
+        /**
+         * PNG image.
+         */
+        private final byte[] image;
+
+        /**
+         * Constructs entry.
+         *
+         * @param id Random id.
+         * @param word Word.
+         * @param image PNG image.
+         */
+        Entry(long id, String word, byte[] image) {
+            this.id = id;
+            this.word = word;
+            this.image = image;
+        }
+
+        /**
+         * Returns random id.
+         *
+         * @return Random id.
+         */
+        public long getId() {
+            return id;
+        }
+
+        /**
+         * Returns word.
+         *
+         * @return Word.
+         */
+        public String getWord() {
+            return word;
+        }
+
+        /**
+         * Returns PNG image.
+         *
+         * @return PNG image.
+         */
+        byte[] getImage() {
+            return image;
+        }
+    }
+}
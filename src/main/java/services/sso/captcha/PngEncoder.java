@@ -0,0 +1,435 @@
+package services.sso.captcha;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * In-memory PNG encoder for captcha images, without ImageIO (and its disk cache and writer lookups). Images with
+ * up to 256 colors, like captchas, are encoded as indexed (palette) PNG of the smallest bit depth, other images as
+ * true color PNG with sub filter. Deflaters and buffers are reused per thread. Thread safe.
+ */
+public final class PngEncoder {
+
+    /**
+     * PNG signature.
+     */
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    /**
+     * Maximal number of palette colors.
+     */
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    /**
+     * Color type: indexed.
+     */
+    private static final byte COLOR_TYPE_INDEXED = 3;
+
+    /**
+     * Color type: true color.
+     */
+    private static final byte COLOR_TYPE_RGB = 2;
+
+    /**
+     * Color type: true color with alpha.
+     */
+    private static final byte COLOR_TYPE_RGBA = 6;
+
+    /**
+     * Filter type: none.
+     */
+    private static final byte FILTER_NONE = 0;
+
+    /**
+     * Filter type: sub.
+     */
+    private static final byte FILTER_SUB = 1;
+
+    /**
+     * Deflaters, per thread.
+     */
+    private final ThreadLocal<Deflater> deflaters;
+
+    /**
+     * Buffers, per thread.
+     */
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+    /**
+     * Constructs PNG encoder.
+     *
+     * @param compressionLevel Deflater compression level, from 0 to 9.
+     */
+    public PngEncoder(int compressionLevel) {
+        if (compressionLevel < Deflater.NO_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Expects compression level from 0 to 9: " + compressionLevel);
+        }
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(compressionLevel));
+    }
+
+    /**
+     * Encodes image as PNG.
+     *
+     * @param image Image.
+     * @return PNG image.
+     */
+    public byte[] encode(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        Buffers buffers = this.buffers.get();
+        int[] pixels = buffers.pixels(width * height);
+        image.getRGB(0, 0, width, height, pixels, 0, width);
+
+        int paletteSize = buffers.palette(pixels, width * height);
+        boolean indexed = paletteSize <= MAX_PALETTE_SIZE;
+        boolean alpha = false;
+        for (int i = 0; i < width * height && !alpha; i++) {
+            alpha = pixels[i] >>> 24 != 0xFF;
+        }
+        int bitDepth = indexed ? bitDepth(paletteSize) : 8;
+        int rawLength = indexed
+                ? buffers.indexedRows(width, height, bitDepth)
+                : buffers.trueColorRows(pixels, width, height, alpha);
+        int compressedLength = deflate(buffers, rawLength);
+
+        int length = SIGNATURE.length + 12 + 13 + 12 + compressedLength + 12;
+        if (indexed) {
+            length += 12 + 3 * paletteSize + (alpha ? 12 + paletteSize : 0);
+        }
+        Chunks png = new Chunks(new byte[length]);
+        png.write(SIGNATURE, 0, SIGNATURE.length);
+
+        png.begin("IHDR", 13);
+        png.writeInt(width);
+        png.writeInt(height);
+        png.writeByte(bitDepth);
+        png.writeByte(indexed ? COLOR_TYPE_INDEXED : alpha ? COLOR_TYPE_RGBA : COLOR_TYPE_RGB);
+        png.writeByte(0); // Deflate.
+        png.writeByte(0); // Adaptive filtering.
+        png.writeByte(0); // No interlace.
+        png.end();
+
+        if (indexed) {
+            png.begin("PLTE", 3 * paletteSize);
+            for (int i = 0; i < paletteSize; i++) {
+                int color = buffers.colors[i];
+                png.writeByte(color >>> 16);
+                png.writeByte(color >>> 8);
+                png.writeByte(color);
+            }
+            png.end();
+            if (alpha) {
+                png.begin("tRNS", paletteSize);
+                for (int i = 0; i < paletteSize; i++) {
+                    png.writeByte(buffers.colors[i] >>> 24);
+                }
+                png.end();
+            }
+        }
+
+        png.begin("IDAT", compressedLength);
+        png.write(buffers.compressed, 0, compressedLength);
+        png.end();
+
+        png.begin("IEND", 0);
+        png.end();
+        return png.bytes;
+    }
+
+    /**
+     * Compresses raw rows into compressed buffer.
+     *
+     * @param buffers Buffers.
+     * @param rawLength Length of raw rows.
+     * @return Compressed length.
+     */
+    private int deflate(Buffers buffers, int rawLength) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(buffers.raw, 0, rawLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == buffers.compressed.length) {
+                buffers.compressed = Arrays.copyOf(buffers.compressed, Math.max(length * 2, 1024));
+            }
+            length += deflater.deflate(buffers.compressed, length, buffers.compressed.length - length);
+        }
+        return length;
+    }
+
+    /**
+     * Returns the smallest bit depth for given number of palette colors.
+     *
+     * @param paletteSize Number of palette colors.
+     * @return Bit depth: 1, 2, 4 or 8.
+     */
+    private static int bitDepth(int paletteSize) {
+        if (paletteSize <= 2) {
+            return 1;
+        } else if (paletteSize <= 4) {
+            return 2;
+        } else if (paletteSize <= 16) {
+            return 4;
+        }
+        return 8;
+    }
+
+    /**
+     * Buffers of a thread.
+     */
+    private static final class Buffers {
+
+        /**
+         * Size of color hash table, power of two over twice maximal palette size.
+         */
+        private static final int TABLE_SIZE = 1024;
+
+        /**
+         * Pixels, as ARGB.
+         */
+        int[] pixels = new int[0];
+
+        /**
+         * Palette index of each pixel.
+         */
+        byte[] indexes = new byte[0];
+
+        /**
+         * Palette colors, as ARGB.
+         */
+        final int[] colors = new int[MAX_PALETTE_SIZE];
+
+        /**
+         * Color hash table: colors.
+         */
+        final int[] tableColors = new int[TABLE_SIZE];
+
+        /**
+         * Color hash table: palette index plus one, 0 for empty slots.
+         */
+        final int[] tableIndexes = new int[TABLE_SIZE];
+
+        /**
+         * Raw (filtered) rows.
+         */
+        byte[] raw = new byte[0];
+
+        /**
+         * Compressed rows.
+         */
+        byte[] compressed = new byte[0];
+
+        /**
+         * Returns pixel buffer of at least given length.
+         *
+         * @param length Minimal length.
+         * @return Pixel buffer.
+         */
+        int[] pixels(int length) {
+            if (pixels.length < length) {
+                pixels = new int[length];
+                indexes = new byte[length];
+            }
+            return pixels;
+        }
+
+        /**
+         * Builds palette of the pixels and palette indexes of the pixels.
+         *
+         * @param pixels Pixels.
+         * @param count Number of pixels.
+         * @return Number of colors, or a number over maximal palette size if there are more colors.
+         */
+        int palette(int[] pixels, int count) {
+            Arrays.fill(tableIndexes, 0);
+            int size = 0;
+            int lastColor = 0;
+            int lastIndex = -1;
+            for (int i = 0; i < count; i++) {
+                int color = pixels[i];
+                if (color != lastColor || lastIndex < 0) {
+                    int slot = (color * 0x9E3779B9) >>> 22;
+                    while (tableIndexes[slot] != 0 && tableColors[slot] != color) {
+                        slot = (slot + 1) & (TABLE_SIZE - 1);
+                    }
+                    if (tableIndexes[slot] == 0) {
+                        if (size == MAX_PALETTE_SIZE) {
+                            return MAX_PALETTE_SIZE + 1;
+                        }
+                        colors[size] = color;
+                        tableColors[slot] = color;
+                        tableIndexes[slot] = ++size;
+                    }
+                    lastColor = color;
+                    lastIndex = tableIndexes[slot] - 1;
+                }
+                indexes[i] = (byte) lastIndex;
+            }
+            return size;
+        }
+
+        /**
+         * Writes indexed rows of palette indexes, each with filter type none, into raw buffer.
+         *
+         * @param width Width.
+         * @param height Height.
+         * @param bitDepth Bit depth.
+         * @return Length of raw rows.
+         */
+        int indexedRows(int width, int height, int bitDepth) {
+            int rowLength = 1 + (width * bitDepth + 7) / 8;
+            int length = rowLength * height;
+            raw(length);
+            Arrays.fill(raw, 0, length, (byte) 0);
+            int pixelsPerByte = 8 / bitDepth;
+            for (int y = 0; y < height; y++) {
+                int row = y * rowLength;
+                raw[row] = FILTER_NONE;
+                int pixel = y * width;
+                for (int x = 0; x < width; x++) {
+                    int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                    raw[row + 1 + x / pixelsPerByte] |= (indexes[pixel + x] & 0xFF) << shift;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Writes true color rows, each with filter type sub, into raw buffer.
+         *
+         * @param pixels Pixels.
+         * @param width Width.
+         * @param height Height.
+         * @param alpha Whether to write alpha.
+         * @return Length of raw rows.
+         */
+        int trueColorRows(int[] pixels, int width, int height, boolean alpha) {
+            int bytesPerPixel = alpha ? 4 : 3;
+            int rowLength = 1 + width * bytesPerPixel;
+            int length = rowLength * height;
+            raw(length);
+            for (int y = 0; y < height; y++) {
+                int row = y * rowLength;
+                raw[row] = FILTER_SUB;
+                int previous = 0;
+                for (int x = 0; x < width; x++) {
+                    int color = pixels[y * width + x];
+                    int offset = row + 1 + x * bytesPerPixel;
+                    raw[offset] = (byte) ((color >>> 16) - (previous >>> 16));
+                    raw[offset + 1] = (byte) ((color >>> 8) - (previous >>> 8));
+                    raw[offset + 2] = (byte) (color - previous);
+                    if (alpha) {
+                        raw[offset + 3] = (byte) ((color >>> 24) - (previous >>> 24));
+                    }
+                    previous = color;
+                }
+            }
+            return length;
+        }
+
+        /**
+         * Ensures raw buffer of at least given length.
+         *
+         * @param length Minimal length.
+         */
+        private void raw(int length) {
+            if (raw.length < length) {
+                raw = new byte[length];
+            }
+        }
+    }
+
+    /**
+     * Writer of PNG chunks into array of exact length.
+     */
+    private static final class Chunks {
+
+        /**
+         * PNG bytes.
+         */
+        final byte[] bytes;
+
+        /**
+         * Chunk CRC.
+         */
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Write position.
+         */
+        private int position;
+
+        /**
+         * Position of the current chunk's type.
+         */
+        private int chunkStart;
+
+        /**
+         * Constructs writer.
+         *
+         * @param bytes PNG bytes.
+         */
+        Chunks(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Begins chunk: writes its length and type.
+         *
+         * @param type Chunk type.
+         * @param length Chunk data length.
+         */
+        void begin(String type, int length) {
+            writeInt(length);
+            chunkStart = position;
+            for (int i = 0; i < 4; i++) {
+                writeByte(type.charAt(i));
+            }
+        }
+
+        /**
+         * Ends chunk: writes CRC of its type and data.
+         */
+        void end() {
+            crc.reset();
+            crc.update(bytes, chunkStart, position - chunkStart);
+            writeInt((int) crc.getValue());
+        }
+
+        /**
+         * Writes bytes.
+         *
+         * @param source Source.
+         * @param offset Source offset.
+         * @param length Number of bytes.
+         */
+        void write(byte[] source, int offset, int length) {
+            System.arraycopy(source, offset, bytes, position, length);
+            position += length;
+        }
+
+        /**
+         * Writes big endian int.
+         *
+         * @param value Value.
+         */
+        void writeInt(int value) {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        /**
+         * Writes low 8 bits of the value.
+         *
+         * @param value Value.
+         */
+        void writeByte(int value) {
+            bytes[position++] = (byte) value;
+        }
+    }
+}
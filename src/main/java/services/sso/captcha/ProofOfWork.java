@@ -0,0 +1,88 @@
+package services.sso.captcha;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Hashcash style proof of work: solution of a challenge is a decimal number such that SHA-256 of UTF-8 bytes of
+ * "challenge:solution" starts with at least given number of zero bits. Finding it takes 2^difficulty hashes on average,
+ * verifying it takes one hash. Solved by assets/js/sso/proof-of-work.js on the pages.
+ */
+public final class ProofOfWork {
+
+    /**
+     * Maximal length of solution: decimal long without sign.
+     */
+    private static final int MAX_SOLUTION_LENGTH = 19;
+
+    /**
+     * Utility class.
+     */
+    private ProofOfWork() {
+    }
+
+    /**
+     * Verifies solution of the challenge.
+     *
+     * @param challenge Challenge.
+     * @param solution Solution.
+     * @param difficulty Required number of leading zero bits.
+     * @return Whether the solution is correct.
+     */
+    public static boolean verify(String challenge, String solution, int difficulty) {
+        if (solution == null || solution.isEmpty() || solution.length() > MAX_SOLUTION_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < solution.length(); i++) {
+            if (solution.charAt(i) < '0' || solution.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return leadingZeroBits(hash(challenge, solution)) >= difficulty;
+    }
+
+    /**
+     * Returns difficulty for the number of hits: base difficulty at the captcha threshold and below, one more bit
+     * each time the hits double over the threshold, up to maximal difficulty.
+     *
+     * @param hits Number of hits.
+     * @param threshold Captcha threshold.
+     * @param baseDifficulty Base difficulty.
+     * @param maxDifficulty Maximal difficulty.
+     * @return Difficulty, number of leading zero bits.
+     */
+    public static int difficulty(long hits, long threshold, int baseDifficulty, int maxDifficulty) {
+        long ratio = hits / Math.max(threshold, 1L);
+        int extra = ratio > 1L ? 63 - Long.numberOfLeadingZeros(ratio) : 0;
+        return Math.min(baseDifficulty + extra, maxDifficulty);
+    }
+
+    /**
+     * Returns hash of the solution.
+     *
+     * @param challenge Challenge.
+     * @param solution Solution.
+     * @return SHA-256 of "challenge:solution".
+     */
+    static byte[] hash(String challenge, String solution) {
+        return Hashing.sha256().hashString(challenge + ':' + solution, StandardCharsets.UTF_8).asBytes();
+    }
+
+    /**
+     * Returns number of leading zero bits.
+     *
+     * @param hash Hash.
+     * @return Number of leading zero bits.
+     */
+    static int leadingZeroBits(byte[] hash) {
+        int bits = 0;
+        for (byte b : hash) {
+            if (b != 0) {
+                return bits + Integer.numberOfLeadingZeros(b & 0xFF) - 24;
+            }
+            bits += 8;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,278 @@
+package services.sso.captcha;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import nl.captcha.gimpy.GimpyRenderer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * FishEye without lines, with random eye position. (left, middle, right).
+ * <p>
+ * Works on the raster's backing int array when there is one (or on a bulk copy of the pixels otherwise): pixels are
+ * copied into per thread scratch buffer, then pixels within the eye are written from the displaced source pixels.
+ * Displacements are looked up in precomputed tables per image geometry, eye center and radius, so there is no
+ * per pixel square root or formula. Thread safe.
+ */
+class SimpleFishEyeGimpyRenderer implements GimpyRenderer {
+
+    /**
+     * Multiplier for algorithm.
+     */
+    private static final double[] MULTIPLIERS = new double[]{0.2, 0.4d, 0.5d, 0.6d, 0.8d};
+
+    /**
+     * Maximal total length of cached displacement tables, in ints.
+     */
+    private static final long MAX_TABLES_WEIGHT = 1L << 21;
+
+    /**
+     * Random.
+     */
+    private static final Random random = new SecureRandom();
+
+    /**
+     * Displacement tables by geometry, eye center and radius: pairs of destination and source pixel indexes.
+     */
+    private static final Cache<Geometry, int[]> tables = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_TABLES_WEIGHT)
+            .weigher((Geometry geometry, int[] table) -> table.length)
+            .build();
+
+    /**
+     * Scratch copies of pixels, per thread.
+     */
+    private static final ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[0]);
+
+    @Override
+    public void gimp(BufferedImage image) {
+        int width = image.getWidth();
+        int distance = ranInt(width / 8, width / 4);
+        int wMid = (int) (((double) width) * MULTIPLIERS[random.nextInt(MULTIPLIERS.length)]);
+        gimp(image, wMid, distance);
+    }
+
+    /**
+     * Distorts the image with fish eye of given center and radius, vertically centered.
+     *
+     * @param image Image.
+     * @param wMid Horizontal position of the eye center.
+     * @param distance Eye radius.
+     */
+    void gimp(BufferedImage image, int wMid, int distance) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        WritableRaster raster = image.getRaster();
+        if (raster.getDataBuffer() instanceof DataBufferInt
+                && raster.getDataBuffer().getNumBanks() == 1
+                && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && raster.getSampleModelTranslateX() == 0
+                && raster.getSampleModelTranslateY() == 0) {
+            DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int[] pixels = buffer.getData();
+            int offset = buffer.getOffset();
+            int length = (height - 1) * stride + width;
+            int[] source = scratch(length);
+            System.arraycopy(pixels, offset, source, 0, length);
+            displace(pixels, offset, source, table(width, height, stride, wMid, distance));
+        } else {
+            int[] source = scratch(width * height);
+            image.getRGB(0, 0, width, height, source, 0, width);
+            int[] pixels = Arrays.copyOf(source, width * height);
+            displace(pixels, 0, source, table(width, height, width, wMid, distance));
+            image.setRGB(0, 0, width, height, pixels, 0, width);
+        }
+    }
+
+    /**
+     * Writes displaced pixels.
+     *
+     * @param pixels Pixels to write to.
+     * @param offset Offset of the first pixel.
+     * @param source Copy of the original pixels, without offset.
+     * @param table Pairs of destination and source pixel indexes.
+     */
+    private static void displace(int[] pixels, int offset, int[] source, int[] table) {
+        for (int i = 0; i < table.length; i += 2) {
+            pixels[offset + table[i]] = source[table[i + 1]];
+        }
+    }
+
+    /**
+     * Returns scratch buffer of the current thread of at least given length.
+     *
+     * @param length Minimal length.
+     * @return Scratch buffer.
+     */
+    private static int[] scratch(int length) {
+        int[] buffer = scratch.get();
+        if (buffer.length < length) {
+            buffer = new int[length];
+            scratch.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns displacement table, computes it if it is not cached.
+     *
+     * @param width Image width.
+     * @param height Image height.
+     * @param stride Scanline stride.
+     * @param wMid Horizontal position of the eye center.
+     * @param distance Eye radius.
+     * @return Pairs of destination and source pixel indexes.
+     */
+    private static int[] table(int width, int height, int stride, int wMid, int distance) {
+        try {
+            return tables.get(new Geometry(width, height, stride, wMid, distance),
+                    () -> computeTable(width, height, stride, wMid, distance));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unexpected exception while computing fish eye table.", e.getCause());
+        }
+    }
+
+    /**
+     * Computes displacement table: for each pixel within the eye, index of the pixel and of its source pixel,
+     * closer to the center. Pixels that stay in place are skipped.
+     *
+     * @param width Image width.
+     * @param height Image height.
+     * @param stride Scanline stride.
+     * @param wMid Horizontal position of the eye center.
+     * @param distance Eye radius.
+     * @return Pairs of destination and source pixel indexes.
+     */
+    private static int[] computeTable(int width, int height, int stride, int wMid, int distance) {
+        int hMid = height / 2;
+        int[] table = new int[64];
+        int size = 0;
+        for (int y = Math.max(hMid - distance, 0); y < Math.min(hMid + distance + 1, height); y++) {
+            for (int x = Math.max(wMid - distance, 0); x < Math.min(wMid + distance + 1, width); x++) {
+                int relX = x - wMid;
+                int relY = y - hMid;
+                double d1 = Math.sqrt(relX * relX + relY * relY);
+                if (d1 < distance) {
+                    double scale = (fishEyeFormula(d1 / distance) * distance) / d1;
+                    int j2 = wMid + (int) (scale * relX);
+                    int k2 = hMid + (int) (scale * relY);
+                    if (j2 != x || k2 != y) {
+                        if (size == table.length) {
+                            table = Arrays.copyOf(table, size * 2);
+                        }
+                        table[size++] = y * stride + x;
+                        table[size++] = k2 * stride + j2;
+                    }
+                }
+            }
+        }
+        return Arrays.copyOf(table, size);
+    }
+
+    /**
+     * Returns random integer between i and j (including).
+     *
+     * @param i From.
+     * @param j To.
+     * @return Random integer between i and j (including).
+     */
+    private static int ranInt(int i, int j) {
+        return i + random.nextInt(j - i + 1);
+    }
+
+    /**
+     * Fish eye formula.
+     *
+     * @param s Parameter.
+     * @return Result.
+     */
+    private static double fishEyeFormula(double s) {
+        // implementation of:
+        // g(s) = - (3/4)s3 + (3/2)s2 + (1/4)s, with s from 0 to 1.
+        if (s < 0.0D) {
+            return 0.0D;
+        }
+        if (s > 1.0D) {
+            return s;
+        }
+        return -0.75D * s * s * s + 1.5D * s * s + 0.25D * s;
+    }
+
+    /**
+     * Key of displacement table: image geometry, eye center and radius.
+     */
+    private static final class Geometry {
+
+        /**
+         * Image width.
+         */
+        private final int width;
+
+        /**
+         * Image height.
+         */
+        private final int height;
+
+        /**
+         * Scanline stride.
+         */
+        private final int stride;
+
+        /**
+         * Horizontal position of the eye center.
+         */
+        private final int wMid;
+
+        /**
+         * Eye radius.
+         */
+        private final int distance;
+
+        /**
+         * Constructs key.
+         *
+         * @param width Image width.
+         * @param height Image height.
+         * @param stride Scanline stride.
+         * @param wMid Horizontal position of the eye center.
+         * @param distance Eye radius.
+         */
+        Geometry(int width, int height, int stride, int wMid, int distance) {
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.wMid = wMid;
+            this.distance = distance;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Geometry geometry = (Geometry) o;
+            return width == geometry.width && height == geometry.height && stride == geometry.stride
+                    && wMid == geometry.wMid && distance == geometry.distance;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = width;
+            hash = 31 * hash + height;
+            hash = 31 * hash + stride;
+            hash = 31 * hash + wMid;
+            return 31 * hash + distance;
+        }
+    }
+}
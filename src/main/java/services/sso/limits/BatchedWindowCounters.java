@@ -0,0 +1,318 @@
+package services.sso.limits;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Two tier sliding window counters for multi-node deployments. Hits are counted by local counters of the node right
+ * away and accumulated as deltas, which are flushed to {@link SharedCounterStore} in batches: one addition per key
+ * and one multi-get per flush, instead of round trips per hit. Flush reads back totals of all nodes for the keys seen
+ * by this node, so counts are merged across nodes with staleness bounded by flush interval.
+ * <p>
+ * Count of a key is the larger of the local count and the shared total of the last flush plus deltas not flushed yet.
+ * Shared counters are kept per fixed window, so the sliding window approximation applies to totals too. When the store
+ * fails, counts fall back to local ones. Memory is bounded by maximal number of pending keys: hits of new keys over it
+ * are counted locally only until the next flush. Totals are kept for maximal number of keys with the largest counts,
+ * which also bounds the multi-get of a flush; keys with smaller counts fall back to local counts until their next hit
+ * is flushed. A hit racing with the flush may miss the shared store, it is still counted locally. Thread safe.
+ */
+public final class BatchedWindowCounters implements WindowCounters {
+
+    /**
+     * Local counters.
+     */
+    private final WindowCounters local;
+
+    /**
+     * Shared store.
+     */
+    private final SharedCounterStore store;
+
+    /**
+     * Scope, prefix of shared keys.
+     */
+    private final String scope;
+
+    /**
+     * Window size, in milliseconds.
+     */
+    private final long windowMillis;
+
+    /**
+     * Time to live of shared counters: two windows, in seconds.
+     */
+    private final int timeToLiveSeconds;
+
+    /**
+     * Millisecond clock.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Maximal number of keys with pending deltas.
+     */
+    private final int maxPendingKeys;
+
+    /**
+     * Maximal number of keys with shared totals.
+     */
+    private final int maxTotalKeys;
+
+    /**
+     * Deltas not flushed yet, by key and window.
+     */
+    private final Map<Key, LongAdder> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Shared totals of the last flush, as packed window states, by key (window is ignored).
+     */
+    private final Map<Key, Long> totals = new ConcurrentHashMap<>();
+
+    /**
+     * Flush lock.
+     */
+    private final ReentrantLock flushLock = new ReentrantLock();
+
+    /**
+     * Constructs counters.
+     *
+     * @param local Local counters.
+     * @param store Shared store.
+     * @param scope Scope, prefix of shared keys.
+     * @param windowMillis Window size, in milliseconds, the same as of local counters.
+     * @param clock Millisecond clock, like {@link System#currentTimeMillis()}.
+     * @param maxPendingKeys Maximal number of keys with pending deltas.
+     * @param maxTotalKeys Maximal number of keys with shared totals.
+     */
+    public BatchedWindowCounters(
+            WindowCounters local,
+            SharedCounterStore store,
+            String scope,
+            long windowMillis,
+            LongSupplier clock,
+            int maxPendingKeys,
+            int maxTotalKeys) {
+        this.local = local;
+        this.store = store;
+        this.scope = scope;
+        this.windowMillis = windowMillis;
+        this.timeToLiveSeconds = (int) Math.min(2L * windowMillis / 1000L + 1L, Integer.MAX_VALUE);
+        this.clock = clock;
+        this.maxPendingKeys = maxPendingKeys;
+        this.maxTotalKeys = maxTotalKeys;
+    }
+
+    @Override
+    public long add(long high, long low, int hits) {
+        long localCount = local.add(high, low, hits);
+        long window = clock.getAsLong() / windowMillis;
+        Key key = new Key(high, low, window);
+        LongAdder delta = pending.get(key);
+        if (delta == null && pending.size() < maxPendingKeys) {
+            delta = pending.computeIfAbsent(key, k -> new LongAdder());
+        }
+        if (delta != null) {
+            delta.add(hits);
+        }
+        return Math.max(localCount, getMerged(high, low));
+    }
+
+    @Override
+    public long get(long high, long low) {
+        return Math.max(local.get(high, low), getMerged(high, low));
+    }
+
+    /**
+     * Flushes pending deltas to the shared store and reads back totals. Skipped if another flush is running.
+     * When the store fails, flushed deltas are lost for other nodes, they stay in local counts.
+     */
+    public void flush() {
+        if (flushLock.tryLock()) {
+            try {
+                flushPending();
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Returns number of keys with pending deltas.
+     *
+     * @return Number of keys with pending deltas.
+     */
+    public int getPendingKeys() {
+        return pending.size();
+    }
+
+    /**
+     * Returns number of keys with shared totals.
+     *
+     * @return Number of keys with shared totals.
+     */
+    public int getTotalKeys() {
+        return totals.size();
+    }
+
+    /**
+     * Flushes pending deltas and reads back totals, must be called under flush lock.
+     */
+    private void flushPending() {
+        long now = clock.getAsLong();
+        long window = now / windowMillis;
+        Map<Key, Long> flushed = new HashMap<>();
+        for (Iterator<Map.Entry<Key, LongAdder>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, LongAdder> entry = it.next();
+            it.remove();
+            Key key = entry.getKey();
+            long delta = entry.getValue().sum();
+            if (delta > 0L && key.window >= window - 1) {
+                flushed.put(key, store.add(toStoreKey(key.high, key.low, key.window), delta, timeToLiveSeconds));
+            }
+        }
+        Set<String> storeKeys = new HashSet<>();
+        for (Key key : totals.keySet()) {
+            storeKeys.add(toStoreKey(key.high, key.low, window));
+            storeKeys.add(toStoreKey(key.high, key.low, window - 1));
+        }
+        for (Key key : flushed.keySet()) {
+            storeKeys.add(toStoreKey(key.high, key.low, window));
+            storeKeys.add(toStoreKey(key.high, key.low, window - 1));
+        }
+        Map<String, Long> values = store.get(storeKeys);
+        for (Key key : flushed.keySet()) {
+            totals.putIfAbsent(key.withoutWindow(), 0L);
+        }
+        for (Iterator<Map.Entry<Key, Long>> it = totals.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Key, Long> entry = it.next();
+            Key key = entry.getKey();
+            long current = Math.max(values.getOrDefault(toStoreKey(key.high, key.low, window), 0L),
+                    flushed.getOrDefault(new Key(key.high, key.low, window), 0L));
+            long previous = Math.max(values.getOrDefault(toStoreKey(key.high, key.low, window - 1), 0L),
+                    flushed.getOrDefault(new Key(key.high, key.low, window - 1), 0L));
+            if (current == 0L && previous == 0L) {
+                it.remove();
+            } else {
+                entry.setValue(WindowState.pack((int) window, Math.min(current, WindowState.MAX_COUNT),
+                        Math.min(previous, WindowState.MAX_COUNT)));
+            }
+        }
+        if (totals.size() > maxTotalKeys) {
+            removeSmallestTotals(now);
+        }
+    }
+
+    /**
+     * Removes totals with the smallest counts over maximal number of keys, must be called under flush lock.
+     *
+     * @param now Current time, in milliseconds.
+     */
+    private void removeSmallestTotals(long now) {
+        List<Map.Entry<Key, Long>> entries = new ArrayList<>(totals.entrySet());
+        entries.sort((a, b) -> Long.compare(
+                WindowState.estimate(a.getValue(), now, windowMillis),
+                WindowState.estimate(b.getValue(), now, windowMillis)));
+        for (int i = 0; i < entries.size() - maxTotalKeys; i++) {
+            totals.remove(entries.get(i).getKey());
+        }
+    }
+
+    /**
+     * Returns shared total of the last flush plus pending deltas for the key.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @return Merged count.
+     */
+    private long getMerged(long high, long low) {
+        long now = clock.getAsLong();
+        long window = now / windowMillis;
+        Long state = totals.get(new Key(high, low, 0L));
+        long shared = state == null ? 0L : WindowState.estimate(state, now, windowMillis);
+        LongAdder delta = pending.get(new Key(high, low, window));
+        return shared + (delta == null ? 0L : delta.sum());
+    }
+
+    /**
+     * Returns key of the shared counter.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @param window Window index.
+     * @return Key of the shared counter.
+     */
+    private String toStoreKey(long high, long low, long window) {
+        return scope + ':' + window + ':' + Long.toHexString(high) + ':' + Long.toHexString(low);
+    }
+
+    /**
+     * Counter key with window index.
+     */
+    private static final class Key {
+
+        /**
+         * High 64 bits of the key.
+         */
+        final long high;
+
+        /**
+         * Low 64 bits of the key.
+         */
+        final long low;
+
+        /**
+         * Window index, 0 for keys of totals.
+         */
+        final long window;
+
+        /**
+         * Constructs key.
+         *
+         * @param high High 64 bits of the key.
+         * @param low Low 64 bits of the key.
+         * @param window Window index.
+         */
+        Key(long high, long low, long window) {
+            this.high = high;
+            this.low = low;
+            this.window = window;
+        }
+
+        /**
+         * Returns the key without window index.
+         *
+         * @return Key without window index.
+         */
+        Key withoutWindow() {
+            return window == 0L ? this : new Key(high, low, 0L);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return high == key.high && low == key.low && window == key.window;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Long.hashCode(high);
+            hash = 31 * hash + Long.hashCode(low);
+            return 31 * hash + Long.hashCode(window);
+        }
+    }
+}
@@ -0,0 +1,335 @@
+package services.sso.limits;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free count-min sketch of sliding window counters, with heavy hitters tracker. Memory is fixed by width and
+ * depth, whatever the number of distinct keys: each key is counted in one cell per row and its count is the minimum
+ * over its cells. Unlike a table of counters, a flood of distinct keys never evicts counts, it may only overestimate
+ * them. Cells are updated conservatively: only cells below the new estimate grow, which keeps overestimation low.
+ * Each cell is a sliding window counter ({@link WindowState}), so counts decay without expiration.
+ * <p>
+ * Heavy hitters tracker keeps up to given number of keys with the largest counts, among keys that reach the tracking
+ * threshold. Only hits above the smallest tracked count take the tracker's lock, so ordinary traffic stays lock-free.
+ * Thread safe.
+ */
+public final class CountMinSketch implements WindowCounters {
+
+    /**
+     * Cells, row by row, of packed window states.
+     */
+    private final AtomicLongArray cells;
+
+    /**
+     * Row width, power of two.
+     */
+    private final int width;
+
+    /**
+     * Number of rows.
+     */
+    private final int depth;
+
+    /**
+     * Window size, in milliseconds.
+     */
+    private final long windowMillis;
+
+    /**
+     * Millisecond clock.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Maximal number of heavy hitters.
+     */
+    private final int maxHitters;
+
+    /**
+     * Minimal count of a heavy hitter.
+     */
+    private final long hitterThreshold;
+
+    /**
+     * High 64 bits of heavy hitter keys, guarded by itself.
+     */
+    private final long[] hitterHighs;
+
+    /**
+     * Low 64 bits of heavy hitter keys, guarded by {@link #hitterHighs}.
+     */
+    private final long[] hitterLows;
+
+    /**
+     * Number of heavy hitters, guarded by {@link #hitterHighs}.
+     */
+    private int hitterCount;
+
+    /**
+     * Count a hit must exceed to be offered to the tracker within {@link #floorWindow}.
+     */
+    private volatile long floor;
+
+    /**
+     * Window index the floor was computed in.
+     */
+    private volatile long floorWindow = -1L;
+
+    /**
+     * Constructs count-min sketch.
+     *
+     * @param width Row width, rounded up to power of two.
+     * @param depth Number of rows.
+     * @param windowMillis Window size, in milliseconds.
+     * @param clock Millisecond clock, like {@link System#currentTimeMillis()}.
+     * @param maxHitters Maximal number of heavy hitters to track, 0 disables tracking.
+     * @param hitterThreshold Minimal count of a heavy hitter.
+     */
+    public CountMinSketch(
+            int width,
+            int depth,
+            long windowMillis,
+            LongSupplier clock,
+            int maxHitters,
+            long hitterThreshold) {
+        if (width <= 0 || width > 1 << 30 || depth <= 0 || (long) width * depth > 1 << 30) {
+            throw new IllegalArgumentException("Invalid width or depth: " + width + ", " + depth);
+        }
+        if (windowMillis <= 0L) {
+            throw new IllegalArgumentException("Expects positive window: " + windowMillis);
+        }
+        if (maxHitters < 0) {
+            throw new IllegalArgumentException("Expects non negative number of heavy hitters: " + maxHitters);
+        }
+        this.width = width == 1 ? 1 : Integer.highestOneBit(width - 1) << 1;
+        this.depth = depth;
+        this.cells = new AtomicLongArray(this.width * depth);
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        this.maxHitters = maxHitters;
+        this.hitterThreshold = Math.max(hitterThreshold, 1L);
+        this.hitterHighs = new long[maxHitters];
+        this.hitterLows = new long[maxHitters];
+    }
+
+    @Override
+    public long add(long high, long low, int hits) {
+        if (hits <= 0) {
+            throw new IllegalArgumentException("Expects positive number of hits: " + hits);
+        }
+        long now = clock.getAsLong();
+        long window = now / windowMillis;
+        long hash1 = mix(high * 0x9E3779B97F4A7C15L ^ low);
+        long hash2 = mix(hash1 ^ high) | 1L;
+        long target = WindowState.MAX_COUNT;
+        for (int row = 0; row < depth; row++) {
+            long current = WindowState.current(WindowState.roll(cells.get(index(row, hash1, hash2)), window));
+            target = Math.min(target, current + hits);
+        }
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            int index = index(row, hash1, hash2);
+            long state;
+            long newState;
+            do {
+                state = cells.get(index);
+                long rolled = WindowState.roll(state, window);
+                newState = WindowState.withCurrent(rolled, Math.max(WindowState.current(rolled), target));
+            } while (state != newState && !cells.compareAndSet(index, state, newState));
+            estimate = Math.min(estimate, WindowState.estimate(newState, now, windowMillis));
+        }
+        if (maxHitters > 0 && estimate >= hitterThreshold && (estimate > floor || window != floorWindow)) {
+            offer(high, low, estimate, window);
+        }
+        return estimate;
+    }
+
+    @Override
+    public long get(long high, long low) {
+        return get(high, low, clock.getAsLong());
+    }
+
+    /**
+     * Returns heavy hitters with their current counts, from the largest count.
+     *
+     * @return Heavy hitters.
+     */
+    public List<HeavyHitter> getHeavyHitters() {
+        List<HeavyHitter> hitters = new ArrayList<>();
+        synchronized (hitterHighs) {
+            long now = clock.getAsLong();
+            for (int i = 0; i < hitterCount; i++) {
+                long count = get(hitterHighs[i], hitterLows[i], now);
+                if (count > 0L) {
+                    hitters.add(new HeavyHitter(hitterHighs[i], hitterLows[i], count));
+                }
+            }
+        }
+        hitters.sort(Comparator.comparingLong(HeavyHitter::getCount).reversed());
+        return Collections.unmodifiableList(hitters);
+    }
+
+    /**
+     * Returns row width.
+     *
+     * @return Row width.
+     */
+    public int width() {
+        return width;
+    }
+
+    /**
+     * Returns number of hits for the key within the sliding window that ends at given time.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @param now Current time, in milliseconds.
+     * @return Number of hits within the sliding window.
+     */
+    private long get(long high, long low, long now) {
+        long hash1 = mix(high * 0x9E3779B97F4A7C15L ^ low);
+        long hash2 = mix(hash1 ^ high) | 1L;
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) {
+            estimate = Math.min(estimate, WindowState.estimate(cells.get(index(row, hash1, hash2)), now, windowMillis));
+        }
+        return estimate;
+    }
+
+    /**
+     * Offers the key to heavy hitters: keeps tracked key, adds the key while there is room or replaces the hitter
+     * with the smallest count if the key's count is larger. Tracked counts are refreshed, so hitters that calmed down
+     * are replaced first.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @param estimate Count of the key.
+     * @param window Current window index.
+     */
+    private void offer(long high, long low, long estimate, long window) {
+        synchronized (hitterHighs) {
+            long now = clock.getAsLong();
+            int found = -1;
+            int smallest = -1;
+            long smallestCount = Long.MAX_VALUE;
+            for (int i = 0; i < hitterCount; i++) {
+                if (hitterHighs[i] == high && hitterLows[i] == low) {
+                    found = i;
+                    continue;
+                }
+                long count = get(hitterHighs[i], hitterLows[i], now);
+                if (count < smallestCount) {
+                    smallest = i;
+                    smallestCount = count;
+                }
+            }
+            if (found < 0) {
+                if (hitterCount < maxHitters) {
+                    found = hitterCount++;
+                } else if (estimate > smallestCount) {
+                    found = smallest;
+                }
+                if (found >= 0) {
+                    hitterHighs[found] = high;
+                    hitterLows[found] = low;
+                }
+            }
+            long floorCount = Long.MAX_VALUE;
+            for (int i = 0; i < hitterCount; i++) {
+                floorCount = Math.min(floorCount, i == found ? estimate : get(hitterHighs[i], hitterLows[i], now));
+            }
+            floor = hitterCount < maxHitters ? 0L : floorCount;
+            floorWindow = window;
+        }
+    }
+
+    /**
+     * Returns cell index of the key in the row, double hashing.
+     *
+     * @param row Row.
+     * @param hash1 First hash of the key.
+     * @param hash2 Second hash of the key, odd.
+     * @return Cell index.
+     */
+    private int index(int row, long hash1, long hash2) {
+        return row * width + ((int) ((hash1 + row * hash2) >>> 32) & (width - 1));
+    }
+
+    /**
+     * Mixes bits of the value, finalizer of MurmurHash3.
+     *
+     * @param value Value.
+     * @return Mixed value.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return value ^ (value >>> 33);
+    }
+
+    /**
+     * Heavy hitter: key and its count.
+     */
+    public static final class HeavyHitter {
+
+        /**
+         * High 64 bits of the key.
+         */
+        private final long high;
+
+        /**
+         * Low 64 bits of the key.
+         */
+        private final long low;
+
+        /**
+         * Number of hits within the sliding window.
+         */
+        private final long count;
+
+        /**
+         * Constructs heavy hitter.
+         *
+         * @param high High 64 bits of the key.
+         * @param low Low 64 bits of the key.
+         * @param count Number of hits within the sliding window.
+         */
+        HeavyHitter(long high, long low, long count) {
+            this.high = high;
+            this.low = low;
+            this.count = count;
+        }
+
+        /**
+         * Returns high 64 bits of the key.
+         *
+         * @return High 64 bits of the key.
+         */
+        public long getHigh() {
+            return high;
+        }
+
+        /**
+         * Returns low 64 bits of the key.
+         *
+         * @return Low 64 bits of the key.
+         */
+        public long getLow() {
+            return low;
+        }
+
+        /**
+         * Returns number of hits within the sliding window.
+         *
+         * @return Number of hits within the sliding window.
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+}
@@ -1,21 +1,35 @@
 package services.sso.limits;
 
-import ninja.cache.NinjaCache;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import ninja.utils.NinjaProperties;
+
+import javax.inject.Provider;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
- * Scoped counter service based on Ninja cache.
+ * Scoped counter service based on in-process {@link WindowCounters}, {@link SlidingWindowCounters} by default: counts
+ * hits per key within the sliding window of configured time to live. Each counter is updated with compare-and-set,
+ * without cache round trips, and memory is bounded by configured capacity. String keys are hashed to 128 bits.
+ * In multi-node deployments counters may be shared between nodes with {@link BatchedWindowCounters}.
  */
 public class CounterService {
 
+    /**
+     * Hash function for string keys.
+     */
+    private static final HashFunction KEY_HASH = Hashing.murmur3_128();
+
     /**
      * Scope.
      */
     protected final String scope;
 
     /**
-     * Cache to store recent IPs and hits.
+     * Counters.
      */
-    protected final NinjaCache cache;
+    protected final WindowCounters counters;
 
     /**
      * Upper limit for the counter.
@@ -23,30 +37,47 @@ public class CounterService {
     protected final long upperLimit;
 
     /**
-     * Interval in seconds after which counter entry is evicted from cache if not updated.
+     * Sliding window in seconds within which hits are counted.
      */
     protected final long entryTimeToLiveSeconds;
 
     /**
-     * Previous value, as string.
+     * Constructs counter service for given scope and time to live.
+     *
+     * @param scope Scope.
+     * @param entryTimeToLiveSeconds Time to live (sliding window), in seconds.
+     * @param upperLimit Upper limit for the counter.
+     * @param capacity Maximal number of counters.
      */
-    protected final String entryTimeToLiveSecondsAsString;
+    public CounterService(String scope, long entryTimeToLiveSeconds, int upperLimit, int capacity) {
+        this(scope, entryTimeToLiveSeconds, upperLimit,
+                new SlidingWindowCounters(capacity, entryTimeToLiveSeconds * 1000L, System::currentTimeMillis));
+    }
 
     /**
-     * Constructs counter service for given scope and time to live.
+     * Constructs counter service for given scope with given counters.
      *
      * @param scope Scope.
-     * @param entryTimeToLiveSeconds Time to live, in seconds.
-     * @param cache Cache.
+     * @param entryTimeToLiveSeconds Time to live (sliding window) of the counters, in seconds.
+     * @param upperLimit Upper limit for the counter.
+     * @param counters Counters.
      */
-    public CounterService(String scope, long entryTimeToLiveSeconds, int upperLimit, NinjaCache cache) {
-        this.scope = scope + "_";
-        this.cache = cache;
+    protected CounterService(String scope, long entryTimeToLiveSeconds, int upperLimit, WindowCounters counters) {
+        this.scope = scope;
+        this.counters = counters;
         this.entryTimeToLiveSeconds = entryTimeToLiveSeconds;
-        this.entryTimeToLiveSecondsAsString = entryTimeToLiveSeconds + "s";
         this.upperLimit = upperLimit;
     }
 
+    /**
+     * Flushes counters shared between nodes, if they are. Called periodically by {@link SharedCountersFlusher}.
+     */
+    public final void flushSharedCounters() {
+        if (counters instanceof BatchedWindowCounters) {
+            ((BatchedWindowCounters) counters).flush();
+        }
+    }
+
     /**
      * Increments a counter for given key.
      *
@@ -54,13 +85,8 @@ public class CounterService {
      * @return Counter value for the given key.
      */
     public final long increment(String key) {
-        String prefixedKey = getKey(key);
-        Long oldValue = cache.get(prefixedKey, Long.class);
-        if (oldValue == null) {
-            cache.add(prefixedKey, 1L, this.entryTimeToLiveSecondsAsString);
-            return 1L;
-        }
-        return cache.incr(prefixedKey);
+        long[] counterKey = toCounterKey(key);
+        return counters.increment(counterKey[0], counterKey[1]);
     }
 
     /**
@@ -90,17 +116,86 @@ public class CounterService {
      * @return Counter value for key.
      */
     public final long getCounter(String key) {
-        Long oldValue = cache.get(getKey(key), Long.class);
-        return oldValue != null ? oldValue : 0L;
+        long[] counterKey = toCounterKey(key);
+        return counters.get(counterKey[0], counterKey[1]);
+    }
+
+    /**
+     * Adds given number of hits to a counter for given 128 bit counter key.
+     *
+     * @param counterKey Counter key, high and low 64 bits.
+     * @param hits Number of hits, positive.
+     * @return Counter value for the given key.
+     */
+    final long add(long[] counterKey, int hits) {
+        return counters.add(counterKey[0], counterKey[1], hits);
+    }
+
+    /**
+     * Returns upper limit for the counter.
+     *
+     * @return Upper limit for the counter.
+     */
+    public final long getUpperLimit() {
+        return upperLimit;
+    }
+
+    /**
+     * Converts key to 128 bit counter key: high and low 64 bits. Hashes the key by default.
+     *
+     * @param key Key.
+     * @return Counter key, high and low 64 bits.
+     */
+    protected long[] toCounterKey(String key) {
+        return hashKey(key);
+    }
+
+    /**
+     * Returns store of counters shared between nodes if "counters.shared.enabled" property is true (default).
+     *
+     * @param properties Properties.
+     * @param sharedCounterStore Shared counter store provider.
+     * @return Shared counter store or null if counters are not shared.
+     */
+    protected static SharedCounterStore getSharedCounterStore(
+            NinjaProperties properties,
+            Provider<SharedCounterStore> sharedCounterStore) {
+        return properties.getBooleanWithDefault("counters.shared.enabled", true) ? sharedCounterStore.get() : null;
+    }
+
+    /**
+     * Returns local counters shared between nodes through given store, with deltas batched locally.
+     *
+     * @param scope Scope.
+     * @param local Local counters.
+     * @param entryTimeToLiveSeconds Time to live (sliding window) of the counters, in seconds.
+     * @param sharedCounterStore Shared counter store or null if counters are not shared.
+     * @param properties Properties with "counters.shared.maxPendingKeys" and "counters.shared.maxTotalKeys".
+     * @return Shared counters, or local counters if there is no store.
+     */
+    protected static WindowCounters share(
+            String scope,
+            WindowCounters local,
+            long entryTimeToLiveSeconds,
+            SharedCounterStore sharedCounterStore,
+            NinjaProperties properties) {
+        if (sharedCounterStore == null) {
+            return local;
+        }
+        return new BatchedWindowCounters(local, sharedCounterStore, "counters:" + scope,
+                entryTimeToLiveSeconds * 1000L, System::currentTimeMillis,
+                properties.getIntegerWithDefault("counters.shared.maxPendingKeys", 10_000),
+                properties.getIntegerWithDefault("counters.shared.maxTotalKeys", 10_000));
     }
 
     /**
-     * Builds a key for the counter by prefixing it with the scope.
+     * Hashes key to 128 bit counter key.
      *
      * @param key Key.
-     * @return Key with prefixed scope.
+     * @return Counter key, high and low 64 bits.
      */
-    public final String getKey(String key) {
-        return this.scope + key;
+    static long[] hashKey(String key) {
+        ByteBuffer hash = ByteBuffer.wrap(KEY_HASH.hashString(key, StandardCharsets.UTF_8).asBytes());
+        return new long[]{hash.getLong(), hash.getLong()};
     }
 }
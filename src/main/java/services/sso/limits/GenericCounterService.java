@@ -1,13 +1,17 @@
 package services.sso.limits;
 
-import ninja.cache.NinjaCache;
 import ninja.utils.NinjaProperties;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.inject.Singleton;
 
 /**
  * Counter service that counts entry usage (number of tries, etc).
+ * <p>
+ * Expects "counters.generic.entryTimeToLiveSeconds", "counters.generic.numberOfSafeRequests" and
+ * "counters.generic.capacity" to be defined in project properties. Counters are shared between nodes if
+ * "counters.shared.enabled" is true.
  */
 @Singleton
 public class GenericCounterService extends CounterService {
@@ -15,14 +19,35 @@ public class GenericCounterService extends CounterService {
     /**
      * Constructs service instance.
      *
-     * @param cache Cache.
      * @param properties Project properties.
+     * @param sharedCounterStore Shared counter store provider.
      */
     @Inject
-    public GenericCounterService(NinjaCache cache, NinjaProperties properties) {
-        super("generic",
-                properties.getIntegerWithDefault("counters.generic.entryTimeToLiveSeconds", 3600),
+    public GenericCounterService(NinjaProperties properties, Provider<SharedCounterStore> sharedCounterStore) {
+        this(properties.getIntegerWithDefault("counters.generic.entryTimeToLiveSeconds", 3600),
                 properties.getIntegerWithDefault("counters.generic.numberOfSafeRequests", 5),
-                cache);
+                properties.getIntegerWithDefault("counters.generic.capacity", 16384),
+                getSharedCounterStore(properties, sharedCounterStore),
+                properties);
+    }
+
+    /**
+     * Constructs service instance.
+     *
+     * @param entryTimeToLiveSeconds Time to live (sliding window), in seconds.
+     * @param upperLimit Upper limit for the counter.
+     * @param capacity Maximal number of counters.
+     * @param sharedCounterStore Shared counter store or null if counters are not shared.
+     * @param properties Project properties.
+     */
+    private GenericCounterService(
+            int entryTimeToLiveSeconds,
+            int upperLimit,
+            int capacity,
+            SharedCounterStore sharedCounterStore,
+            NinjaProperties properties) {
+        super("generic", entryTimeToLiveSeconds, upperLimit, share("generic",
+                new SlidingWindowCounters(capacity, entryTimeToLiveSeconds * 1000L, System::currentTimeMillis),
+                entryTimeToLiveSeconds, sharedCounterStore, properties));
     }
 }
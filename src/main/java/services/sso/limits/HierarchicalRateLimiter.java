@@ -0,0 +1,339 @@
+package services.sso.limits;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import ninja.metrics.MetricsService;
+import ninja.utils.NinjaProperties;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Hierarchical rate limiter. Counts a request at every level in one pass: exact IP (counters of
+ * {@link IPCounterService}), IP subnet (IPv4 and IPv6 prefixes), target account (email or username) and global budget
+ * of this node. Each level has its own window, captcha threshold and reject threshold; the strongest action wins.
+ * Thresholds of 0 are disabled. Account level never rejects, only requires captcha: its key is not authenticated, so
+ * rejection would let anyone lock the owner out of the account. Requests are counted by their cost, so thresholds
+ * budget server work rather than raw hits. Reports number of captcha and rejected requests per level, and global
+ * count, as metrics.
+ * <p>
+ * Expects "counters.ip.rejectRequests", "counters.subnet.*", "counters.account.*" and "counters.global.*"
+ * (entryTimeToLiveSeconds, numberOfSafeRequests, rejectRequests, capacity) to be defined in project properties.
+ * Counts of IP, subnet and account levels saturate at 65535 per window, their thresholds must be lower. Global count is
+ * striped, as every request updates it.
+ */
+@Singleton
+public class HierarchicalRateLimiter {
+
+    /**
+     * Exact IP counters.
+     */
+    private final CounterService ipCounter;
+
+    /**
+     * Exact IP level.
+     */
+    private final Level ip;
+
+    /**
+     * Subnet level.
+     */
+    private final Level subnet;
+
+    /**
+     * Account level.
+     */
+    private final Level account;
+
+    /**
+     * Global level.
+     */
+    private final Level global;
+
+    /**
+     * Global counter, striped since every request hits it.
+     */
+    private final StripedWindowCounter globalCounter;
+
+    /**
+     * Mask of IPv4 subnet, applied to the low 64 bits of IPv4 mapped address.
+     */
+    private final long ipv4Mask;
+
+    /**
+     * Mask of IPv6 subnet, high 64 bits.
+     */
+    private final long ipv6HighMask;
+
+    /**
+     * Mask of IPv6 subnet, low 64 bits.
+     */
+    private final long ipv6LowMask;
+
+    /**
+     * Constructs rate limiter.
+     *
+     * @param ipCounter Exact IP counters, its upper limit is the captcha threshold.
+     * @param ipRejectThreshold Exact IP reject threshold.
+     * @param ipv4Prefix IPv4 subnet prefix length, from 0 to 32.
+     * @param ipv6Prefix IPv6 subnet prefix length, from 0 to 128.
+     * @param subnetLimit Subnet limit.
+     * @param accountLimit Account limit, its reject threshold is ignored.
+     * @param globalLimit Global limit.
+     * @param registry Metric registry.
+     */
+    public HierarchicalRateLimiter(
+            CounterService ipCounter,
+            long ipRejectThreshold,
+            int ipv4Prefix,
+            int ipv6Prefix,
+            Limit subnetLimit,
+            Limit accountLimit,
+            Limit globalLimit,
+            MetricRegistry registry) {
+        if (ipv4Prefix < 0 || ipv4Prefix > 32 || ipv6Prefix < 0 || ipv6Prefix > 128) {
+            throw new IllegalArgumentException("Invalid subnet prefix: " + ipv4Prefix + ", " + ipv6Prefix);
+        }
+        this.ipCounter = ipCounter;
+        this.ip = new Level("ip", null, ipCounter.getUpperLimit(), ipRejectThreshold, registry);
+        this.subnet = new Level("subnet", subnetLimit, registry);
+        this.account = new Level("account",
+                new SlidingWindowCounters(accountLimit.capacity, accountLimit.windowSeconds * 1000L,
+                        System::currentTimeMillis),
+                accountLimit.captchaThreshold, 0L, registry);
+        this.global = new Level("global", null, globalLimit.captchaThreshold, globalLimit.rejectThreshold, registry);
+        this.globalCounter = new StripedWindowCounter(globalLimit.windowSeconds * 1000L, System::currentTimeMillis);
+        this.ipv4Mask = ~0L << (32 - ipv4Prefix);
+        this.ipv6HighMask = ipv6Prefix == 0 ? 0L : ~0L << (64 - Math.min(ipv6Prefix, 64));
+        this.ipv6LowMask = ipv6Prefix <= 64 ? 0L : ~0L << (128 - ipv6Prefix);
+        registry.register(MetricRegistry.name(HierarchicalRateLimiter.class, "global", "count"),
+                (Gauge<Long>) globalCounter::get);
+    }
+
+    /**
+     * Constructs rate limiter from properties and registers its metrics.
+     *
+     * @param ipCounterService IP counter service.
+     * @param metricsService Metrics service.
+     * @param properties Properties.
+     */
+    @Inject
+    public HierarchicalRateLimiter(
+            IPCounterService ipCounterService,
+            MetricsService metricsService,
+            NinjaProperties properties) {
+        this(ipCounterService,
+                properties.getIntegerWithDefault("counters.ip.rejectRequests", 600),
+                properties.getIntegerWithDefault("counters.subnet.ipv4Prefix", 24),
+                properties.getIntegerWithDefault("counters.subnet.ipv6Prefix", 64),
+                Limit.fromProperties(properties, "counters.subnet", 30, 120, 3000, 65536),
+                Limit.fromProperties(properties, "counters.account", 300, 50, 0, 65536),
+                Limit.fromProperties(properties, "counters.global", 1, 5000, 20000, 16),
+                metricsService.getMetricRegistry());
+    }
+
+    /**
+     * Counts the request of cost 1 at every level and returns the strongest action.
+     *
+     * @param remoteIp Remote IP.
+     * @param targetAccount Email or username the request targets, or null.
+     * @return Action for the request.
+     */
+    public RateLimitAction hit(String remoteIp, String targetAccount) {
+        return hit(remoteIp, targetAccount, 1);
+    }
+
+    /**
+     * Counts the request at every level, as given number of hits, and returns the strongest action.
+     *
+     * @param remoteIp Remote IP.
+     * @param targetAccount Email or username the request targets, or null.
+     * @param cost Cost of the request, number of hits, positive.
+     * @return Action for the request.
+     */
+    public RateLimitAction hit(String remoteIp, String targetAccount, int cost) {
+        long[] ipKey = IPCounterService.toIpKey(remoteIp);
+        RateLimitAction action = ip.evaluate(
+                ipCounter.add(ipKey != null ? ipKey : CounterService.hashKey(String.valueOf(remoteIp)), cost));
+        if (ipKey != null) {
+            long[] subnetKey = toSubnetKey(ipKey);
+            action = strongest(action, subnet.evaluate(subnet.counters.add(subnetKey[0], subnetKey[1], cost)));
+        }
+        if (targetAccount != null && !targetAccount.trim().isEmpty()) {
+            long[] accountKey = CounterService.hashKey(targetAccount.trim().toLowerCase());
+            action = strongest(action, account.evaluate(account.counters.add(accountKey[0], accountKey[1], cost)));
+        }
+        return strongest(action, global.evaluate(globalCounter.add(cost)));
+    }
+
+    /**
+     * Returns subnet key for IP address bits.
+     *
+     * @param ipKey IP address bits.
+     * @return Subnet key.
+     */
+    private long[] toSubnetKey(long[] ipKey) {
+        if (IPCounterService.isIpv4(ipKey)) {
+            return new long[]{ipKey[0], ipKey[1] & (ipv4Mask | ~0xFFFFFFFFL)};
+        }
+        return new long[]{ipKey[0] & ipv6HighMask, ipKey[1] & ipv6LowMask};
+    }
+
+    /**
+     * Returns the strongest of two actions.
+     *
+     * @param first First action.
+     * @param second Second action.
+     * @return The strongest action.
+     */
+    private static RateLimitAction strongest(RateLimitAction first, RateLimitAction second) {
+        return first.compareTo(second) >= 0 ? first : second;
+    }
+
+    /**
+     * Limit of a level: window, thresholds and capacity.
+     */
+    public static final class Limit {
+
+        /**
+         * Window, in seconds.
+         */
+        final long windowSeconds;
+
+        /**
+         * Count at which captcha is required, 0 if disabled.
+         */
+        final long captchaThreshold;
+
+        /**
+         * Count at which requests are rejected, 0 if disabled.
+         */
+        final long rejectThreshold;
+
+        /**
+         * Maximal number of counters, not used by the global level.
+         */
+        final int capacity;
+
+        /**
+         * Constructs limit.
+         *
+         * @param windowSeconds Window, in seconds.
+         * @param captchaThreshold Count at which captcha is required, 0 if disabled.
+         * @param rejectThreshold Count at which requests are rejected, 0 if disabled.
+         * @param capacity Maximal number of counters.
+         */
+        public Limit(long windowSeconds, long captchaThreshold, long rejectThreshold, int capacity) {
+            this.windowSeconds = windowSeconds;
+            this.captchaThreshold = captchaThreshold;
+            this.rejectThreshold = rejectThreshold;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Reads limit from properties with given prefix.
+         *
+         * @param properties Properties.
+         * @param prefix Property prefix.
+         * @param windowSeconds Default window, in seconds.
+         * @param captchaThreshold Default captcha threshold.
+         * @param rejectThreshold Default reject threshold.
+         * @param capacity Default capacity.
+         * @return Limit.
+         */
+        static Limit fromProperties(
+                NinjaProperties properties,
+                String prefix,
+                int windowSeconds,
+                int captchaThreshold,
+                int rejectThreshold,
+                int capacity) {
+            return new Limit(
+                    properties.getIntegerWithDefault(prefix + ".entryTimeToLiveSeconds", windowSeconds),
+                    properties.getIntegerWithDefault(prefix + ".numberOfSafeRequests", captchaThreshold),
+                    properties.getIntegerWithDefault(prefix + ".rejectRequests", rejectThreshold),
+                    properties.getIntegerWithDefault(prefix + ".capacity", capacity));
+        }
+    }
+
+    /**
+     * Level of the limiter: counters, thresholds and metrics.
+     */
+    private static final class Level {
+
+        /**
+         * Counters, null for exact IP and global levels.
+         */
+        final SlidingWindowCounters counters;
+
+        /**
+         * Count at which captcha is required, 0 if disabled.
+         */
+        final long captchaThreshold;
+
+        /**
+         * Count at which requests are rejected, 0 if disabled.
+         */
+        final long rejectThreshold;
+
+        /**
+         * Requests that required captcha.
+         */
+        final Meter captcha;
+
+        /**
+         * Rejected requests.
+         */
+        final Meter rejected;
+
+        /**
+         * Constructs level with own counters.
+         *
+         * @param name Level name.
+         * @param limit Limit.
+         * @param registry Metric registry.
+         */
+        Level(String name, Limit limit, MetricRegistry registry) {
+            this(name,
+                    new SlidingWindowCounters(limit.capacity, limit.windowSeconds * 1000L, System::currentTimeMillis),
+                    limit.captchaThreshold, limit.rejectThreshold, registry);
+        }
+
+        /**
+         * Constructs level.
+         *
+         * @param name Level name.
+         * @param counters Counters, null for exact IP and global levels.
+         * @param captchaThreshold Count at which captcha is required, 0 if disabled.
+         * @param rejectThreshold Count at which requests are rejected, 0 if disabled.
+         * @param registry Metric registry.
+         */
+        Level(String name, SlidingWindowCounters counters, long captchaThreshold, long rejectThreshold,
+              MetricRegistry registry) {
+            this.counters = counters;
+            this.captchaThreshold = captchaThreshold;
+            this.rejectThreshold = rejectThreshold;
+            this.captcha = registry.meter(MetricRegistry.name(HierarchicalRateLimiter.class, name, "captcha"));
+            this.rejected = registry.meter(MetricRegistry.name(HierarchicalRateLimiter.class, name, "rejected"));
+        }
+
+        /**
+         * Returns action for the count and marks metrics.
+         *
+         * @param count Count, including the request.
+         * @return Action.
+         */
+        RateLimitAction evaluate(long count) {
+            if (rejectThreshold > 0L && count >= rejectThreshold) {
+                rejected.mark();
+                return RateLimitAction.REJECT;
+            }
+            if (captchaThreshold > 0L && count >= captchaThreshold) {
+                captcha.mark();
+                return RateLimitAction.CAPTCHA;
+            }
+            return RateLimitAction.NONE;
+        }
+    }
+}
@@ -1,32 +1,94 @@
 package services.sso.limits;
 
-import ninja.cache.NinjaCache;
+import com.google.common.net.InetAddresses;
 import ninja.utils.NinjaProperties;
 
 import javax.inject.Inject;
+import javax.inject.Provider;
 import javax.inject.Singleton;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
- * IP counter service. Counts number of requests from given IP.
+ * IP counter service. Counts number of requests from given IP. Counters are keyed by address bits: IPv6 address as two
+ * longs, IPv4 address as int mapped to IPv6 (::ffff:a.b.c.d). Strings that are not IP literals are hashed.
  * <p>
- * Expects "counters.ip.entryTimeToLiveSeconds" and "counters.ip.numberOfSafeRequests" to be defined in project
- * properties.
+ * Counts are kept in a {@link CountMinSketch}, so memory is fixed whatever the number of source IPs and a flood of
+ * distinct IPs cannot evict counters of abusive ones. IPs that reach the limit are tracked as heavy hitters.
+ * <p>
+ * Expects "counters.ip.entryTimeToLiveSeconds", "counters.ip.numberOfSafeRequests", "counters.ip.capacity" (sketch
+ * width), "counters.ip.depth" and "counters.ip.heavyHitters" to be defined in project properties. Counters are shared
+ * between nodes if "counters.shared.enabled" is true, heavy hitters are of this node.
  */
 @Singleton
 public final class IPCounterService extends CounterService {
 
+    /**
+     * Prefix of IPv4 addresses mapped to IPv6, in low 64 bits.
+     */
+    private static final long IPV4_MAPPED_PREFIX = 0xFFFF00000000L;
+
+    /**
+     * Count-min sketch with heavy hitters.
+     */
+    private final CountMinSketch sketch;
+
     /**
      * Constructs IP counter service.
      *
-     * @param cache Cache.
      * @param properties Project properties.
+     * @param sharedCounterStore Shared counter store provider.
      */
     @Inject
-    public IPCounterService(NinjaCache cache, NinjaProperties properties) {
-        super("ip",
-                properties.getIntegerWithDefault("counters.ip.entryTimeToLiveSeconds", 30),
-                properties.getIntegerWithDefault("counters.ip.numberOfSafeRequests", 5),
-                cache);
+    public IPCounterService(NinjaProperties properties, Provider<SharedCounterStore> sharedCounterStore) {
+        this(properties.getIntegerWithDefault("counters.ip.entryTimeToLiveSeconds", 30),
+                properties.getIntegerWithDefault("counters.ip.numberOfSafeRequests", 30),
+                new CountMinSketch(
+                        properties.getIntegerWithDefault("counters.ip.capacity", 65536),
+                        properties.getIntegerWithDefault("counters.ip.depth", 4),
+                        1000L * properties.getIntegerWithDefault("counters.ip.entryTimeToLiveSeconds", 30),
+                        System::currentTimeMillis,
+                        properties.getIntegerWithDefault("counters.ip.heavyHitters", 20),
+                        properties.getIntegerWithDefault("counters.ip.numberOfSafeRequests", 30)),
+                getSharedCounterStore(properties, sharedCounterStore),
+                properties);
+    }
+
+    /**
+     * Constructs IP counter service.
+     *
+     * @param entryTimeToLiveSeconds Time to live (sliding window), in seconds.
+     * @param upperLimit Upper limit for the counter.
+     * @param sketch Count-min sketch of the node.
+     * @param sharedCounterStore Shared counter store or null if counters are not shared.
+     * @param properties Project properties.
+     */
+    private IPCounterService(
+            int entryTimeToLiveSeconds,
+            int upperLimit,
+            CountMinSketch sketch,
+            SharedCounterStore sharedCounterStore,
+            NinjaProperties properties) {
+        super("ip", entryTimeToLiveSeconds, upperLimit,
+                share("ip", sketch, entryTimeToLiveSeconds, sharedCounterStore, properties));
+        this.sketch = sketch;
+    }
+
+    /**
+     * Returns IPs with the largest number of hits that reached the limit, from the largest number of hits.
+     *
+     * @return Number of hits per IP.
+     */
+    public Map<String, Long> getTopIps() {
+        Map<String, Long> topIps = new LinkedHashMap<>();
+        for (CountMinSketch.HeavyHitter hitter : sketch.getHeavyHitters()) {
+            topIps.put(toIp(hitter.getHigh(), hitter.getLow()), hitter.getCount());
+        }
+        return topIps;
     }
 
     /**
@@ -38,4 +100,65 @@ public final class IPCounterService extends CounterService {
     public long getIpHits(String ip) {
         return getCounter(ip);
     }
+
+    /**
+     * Converts IP literal to counter key. Never resolves host names.
+     *
+     * @param key IP.
+     * @return Counter key, high and low 64 bits.
+     */
+    @Override
+    protected long[] toCounterKey(String key) {
+        long[] ipKey = toIpKey(key);
+        return ipKey != null ? ipKey : super.toCounterKey(String.valueOf(key));
+    }
+
+    /**
+     * Converts IP literal to 128 bits: IPv6 address as is, IPv4 address mapped to IPv6. Never resolves host names.
+     *
+     * @param ip IP literal.
+     * @return IP address bits, high and low 64 bits, or null if the string is not an IP literal.
+     */
+    static long[] toIpKey(String ip) {
+        if (ip == null || !InetAddresses.isInetAddress(ip)) {
+            return null;
+        }
+        InetAddress address = InetAddresses.forString(ip);
+        if (address instanceof Inet4Address) {
+            int ipv4 = ByteBuffer.wrap(address.getAddress()).getInt();
+            return new long[]{0L, IPV4_MAPPED_PREFIX | (ipv4 & 0xFFFFFFFFL)};
+        }
+        ByteBuffer ipv6 = ByteBuffer.wrap(address.getAddress());
+        return new long[]{ipv6.getLong(), ipv6.getLong()};
+    }
+
+    /**
+     * Converts IP address bits back to IP literal. Keys of strings that are not IP literals give meaningless IPv6
+     * addresses.
+     *
+     * @param high High 64 bits.
+     * @param low Low 64 bits.
+     * @return IP literal.
+     */
+    static String toIp(long high, long low) {
+        if (isIpv4(new long[]{high, low})) {
+            return InetAddresses.fromInteger((int) low).getHostAddress();
+        }
+        byte[] address = ByteBuffer.allocate(16).putLong(high).putLong(low).array();
+        try {
+            return InetAddresses.toAddrString(InetAddress.getByAddress(address));
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns whether given IP address bits are IPv4 address mapped to IPv6.
+     *
+     * @param ipKey IP address bits.
+     * @return Whether the address is IPv4.
+     */
+    static boolean isIpv4(long[] ipKey) {
+        return ipKey[0] == 0L && (ipKey[1] & ~0xFFFFFFFFL) == IPV4_MAPPED_PREFIX;
+    }
 }
@@ -0,0 +1,110 @@
+package services.sso.limits;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * In-process {@link SharedCounterStore}, stand-in for clustered cache in tests and single node deployments.
+ * Expired counters are removed on addition of new counters.
+ */
+public final class InMemorySharedCounterStore implements SharedCounterStore {
+
+    /**
+     * Counters by keys.
+     */
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+    /**
+     * Millisecond clock.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Number of remote operations: additions and multi-gets.
+     */
+    private volatile long operations;
+
+    /**
+     * Constructs store.
+     *
+     * @param clock Millisecond clock, like {@link System#currentTimeMillis()}.
+     */
+    public InMemorySharedCounterStore(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    @Override
+    public long add(String key, long delta, int timeToLiveSeconds) {
+        long now = clock.getAsLong();
+        countOperation();
+        Counter counter = counters.get(key);
+        if (counter == null || counter.expires <= now) {
+            counters.values().removeIf(c -> c.expires <= now);
+            counter = counters.computeIfAbsent(key, k -> new Counter(now + timeToLiveSeconds * 1000L));
+        }
+        synchronized (counter) {
+            counter.value += delta;
+            return counter.value;
+        }
+    }
+
+    @Override
+    public Map<String, Long> get(Collection<String> keys) {
+        long now = clock.getAsLong();
+        countOperation();
+        Map<String, Long> values = new HashMap<>();
+        for (String key : keys) {
+            Counter counter = counters.get(key);
+            if (counter != null && counter.expires > now) {
+                synchronized (counter) {
+                    values.put(key, counter.value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns number of operations, as remote round trips of clustered cache.
+     *
+     * @return Number of operations.
+     */
+    public long getOperations() {
+        return operations;
+    }
+
+    /**
+     * Counts an operation.
+     */
+    private synchronized void countOperation() {
+        operations++;
+    }
+
+    /**
+     * Counter with expiration time.
+     */
+    private static final class Counter {
+
+        /**
+         * Expiration time, in milliseconds.
+         */
+        final long expires;
+
+        /**
+         * Value, guarded by the counter.
+         */
+        long value;
+
+        /**
+         * Constructs counter.
+         *
+         * @param expires Expiration time, in milliseconds.
+         */
+        Counter(long expires) {
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package services.sso.limits;
+
+import ninja.cache.NinjaCache;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link SharedCounterStore} on top of {@link NinjaCache}, clustered cache configured in conf/application.conf.
+ * Each addition is one increment, creating missing counter takes one more round trip; values are read with one
+ * multi-get. Works with both memcached (numeric strings, missing counters are created with 0 by increment) and
+ * ehcache (numbers, increment of missing counter returns -1). Counters created by memcached increment have no time
+ * to live; keys are per window, so stale counters are never read again and are left to memcached eviction.
+ */
+@Singleton
+public class NinjaCacheSharedCounterStore implements SharedCounterStore {
+
+    /**
+     * Cache.
+     */
+    private final NinjaCache cache;
+
+    /**
+     * Constructs store.
+     *
+     * @param cache Cache.
+     */
+    @Inject
+    public NinjaCacheSharedCounterStore(NinjaCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public long add(String key, long delta, int timeToLiveSeconds) {
+        int by = (int) Math.min(delta, Integer.MAX_VALUE);
+        long value = cache.incr(key, by);
+        if (value <= 0L) {
+            value = cache.safeAdd(key, (long) by, timeToLiveSeconds + "s") ? by : cache.incr(key, by);
+        }
+        return value;
+    }
+
+    @Override
+    public Map<String, Long> get(Collection<String> keys) {
+        Map<String, Long> values = new HashMap<>();
+        if (keys.isEmpty()) {
+            return values;
+        }
+        for (Map.Entry<String, Object> entry : cache.get(keys.toArray(new String[0])).entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Number) {
+                values.put(entry.getKey(), ((Number) value).longValue());
+            } else if (value != null) {
+                try {
+                    values.put(entry.getKey(), Long.parseLong(value.toString().trim()));
+                } catch (NumberFormatException e) {
+                    // Not a counter.
+                }
+            }
+        }
+        return values;
+    }
+}
@@ -0,0 +1,22 @@
+package services.sso.limits;
+
+/**
+ * Action for a request that reached a rate limit, from the weakest to the strongest.
+ */
+public enum RateLimitAction {
+
+    /**
+     * Request is within limits.
+     */
+    NONE,
+
+    /**
+     * Request requires captcha.
+     */
+    CAPTCHA,
+
+    /**
+     * Request is rejected.
+     */
+    REJECT
+}
@@ -0,0 +1,29 @@
+package services.sso.limits;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Store of counters shared between nodes, like clustered cache. Counters expire after given time to live.
+ * Implementations must be thread safe.
+ */
+public interface SharedCounterStore {
+
+    /**
+     * Adds delta to the counter, creating the counter if needed.
+     *
+     * @param key Counter key.
+     * @param delta Delta, positive.
+     * @param timeToLiveSeconds Time to live of created counter, in seconds.
+     * @return Counter value after the addition.
+     */
+    long add(String key, long delta, int timeToLiveSeconds);
+
+    /**
+     * Returns values of existing counters.
+     *
+     * @param keys Counter keys.
+     * @return Values of existing counters by keys, without missing counters.
+     */
+    Map<String, Long> get(Collection<String> keys);
+}
@@ -0,0 +1,65 @@
+package services.sso.limits;
+
+import ninja.lifecycle.Dispose;
+import ninja.scheduler.Schedule;
+import org.slf4j.Logger;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes locally batched deltas of counters shared between nodes to the shared store every
+ * "counters.shared.flushMillis" milliseconds, and once more on shutdown. Does nothing if counters are not shared.
+ */
+@Singleton
+public class SharedCountersFlusher {
+
+    /**
+     * IP counter service.
+     */
+    private final IPCounterService ipCounterService;
+
+    /**
+     * Generic counter service.
+     */
+    private final GenericCounterService genericCounterService;
+
+    /**
+     * Logger.
+     */
+    private final Logger logger;
+
+    /**
+     * Constructs flusher.
+     *
+     * @param ipCounterService IP counter service.
+     * @param genericCounterService Generic counter service.
+     * @param logger Logger.
+     */
+    @Inject
+    public SharedCountersFlusher(
+            IPCounterService ipCounterService,
+            GenericCounterService genericCounterService,
+            Logger logger) {
+        this.ipCounterService = ipCounterService;
+        this.genericCounterService = genericCounterService;
+        this.logger = logger;
+    }
+
+    /**
+     * Flushes shared counters. Failures are logged, counters keep counting locally.
+     */
+    @Schedule(delay = 500, delayProperty = "counters.shared.flushMillis",
+            initialDelay = 500, initialDelayProperty = "counters.shared.flushMillis",
+            timeUnit = TimeUnit.MILLISECONDS)
+    @Dispose
+    public void flush() {
+        try {
+            ipCounterService.flushSharedCounters();
+            genericCounterService.flushSharedCounters();
+        } catch (RuntimeException e) {
+            logger.warn("Error while flushing shared counters.", e);
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package services.sso.limits;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import ninja.cache.NinjaCache;
+import ninja.metrics.MetricsService;
+import ninja.utils.NinjaProperties;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Per account progressive backoff of failed sign-ins. After a number of free failures, each failed sign-in into the
+ * account doubles the delay before the next attempt is accepted, up to the maximal delay, whatever IP the attempts come
+ * from. Attempts within the delay are rejected before password hashing. Successful sign-in resets the backoff;
+ * failures are forgotten after reset time without failures. Accounts are identified by keys of the caller, like user id
+ * of existing accounts, so that email and username of the account share one backoff.
+ * <p>
+ * Backoff is kept in memory of the node, for bounded number of accounts. Accounts within their delay are never evicted:
+ * when the memory is full of them, failures of new accounts are not tracked in memory (counted in metrics). Optionally
+ * backoff is also shared between nodes through {@link NinjaCache} (clustered cache, configured in
+ * conf/application.conf), which costs a cache read per checked key and a read and a write per failure, and keeps
+ * backoff of accounts not tracked in memory.
+ * <p>
+ * Expects "application.sso.signIn.backoff.*" (freeFailures, baseSeconds, maxSeconds, resetSeconds, maxAccounts,
+ * sharedCache) to be defined in project properties.
+ */
+@Singleton
+public class SignInBackoffService {
+
+    /**
+     * Prefix of shared cache keys.
+     */
+    private static final String SHARED_KEY_PREFIX = "signInBackoff:";
+
+    /**
+     * Minimal interval between sweeps of accounts that found nothing to evict, in milliseconds.
+     */
+    private static final long SWEEP_INTERVAL_MILLIS = 1000L;
+
+    /**
+     * Backoff per account.
+     */
+    private final ConcurrentHashMap<String, Backoff> backoffs = new ConcurrentHashMap<>();
+
+    /**
+     * Shared cache, null if backoff is not shared.
+     */
+    private final NinjaCache sharedCache;
+
+    /**
+     * Millisecond clock.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Number of failures without delay.
+     */
+    private final int freeFailures;
+
+    /**
+     * Delay after the first failure over free ones, in milliseconds.
+     */
+    private final long baseMillis;
+
+    /**
+     * Maximal delay, in milliseconds.
+     */
+    private final long maxMillis;
+
+    /**
+     * Time without failures after which failures are forgotten, in milliseconds.
+     */
+    private final long resetMillis;
+
+    /**
+     * Time without failures after which failures are forgotten, as string, in seconds.
+     */
+    private final String resetAsString;
+
+    /**
+     * Maximal number of accounts kept in memory.
+     */
+    private final long maxAccounts;
+
+    /**
+     * Time before which accounts are not swept again, in milliseconds.
+     */
+    private volatile long nextSweepMillis;
+
+    /**
+     * Rejected attempts.
+     */
+    private final Meter rejected;
+
+    /**
+     * Failures of accounts not tracked in memory, as it is full of accounts within their delay.
+     */
+    private final Meter untracked;
+
+    /**
+     * Constructs sign-in backoff service.
+     *
+     * @param freeFailures Number of failures without delay.
+     * @param baseMillis Delay after the first failure over free ones, in milliseconds.
+     * @param maxMillis Maximal delay, in milliseconds.
+     * @param resetSeconds Time without failures after which failures are forgotten, in seconds.
+     * @param maxAccounts Maximal number of accounts kept in memory.
+     * @param sharedCache Shared cache, null if backoff is not shared.
+     * @param clock Millisecond clock, like {@link System#currentTimeMillis()}.
+     * @param registry Metric registry.
+     */
+    public SignInBackoffService(
+            int freeFailures,
+            long baseMillis,
+            long maxMillis,
+            long resetSeconds,
+            long maxAccounts,
+            NinjaCache sharedCache,
+            LongSupplier clock,
+            MetricRegistry registry) {
+        this.freeFailures = freeFailures;
+        this.baseMillis = baseMillis;
+        this.maxMillis = maxMillis;
+        this.resetMillis = resetSeconds * 1000L;
+        this.resetAsString = resetSeconds + "s";
+        this.maxAccounts = maxAccounts;
+        this.sharedCache = sharedCache;
+        this.clock = clock;
+        this.rejected = registry.meter(MetricRegistry.name(SignInBackoffService.class, "rejected"));
+        this.untracked = registry.meter(MetricRegistry.name(SignInBackoffService.class, "untracked"));
+    }
+
+    /**
+     * Constructs sign-in backoff service from properties.
+     *
+     * @param cache Shared cache.
+     * @param metricsService Metrics service.
+     * @param properties Properties.
+     */
+    @Inject
+    public SignInBackoffService(NinjaCache cache, MetricsService metricsService, NinjaProperties properties) {
+        this(properties.getIntegerWithDefault("application.sso.signIn.backoff.freeFailures", 3),
+                1000L * properties.getIntegerWithDefault("application.sso.signIn.backoff.baseSeconds", 1),
+                1000L * properties.getIntegerWithDefault("application.sso.signIn.backoff.maxSeconds", 300),
+                properties.getIntegerWithDefault("application.sso.signIn.backoff.resetSeconds", 3600),
+                properties.getIntegerWithDefault("application.sso.signIn.backoff.maxAccounts", 100_000),
+                properties.getBooleanWithDefault("application.sso.signIn.backoff.sharedCache", false) ? cache : null,
+                System::currentTimeMillis,
+                metricsService.getMetricRegistry());
+    }
+
+    /**
+     * Returns time to wait before the next sign-in attempt into the account is accepted. Counts rejected attempt
+     * in metrics.
+     *
+     * @param account Account key.
+     * @return Time to wait, in milliseconds, 0 if the attempt is accepted.
+     */
+    public long getRetryAfterMillis(String account) {
+        long now = clock.getAsLong();
+        Backoff backoff = getLocal(account, now);
+        if (sharedCache != null) {
+            Backoff shared = getShared(account);
+            if (shared != null && (backoff == null || shared.failures > backoff.failures)) {
+                backoff = shared;
+                if (backoffs.containsKey(account) || hasRoom(now)) {
+                    backoffs.put(account, shared);
+                }
+            }
+        }
+        if (backoff == null) {
+            return 0L;
+        }
+        long retryAfter = Math.max(backoff.lastFailureMillis + getDelayMillis(backoff.failures) - now, 0L);
+        if (retryAfter > 0L) {
+            rejected.mark();
+        }
+        return retryAfter;
+    }
+
+    /**
+     * Remembers failed sign-in into the account.
+     *
+     * @param account Account key.
+     */
+    public void onFailure(String account) {
+        long now = clock.getAsLong();
+        Backoff shared = sharedCache != null ? getShared(account) : null;
+        Backoff failure = shared != null ? shared.next(now) : new Backoff(1, now);
+        Backoff backoff = failure;
+        if (backoffs.containsKey(account) || hasRoom(now)) {
+            backoff = backoffs.merge(account, failure, (previous, next) ->
+                    previous.failures >= next.failures && !isExpired(previous, now) ? previous.next(now) : next);
+        } else {
+            untracked.mark();
+        }
+        if (sharedCache != null) {
+            sharedCache.safeSet(SHARED_KEY_PREFIX + account, backoff.toString(), resetAsString);
+        }
+    }
+
+    /**
+     * Resets backoff of the account after successful sign-in.
+     *
+     * @param account Account key.
+     */
+    public void onSuccess(String account) {
+        backoffs.remove(account);
+        if (sharedCache != null) {
+            sharedCache.safeDelete(SHARED_KEY_PREFIX + account);
+        }
+    }
+
+    /**
+     * Returns delay after given number of failures: 0 for free failures, then doubled base delay for each failure,
+     * up to maximal delay.
+     *
+     * @param failures Number of failures.
+     * @return Delay, in milliseconds.
+     */
+    long getDelayMillis(int failures) {
+        if (failures <= freeFailures) {
+            return 0L;
+        }
+        int doublings = Math.min(failures - freeFailures - 1, 30);
+        return Math.min(baseMillis << doublings, maxMillis);
+    }
+
+    /**
+     * Returns backoff of the account from memory, unless it is expired.
+     *
+     * @param account Account.
+     * @param now Current time, in milliseconds.
+     * @return Backoff, or null if there is none.
+     */
+    private Backoff getLocal(String account, long now) {
+        Backoff backoff = backoffs.get(account);
+        if (backoff != null && isExpired(backoff, now)) {
+            backoffs.remove(account, backoff);
+            return null;
+        }
+        return backoff;
+    }
+
+    /**
+     * Returns whether a new account can be kept in memory, evicting accounts that are out of their delay if memory is
+     * full. Accounts within their delay are never evicted.
+     *
+     * @param now Current time, in milliseconds.
+     * @return Whether there is room for a new account.
+     */
+    private boolean hasRoom(long now) {
+        if (backoffs.mappingCount() < maxAccounts) {
+            return true;
+        }
+        if (now < nextSweepMillis) {
+            return false;
+        }
+        synchronized (backoffs) {
+            if (backoffs.mappingCount() >= maxAccounts && now >= nextSweepMillis) {
+                backoffs.values().removeIf(backoff -> isExpired(backoff, now)
+                        || backoff.lastFailureMillis + getDelayMillis(backoff.failures) <= now);
+                if (backoffs.mappingCount() >= maxAccounts) {
+                    nextSweepMillis = now + SWEEP_INTERVAL_MILLIS;
+                }
+            }
+        }
+        return backoffs.mappingCount() < maxAccounts;
+    }
+
+    /**
+     * Returns whether failures of the backoff are forgotten.
+     *
+     * @param backoff Backoff.
+     * @param now Current time, in milliseconds.
+     * @return Whether the backoff is expired.
+     */
+    private boolean isExpired(Backoff backoff, long now) {
+        return now - backoff.lastFailureMillis >= resetMillis;
+    }
+
+    /**
+     * Returns backoff of the account from shared cache.
+     *
+     * @param account Account.
+     * @return Backoff, or null if there is none.
+     */
+    private Backoff getShared(String account) {
+        return Backoff.fromString(sharedCache.get(SHARED_KEY_PREFIX + account, String.class));
+    }
+
+    /**
+     * Backoff state of an account: number of failures and time of the last one.
+     */
+    static final class Backoff {
+
+        /**
+         * Number of failures.
+         */
+        final int failures;
+
+        /**
+         * Time of the last failure, in milliseconds.
+         */
+        final long lastFailureMillis;
+
+        /**
+         * Constructs backoff state.
+         *
+         * @param failures Number of failures.
+         * @param lastFailureMillis Time of the last failure, in milliseconds.
+         */
+        Backoff(int failures, long lastFailureMillis) {
+            this.failures = failures;
+            this.lastFailureMillis = lastFailureMillis;
+        }
+
+        /**
+         * Returns state after one more failure.
+         *
+         * @param now Time of the failure, in milliseconds.
+         * @return New state.
+         */
+        Backoff next(long now) {
+            return new Backoff(failures == Integer.MAX_VALUE ? failures : failures + 1, now);
+        }
+
+        /**
+         * Parses state from string, as in shared cache.
+         *
+         * @param value String value.
+         * @return State or null if the value is null or malformed.
+         */
+        static Backoff fromString(String value) {
+            if (value == null) {
+                return null;
+            }
+            int separator = value.indexOf(':');
+            try {
+                return new Backoff(Integer.parseInt(value.substring(0, separator)),
+                        Long.parseLong(value.substring(separator + 1)));
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return failures + ":" + lastFailureMillis;
+        }
+    }
+}
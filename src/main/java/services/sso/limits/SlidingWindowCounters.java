@@ -0,0 +1,191 @@
+package services.sso.limits;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Lock-free sliding window counters keyed by 128 bit keys (IPv6 addresses, IPv4 addresses mapped to IPv6, or hashes
+ * of other keys). Counts hits within the last window with the sliding window approximation: hits of the current fixed
+ * window plus hits of the previous fixed window weighted by its part that is still within the sliding window. Counter
+ * is zero exactly one window after the last hit's fixed window ends, so no expiration is needed.
+ * <p>
+ * Counters live in a fixed size open addressing table, so memory is constant: one entry per key, no more entries than
+ * table capacity. Slot is claimed with compare-and-set, counter state (window index, current and previous counts)
+ * is packed into one long, updated with compare-and-set. Slots of zero counters are reused. When all probed slots are
+ * taken by live counters, the counter in the home slot is evicted, so a flood of distinct keys can only make counters
+ * smaller. A hit that races with eviction of its counter may be lost. Counts saturate at 65535. Thread safe.
+ */
+public final class SlidingWindowCounters implements WindowCounters {
+
+    /**
+     * Number of probed slots.
+     */
+    private static final int PROBES = 4;
+
+    /**
+     * Counter state updater.
+     */
+    private static final AtomicLongFieldUpdater<Entry> STATE = AtomicLongFieldUpdater.newUpdater(Entry.class, "state");
+
+    /**
+     * Table of counters.
+     */
+    private final AtomicReferenceArray<Entry> table;
+
+    /**
+     * Table mask, capacity minus one.
+     */
+    private final int mask;
+
+    /**
+     * Window size, in milliseconds.
+     */
+    private final long windowMillis;
+
+    /**
+     * Millisecond clock.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Constructs counters.
+     *
+     * @param capacity Maximal number of counters, rounded up to power of two.
+     * @param windowMillis Window size, in milliseconds.
+     * @param clock Millisecond clock, like {@link System#currentTimeMillis()}.
+     */
+    public SlidingWindowCounters(int capacity, long windowMillis, LongSupplier clock) {
+        if (capacity <= 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Expects capacity from 1 to 2^30: " + capacity);
+        }
+        if (windowMillis <= 0L) {
+            throw new IllegalArgumentException("Expects positive window: " + windowMillis);
+        }
+        int size = Integer.highestOneBit(Math.max(capacity, PROBES) - 1) << 1;
+        this.table = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+    }
+
+    @Override
+    public long add(long high, long low, int hits) {
+        if (hits <= 0) {
+            throw new IllegalArgumentException("Expects positive number of hits: " + hits);
+        }
+        long now = clock.getAsLong();
+        long window = now / windowMillis;
+        Entry entry = claim(high, low, window);
+        long state;
+        long newState;
+        do {
+            state = entry.state;
+            newState = WindowState.hit(state, window, hits);
+        } while (!STATE.compareAndSet(entry, state, newState));
+        return WindowState.estimate(newState, now, windowMillis);
+    }
+
+    @Override
+    public long get(long high, long low) {
+        int home = slot(high, low);
+        for (int i = 0; i < PROBES; i++) {
+            Entry entry = table.get((home + i) & mask);
+            if (entry != null && entry.high == high && entry.low == low) {
+                return WindowState.estimate(entry.state, clock.getAsLong(), windowMillis);
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Returns table capacity.
+     *
+     * @return Table capacity.
+     */
+    public int capacity() {
+        return table.length();
+    }
+
+    /**
+     * Returns entry of the key, taking free, expired or, as the last resort, home slot.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @param window Current window index.
+     * @return Entry of the key.
+     */
+    private Entry claim(long high, long low, long window) {
+        int home = slot(high, low);
+        while (true) {
+            int free = -1;
+            Entry freeEntry = null;
+            for (int i = 0; i < PROBES; i++) {
+                int index = (home + i) & mask;
+                Entry entry = table.get(index);
+                if (entry != null && entry.high == high && entry.low == low) {
+                    return entry;
+                }
+                if (free < 0 && (entry == null || WindowState.isExpired(entry.state, window))) {
+                    free = index;
+                    freeEntry = entry;
+                }
+            }
+            if (free < 0) {
+                free = home;
+                freeEntry = table.get(home);
+            }
+            Entry entry = new Entry(high, low, window);
+            if (table.compareAndSet(free, freeEntry, entry)) {
+                return entry;
+            }
+        }
+    }
+
+    /**
+     * Returns home slot of the key.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @return Home slot.
+     */
+    private int slot(long high, long low) {
+        long hash = (high * 0x9E3779B97F4A7C15L) ^ low;
+        hash = (hash ^ (hash >>> 32)) * 0xD6E8FEB86659FD93L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    /**
+     * Counter entry: immutable key and mutable packed state.
+     */
+    static final class Entry {
+
+        /**
+         * High 64 bits of the key.
+         */
+        final long high;
+
+        /**
+         * Low 64 bits of the key.
+         */
+        final long low;
+
+        /**
+         * Packed state: window index, current and previous counts.
+         */
+        volatile long state;
+
+        /**
+         * Constructs entry with zero counts.
+         *
+         * @param high High 64 bits of the key.
+         * @param low Low 64 bits of the key.
+         * @param window Current window index.
+         */
+        Entry(long high, long low, long window) {
+            this.high = high;
+            this.low = low;
+            this.state = WindowState.pack((int) window, 0L, 0L);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package services.sso.limits;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Single sliding window counter for keys hit by every request, like the global budget of the node. Hits of the current
+ * fixed window are added to a {@link LongAdder}, so concurrent requests update separate cells instead of compare-and-set
+ * on one hot state. Counts within the sliding window are approximated like in {@link WindowState}: hits of the current
+ * fixed window plus hits of the previous fixed window weighted by its part that is still within the sliding window.
+ * The window is moved forward under a lock, once per window. A hit that races with the move may be counted in the
+ * neighbour window. Counts don't saturate. Thread safe.
+ */
+final class StripedWindowCounter {
+
+    /**
+     * Hits of the current fixed window.
+     */
+    private final LongAdder current = new LongAdder();
+
+    /**
+     * Window size, in milliseconds.
+     */
+    private final long windowMillis;
+
+    /**
+     * Millisecond clock.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Index of the current fixed window.
+     */
+    private volatile long window;
+
+    /**
+     * Hits of the previous fixed window.
+     */
+    private volatile long previous;
+
+    /**
+     * Constructs counter.
+     *
+     * @param windowMillis Window size, in milliseconds.
+     * @param clock Millisecond clock, like {@link System#currentTimeMillis()}.
+     */
+    StripedWindowCounter(long windowMillis, LongSupplier clock) {
+        if (windowMillis <= 0L) {
+            throw new IllegalArgumentException("Expects positive window: " + windowMillis);
+        }
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        this.window = clock.getAsLong() / windowMillis;
+    }
+
+    /**
+     * Counts given number of hits.
+     *
+     * @param hits Number of hits, positive.
+     * @return Number of hits within the sliding window, including these.
+     */
+    long add(int hits) {
+        if (hits <= 0) {
+            throw new IllegalArgumentException("Expects positive number of hits: " + hits);
+        }
+        long now = clock.getAsLong();
+        long nowWindow = now / windowMillis;
+        if (nowWindow > window) {
+            roll(nowWindow);
+        }
+        current.add(hits);
+        return estimate(now, nowWindow);
+    }
+
+    /**
+     * Returns number of hits within the sliding window.
+     *
+     * @return Number of hits within the sliding window.
+     */
+    long get() {
+        long now = clock.getAsLong();
+        return estimate(now, now / windowMillis);
+    }
+
+    /**
+     * Moves the counter to the given window, unless it is already there or later.
+     *
+     * @param nowWindow Current window index.
+     */
+    private synchronized void roll(long nowWindow) {
+        long currentWindow = window;
+        if (nowWindow <= currentWindow) {
+            return;
+        }
+        long hits = current.sumThenReset();
+        previous = nowWindow == currentWindow + 1 ? hits : 0L;
+        window = nowWindow;
+    }
+
+    /**
+     * Returns number of hits within the sliding window that ends now. Counts of a newer window (the clock was read
+     * before a concurrent move) are counted in full.
+     *
+     * @param now Current time, in milliseconds.
+     * @param nowWindow Current window index.
+     * @return Number of hits within the sliding window.
+     */
+    private long estimate(long now, long nowWindow) {
+        long currentWindow = window;
+        double previousWeight = 1.0 - (double) (now % windowMillis) / windowMillis;
+        if (currentWindow == nowWindow) {
+            return current.sum() + (long) (previous * previousWeight);
+        } else if (currentWindow == nowWindow - 1) {
+            return (long) (current.sum() * previousWeight);
+        } else if (currentWindow > nowWindow) {
+            return current.sum() + previous;
+        }
+        return 0L;
+    }
+}
@@ -0,0 +1,38 @@
+package services.sso.limits;
+
+/**
+ * Counters of hits within a sliding window, keyed by 128 bit keys (IPv6 addresses, IPv4 addresses mapped to IPv6,
+ * or hashes of other keys). Thread safe.
+ */
+public interface WindowCounters {
+
+    /**
+     * Counts a hit for the key.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @return Number of hits within the sliding window, including this one.
+     */
+    default long increment(long high, long low) {
+        return add(high, low, 1);
+    }
+
+    /**
+     * Counts given number of hits (request cost) for the key.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @param hits Number of hits, positive.
+     * @return Number of hits within the sliding window, including these.
+     */
+    long add(long high, long low, int hits);
+
+    /**
+     * Returns number of hits for the key within the sliding window.
+     *
+     * @param high High 64 bits of the key.
+     * @param low Low 64 bits of the key.
+     * @return Number of hits within the sliding window.
+     */
+    long get(long high, long low);
+}
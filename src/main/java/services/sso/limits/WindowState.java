@@ -0,0 +1,160 @@
+package services.sso.limits;
+
+/**
+ * Packed state of a sliding window counter: window index (low 32 bits), hits of the current fixed window and hits
+ * of the previous fixed window (16 bits each). Number of hits within the sliding window is approximated by hits of the
+ * current fixed window plus hits of the previous fixed window weighted by its part that is still within the sliding
+ * window. Counts saturate at {@link #MAX_COUNT}.
+ * <p>
+ * Window indices are compared by their age, the difference of low 32 bits in wraparound arithmetic, so states stay
+ * correct after the window index overflows int (in 2038 for 1 second windows). A state may be ahead of the clock by
+ * less than {@link #MAX_LEAD} windows, states that look further ahead are old states with wrapped index.
+ */
+final class WindowState {
+
+    /**
+     * Maximal count.
+     */
+    static final long MAX_COUNT = 0xFFFFL;
+
+    /**
+     * Maximal number of windows the state may be ahead of the clock.
+     */
+    static final int MAX_LEAD = 1 << 16;
+
+    /**
+     * Utility class.
+     */
+    private WindowState() {
+    }
+
+    /**
+     * Returns state moved to the given window: counts of older windows are dropped. State of a newer window (the
+     * clock was read before a concurrent hit that moved the state forward) is never rolled back, hits are counted
+     * into its window then.
+     *
+     * @param state Packed state.
+     * @param window Current window index.
+     * @return Packed state of the given window or of the newer one.
+     */
+    static long roll(long state, long window) {
+        int age = age(state, window);
+        if (age <= 0 && age > -MAX_LEAD) {
+            return state;
+        } else if (age == 1) {
+            return pack((int) window, 0L, current(state));
+        }
+        return pack((int) window, 0L, 0L);
+    }
+
+    /**
+     * Returns state after hits in the given window.
+     *
+     * @param state Packed state.
+     * @param window Current window index.
+     * @param hits Number of hits.
+     * @return New packed state.
+     */
+    static long hit(long state, long window, int hits) {
+        long rolled = roll(state, window);
+        return withCurrent(rolled, current(rolled) + hits);
+    }
+
+    /**
+     * Returns state with given current count, saturated at {@link #MAX_COUNT}.
+     *
+     * @param state Packed state.
+     * @param current Current count.
+     * @return New packed state.
+     */
+    static long withCurrent(long state, long current) {
+        return pack(window(state), Math.min(current, MAX_COUNT), previous(state));
+    }
+
+    /**
+     * Returns number of hits within the sliding window that ends now. State of a newer window is counted in full.
+     *
+     * @param state Packed state.
+     * @param now Current time, in milliseconds.
+     * @param windowMillis Window size, in milliseconds.
+     * @return Number of hits within the sliding window.
+     */
+    static long estimate(long state, long now, long windowMillis) {
+        int age = age(state, now / windowMillis);
+        double previousWeight = 1.0 - (double) (now % windowMillis) / windowMillis;
+        if (age == 0) {
+            return current(state) + (long) (previous(state) * previousWeight);
+        } else if (age == 1) {
+            return (long) (current(state) * previousWeight);
+        } else if (age < 0 && age > -MAX_LEAD) {
+            return current(state) + previous(state);
+        }
+        return 0L;
+    }
+
+    /**
+     * Returns whether counter of given state is zero in the given window and later.
+     *
+     * @param state Packed state.
+     * @param window Current window index.
+     * @return Whether the counter is expired.
+     */
+    static boolean isExpired(long state, long window) {
+        int age = age(state, window);
+        return age > 1 || age <= -MAX_LEAD;
+    }
+
+    /**
+     * Returns age of the state: number of windows from the state's window to the given one, negative for state of a
+     * newer window. Computed on low 32 bits of window indices with wraparound.
+     *
+     * @param state Packed state.
+     * @param window Current window index.
+     * @return Age of the state, in windows.
+     */
+    static int age(long state, long window) {
+        return (int) window - window(state);
+    }
+
+    /**
+     * Packs window index, current count and previous count into state.
+     *
+     * @param window Window index.
+     * @param current Current count.
+     * @param previous Previous count.
+     * @return Packed state.
+     */
+    static long pack(int window, long current, long previous) {
+        return (window & 0xFFFFFFFFL) | (current << 32) | (previous << 48);
+    }
+
+    /**
+     * Returns window index of the state, as int, since low 32 bits of window index are stored.
+     *
+     * @param state Packed state.
+     * @return Window index.
+     */
+    static int window(long state) {
+        return (int) state;
+    }
+
+    /**
+     * Returns current count of the state.
+     *
+     * @param state Packed state.
+     * @return Current count.
+     */
+    static long current(long state) {
+        return (state >>> 32) & MAX_COUNT;
+    }
+
+    /**
+     * Returns previous count of the state.
+     *
+     * @param state Packed state.
+     * @return Previous count.
+     */
+    static long previous(long state) {
+        return state >>> 48;
+    }
+}
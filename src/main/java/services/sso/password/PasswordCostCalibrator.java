@@ -0,0 +1,141 @@
+package services.sso.password;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+import java.util.function.LongSupplier;
+
+/**
+ * Benchmarks password hasher on the actual machine and picks the highest cost whose 99th percentile of hash latency
+ * stays within a budget. The cost is doubled while it fits the budget, then raised in proportion to the remaining
+ * budget, since hashing time is linear in cost. Never goes below the minimal cost: slow machine gets slow sign-ins
+ * rather than weak hashes. Measures one thread; concurrent hashes on a loaded machine take longer.
+ */
+public final class PasswordCostCalibrator {
+
+    /**
+     * Granularity of the chosen cost.
+     */
+    private static final int COST_STEP = 1000;
+
+    /**
+     * Nanosecond clock.
+     */
+    private final LongSupplier nanoClock;
+
+    /**
+     * Number of measured hashes per cost. The 99th percentile of a few samples is their maximum.
+     */
+    private final int samples;
+
+    /**
+     * Constructs calibrator.
+     *
+     * @param nanoClock Nanosecond clock, like {@link System#nanoTime()}.
+     * @param samples Number of measured hashes per cost.
+     */
+    public PasswordCostCalibrator(LongSupplier nanoClock, int samples) {
+        if (samples <= 0) {
+            throw new IllegalArgumentException("Expects positive number of samples: " + samples);
+        }
+        this.nanoClock = nanoClock;
+        this.samples = samples;
+    }
+
+    /**
+     * Picks the highest cost from minimal to maximal whose measured 99th percentile latency is within the target.
+     *
+     * @param hashers Hasher factory by cost.
+     * @param minCost Minimal cost.
+     * @param maxCost Maximal cost.
+     * @param targetMillis Latency budget, in milliseconds.
+     * @return Calibration result with the chosen hasher.
+     */
+    public PasswordHashingCalibration calibrate(
+            IntFunction<PasswordHasher> hashers,
+            int minCost,
+            int maxCost,
+            long targetMillis) {
+        // Warm up, so JIT compilation doesn't count.
+        measure(hashers.apply(minCost), 1);
+        PasswordHasher hasher = hashers.apply(minCost);
+        double[] latencies = measure(hasher, samples);
+        while (p99(latencies) <= targetMillis && hasher.getCost() <= maxCost / 2) {
+            PasswordHasher doubled = hashers.apply(hasher.getCost() * 2);
+            double[] doubledLatencies = measure(doubled, samples);
+            if (p99(doubledLatencies) > targetMillis) {
+                break;
+            }
+            hasher = doubled;
+            latencies = doubledLatencies;
+        }
+        if (p99(latencies) > 0.0 && p99(latencies) <= targetMillis) {
+            long estimate = (long) (hasher.getCost() * (targetMillis / p99(latencies)));
+            int cost = (int) Math.min(Math.min(estimate, 2L * hasher.getCost()), maxCost) / COST_STEP * COST_STEP;
+            if (cost > hasher.getCost()) {
+                PasswordHasher refined = hashers.apply(cost);
+                double[] refinedLatencies = measure(refined, samples);
+                if (p99(refinedLatencies) <= targetMillis) {
+                    hasher = refined;
+                    latencies = refinedLatencies;
+                }
+            }
+        }
+        return new PasswordHashingCalibration(hasher, targetMillis, p99(latencies), mean(latencies));
+    }
+
+    /**
+     * Measures hasher without calibration.
+     *
+     * @param hasher Password hasher.
+     * @return Calibration result with given hasher.
+     */
+    public PasswordHashingCalibration measure(PasswordHasher hasher) {
+        measure(hasher, 1);
+        double[] latencies = measure(hasher, samples);
+        return new PasswordHashingCalibration(hasher, 0L, p99(latencies), mean(latencies));
+    }
+
+    /**
+     * Returns sorted latencies of given number of hashes, in milliseconds.
+     *
+     * @param hasher Password hasher.
+     * @param count Number of hashes.
+     * @return Sorted latencies, in milliseconds.
+     */
+    private double[] measure(PasswordHasher hasher, int count) {
+        byte[] salt = new byte[64];
+        double[] latencies = new double[count];
+        for (int i = 0; i < count; i++) {
+            salt[0] = (byte) i;
+            long start = nanoClock.getAsLong();
+            hasher.hash("calibration", salt);
+            latencies[i] = (nanoClock.getAsLong() - start) / 1_000_000.0;
+        }
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * Returns 99th percentile of sorted latencies.
+     *
+     * @param latencies Sorted latencies.
+     * @return 99th percentile.
+     */
+    private static double p99(double[] latencies) {
+        return latencies[(int) Math.ceil(0.99 * latencies.length) - 1];
+    }
+
+    /**
+     * Returns mean of latencies.
+     *
+     * @param latencies Latencies.
+     * @return Mean.
+     */
+    private static double mean(double[] latencies) {
+        double sum = 0.0;
+        for (double latency : latencies) {
+            sum += latency;
+        }
+        return sum / latencies.length;
+    }
+}
@@ -0,0 +1,34 @@
+package services.sso.password;
+
+import models.sso.PasswordHashAlgorithm;
+
+/**
+ * Password hashing function (key derivation function) with its cost parameters. Implementations are deliberately
+ * slow and must be thread safe. Use {@link PasswordHashingService} to run them off request threads.
+ */
+public interface PasswordHasher {
+
+    /**
+     * Returns hash of the given password with given salt.
+     *
+     * @param password Password.
+     * @param salt Salt.
+     * @return Password hash.
+     */
+    byte[] hash(String password, byte[] salt);
+
+    /**
+     * Returns hashing algorithm, stored with the hash.
+     *
+     * @return Hashing algorithm.
+     */
+    PasswordHashAlgorithm getAlgorithm();
+
+    /**
+     * Returns algorithm specific cost, stored with the hash. Hashes are comparable only when both algorithm and cost
+     * match.
+     *
+     * @return Cost.
+     */
+    int getCost();
+}
@@ -0,0 +1,122 @@
+package services.sso.password;
+
+import models.sso.PasswordHashAlgorithm;
+
+/**
+ * Result of password hashing cost calibration: chosen hasher and its latency measured on this machine. Immutable.
+ */
+public final class PasswordHashingCalibration {
+
+    /**
+     * Chosen password hasher.
+     */
+    private final PasswordHasher hasher;
+
+    /**
+     * Latency budget, in milliseconds, 0 if the cost was not calibrated.
+     */
+    private final long targetMillis;
+
+    /**
+     * Measured 99th percentile of hash latency, in milliseconds.
+     */
+    private final double p99Millis;
+
+    /**
+     * Measured mean hash latency, in milliseconds.
+     */
+    private final double meanMillis;
+
+    /**
+     * Constructs calibration result.
+     *
+     * @param hasher Chosen password hasher.
+     * @param targetMillis Latency budget, in milliseconds, 0 if the cost was not calibrated.
+     * @param p99Millis Measured 99th percentile of hash latency, in milliseconds.
+     * @param meanMillis Measured mean hash latency, in milliseconds.
+     */
+    public PasswordHashingCalibration(PasswordHasher hasher, long targetMillis, double p99Millis, double meanMillis) {
+        this.hasher = hasher;
+        this.targetMillis = targetMillis;
+        this.p99Millis = p99Millis;
+        this.meanMillis = meanMillis;
+    }
+
+    /**
+     * Returns chosen password hasher.
+     *
+     * @return Chosen password hasher.
+     */
+    public PasswordHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Returns hashing algorithm.
+     *
+     * @return Hashing algorithm.
+     */
+    public PasswordHashAlgorithm getAlgorithm() {
+        return hasher.getAlgorithm();
+    }
+
+    /**
+     * Returns chosen cost.
+     *
+     * @return Chosen cost.
+     */
+    public int getCost() {
+        return hasher.getCost();
+    }
+
+    /**
+     * Returns whether the cost was calibrated against latency budget, rather than taken from configuration as is.
+     *
+     * @return Whether the cost was calibrated.
+     */
+    public boolean isCalibrated() {
+        return targetMillis > 0L;
+    }
+
+    /**
+     * Returns latency budget, in milliseconds, 0 if the cost was not calibrated.
+     *
+     * @return Latency budget, in milliseconds.
+     */
+    public long getTargetMillis() {
+        return targetMillis;
+    }
+
+    /**
+     * Returns measured 99th percentile of hash latency, in milliseconds.
+     *
+     * @return Measured 99th percentile of hash latency, in milliseconds.
+     */
+    public double getP99Millis() {
+        return p99Millis;
+    }
+
+    /**
+     * Returns measured mean hash latency, in milliseconds.
+     *
+     * @return Measured mean hash latency, in milliseconds.
+     */
+    public double getMeanMillis() {
+        return meanMillis;
+    }
+
+    /**
+     * Returns measured throughput of one hashing thread, in hashes per second.
+     *
+     * @return Hashes per second of one hashing thread.
+     */
+    public double getHashesPerSecond() {
+        return meanMillis > 0.0 ? 1000.0 / meanMillis : 0.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, p99: %.1f ms, mean: %.1f ms, target: %d ms", hasher, p99Millis, meanMillis,
+                targetMillis);
+    }
+}
@@ -0,0 +1,29 @@
+package services.sso.password;
+
+/**
+ * Thrown when password hashing capacity is exhausted: the queue of pending hashes is full or a hash is not computed
+ * in time. Callers are expected to respond fast (e.g. with 503) instead of waiting.
+ */
+public class PasswordHashingOverloadedException extends RuntimeException {
+
+    /**
+     * Constructs exception.
+     *
+     * @param message Message.
+     */
+    public PasswordHashingOverloadedException(String message) {
+        super(message);
+    }
+
+    /**
+     * Constructs exception.
+     *
+     * @param message Message.
+     * @param cause Cause.
+     */
+    public PasswordHashingOverloadedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    private static final long serialVersionUID = 1L;
+}
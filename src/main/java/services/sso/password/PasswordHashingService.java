@@ -0,0 +1,285 @@
+package services.sso.password;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import ninja.lifecycle.Dispose;
+import ninja.metrics.MetricsService;
+import ninja.utils.NinjaProperties;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs slow password hashing on a bounded dedicated executor, so a flood of sign-ins can't occupy all request threads
+ * with hashing and starve other endpoints. Hashes wait in a bounded queue. New hashes are rejected with
+ * {@link PasswordHashingOverloadedException} before submission when the queue is saturated: full, or so deep that the
+ * hash would not be computed within the timeout at the average hashing time. A caller waits for its hash up to the
+ * timeout; a hash that is still queued then is dropped, but a running hash can't be interrupted and completes on its
+ * thread. Reports queue depth, active hashes, rejections and hash latency as metrics. Thread safe.
+ * <p>
+ * Expects "application.sso.password.hashing.threads" (0 for number of processors),
+ * "application.sso.password.hashing.queueSize" and "application.sso.password.hashing.timeout" (milliseconds) to be
+ * defined in project properties.
+ */
+@Singleton
+public class PasswordHashingService {
+
+    /**
+     * Password hasher.
+     */
+    private final PasswordHasher hasher;
+
+    /**
+     * Hashing executor.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Number of hashing threads.
+     */
+    private final int threads;
+
+    /**
+     * Maximum time a caller waits for a hash, in milliseconds. Running hashes are not stopped on timeout.
+     */
+    private final long timeoutMillis;
+
+    /**
+     * Moving average of time to compute a hash on hashing thread, in nanoseconds, 0 until the first hash.
+     */
+    private volatile long averageHashNanos;
+
+    /**
+     * Hash latency, from submission to result.
+     */
+    private final Timer latency;
+
+    /**
+     * Rejected hashes.
+     */
+    private final Meter rejected;
+
+    /**
+     * Constructs hashing service.
+     *
+     * @param hasher Password hasher.
+     * @param threads Number of hashing threads.
+     * @param queueSize Maximum number of hashes waiting for a thread.
+     * @param timeoutMillis Maximum time a caller waits for a hash, in milliseconds.
+     * @param registry Metric registry.
+     */
+    public PasswordHashingService(
+            PasswordHasher hasher,
+            int threads,
+            int queueSize,
+            long timeoutMillis,
+            MetricRegistry registry) {
+        this.hasher = hasher;
+        this.threads = threads;
+        this.timeoutMillis = timeoutMillis;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "password-hashing-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.latency = registry.timer(MetricRegistry.name(PasswordHashingService.class, "latency"));
+        this.rejected = registry.meter(MetricRegistry.name(PasswordHashingService.class, "rejected"));
+        registry.register(MetricRegistry.name(PasswordHashingService.class, "queueDepth"),
+                (Gauge<Integer>) this::getQueueDepth);
+        registry.register(MetricRegistry.name(PasswordHashingService.class, "active"),
+                (Gauge<Integer>) executor::getActiveCount);
+    }
+
+    /**
+     * Constructs hashing service from properties and registers its metrics.
+     *
+     * @param hasher Password hasher.
+     * @param metricsService Metrics service.
+     * @param properties Properties.
+     */
+    @Inject
+    public PasswordHashingService(PasswordHasher hasher, MetricsService metricsService, NinjaProperties properties) {
+        this(hasher,
+                threads(properties.getIntegerWithDefault("application.sso.password.hashing.threads", 0)),
+                properties.getIntegerWithDefault("application.sso.password.hashing.queueSize", 64),
+                properties.getIntegerWithDefault("application.sso.password.hashing.timeout", 2000),
+                metricsService.getMetricRegistry());
+    }
+
+    /**
+     * Returns hash of the given password with given salt, computed by current hasher on hashing executor.
+     *
+     * @param password Password.
+     * @param salt Salt.
+     * @return Password hash.
+     * @throws PasswordHashingOverloadedException When the queue is saturated or the hash is not computed in time.
+     */
+    public byte[] hash(String password, byte[] salt) {
+        return hash(hasher, password, salt);
+    }
+
+    /**
+     * Returns hash of the given password with given salt, computed by given hasher on hashing executor. Used to verify
+     * hashes of former algorithms and costs.
+     *
+     * @param hasher Password hasher.
+     * @param password Password.
+     * @param salt Salt.
+     * @return Password hash.
+     * @throws PasswordHashingOverloadedException When the queue is saturated or the hash is not computed in time.
+     */
+    public byte[] hash(PasswordHasher hasher, String password, byte[] salt) {
+        if (isSaturated()) {
+            rejected.mark();
+            throw new PasswordHashingOverloadedException("Password hashing queue is saturated.");
+        }
+        Timer.Context time = latency.time();
+        Future<byte[]> future;
+        try {
+            future = executor.submit(() -> compute(hasher, password, salt));
+        } catch (RejectedExecutionException e) {
+            rejected.mark();
+            throw new PasswordHashingOverloadedException("Password hashing queue is full.", e);
+        }
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            drop(future);
+            rejected.mark();
+            throw new PasswordHashingOverloadedException("Password hashing timed out.", e);
+        } catch (InterruptedException e) {
+            drop(future);
+            Thread.currentThread().interrupt();
+            throw new PasswordHashingOverloadedException("Interrupted while waiting for password hash.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Password hashing failed.", e.getCause());
+        } finally {
+            time.stop();
+        }
+    }
+
+    /**
+     * Computes hash of the given password with given salt by current hasher on hashing executor, without waiting.
+     * Dependent actions of the returned future run on hashing thread, unless async variants are used.
+     *
+     * @param password Password.
+     * @param salt Salt.
+     * @return Future of password hash, completed exceptionally with {@link PasswordHashingOverloadedException} when
+     * the queue is saturated.
+     */
+    public CompletableFuture<byte[]> hashAsync(String password, byte[] salt) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        if (isSaturated()) {
+            rejected.mark();
+            future.completeExceptionally(
+                    new PasswordHashingOverloadedException("Password hashing queue is saturated."));
+            return future;
+        }
+        Timer.Context time = latency.time();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(compute(hasher, password, salt));
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    time.stop();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.mark();
+            future.completeExceptionally(new PasswordHashingOverloadedException("Password hashing queue is full.", e));
+        }
+        return future;
+    }
+
+    /**
+     * Returns password hasher.
+     *
+     * @return Password hasher.
+     */
+    public PasswordHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Returns number of hashes waiting for a thread.
+     *
+     * @return Number of hashes waiting for a thread.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns whether a new hash would not be computed within the timeout: it waits for the queued hashes, in rounds
+     * of the number of threads, and is computed in the next round.
+     *
+     * @return Whether the queue is saturated.
+     */
+    private boolean isSaturated() {
+        long average = averageHashNanos;
+        int queued = executor.getQueue().size();
+        return average > 0L && (queued / threads + 1) * average > TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Computes hash on hashing thread and updates average hashing time.
+     *
+     * @param hasher Password hasher.
+     * @param password Password.
+     * @param salt Salt.
+     * @return Password hash.
+     */
+    private byte[] compute(PasswordHasher hasher, String password, byte[] salt) {
+        long start = System.nanoTime();
+        byte[] hash = hasher.hash(password, salt);
+        long elapsed = System.nanoTime() - start;
+        long average = averageHashNanos;
+        averageHashNanos = average == 0L ? elapsed : average + (elapsed - average) / 8L;
+        return hash;
+    }
+
+    /**
+     * Drops the hash nobody waits for if it is still queued. Running hash is not interruptible and completes.
+     *
+     * @param future Future of the hash.
+     */
+    private void drop(Future<byte[]> future) {
+        future.cancel(false);
+        executor.remove((Runnable) future);
+    }
+
+    /**
+     * Stops hashing threads.
+     */
+    @Dispose
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns number of hashing threads for configured value.
+     *
+     * @param threads Configured number of threads, 0 or less for number of available processors.
+     * @return Number of hashing threads.
+     */
+    private static int threads(int threads) {
+        return threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+}
@@ -0,0 +1,83 @@
+package services.sso.password;
+
+import models.sso.PasswordHashAlgorithm;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * PBKDF2-HMAC-SHA512 password hasher with configurable number of iterations. Produces 64 byte hashes.
+ */
+public final class Pbkdf2PasswordHasher implements PasswordHasher {
+
+    /**
+     * Key derivation algorithm.
+     */
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA512";
+
+    /**
+     * Hash length, in bits.
+     */
+    private static final int HASH_LENGTH_BITS = 512;
+
+    /**
+     * Number of iterations.
+     */
+    private final int iterations;
+
+    /**
+     * Constructs hasher.
+     *
+     * @param iterations Number of iterations.
+     * @throws IllegalArgumentException When the number of iterations is not positive.
+     */
+    public Pbkdf2PasswordHasher(int iterations) {
+        if (iterations <= 0) {
+            throw new IllegalArgumentException("Expects positive number of iterations: " + iterations);
+        }
+        this.iterations = iterations;
+    }
+
+    /**
+     * Returns number of iterations.
+     *
+     * @return Number of iterations.
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+        PBEKeySpec keySpec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_LENGTH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(keySpec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported.", e);
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+
+    @Override
+    public PasswordHashAlgorithm getAlgorithm() {
+        return PasswordHashAlgorithm.PBKDF2_SHA512;
+    }
+
+    /**
+     * Returns cost, the number of iterations.
+     *
+     * @return Number of iterations.
+     */
+    @Override
+    public int getCost() {
+        return iterations;
+    }
+
+    @Override
+    public String toString() {
+        return "PBKDF2_SHA512(iterations=" + iterations + ")";
+    }
+}
@@ -0,0 +1,53 @@
+package services.sso.password;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import models.sso.PasswordHashAlgorithm;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Legacy password hasher: single SHA-512 over salt and password. Fast, so it offers little protection of leaked
+ * hashes, kept to verify existing hashes.
+ */
+public final class Sha512PasswordHasher implements PasswordHasher {
+
+    /**
+     * Hash length, in bytes.
+     */
+    static final int HASH_LENGTH = 64;
+
+    /**
+     * Hash function: sha-512.
+     */
+    private final HashFunction hashFunction = Hashing.sha512();
+
+    @Override
+    public byte[] hash(String password, byte[] salt) {
+        return hashFunction.newHasher(HASH_LENGTH)
+                .putBytes(salt)
+                .putString(password, StandardCharsets.UTF_8)
+                .hash()
+                .asBytes();
+    }
+
+    @Override
+    public PasswordHashAlgorithm getAlgorithm() {
+        return PasswordHashAlgorithm.SHA512;
+    }
+
+    /**
+     * Returns cost, always 0 since the algorithm has no cost parameters.
+     *
+     * @return Cost, always 0.
+     */
+    @Override
+    public int getCost() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return "SHA512";
+    }
+}
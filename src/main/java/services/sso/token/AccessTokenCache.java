@@ -0,0 +1,148 @@
+package services.sso.token;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenType;
+import models.sso.token.ExpiredTokenException;
+import models.sso.token.IllegalTokenException;
+import ninja.metrics.MetricsService;
+import ninja.utils.NinjaProperties;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded cache of verified (decrypted) access tokens. Keyed by SHA-256 digest of the encrypted token, so an entry
+ * takes fixed memory regardless of the token length. Entries are never returned after the token's own expiration
+ * time. Only {@link ExpirableTokenType#ACCESS} tokens are cached. Thread safe.
+ * <p>
+ * Expects "application.sso.accessToken.cache.maxSize" (number of entries, 0 disables the cache) and
+ * "application.sso.accessToken.ttl" to be defined in project properties.
+ */
+@Singleton
+public class AccessTokenCache {
+
+    /**
+     * Digest function for cache keys.
+     */
+    private static final HashFunction DIGEST = Hashing.sha256();
+
+    /**
+     * Expirable token encryptor.
+     */
+    private final ExpirableTokenEncryptor encryptor;
+
+    /**
+     * Cache from token digest to decrypted token. Null when the cache is disabled.
+     */
+    private final Cache<HashCode, ExpirableToken> cache;
+
+    /**
+     * Constructs access token cache with given maximum size and maximum time to live of an entry.
+     *
+     * @param encryptor Expirable token encryptor.
+     * @param maximumSize Maximum number of entries, 0 disables the cache.
+     * @param maximumTimeToLiveMillis Maximum time to live of an entry, in milliseconds.
+     */
+    public AccessTokenCache(ExpirableTokenEncryptor encryptor, long maximumSize, long maximumTimeToLiveMillis) {
+        this.encryptor = encryptor;
+        this.cache = maximumSize <= 0L ? null : CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(maximumTimeToLiveMillis, TimeUnit.MILLISECONDS)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Constructs access token cache from properties and registers its metrics.
+     *
+     * @param encryptor Expirable token encryptor.
+     * @param metricsService Metrics service.
+     * @param properties Properties.
+     */
+    @Inject
+    public AccessTokenCache(
+            ExpirableTokenEncryptor encryptor,
+            MetricsService metricsService,
+            NinjaProperties properties) {
+        this(encryptor,
+                properties.getIntegerWithDefault("application.sso.accessToken.cache.maxSize", 50_000),
+                1000L * properties.getIntegerOrDie("application.sso.accessToken.ttl"));
+        registerMetrics(metricsService.getMetricRegistry());
+    }
+
+    /**
+     * Returns decrypted token for given encrypted token. Returns cached access token if there is one. Otherwise
+     * decrypts the token and caches it if it is an access token.
+     *
+     * @param token Encrypted token.
+     * @return Decrypted token (never returns null if there are no exception).
+     * @throws ExpiredTokenException When the token is legal but expired.
+     * @throws IllegalTokenException When the token is not legal.
+     */
+    public ExpirableToken decrypt(String token) throws ExpiredTokenException, IllegalTokenException {
+        if (cache == null || token == null || token.isEmpty()) {
+            return encryptor.decrypt(token);
+        }
+        HashCode key = DIGEST.hashString(token, StandardCharsets.UTF_8);
+        ExpirableToken cached = cache.getIfPresent(key);
+        if (cached != null) {
+            if (!cached.isExpired()) {
+                return cached;
+            }
+            cache.invalidate(key);
+        }
+        ExpirableToken decrypted = encryptor.decrypt(token);
+        if (ExpirableTokenType.ACCESS.equals(decrypted.getType())) {
+            cache.put(key, decrypted);
+        }
+        return decrypted;
+    }
+
+    /**
+     * Returns approximate number of cached tokens.
+     *
+     * @return Approximate number of cached tokens.
+     */
+    public long size() {
+        return cache == null ? 0L : cache.size();
+    }
+
+    /**
+     * Returns number of cache hits.
+     *
+     * @return Number of cache hits.
+     */
+    public long hitCount() {
+        return cache == null ? 0L : cache.stats().hitCount();
+    }
+
+    /**
+     * Returns number of cache misses.
+     *
+     * @return Number of cache misses.
+     */
+    public long missCount() {
+        return cache == null ? 0L : cache.stats().missCount();
+    }
+
+    /**
+     * Registers size, hits and misses gauges in given registry.
+     *
+     * @param registry Metric registry.
+     */
+    private void registerMetrics(MetricRegistry registry) {
+        registry.register(MetricRegistry.name(AccessTokenCache.class, "size"), (Gauge<Long>) this::size);
+        registry.register(MetricRegistry.name(AccessTokenCache.class, "hits"), (Gauge<Long>) this::hitCount);
+        registry.register(MetricRegistry.name(AccessTokenCache.class, "misses"), (Gauge<Long>) this::missCount);
+    }
+}
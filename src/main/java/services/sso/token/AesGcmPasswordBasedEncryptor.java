@@ -0,0 +1,323 @@
+package services.sso.token;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * AES-GCM password based encryptor/decryptor: single pass authenticated encryption, hardware accelerated on most
+ * CPUs. Key is derived from the password once, with PBKDF2. Tampered messages are rejected by the authentication
+ * tag check before any decrypted data is returned.
+ * Encrypted message contains: GCM marker with key size/64, random nonce of 12 bytes, encrypted message with
+ * 16 bytes tag.
+ * <p>
+ * Messages without GCM marker are passed to the legacy decryptor (if any), so tokens encrypted by
+ * {@link AesPasswordBasedEncryptor} are accepted after switching to this encryptor. Since nonces are random, rotate
+ * the password long before 2^32 messages are encrypted with it.
+ * <p>
+ * Ciphers are reused per thread. Byte array and {@link ByteBuffer} methods work on buffers directly, without streams
+ * and intermediate copies.
+ */
+public class AesGcmPasswordBasedEncryptor implements PasswordBasedEncryptor {
+
+    /**
+     * Encryption algorithm.
+     */
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+
+    /**
+     * Encryption algorithm for key.
+     */
+    private static final String ALGORITHM_FOR_KEY_SPEC = "AES";
+
+    /**
+     * Key generator algorithm.
+     */
+    private static final String KEY_GENERATOR = "PBKDF2WithHmacSHA1";
+
+    /**
+     * Flag in the first header byte that marks GCM messages. Never set by {@link AesPasswordBasedEncryptor}.
+     */
+    private static final int GCM_FLAG = 0x40;
+
+    /**
+     * Nonce size, in bytes.
+     */
+    private static final int NONCE_SIZE = 12;
+
+    /**
+     * Authentication tag size, in bits.
+     */
+    private static final int TAG_SIZE = 128;
+
+    /**
+     * Size of GCM marker, nonce and authentication tag, in bytes.
+     */
+    private static final int OVERHEAD = 1 + NONCE_SIZE + TAG_SIZE / 8;
+
+    /**
+     * Constant salt to derive the key from password. Must be the same on all nodes.
+     */
+    private static final byte[] KEY_SALT = "ninja-sso-um/aes-gcm/key".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Using thread local {@link SecureRandom} for efficiency and uniform distribution.
+     */
+    private static final ThreadLocal<SecureRandom> secureRandom =
+            ThreadLocal.withInitial(() ->
+                    new SecureRandom(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8)));
+
+    /**
+     * Using thread local {@link Cipher} since it is not thread safe and relatively expensive to look up.
+     */
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported.", e);
+        }
+    });
+
+    /**
+     * Key size.
+     */
+    private final short keySize;
+
+    /**
+     * Encryption key.
+     */
+    private final SecretKey key;
+
+    /**
+     * Buffer size for reading.
+     */
+    private final int readBufferSize;
+
+    /**
+     * Decryptor for messages without GCM marker. May be null.
+     */
+    private final PasswordBasedEncryptor legacyDecryptor;
+
+    /**
+     * Constructs AES-GCM PBE with 1024 iterations and 512 bytes for read buffer.
+     *
+     * @param password        Password.
+     * @param keySize         Key size in bits.
+     * @param legacyDecryptor Decryptor for messages without GCM marker, may be null.
+     */
+    public AesGcmPasswordBasedEncryptor(char[] password, short keySize, PasswordBasedEncryptor legacyDecryptor) {
+        this(password, 1024, keySize, 512, legacyDecryptor);
+    }
+
+    /**
+     * Constructs AES-GCM password based encryptor (PBE). Derives the key from the password right away.
+     *
+     * @param password           Password.
+     * @param passwordIterations Iterations to construct a key from password.
+     * @param keySize            Key size in bits.
+     * @param readBufferSize     Read buffer size for encryption/decryption.
+     * @param legacyDecryptor    Decryptor for messages without GCM marker, may be null.
+     * @throws IllegalStateException When the key can't be derived.
+     */
+    public AesGcmPasswordBasedEncryptor(char[] password, int passwordIterations, short keySize, int readBufferSize,
+                                        PasswordBasedEncryptor legacyDecryptor) {
+        this.keySize = keySize;
+        this.readBufferSize = readBufferSize;
+        this.legacyDecryptor = legacyDecryptor;
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_GENERATOR);
+            PBEKeySpec keySpec = new PBEKeySpec(password, KEY_SALT, passwordIterations, keySize);
+            this.key = new SecretKeySpec(factory.generateSecret(keySpec).getEncoded(), ALGORITHM_FOR_KEY_SPEC);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("Unable to derive key.", e);
+        }
+    }
+
+    @Override
+    public void encrypt(InputStream inputStream, OutputStream outputStream) throws IOException, EncryptionException {
+        byte[] nonce = new byte[NONCE_SIZE];
+        secureRandom.get().nextBytes(nonce);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE, nonce));
+
+            // 1. GCM marker and key size/64 (unlike key size/128, tells 192-bit keys apart).
+            outputStream.write(GCM_FLAG | (keySize >>> 6));
+            // 2. Nonce.
+            outputStream.write(nonce);
+
+            // 3. Encrypted data and tag until the end of the input stream.
+            byte[] readBuffer = new byte[readBufferSize];
+            int readBytes;
+            byte[] encrypted;
+            while ((readBytes = inputStream.read(readBuffer)) > 0) {
+                encrypted = cipher.update(readBuffer, 0, readBytes);
+                if (encrypted != null) {
+                    outputStream.write(encrypted);
+                }
+            }
+            encrypted = cipher.doFinal();
+            if (encrypted != null) {
+                outputStream.write(encrypted);
+            }
+        } catch (InvalidAlgorithmParameterException | BadPaddingException | IllegalBlockSizeException e) {
+            throw new EncryptionException(e.getMessage(), e);
+        } catch (InvalidKeyException ike) {
+            throw new EncryptionException("Unable to use strong encryption.", ike);
+        }
+    }
+
+    @Override
+    public void decrypt(InputStream inputStream, OutputStream outputStream) throws IOException, DecryptionException {
+        PushbackInputStream pis = new PushbackInputStream(inputStream, 1);
+
+        // 1. Read GCM marker and key size.
+        int header = pis.read();
+        if (header < 0) {
+            throw new DecryptionException("Unexpected end of message.", new EOFException());
+        }
+        if ((header & GCM_FLAG) == 0) {
+            if (legacyDecryptor == null) {
+                throw new DecryptionException("Not a GCM message.", new IllegalArgumentException());
+            }
+            pis.unread(header);
+            legacyDecryptor.decrypt(pis, outputStream);
+            return;
+        }
+        if (((header & ~GCM_FLAG) << 6) != keySize) {
+            throw new DecryptionException("Unexpected key size.", new IllegalArgumentException());
+        }
+
+        // 2. Read nonce.
+        DataInputStream dis = new DataInputStream(pis);
+        byte[] nonce = new byte[NONCE_SIZE];
+        dis.readFully(nonce);
+
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE, nonce));
+
+            // 3. Read and decrypt data, the tag is verified at the end.
+            byte[] readBuffer = new byte[readBufferSize];
+            int readBytes;
+            byte[] decrypted;
+            while ((readBytes = dis.read(readBuffer)) > 0) {
+                decrypted = cipher.update(readBuffer, 0, readBytes);
+                if (decrypted != null) {
+                    outputStream.write(decrypted);
+                }
+            }
+            decrypted = cipher.doFinal();
+            if (decrypted != null) {
+                outputStream.write(decrypted);
+            }
+        } catch (AEADBadTagException e) {
+            throw new DecryptionException("Message authentication failed.", e);
+        } catch (BadPaddingException | IllegalBlockSizeException | InvalidAlgorithmParameterException e) {
+            throw new DecryptionException(e.getMessage(), e);
+        } catch (InvalidKeyException ike) {
+            throw new DecryptionException("Unable to use strong encryption.", ike);
+        }
+    }
+
+    @Override
+    public int getMaxEncryptedLength(int length) {
+        return OVERHEAD + length;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws EncryptionException {
+        byte[] result = new byte[getMaxEncryptedLength(data.length)];
+        encrypt(ByteBuffer.wrap(data), ByteBuffer.wrap(result));
+        return result;
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encrypted) throws DecryptionException {
+        ByteBuffer output = ByteBuffer.allocate(encrypted.length);
+        decrypt(ByteBuffer.wrap(encrypted), output);
+        return output.hasRemaining() ? Arrays.copyOf(output.array(), output.position()) : output.array();
+    }
+
+    @Override
+    public void encrypt(ByteBuffer input, ByteBuffer output) throws EncryptionException {
+        if (output.remaining() < getMaxEncryptedLength(input.remaining())) {
+            throw new EncryptionException("Output buffer is too small.", new ShortBufferException());
+        }
+        byte[] nonce = new byte[NONCE_SIZE];
+        secureRandom.get().nextBytes(nonce);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE, nonce));
+
+            // Same layout as stream encryption: GCM marker and key size/64, nonce, encrypted data and tag.
+            output.put((byte) (GCM_FLAG | (keySize >>> 6)));
+            output.put(nonce);
+            cipher.doFinal(input, output);
+        } catch (InvalidAlgorithmParameterException | ShortBufferException | BadPaddingException |
+                IllegalBlockSizeException e) {
+            throw new EncryptionException(e.getMessage(), e);
+        } catch (InvalidKeyException ike) {
+            throw new EncryptionException("Unable to use strong encryption.", ike);
+        }
+    }
+
+    @Override
+    public void decrypt(ByteBuffer input, ByteBuffer output) throws DecryptionException {
+        if (!input.hasRemaining()) {
+            throw new DecryptionException("Unexpected end of message.", new EOFException());
+        }
+        int header = input.get(input.position()) & 0xFF;
+        if ((header & GCM_FLAG) == 0) {
+            if (legacyDecryptor == null) {
+                throw new DecryptionException("Not a GCM message.", new IllegalArgumentException());
+            }
+            legacyDecryptor.decrypt(input, output);
+            return;
+        }
+        if (((header & ~GCM_FLAG) << 6) != keySize) {
+            throw new DecryptionException("Unexpected key size.", new IllegalArgumentException());
+        }
+        if (input.remaining() < OVERHEAD) {
+            throw new DecryptionException("Unexpected end of message.", new EOFException());
+        }
+        input.get();
+        byte[] nonce = new byte[NONCE_SIZE];
+        input.get(nonce);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_SIZE, nonce));
+            cipher.doFinal(input, output);
+        } catch (AEADBadTagException e) {
+            throw new DecryptionException("Message authentication failed.", e);
+        } catch (ShortBufferException | BadPaddingException | IllegalBlockSizeException |
+                InvalidAlgorithmParameterException e) {
+            throw new DecryptionException(e.getMessage(), e);
+        } catch (InvalidKeyException ike) {
+            throw new DecryptionException("Unable to use strong encryption.", ike);
+        }
+    }
+}
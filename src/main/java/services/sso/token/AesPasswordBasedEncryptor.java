@@ -6,6 +6,7 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKey;
 import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -14,6 +15,7 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -22,6 +24,7 @@ import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.InvalidParameterSpecException;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
 import java.util.UUID;
 
 /**
@@ -29,6 +32,12 @@ import java.util.UUID;
  * Policy jars. 192 and 256-bit encryption available with these jars installed.
  * Encrypted message contains: key size/128, generated salt size and salt itself, initialization vector size and vector
  * itself, encrypted message.
+ * <p>
+ * Message key is derived from the salt with one of {@link KeyDerivation} functions. The highest bit of the first byte
+ * tells which one was used, so messages encrypted in any mode are decrypted regardless of the current mode.
+ * <p>
+ * Ciphers are reused per thread. Byte array and {@link ByteBuffer} methods work on buffers directly, without streams
+ * and intermediate copies.
  */
 public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
 
@@ -47,6 +56,36 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
      */
     private static final String KEY_GENERATOR = "PBKDF2WithHmacSHA1";
 
+    /**
+     * AES block size and initialization vector size, in bytes.
+     */
+    private static final int BLOCK_SIZE = 16;
+
+    /**
+     * Size of the fixed part of the header: key size and flag, salt length, initialization vector length.
+     */
+    private static final int HEADER_SIZE = 5;
+
+    /**
+     * Flag in the first header byte that marks messages with keys derived by {@link KeyDerivation#HKDF}.
+     */
+    private static final int HKDF_FLAG = 0x80;
+
+    /**
+     * Master key size in bits, for {@link KeyDerivation#HKDF}. Enough for any supported AES key size.
+     */
+    private static final int MASTER_KEY_SIZE = 256;
+
+    /**
+     * Constant salt to derive master key from password. Must be the same on all nodes.
+     */
+    private static final byte[] MASTER_KEY_SALT = "ninja-sso-um/aes-pbe/master-key".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Context information for HKDF message key derivation.
+     */
+    private static final byte[] HKDF_INFO = "ninja-sso-um/aes-pbe/message-key".getBytes(StandardCharsets.UTF_8);
+
     /**
      * Using thread local {@link SecureRandom} for efficiency and uniform distribution.
      */
@@ -54,6 +93,17 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
             ThreadLocal.withInitial(() ->
                     new SecureRandom(UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8)));
 
+    /**
+     * Using thread local {@link Cipher} since it is not thread safe and relatively expensive to look up.
+     */
+    private static final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported.", e);
+        }
+    });
+
     /**
      * Password for encryption.
      */
@@ -79,6 +129,16 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
      */
     private final int readBufferSize;
 
+    /**
+     * Key derivation function for new messages.
+     */
+    private final KeyDerivation keyDerivation;
+
+    /**
+     * Master key derived from password once, for {@link KeyDerivation#HKDF}.
+     */
+    private final byte[] masterKey;
+
     /**
      * Constructs 128-bit AES PBE with 1024 iterations, salt of 16 bytes and 512 bytes for read buffer.
      *
@@ -88,6 +148,18 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
         this(password, 1024, (short) 128, (short) 16, 512);
     }
 
+    /**
+     * Constructs arbitrary AES PBE with given key derivation, 1024 iterations, salt of 16 bytes and 512 bytes for
+     * read buffer.
+     *
+     * @param password      Password.
+     * @param keySize       Key size
+     * @param keyDerivation Key derivation function for new messages.
+     */
+    public AesPasswordBasedEncryptor(char[] password, short keySize, KeyDerivation keyDerivation) {
+        this(password, 1024, keySize, (short) 16, 512, keyDerivation);
+    }
+
     /**
      * Constructs arbitrary AES PBE with 1024 iterations, salt of 16 bytes and 512 bytes for read buffer.
      *
@@ -109,18 +181,53 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
      */
     public AesPasswordBasedEncryptor(char[] password, int passwordIterations, short keySize, short saltSize,
                                      int readBufferSize) {
+        this(password, passwordIterations, keySize, saltSize, readBufferSize, KeyDerivation.PBKDF2);
+    }
+
+    /**
+     * Constructs arbitrary AES password based encryptor (PBE). Derives master key from the password right away.
+     *
+     * @param password           Password.
+     * @param passwordIterations Iterations to construct a hash from password.
+     * @param keySize            Key size in bits.
+     * @param saltSize           Salt size.
+     * @param readBufferSize     Read buffer size for encryption/decryption.
+     * @param keyDerivation      Key derivation function for new messages.
+     * @throws IllegalStateException When master key can't be derived.
+     */
+    public AesPasswordBasedEncryptor(char[] password, int passwordIterations, short keySize, short saltSize,
+                                     int readBufferSize, KeyDerivation keyDerivation) {
         this.password = password;
         this.keySize = keySize;
         this.saltSize = saltSize;
         this.passwordIterations = passwordIterations;
         this.readBufferSize = readBufferSize;
+        this.keyDerivation = keyDerivation;
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_GENERATOR);
+            KeySpec keySpec = new PBEKeySpec(password, MASTER_KEY_SALT, passwordIterations, MASTER_KEY_SIZE);
+            this.masterKey = factory.generateSecret(keySpec).getEncoded();
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("Unable to derive master key.", e);
+        }
+    }
+
+    /**
+     * Returns key derivation function for new messages.
+     *
+     * @return Key derivation function for new messages.
+     */
+    public KeyDerivation getKeyDerivation() {
+        return keyDerivation;
     }
 
     @Override
     public void encrypt(InputStream inputStream, OutputStream outputStream) throws IOException, EncryptionException {
         try {
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            KeySpecAndSalt keySpecAndSalt = new KeySpecAndSalt(password, passwordIterations, keySize, saltSize);
+            Cipher cipher = ciphers.get();
+            KeySpecAndSalt keySpecAndSalt = KeyDerivation.HKDF.equals(keyDerivation) ?
+                    new KeySpecAndSalt(masterKey, keySize, saltSize) :
+                    new KeySpecAndSalt(password, passwordIterations, keySize, saltSize);
 
             cipher.init(Cipher.ENCRYPT_MODE, keySpecAndSalt.encryptionKeySpec);
             byte[] iv = cipher.getParameters().getParameterSpec(IvParameterSpec.class).getIV();
@@ -129,8 +236,9 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
 
             // 1. Key size into the data stream.
             // Since this is power of two and no one needs keys less than 128 bits we can divide it
-            // by 2^7. This allows to use keys up to 16384 bits and have it packed in single byte.
-            dos.write(keySize >>> 7);
+            // by 2^7. This allows to use keys up to 8192 bits and have it packed in single byte, the highest bit
+            // marks key derivation function.
+            dos.write((keySize >>> 7) | (KeyDerivation.HKDF.equals(keyDerivation) ? HKDF_FLAG : 0));
             // 2. Write key specification + salt length.
             dos.writeShort(keySpecAndSalt.salt.length);
             // 3. Write initialization vector length.
@@ -155,8 +263,7 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
                 outputStream.write(encrypted);
             }
 
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidParameterSpecException |
-                BadPaddingException | IllegalBlockSizeException e) {
+        } catch (InvalidParameterSpecException | BadPaddingException | IllegalBlockSizeException e) {
             throw new EncryptionException(e.getMessage(), e);
         } catch (InvalidKeyException ike) {
             throw new EncryptionException("Unable to use strong encryption.", ike);
@@ -167,8 +274,13 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
     public void decrypt(InputStream inputStream, OutputStream outputStream) throws IOException, DecryptionException {
         DataInputStream dis = new DataInputStream(inputStream);
 
-        // 1. Read key size and restore it by multiplying it by 2^7.
-        short encryptedKeySize = (short) (dis.read() << 7);
+        // 1. Read key derivation flag and key size and restore it by multiplying it by 2^7.
+        int keySizeAndFlag = dis.read();
+        if (keySizeAndFlag < 0) {
+            throw new DecryptionException("Unexpected end of message.", new IOException("End of stream."));
+        }
+        boolean derivedWithHkdf = (keySizeAndFlag & HKDF_FLAG) != 0;
+        short encryptedKeySize = (short) ((keySizeAndFlag & ~HKDF_FLAG) << 7);
         // 2. Read key specification + salt length.
         short encryptedSaltLength = dis.readShort();
         // 3. Read initialization vector length.
@@ -184,8 +296,10 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
 
         try {
             // 6. Initialize cipher, key specification and salt.
-            Cipher cipher = Cipher.getInstance(ALGORITHM);
-            KeySpecAndSalt keySpecAndSalt = new KeySpecAndSalt(password, passwordIterations, encryptedKeySize, salt);
+            Cipher cipher = ciphers.get();
+            KeySpecAndSalt keySpecAndSalt = derivedWithHkdf ?
+                    new KeySpecAndSalt(masterKey, encryptedKeySize, salt) :
+                    new KeySpecAndSalt(password, passwordIterations, encryptedKeySize, salt);
 
             cipher.init(Cipher.DECRYPT_MODE, keySpecAndSalt.encryptionKeySpec, new IvParameterSpec(iv));
 
@@ -206,7 +320,90 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
             if (decrypted != null) {
                 outputStream.write(decrypted);
             }
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | BadPaddingException | IllegalBlockSizeException |
+        } catch (BadPaddingException | IllegalBlockSizeException | InvalidAlgorithmParameterException e) {
+            throw new DecryptionException(e.getMessage(), e);
+        } catch (InvalidKeyException ike) {
+            throw new DecryptionException("Unable to use strong encryption.", ike);
+        }
+    }
+
+    @Override
+    public int getMaxEncryptedLength(int length) {
+        // Header, salt, initialization vector and data padded to the next block.
+        return HEADER_SIZE + saltSize + BLOCK_SIZE + (length / BLOCK_SIZE + 1) * BLOCK_SIZE;
+    }
+
+    @Override
+    public byte[] encrypt(byte[] data) throws EncryptionException {
+        ByteBuffer output = ByteBuffer.allocate(getMaxEncryptedLength(data.length));
+        encrypt(ByteBuffer.wrap(data), output);
+        return output.hasRemaining() ? Arrays.copyOf(output.array(), output.position()) : output.array();
+    }
+
+    @Override
+    public byte[] decrypt(byte[] encrypted) throws DecryptionException {
+        ByteBuffer output = ByteBuffer.allocate(encrypted.length);
+        decrypt(ByteBuffer.wrap(encrypted), output);
+        return Arrays.copyOf(output.array(), output.position());
+    }
+
+    @Override
+    public void encrypt(ByteBuffer input, ByteBuffer output) throws EncryptionException {
+        if (output.remaining() < getMaxEncryptedLength(input.remaining())) {
+            throw new EncryptionException("Output buffer is too small.", new ShortBufferException());
+        }
+        boolean hkdf = KeyDerivation.HKDF.equals(keyDerivation);
+        KeySpecAndSalt keySpecAndSalt = hkdf ?
+                new KeySpecAndSalt(masterKey, keySize, saltSize) :
+                new KeySpecAndSalt(password, passwordIterations, keySize, saltSize);
+        byte[] iv = new byte[BLOCK_SIZE];
+        secureRandom.get().nextBytes(iv);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, keySpecAndSalt.encryptionKeySpec, new IvParameterSpec(iv));
+
+            // Same layout as stream encryption: key size and flag, salt length, initialization vector length,
+            // salt, initialization vector, encrypted data.
+            output.put((byte) ((keySize >>> 7) | (hkdf ? HKDF_FLAG : 0)));
+            putShort(output, keySpecAndSalt.salt.length);
+            putShort(output, iv.length);
+            output.put(keySpecAndSalt.salt);
+            output.put(iv);
+            cipher.doFinal(input, output);
+        } catch (InvalidAlgorithmParameterException | ShortBufferException | BadPaddingException |
+                IllegalBlockSizeException e) {
+            throw new EncryptionException(e.getMessage(), e);
+        } catch (InvalidKeyException ike) {
+            throw new EncryptionException("Unable to use strong encryption.", ike);
+        }
+    }
+
+    @Override
+    public void decrypt(ByteBuffer input, ByteBuffer output) throws DecryptionException {
+        if (input.remaining() < HEADER_SIZE) {
+            throw new DecryptionException("Unexpected end of message.", new IOException("End of buffer."));
+        }
+        int keySizeAndFlag = input.get() & 0xFF;
+        boolean derivedWithHkdf = (keySizeAndFlag & HKDF_FLAG) != 0;
+        short encryptedKeySize = (short) ((keySizeAndFlag & ~HKDF_FLAG) << 7);
+        int saltLength = getShort(input);
+        int ivLength = getShort(input);
+        if (ivLength != BLOCK_SIZE || saltLength > input.remaining() - ivLength) {
+            throw new DecryptionException("Illegal message header.", new IOException("Illegal header."));
+        }
+        byte[] salt = new byte[saltLength];
+        input.get(salt);
+        byte[] iv = new byte[ivLength];
+        input.get(iv);
+
+        KeySpecAndSalt keySpecAndSalt = derivedWithHkdf ?
+                new KeySpecAndSalt(masterKey, encryptedKeySize, salt) :
+                new KeySpecAndSalt(password, passwordIterations, encryptedKeySize, salt);
+        try {
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, keySpecAndSalt.encryptionKeySpec, new IvParameterSpec(iv));
+            cipher.doFinal(input, output);
+        } catch (ShortBufferException | BadPaddingException | IllegalBlockSizeException |
                 InvalidAlgorithmParameterException e) {
             throw new DecryptionException(e.getMessage(), e);
         } catch (InvalidKeyException ike) {
@@ -214,6 +411,27 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
         }
     }
 
+    /**
+     * Puts unsigned short in big-endian order, as {@link DataOutputStream} does, regardless of the buffer order.
+     *
+     * @param buffer Buffer.
+     * @param value Value.
+     */
+    private static void putShort(ByteBuffer buffer, int value) {
+        buffer.put((byte) (value >>> 8));
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Returns unsigned short in big-endian order, as {@link DataInputStream} reads it, regardless of the buffer order.
+     *
+     * @param buffer Buffer.
+     * @return Value.
+     */
+    private static int getShort(ByteBuffer buffer) {
+        return ((buffer.get() & 0xFF) << 8) | (buffer.get() & 0xFF);
+    }
+
     /**
      * Encryption/decryption key plus salt.
      */
@@ -274,5 +492,59 @@ public class AesPasswordBasedEncryptor implements PasswordBasedEncryptor {
                 throw new DecryptionException("Initialization error.", e);
             }
         }
+
+        /**
+         * Constructs key spec derived from master key with generated salt of given size.
+         *
+         * @param masterKey Master key.
+         * @param keyLength Key length (128, 192 or 256).
+         * @param saltSize  Salt size.
+         * @throws EncryptionException Exception in case of key building.
+         */
+        public KeySpecAndSalt(byte[] masterKey, short keyLength, short saltSize) throws EncryptionException {
+            byte[] newSalt = new byte[saltSize];
+            secureRandom.get().nextBytes(newSalt);
+            try {
+                byte[] key = Hkdf.derive(masterKey, newSalt, HKDF_INFO, keyLength / 8);
+                this.encryptionKeySpec = new SecretKeySpec(key, ALGORITHM_FOR_KEY_SPEC);
+                this.salt = newSalt;
+            } catch (InvalidKeyException | IllegalArgumentException e) {
+                throw new EncryptionException("Initialization error.", e);
+            }
+        }
+
+        /**
+         * Constructs key spec derived from master key with given salt.
+         *
+         * @param masterKey Master key.
+         * @param keyLength Key length (128, 192 or 256).
+         * @param salt      Salt.
+         * @throws DecryptionException Exception in case of key building.
+         */
+        public KeySpecAndSalt(byte[] masterKey, short keyLength, byte[] salt) throws DecryptionException {
+            try {
+                byte[] key = Hkdf.derive(masterKey, salt, HKDF_INFO, keyLength / 8);
+                this.encryptionKeySpec = new SecretKeySpec(key, ALGORITHM_FOR_KEY_SPEC);
+                this.salt = salt;
+            } catch (InvalidKeyException | IllegalArgumentException e) {
+                throw new DecryptionException("Initialization error.", e);
+            }
+        }
+    }
+
+    /**
+     * Key derivation function for message keys.
+     */
+    public enum KeyDerivation {
+
+        /**
+         * PBKDF2 over the password with per-message salt. Expensive: runs all password iterations for every message.
+         */
+        PBKDF2,
+
+        /**
+         * HKDF over master key with per-message salt. Master key is derived from the password once, with PBKDF2.
+         */
+        HKDF
     }
 }
@@ -0,0 +1,119 @@
+package services.sso.token;
+
+import java.util.Arrays;
+
+/**
+ * Web-safe base 64 encoding without padding (RFC 4648, section 5) into and from caller supplied arrays.
+ * Produces the same output as {@code BaseEncoding.base64Url().omitPadding()}, without intermediate buffers.
+ */
+final class Base64Url {
+
+    /**
+     * Alphabet.
+     */
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    /**
+     * Values of alphabet characters, -1 for characters outside of the alphabet.
+     */
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private Base64Url() {
+    }
+
+    /**
+     * Returns length of encoded data of given length.
+     *
+     * @param length Data length.
+     * @return Length of encoded data.
+     */
+    static int encodedLength(int length) {
+        return length / 3 * 4 + (length % 3 == 0 ? 0 : length % 3 + 1);
+    }
+
+    /**
+     * Returns maximum length of decoded data for encoded data of given length.
+     *
+     * @param length Encoded data length.
+     * @return Maximum length of decoded data.
+     */
+    static int maxDecodedLength(int length) {
+        return length / 4 * 3 + (length % 4) * 3 / 4;
+    }
+
+    /**
+     * Encodes given data into given array.
+     *
+     * @param data Data.
+     * @param offset Data offset.
+     * @param length Data length.
+     * @param result Result array, with at least {@link #encodedLength(int)} characters.
+     * @return Number of encoded characters.
+     */
+    static int encode(byte[] data, int offset, int length, char[] result) {
+        int end = offset + length;
+        int position = 0;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int bits = (data[i] & 0xFF) << 16 | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF);
+            result[position++] = ALPHABET[bits >>> 18];
+            result[position++] = ALPHABET[(bits >>> 12) & 0x3F];
+            result[position++] = ALPHABET[(bits >>> 6) & 0x3F];
+            result[position++] = ALPHABET[bits & 0x3F];
+        }
+        int remaining = end - i;
+        if (remaining > 0) {
+            int bits = (data[i] & 0xFF) << 16 | (remaining == 2 ? (data[i + 1] & 0xFF) << 8 : 0);
+            result[position++] = ALPHABET[bits >>> 18];
+            result[position++] = ALPHABET[(bits >>> 12) & 0x3F];
+            if (remaining == 2) {
+                result[position++] = ALPHABET[(bits >>> 6) & 0x3F];
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Decodes given characters into given array.
+     *
+     * @param encoded Encoded characters.
+     * @param result Result array, with at least {@link #maxDecodedLength(int)} bytes.
+     * @return Number of decoded bytes.
+     * @throws IllegalArgumentException When the characters are not valid web-safe base 64 without padding.
+     */
+    static int decode(CharSequence encoded, byte[] result) {
+        int length = encoded.length();
+        if (length % 4 == 1) {
+            throw new IllegalArgumentException("Invalid encoded length: " + length);
+        }
+        int position = 0;
+        int bits = 0;
+        int bitCount = 0;
+        for (int i = 0; i < length; i++) {
+            char c = encoded.charAt(i);
+            int value = c < VALUES.length ? VALUES[c] : -1;
+            if (value < 0) {
+                throw new IllegalArgumentException("Unrecognized character at " + i);
+            }
+            bits = (bits << 6) | value;
+            bitCount += 6;
+            if (bitCount >= 8) {
+                bitCount -= 8;
+                result[position++] = (byte) (bits >>> bitCount);
+            }
+        }
+        // Unused bits of the last character must be zero, otherwise the same data has several encodings.
+        if ((bits & ((1 << bitCount) - 1)) != 0) {
+            throw new IllegalArgumentException("Non-zero trailing bits at " + (length - 1));
+        }
+        return position;
+    }
+}
@@ -0,0 +1,435 @@
+package services.sso.token;
+
+import com.google.common.io.BaseEncoding;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Signs and verifies non-confidential data with ECDSA over P-256 and SHA-256 (ES256), so relying services verify
+ * tokens locally with public keys, without SSO secret. Signed message contains: signature marker (0x10), key id length
+ * (1 byte), key id (ASCII), data, signature of 64 bytes (r and s, unsigned big-endian, as in JWS). The signature covers
+ * everything before it. New messages are signed with the current key, messages signed with any of the published keys
+ * are verified: publish new key first, make it current after relying services refresh key sets and remove old key
+ * after access tokens signed with it expire. Thread safe.
+ */
+public final class EcdsaTokenSigner {
+
+    /**
+     * Signature marker, the first byte of signed message. Never used as the first byte by
+     * {@link AesPasswordBasedEncryptor}, {@link AesGcmPasswordBasedEncryptor} or {@link HmacTokenSigner}.
+     */
+    static final byte SIGNED_MARKER = 0x10;
+
+    /**
+     * Signature algorithm.
+     */
+    private static final String ALGORITHM = "SHA256withECDSA";
+
+    /**
+     * Curve name.
+     */
+    private static final String CURVE = "secp256r1";
+
+    /**
+     * Size of a signature component and a key coordinate, in bytes.
+     */
+    private static final int COMPONENT_SIZE = 32;
+
+    /**
+     * Signature size, in bytes.
+     */
+    private static final int SIGNATURE_SIZE = 2 * COMPONENT_SIZE;
+
+    /**
+     * Maximum length of DER encoded signature.
+     */
+    private static final int MAX_DER_SIGNATURE_SIZE = 72;
+
+    /**
+     * Thread local {@link Signature}, since it is not thread safe.
+     */
+    private static final ThreadLocal<Signature> signatures = ThreadLocal.withInitial(() -> {
+        try {
+            return Signature.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported.", e);
+        }
+    });
+
+    /**
+     * Thread local buffer for DER encoded signature.
+     */
+    private static final ThreadLocal<byte[]> derBuffer =
+            ThreadLocal.withInitial(() -> new byte[MAX_DER_SIGNATURE_SIZE]);
+
+    /**
+     * Current key id, ASCII, or null if signing is disabled.
+     */
+    private final byte[] keyId;
+
+    /**
+     * Current private key or null if signing is disabled.
+     */
+    private final PrivateKey signingKey;
+
+    /**
+     * Ids of published keys, ASCII.
+     */
+    private final byte[][] verificationKeyIds;
+
+    /**
+     * Published public keys, in the same order as ids.
+     */
+    private final ECPublicKey[] verificationKeys;
+
+    /**
+     * Published keys as JSON web keys.
+     */
+    private final List<Map<String, String>> jsonWebKeys;
+
+    /**
+     * Constructs signer.
+     *
+     * @param keyId Current key id or null if signing is disabled.
+     * @param signingKey Current private key or null if signing is disabled.
+     * @param publishedKeys Public keys by id, verified and published. Must contain the current key.
+     * @throws IllegalArgumentException When key id is not ASCII of 1 to 255 characters or current key is not published.
+     */
+    public EcdsaTokenSigner(String keyId, PrivateKey signingKey, Map<String, ECPublicKey> publishedKeys) {
+        if ((keyId == null) != (signingKey == null)) {
+            throw new IllegalArgumentException("Expects both key id and signing key, or none.");
+        }
+        if (keyId != null && !publishedKeys.containsKey(keyId)) {
+            throw new IllegalArgumentException("Current key is not published: " + keyId);
+        }
+        this.keyId = keyId != null ? toKeyId(keyId) : null;
+        this.signingKey = signingKey;
+        this.verificationKeyIds = new byte[publishedKeys.size()][];
+        this.verificationKeys = new ECPublicKey[publishedKeys.size()];
+        List<Map<String, String>> keys = new ArrayList<>(publishedKeys.size());
+        int i = 0;
+        for (Map.Entry<String, ECPublicKey> entry : publishedKeys.entrySet()) {
+            verificationKeyIds[i] = toKeyId(entry.getKey());
+            verificationKeys[i] = entry.getValue();
+            keys.add(toJsonWebKey(entry.getKey(), entry.getValue()));
+            i++;
+        }
+        this.jsonWebKeys = Collections.unmodifiableList(keys);
+    }
+
+    /**
+     * Returns whether the signer has current key to sign new messages.
+     *
+     * @return Whether the signer has current key.
+     */
+    public boolean canSign() {
+        return signingKey != null;
+    }
+
+    /**
+     * Returns length of signed message for data of given length.
+     *
+     * @param length Data length.
+     * @return Length of signed message.
+     * @throws IllegalStateException When signing is disabled.
+     */
+    public int getSignedLength(int length) {
+        if (keyId == null) {
+            throw new IllegalStateException("Signing is disabled.");
+        }
+        return 2 + keyId.length + length + SIGNATURE_SIZE;
+    }
+
+    /**
+     * Signs remaining bytes of the data buffer and puts signed message into output buffer, backed by an array. Data
+     * buffer is consumed and output buffer position is advanced by the length of signed message.
+     *
+     * @param data Data buffer.
+     * @param output Output buffer, with at least {@link #getSignedLength(int)} bytes remaining.
+     * @throws IllegalStateException When signing is disabled or fails.
+     * @throws java.nio.BufferOverflowException When there is not enough space in the output buffer.
+     */
+    public void sign(ByteBuffer data, ByteBuffer output) {
+        if (signingKey == null) {
+            throw new IllegalStateException("Signing is disabled.");
+        }
+        int start = output.position();
+        output.put(SIGNED_MARKER).put((byte) keyId.length).put(keyId).put(data);
+        byte[] der = derBuffer.get();
+        int derLength;
+        try {
+            Signature signature = signatures.get();
+            signature.initSign(signingKey);
+            signature.update(output.array(), output.arrayOffset() + start, output.position() - start);
+            derLength = signature.sign(der, 0, der.length);
+        } catch (InvalidKeyException | SignatureException e) {
+            throw new IllegalStateException("Unable to sign.", e);
+        }
+        putComponents(der, derLength, output);
+    }
+
+    /**
+     * Verifies signed message in remaining bytes of the message buffer, backed by an array, and puts its data into
+     * output buffer. Message buffer is consumed and output buffer position is advanced by the length of data. Nothing
+     * is put into the output buffer if the signature doesn't match.
+     *
+     * @param message Message buffer.
+     * @param output Output buffer.
+     * @throws IllegalArgumentException When the message is not signed, its key is unknown or signature doesn't match.
+     * @throws java.nio.BufferOverflowException When there is not enough space in the output buffer.
+     */
+    public void verify(ByteBuffer message, ByteBuffer output) {
+        int position = message.position();
+        int limit = message.limit();
+        if (limit - position < 2 + SIGNATURE_SIZE || message.get(position) != SIGNED_MARKER) {
+            throw new IllegalArgumentException("Not a signed message.");
+        }
+        int keyIdLength = message.get(position + 1) & 0xFF;
+        int dataPosition = position + 2 + keyIdLength;
+        int signaturePosition = limit - SIGNATURE_SIZE;
+        if (dataPosition > signaturePosition) {
+            throw new IllegalArgumentException("Not a signed message.");
+        }
+        byte[] array = message.array();
+        int offset = message.arrayOffset();
+        ECPublicKey key = findKey(array, offset + position + 2, keyIdLength);
+        if (key == null) {
+            throw new IllegalArgumentException("Unknown key.");
+        }
+        byte[] der = derBuffer.get();
+        int derLength = toDer(array, offset + signaturePosition, der);
+        boolean valid;
+        try {
+            Signature signature = signatures.get();
+            signature.initVerify(key);
+            signature.update(array, offset + position, signaturePosition - position);
+            valid = signature.verify(der, 0, derLength);
+        } catch (InvalidKeyException | SignatureException e) {
+            throw new IllegalArgumentException("Unable to verify.", e);
+        }
+        if (!valid) {
+            throw new IllegalArgumentException("Signature doesn't match.");
+        }
+        message.position(dataPosition).limit(signaturePosition);
+        output.put(message);
+        message.limit(limit).position(limit);
+    }
+
+    /**
+     * Returns published keys as JSON web keys (RFC 7517): "kty", "crv", "kid", "use", "alg", "x" and "y" members.
+     *
+     * @return Published keys as JSON web keys.
+     */
+    public List<Map<String, String>> getJsonWebKeys() {
+        return jsonWebKeys;
+    }
+
+    /**
+     * Returns whether given message has signature marker.
+     *
+     * @param message Message.
+     * @return Whether given message has signature marker.
+     */
+    public static boolean isSigned(byte[] message) {
+        return message != null && message.length > 0 && message[0] == SIGNED_MARKER;
+    }
+
+    /**
+     * Generates new P-256 key pair.
+     *
+     * @return New key pair.
+     * @throws IllegalStateException When P-256 is not supported.
+     */
+    public static KeyPair generateKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(CURVE));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(CURVE + " is not supported.", e);
+        }
+    }
+
+    /**
+     * Decodes private key from base 64 encoded PKCS #8.
+     *
+     * @param base64 Base 64 encoded PKCS #8 private key.
+     * @return Private key.
+     * @throws IllegalArgumentException When the key can't be decoded.
+     */
+    public static PrivateKey decodePrivateKey(String base64) {
+        try {
+            return KeyFactory.getInstance("EC")
+                    .generatePrivate(new PKCS8EncodedKeySpec(BaseEncoding.base64().decode(base64.trim())));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Unable to decode private key.", e);
+        }
+    }
+
+    /**
+     * Decodes public key from base 64 encoded X.509 subject public key info.
+     *
+     * @param base64 Base 64 encoded X.509 public key.
+     * @return Public key.
+     * @throws IllegalArgumentException When the key can't be decoded or it is not an EC key.
+     */
+    public static ECPublicKey decodePublicKey(String base64) {
+        try {
+            return (ECPublicKey) KeyFactory.getInstance("EC")
+                    .generatePublic(new X509EncodedKeySpec(BaseEncoding.base64().decode(base64.trim())));
+        } catch (GeneralSecurityException | ClassCastException e) {
+            throw new IllegalArgumentException("Unable to decode public key.", e);
+        }
+    }
+
+    /**
+     * Returns published key with given id.
+     *
+     * @param array Array with key id.
+     * @param offset Key id offset.
+     * @param length Key id length.
+     * @return Published key or null.
+     */
+    private ECPublicKey findKey(byte[] array, int offset, int length) {
+        for (int i = 0; i < verificationKeyIds.length; i++) {
+            byte[] id = verificationKeyIds[i];
+            if (id.length != length) {
+                continue;
+            }
+            int j = 0;
+            while (j < length && id[j] == array[offset + j]) {
+                j++;
+            }
+            if (j == length) {
+                return verificationKeys[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Puts r and s of DER encoded signature as unsigned big-endian numbers of fixed size into the buffer.
+     *
+     * @param der DER encoded signature.
+     * @param length DER encoded signature length.
+     * @param output Output buffer.
+     */
+    private static void putComponents(byte[] der, int length, ByteBuffer output) {
+        // SEQUENCE { INTEGER r, INTEGER s }, lengths are less than 128.
+        int position = 2;
+        for (int component = 0; component < 2; component++) {
+            int componentLength = der[position + 1];
+            int start = position + 2;
+            int end = start + componentLength;
+            if (der[position] != 0x02 || end > length) {
+                throw new IllegalStateException("Unexpected signature encoding.");
+            }
+            while (end - start > COMPONENT_SIZE) {
+                start++;
+            }
+            for (int i = end - start; i < COMPONENT_SIZE; i++) {
+                output.put((byte) 0);
+            }
+            output.put(der, start, end - start);
+            position = end;
+        }
+    }
+
+    /**
+     * Encodes r and s of fixed size signature in DER.
+     *
+     * @param array Array with signature.
+     * @param offset Signature offset.
+     * @param der Result array for DER encoded signature.
+     * @return DER encoded signature length.
+     */
+    private static int toDer(byte[] array, int offset, byte[] der) {
+        int position = 2;
+        for (int component = 0; component < 2; component++) {
+            int start = offset + component * COMPONENT_SIZE;
+            int end = start + COMPONENT_SIZE;
+            while (start < end - 1 && array[start] == 0) {
+                start++;
+            }
+            boolean pad = array[start] < 0;
+            der[position++] = 0x02;
+            der[position++] = (byte) (end - start + (pad ? 1 : 0));
+            if (pad) {
+                der[position++] = 0;
+            }
+            System.arraycopy(array, start, der, position, end - start);
+            position += end - start;
+        }
+        der[0] = 0x30;
+        der[1] = (byte) (position - 2);
+        return position;
+    }
+
+    /**
+     * Converts key id to ASCII bytes.
+     *
+     * @param keyId Key id.
+     * @return Key id bytes.
+     * @throws IllegalArgumentException When key id is not ASCII of 1 to 255 characters.
+     */
+    private static byte[] toKeyId(String keyId) {
+        if (keyId.isEmpty() || keyId.length() > 255 || !StandardCharsets.US_ASCII.newEncoder().canEncode(keyId)) {
+            throw new IllegalArgumentException("Expects key id of 1 to 255 ASCII characters: " + keyId);
+        }
+        return keyId.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Returns public key as JSON web key.
+     *
+     * @param keyId Key id.
+     * @param key Public key.
+     * @return JSON web key.
+     */
+    private static Map<String, String> toJsonWebKey(String keyId, ECPublicKey key) {
+        Map<String, String> jwk = new LinkedHashMap<>();
+        jwk.put("kty", "EC");
+        jwk.put("crv", "P-256");
+        jwk.put("kid", keyId);
+        jwk.put("use", "sig");
+        jwk.put("alg", "ES256");
+        jwk.put("x", toCoordinate(key.getW().getAffineX()));
+        jwk.put("y", toCoordinate(key.getW().getAffineY()));
+        return Collections.unmodifiableMap(jwk);
+    }
+
+    /**
+     * Encodes key coordinate as web-safe base 64 of unsigned big-endian number of fixed size.
+     *
+     * @param coordinate Coordinate.
+     * @return Encoded coordinate.
+     */
+    private static String toCoordinate(BigInteger coordinate) {
+        byte[] bytes = coordinate.toByteArray();
+        byte[] fixed = new byte[COMPONENT_SIZE];
+        int length = Math.min(bytes.length, COMPONENT_SIZE);
+        System.arraycopy(bytes, bytes.length - length, fixed, COMPONENT_SIZE - length, length);
+        char[] encoded = new char[Base64Url.encodedLength(COMPONENT_SIZE)];
+        return new String(encoded, 0, Base64Url.encode(fixed, 0, COMPONENT_SIZE, encoded));
+    }
+}
@@ -0,0 +1,490 @@
+package services.sso.token;
+
+import models.sso.UserRole;
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Compact binary format of {@link ExpirableToken}. Layout (version 1):
+ * <pre>
+ * version (1 byte) | type (1 byte) | flags (1 byte) | expiration time (varint) |
+ * [scope (varint length + UTF-8)] | [user id (varint)] | [role (1 byte)] | [issue time (varint)] |
+ * [token id (varint)] | number of attributes (varint) | attributes (name and value as varint length + UTF-8)
+ * </pre>
+ * User id, role, issue time and token id are written in typed form when they are canonical (non-negative decimal long
+ * and {@link UserRole} name), otherwise they go to the generic attribute section. Version byte never collides with the
+ * first byte of JSON token ('{'), so both formats are told apart by the first byte.
+ */
+final class ExpirableTokenBinaryFormat {
+
+    /**
+     * Version of the format.
+     */
+    static final byte VERSION_1 = 1;
+
+    /**
+     * User id attribute name.
+     */
+    private static final String USER_ID = "userId";
+
+    /**
+     * Role attribute name.
+     */
+    private static final String ROLE = "role";
+
+    /**
+     * Issue time attribute name.
+     */
+    private static final String ISSUED_AT = ExpirableToken.ISSUED_AT;
+
+    /**
+     * Token id attribute name.
+     */
+    private static final String TOKEN_ID = ExpirableToken.TOKEN_ID;
+
+    /**
+     * Flag: token has scope.
+     */
+    private static final int HAS_SCOPE = 1;
+
+    /**
+     * Flag: token has typed user id.
+     */
+    private static final int HAS_USER_ID = 1 << 1;
+
+    /**
+     * Flag: token has typed role.
+     */
+    private static final int HAS_ROLE = 1 << 2;
+
+    /**
+     * Flag: token has typed issue time.
+     */
+    private static final int HAS_ISSUED_AT = 1 << 3;
+
+    /**
+     * Flag: token has typed token id.
+     */
+    private static final int HAS_TOKEN_ID = 1 << 4;
+
+    /**
+     * Token types by their binary codes. Codes are part of the format: append new types only.
+     */
+    private static final ExpirableTokenType[] TYPES = {
+            ExpirableTokenType.ACCESS,
+            ExpirableTokenType.REFRESH,
+            ExpirableTokenType.XSRF,
+            ExpirableTokenType.SIGNUP_VERIFICATION,
+            ExpirableTokenType.EMAIL_VERIFICATION,
+            ExpirableTokenType.PHONE_VERIFICATION,
+            ExpirableTokenType.RESTORE_PASSWORD,
+            ExpirableTokenType.CONFIRM_PASSWORD_CHANGE,
+            ExpirableTokenType.CAPTCHA,
+            ExpirableTokenType.CUSTOM
+    };
+
+    /**
+     * User roles by their binary codes. Codes are part of the format: append new roles only.
+     */
+    private static final UserRole[] ROLES = {
+            UserRole.ADMIN,
+            UserRole.MODERATOR,
+            UserRole.USER
+    };
+
+    private ExpirableTokenBinaryFormat() {
+    }
+
+    /**
+     * Serializes given token.
+     *
+     * @param token Token.
+     * @return Serialized token.
+     */
+    static byte[] write(ExpirableToken token) {
+        byte[] result = new byte[serializedSize(token)];
+        write(token, ByteBuffer.wrap(result));
+        return result;
+    }
+
+    /**
+     * Returns exact size of serialized token.
+     *
+     * @param token Token.
+     * @return Size of serialized token, in bytes.
+     */
+    static int serializedSize(ExpirableToken token) {
+        Map<String, String> attributes = token.getAttributes();
+        long userId = parseCanonicalUnsignedLong(attributes.get(USER_ID));
+        int roleCode = roleCode(attributes.get(ROLE));
+        long issuedAt = parseCanonicalUnsignedLong(attributes.get(ISSUED_AT));
+        long tokenId = parseCanonicalUnsignedLong(attributes.get(TOKEN_ID));
+        int genericAttributes = attributes.size() - (userId >= 0L ? 1 : 0) - (roleCode >= 0 ? 1 : 0)
+                - (issuedAt >= 0L ? 1 : 0) - (tokenId >= 0L ? 1 : 0);
+
+        int size = 3 + varLongSize(token.getExpires());
+        if (token.getScope() != null) {
+            size += stringSize(token.getScope());
+        }
+        if (userId >= 0L) {
+            size += varLongSize(userId);
+        }
+        if (roleCode >= 0) {
+            size += 1;
+        }
+        if (issuedAt >= 0L) {
+            size += varLongSize(issuedAt);
+        }
+        if (tokenId >= 0L) {
+            size += varLongSize(tokenId);
+        }
+        size += varLongSize(genericAttributes);
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            if (isTyped(entry.getKey(), userId, roleCode, issuedAt, tokenId)) {
+                continue;
+            }
+            size += stringSize(entry.getKey()) + stringSize(entry.getValue());
+        }
+        return size;
+    }
+
+    /**
+     * Serializes given token into the buffer, starting at its position. Buffer position is advanced by
+     * {@link #serializedSize(ExpirableToken)}.
+     *
+     * @param token Token.
+     * @param buffer Buffer.
+     * @throws java.nio.BufferOverflowException When there is not enough space in the buffer.
+     */
+    static void write(ExpirableToken token, ByteBuffer buffer) {
+        Map<String, String> attributes = token.getAttributes();
+        long userId = parseCanonicalUnsignedLong(attributes.get(USER_ID));
+        int roleCode = roleCode(attributes.get(ROLE));
+        long issuedAt = parseCanonicalUnsignedLong(attributes.get(ISSUED_AT));
+        long tokenId = parseCanonicalUnsignedLong(attributes.get(TOKEN_ID));
+        int flags = (token.getScope() != null ? HAS_SCOPE : 0)
+                | (userId >= 0L ? HAS_USER_ID : 0)
+                | (roleCode >= 0 ? HAS_ROLE : 0)
+                | (issuedAt >= 0L ? HAS_ISSUED_AT : 0)
+                | (tokenId >= 0L ? HAS_TOKEN_ID : 0);
+        int genericAttributes = attributes.size() - (userId >= 0L ? 1 : 0) - (roleCode >= 0 ? 1 : 0)
+                - (issuedAt >= 0L ? 1 : 0) - (tokenId >= 0L ? 1 : 0);
+
+        buffer.put(VERSION_1);
+        buffer.put((byte) typeCode(token.getType()));
+        buffer.put((byte) flags);
+        putVarLong(buffer, token.getExpires());
+        if (token.getScope() != null) {
+            putString(buffer, token.getScope());
+        }
+        if (userId >= 0L) {
+            putVarLong(buffer, userId);
+        }
+        if (roleCode >= 0) {
+            buffer.put((byte) roleCode);
+        }
+        if (issuedAt >= 0L) {
+            putVarLong(buffer, issuedAt);
+        }
+        if (tokenId >= 0L) {
+            putVarLong(buffer, tokenId);
+        }
+        putVarLong(buffer, genericAttributes);
+        for (Map.Entry<String, String> entry : attributes.entrySet()) {
+            String name = entry.getKey();
+            if (isTyped(name, userId, roleCode, issuedAt, tokenId)) {
+                continue;
+            }
+            putString(buffer, name);
+            putString(buffer, entry.getValue());
+        }
+    }
+
+    /**
+     * Deserializes token from given data.
+     *
+     * @param data Serialized token.
+     * @return Deserialized token.
+     * @throws IllegalArgumentException When the data is not a valid serialized token.
+     */
+    static ExpirableToken read(byte[] data) {
+        return read(data, 0, data.length);
+    }
+
+    /**
+     * Deserializes token from given part of the array.
+     *
+     * @param data Array with serialized token.
+     * @param offset Offset of serialized token.
+     * @param length Length of serialized token.
+     * @return Deserialized token.
+     * @throws IllegalArgumentException When the data is not a valid serialized token.
+     */
+    static ExpirableToken read(byte[] data, int offset, int length) {
+        Reader reader = new Reader(data, offset, length);
+        if (reader.readByte() != VERSION_1) {
+            throw new IllegalArgumentException("Unsupported token format version.");
+        }
+        int typeCode = reader.readByte();
+        if (typeCode >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown token type: " + typeCode);
+        }
+        int flags = reader.readByte();
+        ExpirableToken.Builder builder = new ExpirableToken.Builder()
+                .setType(TYPES[typeCode])
+                .setExpires(reader.readVarLong());
+        if ((flags & HAS_SCOPE) != 0) {
+            builder.setScope(reader.readString());
+        }
+        if ((flags & HAS_USER_ID) != 0) {
+            builder.addDataEntry(USER_ID, reader.readVarLong());
+        }
+        if ((flags & HAS_ROLE) != 0) {
+            int roleCode = reader.readByte();
+            if (roleCode >= ROLES.length) {
+                throw new IllegalArgumentException("Unknown role: " + roleCode);
+            }
+            builder.addDataEntry(ROLE, ROLES[roleCode].toString());
+        }
+        if ((flags & HAS_ISSUED_AT) != 0) {
+            builder.addDataEntry(ISSUED_AT, reader.readVarLong());
+        }
+        if ((flags & HAS_TOKEN_ID) != 0) {
+            builder.addDataEntry(TOKEN_ID, reader.readVarLong());
+        }
+        long genericAttributes = reader.readVarLong();
+        for (long i = 0; i < genericAttributes; i++) {
+            builder.addDataEntry(reader.readString(), reader.readString());
+        }
+        if (!reader.isAtEnd()) {
+            throw new IllegalArgumentException("Unexpected trailing data.");
+        }
+        return builder.build();
+    }
+
+    /**
+     * Returns whether the attribute is written in typed form.
+     *
+     * @param name Attribute name.
+     * @param userId Canonical user id or -1.
+     * @param roleCode Role code or -1.
+     * @param issuedAt Canonical issue time or -1.
+     * @param tokenId Canonical token id or -1.
+     * @return Whether the attribute is written in typed form.
+     */
+    private static boolean isTyped(String name, long userId, int roleCode, long issuedAt, long tokenId) {
+        return (userId >= 0L && USER_ID.equals(name))
+                || (roleCode >= 0 && ROLE.equals(name))
+                || (issuedAt >= 0L && ISSUED_AT.equals(name))
+                || (tokenId >= 0L && TOKEN_ID.equals(name));
+    }
+
+    /**
+     * Returns binary code of the token type.
+     *
+     * @param type Token type.
+     * @return Binary code of the token type.
+     */
+    private static int typeCode(ExpirableTokenType type) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i] == type) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported token type: " + type);
+    }
+
+    /**
+     * Returns binary code of the role given as string or -1 if it is not a role name.
+     *
+     * @param role Role as string.
+     * @return Binary code of the role or -1.
+     */
+    private static int roleCode(String role) {
+        if (role == null) {
+            return -1;
+        }
+        for (int i = 0; i < ROLES.length; i++) {
+            if (ROLES[i].toString().equals(role)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses given string as non-negative decimal long without sign, leading zeros or spaces.
+     *
+     * @param value Value to parse.
+     * @return Parsed value or -1 if the value is not in canonical form.
+     */
+    private static long parseCanonicalUnsignedLong(String value) {
+        int length = value == null ? 0 : value.length();
+        if (length == 0 || length > 18 || (length > 1 && value.charAt(0) == '0')) {
+            // 18 digits always fit into long.
+            return -1L;
+        }
+        long result = 0L;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1L;
+            }
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    /**
+     * Returns number of bytes in varint representation of given value.
+     *
+     * @param value Value.
+     * @return Number of bytes.
+     */
+    private static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0L) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Returns number of bytes in serialized string: varint length and UTF-8 bytes.
+     *
+     * @param value String.
+     * @return Number of bytes.
+     */
+    private static int stringSize(String value) {
+        int length = utf8Length(value);
+        return varLongSize(length) + length;
+    }
+
+    /**
+     * Returns number of bytes in UTF-8 representation of given string. Unpaired surrogates take one byte, as they
+     * are replaced with '?' like {@link String#getBytes(java.nio.charset.Charset)} does.
+     *
+     * @param value String.
+     * @return Number of bytes.
+     */
+    private static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Puts varint representation of given value.
+     *
+     * @param buffer Buffer.
+     * @param value Value.
+     */
+    private static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0L) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Puts varint length and UTF-8 bytes of given string, without intermediate arrays.
+     *
+     * @param buffer Buffer.
+     * @param value String.
+     */
+    private static void putString(ByteBuffer buffer, String value) {
+        putVarLong(buffer, utf8Length(value));
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >>> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >>> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >>> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >>> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >>> 12)));
+                buffer.put((byte) (0x80 | ((c >>> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Byte array reader with bounds checks.
+     */
+    private static final class Reader {
+
+        private final byte[] data;
+        private final int end;
+        private int position;
+
+        Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        int readByte() {
+            if (position >= end) {
+                throw new IllegalArgumentException("Unexpected end of token.");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        long readVarLong() {
+            long result = 0L;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint.");
+        }
+
+        String readString() {
+            long length = readVarLong();
+            if (length < 0 || length > end - position) {
+                throw new IllegalArgumentException("Illegal string length: " + length);
+            }
+            String result = new String(data, position, (int) length, StandardCharsets.UTF_8);
+            position += (int) length;
+            return result;
+        }
+
+        boolean isAtEnd() {
+            return position == end;
+        }
+    }
+}
@@ -4,32 +4,44 @@ import com.fasterxml.jackson.annotation.JsonAutoDetect;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.io.BaseEncoding;
 import models.sso.token.ExpirableToken;
 import models.sso.token.ExpirableTokenEncryptorException;
+import models.sso.token.ExpirableTokenType;
 import models.sso.token.ExpiredTokenException;
 import models.sso.token.IllegalTokenException;
 
-import javax.inject.Inject;
 import javax.inject.Singleton;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
 
 /**
- * Expirable token encryptor/decryptor. Serializes given token into JSON, applies AES password encryption to it and
- * encodes the result with web-safe base 64 encoding. Decodes and decrypts tokens from strings. Thread safe.
+ * Expirable token encryptor/decryptor. Serializes given token into compact binary format (or JSON), applies AES
+ * password encryption to it and encodes the result with web-safe base 64 encoding. Decodes and decrypts tokens from
+ * strings in both formats, telling them apart by the first byte. Tokens of non-confidential types (if configured)
+ * are only signed with {@link HmacTokenSigner} instead of encryption: their data is readable, but can't be forged.
+ * Access tokens (if configured) are signed with {@link EcdsaTokenSigner}, so relying services verify them with public
+ * keys.
+ * Serialization, encryption and base 64 encoding work on reusable per thread buffers. Thread safe.
  */
 @Singleton
 public final class ExpirableTokenEncryptor {
 
     /**
-     * PBE encryptor.
+     * Token types that carry secrets (codes) and must never be signed instead of encryption.
      */
-    private final PasswordBasedEncryptor encryptor;
+    private static final Set<ExpirableTokenType> CONFIDENTIAL_TYPES = Collections.unmodifiableSet(EnumSet.of(
+            ExpirableTokenType.CAPTCHA,
+            ExpirableTokenType.SIGNUP_VERIFICATION,
+            ExpirableTokenType.EMAIL_VERIFICATION,
+            ExpirableTokenType.PHONE_VERIFICATION));
 
     /**
-     * Base encoding.
+     * PBE encryptor.
      */
-    private final BaseEncoding baseEncoding;
+    private final PasswordBasedEncryptor encryptor;
 
     /**
      * JSON object mapper.
@@ -37,14 +49,89 @@ public final class ExpirableTokenEncryptor {
     private final ObjectMapper objectMapper;
 
     /**
-     * Constructs token encryptor with given password, algorithm and provider.
+     * Serialization format for new tokens.
+     */
+    private final Format format;
+
+    /**
+     * Signer for tokens of signed types. May be null.
+     */
+    private final HmacTokenSigner signer;
+
+    /**
+     * Token types that are signed instead of encryption.
+     */
+    private final Set<ExpirableTokenType> signedTypes;
+
+    /**
+     * Signer for access tokens with public keys. May be null.
+     */
+    private final EcdsaTokenSigner accessTokenSigner;
+
+    /**
+     * Constructs token encryptor with given password based encryptor. Uses {@link Format#JSON} for new tokens, like
+     * the default of "application.sso.tokens.format", so they are readable by nodes without binary format support.
      *
      * @param encryptor Encryptor/decryptor.
      */
-    @Inject
     public ExpirableTokenEncryptor(PasswordBasedEncryptor encryptor) {
+        this(encryptor, Format.JSON);
+    }
+
+    /**
+     * Constructs token encryptor with given password based encryptor and serialization format for new tokens.
+     *
+     * @param encryptor Encryptor/decryptor.
+     * @param format Serialization format for new tokens.
+     */
+    public ExpirableTokenEncryptor(PasswordBasedEncryptor encryptor, Format format) {
+        this(encryptor, format, null, Collections.emptySet());
+    }
+
+    /**
+     * Constructs token encryptor that signs tokens of given types instead of encryption. Signed tokens are always
+     * serialized in {@link Format#BINARY} format. Types that carry secrets (captcha, verification codes) must not be
+     * signed.
+     *
+     * @param encryptor Encryptor/decryptor.
+     * @param format Serialization format for new encrypted tokens.
+     * @param signer Signer for tokens of signed types, may be null if there are no signed types.
+     * @param signedTypes Token types to sign instead of encryption.
+     * @throws IllegalArgumentException When a confidential type is given as signed or signer is missing.
+     */
+    public ExpirableTokenEncryptor(PasswordBasedEncryptor encryptor, Format format, HmacTokenSigner signer,
+                                   Set<ExpirableTokenType> signedTypes) {
+        this(encryptor, format, signer, signedTypes, null);
+    }
+
+    /**
+     * Constructs token encryptor that signs tokens of given types instead of encryption and signs access tokens with
+     * public key signer, if it {@link EcdsaTokenSigner#canSign() can sign}. Access tokens signed with published keys
+     * are verified in any case. Signed tokens are always serialized in {@link Format#BINARY} format.
+     *
+     * @param encryptor Encryptor/decryptor.
+     * @param format Serialization format for new encrypted tokens.
+     * @param signer Signer for tokens of signed types, may be null if there are no signed types.
+     * @param signedTypes Token types to sign instead of encryption.
+     * @param accessTokenSigner Signer for access tokens with public keys, may be null.
+     * @throws IllegalArgumentException When a confidential type is given as signed or signer is missing.
+     */
+    public ExpirableTokenEncryptor(PasswordBasedEncryptor encryptor, Format format, HmacTokenSigner signer,
+                                   Set<ExpirableTokenType> signedTypes, EcdsaTokenSigner accessTokenSigner) {
+        if (signer == null && !signedTypes.isEmpty()) {
+            throw new IllegalArgumentException("Expects signer for signed token types.");
+        }
+        for (ExpirableTokenType type : signedTypes) {
+            if (CONFIDENTIAL_TYPES.contains(type)) {
+                throw new IllegalArgumentException("Confidential token type can't be signed only: " + type);
+            }
+        }
         this.encryptor = encryptor;
-        this.baseEncoding = BaseEncoding.base64Url().omitPadding();
+        this.format = format;
+        this.signer = signer;
+        this.accessTokenSigner = accessTokenSigner;
+        this.signedTypes = signedTypes.isEmpty() ?
+                Collections.emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(signedTypes));
         this.objectMapper = new ObjectMapper();
         // Set up serialization/deserialization to use fields, not methods.
         this.objectMapper.setVisibility(this.objectMapper.getSerializationConfig()
@@ -74,15 +161,58 @@ public final class ExpirableTokenEncryptor {
         if (!token.hasAttributes()) {
             throw new IllegalArgumentException("Token is expected to contain some data.");
         }
-        try {
-            return baseEncoding.encode(encryptor.encrypt(objectMapper.writeValueAsBytes(token)));
-        } catch (JsonProcessingException jpe) {
-            throw new IllegalStateException("Unable to build JSON from the given token.", jpe);
+        Buffers buffers = Buffers.get();
+        boolean publicKeySigned = isPublicKeySigned(token.getType());
+        boolean signed = publicKeySigned || signedTypes.contains(token.getType());
+        ByteBuffer data;
+        if (signed || Format.BINARY.equals(format)) {
+            data = buffers.data(ExpirableTokenBinaryFormat.serializedSize(token));
+            ExpirableTokenBinaryFormat.write(token, data);
+            data.flip();
+        } else {
+            try {
+                data = ByteBuffer.wrap(objectMapper.writeValueAsBytes(token));
+            } catch (JsonProcessingException jpe) {
+                throw new IllegalStateException("Unable to build JSON from the given token.", jpe);
+            }
         }
+        ByteBuffer message;
+        if (publicKeySigned) {
+            message = buffers.message(accessTokenSigner.getSignedLength(data.remaining()));
+            accessTokenSigner.sign(data, message);
+        } else if (signed) {
+            message = buffers.message(signer.getSignedLength(data.remaining()));
+            signer.sign(data, message);
+        } else {
+            message = buffers.message(encryptor.getMaxEncryptedLength(data.remaining()));
+            encryptor.encrypt(data, message);
+        }
+        char[] encoded = buffers.encoded(Base64Url.encodedLength(message.position()));
+        return new String(encoded, 0, Base64Url.encode(message.array(), 0, message.position(), encoded));
+    }
+
+    /**
+     * Returns whether tokens of given type are signed instead of encryption.
+     *
+     * @param type Token type.
+     * @return Whether tokens of given type are signed instead of encryption.
+     */
+    public boolean isSigned(ExpirableTokenType type) {
+        return isPublicKeySigned(type) || signedTypes.contains(type);
     }
 
     /**
-     * Decrypts given token and returns internal data if it is not expired.
+     * Returns whether tokens of given type are signed with public key signer.
+     *
+     * @param type Token type.
+     * @return Whether tokens of given type are signed with public key signer.
+     */
+    private boolean isPublicKeySigned(ExpirableTokenType type) {
+        return ExpirableTokenType.ACCESS.equals(type) && accessTokenSigner != null && accessTokenSigner.canSign();
+    }
+
+    /**
+     * Decrypts (or verifies signed) given token and returns internal data if it is not expired.
      *
      * @param token Token to decrypt.
      * @return Decrypted token (never returns null if there are no exception).
@@ -94,24 +224,141 @@ public final class ExpirableTokenEncryptor {
         if (token == null || token.isEmpty()) {
             throw new IllegalTokenException();
         }
-        byte[] decrypted;
+        Buffers buffers = Buffers.get();
+        ByteBuffer data;
         try {
-            byte[] encryptedTokenBytes = baseEncoding.decode(token);
-            decrypted = encryptor.decrypt(encryptedTokenBytes);
+            ByteBuffer message = buffers.message(Base64Url.maxDecodedLength(token.length()));
+            message.limit(Base64Url.decode(token, message.array()));
+            data = buffers.data(message.remaining());
+            if (HmacTokenSigner.isSigned(message.array())) {
+                if (signer == null) {
+                    throw new IllegalArgumentException("Signed tokens are not expected.");
+                }
+                signer.verify(message, data);
+            } else if (EcdsaTokenSigner.isSigned(message.array())) {
+                if (accessTokenSigner == null) {
+                    throw new IllegalArgumentException("Public key signed tokens are not expected.");
+                }
+                accessTokenSigner.verify(message, data);
+            } else {
+                encryptor.decrypt(message, data);
+            }
         } catch (Exception e) {
             throw new IllegalTokenException(e);
         }
-        if (decrypted == null) {
+        if (data.position() == 0) {
             throw new IllegalTokenException();
         }
+        ExpirableToken result;
         try {
-            ExpirableToken result = objectMapper.readValue(decrypted, ExpirableToken.class);
-            if (result.isExpired()) {
-                throw new ExpiredTokenException();
+            byte[] decrypted = data.array();
+            if (decrypted[0] == ExpirableTokenBinaryFormat.VERSION_1) {
+                result = ExpirableTokenBinaryFormat.read(decrypted, 0, data.position());
+            } else {
+                result = objectMapper.readValue(decrypted, 0, data.position(), ExpirableToken.class);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new IllegalTokenException(e);
+        }
+        if (result.isExpired()) {
+            throw new ExpiredTokenException();
+        }
+        return result;
+    }
+
+    /**
+     * Serialization format of the token.
+     */
+    public enum Format {
+
+        /**
+         * JSON object with token fields.
+         */
+        JSON,
+
+        /**
+         * Compact binary format, see {@link ExpirableTokenBinaryFormat}.
+         */
+        BINARY
+    }
+
+    /**
+     * Per thread buffers for serialized token, encrypted message and its base 64 representation. Buffers grow up to
+     * {@link #MAX_RETAINED_SIZE}, larger buffers are allocated per call and not retained.
+     */
+    private static final class Buffers {
+
+        /**
+         * Maximum size of a retained buffer.
+         */
+        private static final int MAX_RETAINED_SIZE = 8192;
+
+        /**
+         * Buffers of the current thread.
+         */
+        private static final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+
+        private ByteBuffer data = ByteBuffer.allocate(256);
+        private ByteBuffer message = ByteBuffer.allocate(256);
+        private char[] encoded = new char[512];
+
+        /**
+         * Returns buffers of the current thread.
+         *
+         * @return Buffers of the current thread.
+         */
+        static Buffers get() {
+            return buffers.get();
+        }
+
+        /**
+         * Returns cleared buffer for serialized token with at least given capacity.
+         *
+         * @param capacity Capacity.
+         * @return Buffer for serialized token.
+         */
+        ByteBuffer data(int capacity) {
+            if (data.capacity() < capacity) {
+                if (capacity > MAX_RETAINED_SIZE) {
+                    return ByteBuffer.allocate(capacity);
+                }
+                data = ByteBuffer.allocate(Math.max(capacity, Math.min(2 * data.capacity(), MAX_RETAINED_SIZE)));
+            }
+            data.clear();
+            return data;
+        }
+
+        /**
+         * Returns cleared buffer for encrypted or signed message with at least given capacity.
+         *
+         * @param capacity Capacity.
+         * @return Buffer for encrypted or signed message.
+         */
+        ByteBuffer message(int capacity) {
+            if (message.capacity() < capacity) {
+                if (capacity > MAX_RETAINED_SIZE) {
+                    return ByteBuffer.allocate(capacity);
+                }
+                message = ByteBuffer.allocate(Math.max(capacity, Math.min(2 * message.capacity(), MAX_RETAINED_SIZE)));
+            }
+            message.clear();
+            return message;
+        }
+
+        /**
+         * Returns array for base 64 representation with at least given length.
+         *
+         * @param length Length.
+         * @return Array for base 64 representation.
+         */
+        char[] encoded(int length) {
+            if (encoded.length < length) {
+                if (length > 2 * MAX_RETAINED_SIZE) {
+                    return new char[length];
+                }
+                encoded = new char[Math.max(length, Math.min(2 * encoded.length, 2 * MAX_RETAINED_SIZE))];
             }
-            return result;
-        } catch (IOException ioe) {
-            throw new IllegalTokenException(ioe);
+            return encoded;
         }
     }
 }
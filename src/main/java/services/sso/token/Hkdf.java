@@ -0,0 +1,76 @@
+package services.sso.token;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * HMAC-based extract-and-expand key derivation function (HKDF, RFC 5869) with HMAC-SHA256.
+ * Derives cheap per-message subkeys from already strong master key material.
+ */
+final class Hkdf {
+
+    /**
+     * HMAC algorithm.
+     */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Output length of HMAC-SHA256, in bytes.
+     */
+    private static final int HASH_LENGTH = 32;
+
+    /**
+     * Using thread local {@link Mac} since it is not thread safe and relatively expensive to look up.
+     */
+    private static final ThreadLocal<Mac> mac = ThreadLocal.withInitial(() -> {
+        try {
+            return Mac.getInstance(HMAC_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(HMAC_ALGORITHM + " is not supported.", e);
+        }
+    });
+
+    private Hkdf() {
+    }
+
+    /**
+     * Derives key of given length from input key material, salt and context information.
+     *
+     * @param inputKeyMaterial Input key material.
+     * @param salt Salt.
+     * @param info Context specific information.
+     * @param length Length of the resulting key, in bytes. Must not exceed 255 * 32.
+     * @return Derived key.
+     * @throws InvalidKeyException When HMAC can't be initialized with given key material.
+     */
+    static byte[] derive(byte[] inputKeyMaterial, byte[] salt, byte[] info, int length) throws InvalidKeyException {
+        if (length <= 0 || length > 255 * HASH_LENGTH) {
+            throw new IllegalArgumentException("Unsupported HKDF output length: " + length);
+        }
+        Mac hmac = mac.get();
+
+        // 1. Extract: pseudo random key from salt and input key material.
+        hmac.init(new SecretKeySpec(salt == null || salt.length == 0 ? new byte[HASH_LENGTH] : salt, HMAC_ALGORITHM));
+        byte[] pseudoRandomKey = hmac.doFinal(inputKeyMaterial);
+
+        // 2. Expand: T(i) = HMAC(PRK, T(i - 1) | info | i).
+        hmac.init(new SecretKeySpec(pseudoRandomKey, HMAC_ALGORITHM));
+        byte[] result = new byte[length];
+        byte[] block = new byte[0];
+        int offset = 0;
+        for (int i = 1; offset < length; i++) {
+            hmac.update(block);
+            if (info != null) {
+                hmac.update(info);
+            }
+            hmac.update((byte) i);
+            block = hmac.doFinal();
+            int toCopy = Math.min(block.length, length - offset);
+            System.arraycopy(block, 0, result, offset, toCopy);
+            offset += toCopy;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,220 @@
+package services.sso.token;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
+
+/**
+ * Signs and verifies non-confidential data with HMAC-SHA256 truncated to 128 bits. Signed data is not encrypted.
+ * Key is derived from the password once, with PBKDF2. Verification costs a single HMAC and a constant time compare.
+ * Signed message contains: signature marker, data, tag of 16 bytes. Thread safe.
+ */
+public final class HmacTokenSigner {
+
+    /**
+     * Signature marker, the first byte of signed message. Never used as the first byte by
+     * {@link AesPasswordBasedEncryptor} or {@link AesGcmPasswordBasedEncryptor}.
+     */
+    static final byte SIGNED_MARKER = 0x20;
+
+    /**
+     * HMAC algorithm.
+     */
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Key generator algorithm.
+     */
+    private static final String KEY_GENERATOR = "PBKDF2WithHmacSHA1";
+
+    /**
+     * Key size, in bits.
+     */
+    private static final int KEY_SIZE = 256;
+
+    /**
+     * Tag size, in bytes.
+     */
+    private static final int TAG_SIZE = 16;
+
+    /**
+     * Constant salt to derive the key from password. Must be the same on all nodes.
+     */
+    private static final byte[] KEY_SALT = "ninja-sso-um/hmac/key".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Output length of HMAC-SHA256, in bytes.
+     */
+    private static final int HASH_LENGTH = 32;
+
+    /**
+     * Thread local buffer for HMAC output.
+     */
+    private static final ThreadLocal<byte[]> hashBuffer = ThreadLocal.withInitial(() -> new byte[HASH_LENGTH]);
+
+    /**
+     * Thread local {@link Mac} initialized with signing key, since it is not thread safe.
+     */
+    private final ThreadLocal<Mac> mac;
+
+    /**
+     * Constructs signer with 1024 iterations for key derivation.
+     *
+     * @param password Password.
+     */
+    public HmacTokenSigner(char[] password) {
+        this(password, 1024);
+    }
+
+    /**
+     * Constructs signer. Derives the key from the password right away.
+     *
+     * @param password Password.
+     * @param passwordIterations Iterations to construct a key from password.
+     * @throws IllegalStateException When the key can't be derived.
+     */
+    public HmacTokenSigner(char[] password, int passwordIterations) {
+        SecretKeySpec key;
+        try {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_GENERATOR);
+            PBEKeySpec keySpec = new PBEKeySpec(password, KEY_SALT, passwordIterations, KEY_SIZE);
+            key = new SecretKeySpec(factory.generateSecret(keySpec).getEncoded(), HMAC_ALGORITHM);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("Unable to derive key.", e);
+        }
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac hmac = Mac.getInstance(HMAC_ALGORITHM);
+                hmac.init(key);
+                return hmac;
+            } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+                throw new IllegalStateException(HMAC_ALGORITHM + " is not supported.", e);
+            }
+        });
+    }
+
+    /**
+     * Returns signed message for given data.
+     *
+     * @param data Data to sign.
+     * @return Signed message.
+     */
+    public byte[] sign(byte[] data) {
+        byte[] result = new byte[getSignedLength(data.length)];
+        sign(ByteBuffer.wrap(data), ByteBuffer.wrap(result));
+        return result;
+    }
+
+    /**
+     * Signs remaining bytes of the data buffer and puts signed message into output buffer. Data buffer is consumed
+     * and output buffer position is advanced by the length of signed message.
+     *
+     * @param data Data buffer.
+     * @param output Output buffer, with at least {@link #getSignedLength(int)} bytes remaining.
+     * @throws java.nio.BufferOverflowException When there is not enough space in the output buffer.
+     */
+    public void sign(ByteBuffer data, ByteBuffer output) {
+        int dataPosition = data.position();
+        output.put(SIGNED_MARKER);
+        Mac hmac = mac.get();
+        hmac.update(SIGNED_MARKER);
+        hmac.update(data);
+        data.position(dataPosition);
+        output.put(data);
+        byte[] hash = doFinal(hmac);
+        output.put(hash, 0, TAG_SIZE);
+    }
+
+    /**
+     * Returns length of signed message for data of given length.
+     *
+     * @param length Data length.
+     * @return Length of signed message.
+     */
+    public int getSignedLength(int length) {
+        return 1 + length + TAG_SIZE;
+    }
+
+    /**
+     * Verifies given signed message and returns its data.
+     *
+     * @param message Signed message.
+     * @return Data of the signed message.
+     * @throws IllegalArgumentException When the message is not signed or signature doesn't match.
+     */
+    public byte[] verify(byte[] message) {
+        ByteBuffer output = ByteBuffer.allocate(Math.max(0, message.length - 1 - TAG_SIZE));
+        verify(ByteBuffer.wrap(message), output);
+        return output.array();
+    }
+
+    /**
+     * Verifies signed message in remaining bytes of the message buffer and puts its data into output buffer. Message
+     * buffer is consumed and output buffer position is advanced by the length of data. Nothing is put into the output
+     * buffer if the signature doesn't match.
+     *
+     * @param message Message buffer.
+     * @param output Output buffer.
+     * @throws IllegalArgumentException When the message is not signed or signature doesn't match.
+     * @throws java.nio.BufferOverflowException When there is not enough space in the output buffer.
+     */
+    public void verify(ByteBuffer message, ByteBuffer output) {
+        int position = message.position();
+        int limit = message.limit();
+        if (limit - position < 1 + TAG_SIZE || message.get(position) != SIGNED_MARKER) {
+            throw new IllegalArgumentException("Not a signed message.");
+        }
+        int tagPosition = limit - TAG_SIZE;
+        Mac hmac = mac.get();
+        message.limit(tagPosition);
+        hmac.update(message);
+        message.limit(limit);
+        byte[] hash = doFinal(hmac);
+
+        // Constant time comparison.
+        int difference = 0;
+        for (int i = 0; i < TAG_SIZE; i++) {
+            difference |= hash[i] ^ message.get(tagPosition + i);
+        }
+        if (difference != 0) {
+            message.position(position);
+            throw new IllegalArgumentException("Signature doesn't match.");
+        }
+        message.position(position + 1).limit(tagPosition);
+        output.put(message);
+        message.limit(limit).position(limit);
+    }
+
+    /**
+     * Finishes HMAC computation into thread local buffer and returns the buffer.
+     *
+     * @param hmac HMAC.
+     * @return Thread local buffer with HMAC output.
+     */
+    private static byte[] doFinal(Mac hmac) {
+        byte[] hash = hashBuffer.get();
+        try {
+            hmac.doFinal(hash, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException("Unexpected HMAC output length.", e);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns whether given message has signature marker.
+     *
+     * @param message Message.
+     * @return Whether given message has signature marker.
+     */
+    public static boolean isSigned(byte[] message) {
+        return message != null && message.length > 0 && message[0] == SIGNED_MARKER;
+    }
+}
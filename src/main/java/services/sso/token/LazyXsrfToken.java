@@ -0,0 +1,61 @@
+package services.sso.token;
+
+/**
+ * Request scoped XSRF token that is obtained from {@link XsrfTokenService} on first use only. Templates render it
+ * with {@link #toString()}, so pages and responses without forms don't pay for token encryption.
+ */
+public final class LazyXsrfToken {
+
+    /**
+     * XSRF token service.
+     */
+    private final XsrfTokenService xsrfTokenService;
+
+    /**
+     * User id.
+     */
+    private final long userId;
+
+    /**
+     * Encrypted token, null until requested.
+     */
+    private String token;
+
+    /**
+     * Constructs lazy XSRF token.
+     *
+     * @param xsrfTokenService XSRF token service.
+     * @param userId User id.
+     */
+    LazyXsrfToken(XsrfTokenService xsrfTokenService, long userId) {
+        this.xsrfTokenService = xsrfTokenService;
+        this.userId = userId;
+    }
+
+    /**
+     * Returns encrypted XSRF token, obtaining it on first call.
+     *
+     * @return Encrypted XSRF token.
+     * @throws IllegalStateException In case token encryptor is not set up properly.
+     */
+    public String get() {
+        if (token == null) {
+            token = xsrfTokenService.getXsrfToken(userId);
+        }
+        return token;
+    }
+
+    /**
+     * Returns whether the token has been obtained.
+     *
+     * @return Whether the token has been obtained.
+     */
+    public boolean isObtained() {
+        return token != null;
+    }
+
+    @Override
+    public String toString() {
+        return get();
+    }
+}
@@ -7,6 +7,8 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 
 /**
  * Encrypts and descrypts messages with password.
@@ -73,6 +75,59 @@ public interface PasswordBasedEncryptor {
         return bos.toByteArray();
     }
 
+    /**
+     * Returns maximum length of encrypted message for data of given length. Default implementation is conservative,
+     * implementations are expected to return exact bound.
+     *
+     * @param length Data length.
+     * @return Maximum length of encrypted message.
+     */
+    default int getMaxEncryptedLength(int length) {
+        return 3 * length / 2 + 256;
+    }
+
+    /**
+     * Encrypts remaining bytes of the input buffer and puts encrypted message into output buffer. Input buffer is
+     * consumed and output buffer position is advanced by the length of encrypted message. Output buffer is expected to
+     * have at least {@link #getMaxEncryptedLength(int)} bytes remaining. Default implementation copies the data,
+     * implementations are expected to encrypt without intermediate copies.
+     *
+     * @param input Input buffer.
+     * @param output Output buffer.
+     * @throws EncryptionException Encryption exception in case of problems with encryption, including not enough
+     * space in the output buffer. Use cause to identify the reason.
+     */
+    default void encrypt(ByteBuffer input, ByteBuffer output) throws EncryptionException {
+        byte[] data = new byte[input.remaining()];
+        input.get(data);
+        try {
+            output.put(encrypt(data));
+        } catch (BufferOverflowException boe) {
+            throw new EncryptionException("Output buffer is too small.", boe);
+        }
+    }
+
+    /**
+     * Decrypts remaining bytes of the input buffer and puts decrypted data into output buffer. Input buffer is
+     * consumed and output buffer position is advanced by the length of decrypted data. Output buffer is expected to
+     * have at least as many bytes remaining as the input buffer. Default implementation copies the data,
+     * implementations are expected to decrypt without intermediate copies.
+     *
+     * @param input Input buffer.
+     * @param output Output buffer.
+     * @throws DecryptionException Decryption exception in case of problems with decryption, including not enough
+     * space in the output buffer. Use cause to identify the reason.
+     */
+    default void decrypt(ByteBuffer input, ByteBuffer output) throws DecryptionException {
+        byte[] encrypted = new byte[input.remaining()];
+        input.get(encrypted);
+        try {
+            output.put(decrypt(encrypted));
+        } catch (BufferOverflowException boe) {
+            throw new DecryptionException("Output buffer is too small.", boe);
+        }
+    }
+
     /**
      * Encryption exception. See cause for details.
      */
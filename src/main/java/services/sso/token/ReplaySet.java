@@ -0,0 +1,273 @@
+package services.sso.token;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+/**
+ * In-memory set of 128-bit digests of used one-time tokens, for replay protection. Digests are kept in time buckets
+ * of the token time to live: a digest is added to the bucket of the current window and found while its window is
+ * current or previous, so it is kept for at least one time to live. Whole buckets are cleared on rotation, nothing is
+ * expired one by one.
+ * <p>
+ * Each bucket is an open addressing table in a primitive array, 16 bytes per slot. A bucket is filled up to 3/4 of its
+ * capacity, then doubled, up to maximal capacity, so memory is bounded by 3 buckets of maximal capacity; rotation
+ * shrinks a bucket back to the initial capacity. Additions to a bucket at maximal capacity report {@link Result#FULL}
+ * rather than treat the token as used, so flooding the set with used tokens can't deny legitimate ones. Thread safe.
+ */
+public final class ReplaySet {
+
+    /**
+     * Number of buckets: current, previous and the next one to be reused.
+     */
+    private static final int BUCKETS = 3;
+
+    /**
+     * Buckets: high and low 64 bits of digests, by slot.
+     */
+    private final long[][] digests = new long[BUCKETS][];
+
+    /**
+     * Window index of each bucket.
+     */
+    private final long[] windows = new long[BUCKETS];
+
+    /**
+     * Number of digests in each bucket.
+     */
+    private final int[] sizes = new int[BUCKETS];
+
+    /**
+     * Initial number of slots per bucket, power of two.
+     */
+    private final int capacity;
+
+    /**
+     * Maximal number of slots per bucket, power of two.
+     */
+    private final int maxCapacity;
+
+    /**
+     * Window size, in milliseconds.
+     */
+    private final long windowMillis;
+
+    /**
+     * Millisecond clock.
+     */
+    private final LongSupplier clock;
+
+    /**
+     * Constructs replay set.
+     *
+     * @param windowMillis Window size, time to live of the tokens, in milliseconds.
+     * @param capacity Initial number of slots per bucket, rounded up to power of two.
+     * @param maxCapacity Maximal number of slots per bucket, rounded up to power of two, not less than capacity.
+     * @param clock Millisecond clock, like {@link System#currentTimeMillis()}.
+     */
+    public ReplaySet(long windowMillis, int capacity, int maxCapacity, LongSupplier clock) {
+        if (windowMillis <= 0L) {
+            throw new IllegalArgumentException("Expects positive window: " + windowMillis);
+        }
+        if (capacity <= 0 || maxCapacity < capacity || maxCapacity > 1 << 28) {
+            throw new IllegalArgumentException(
+                    "Expects capacity from 1 to maximal capacity up to 2^28: " + capacity + ", " + maxCapacity);
+        }
+        this.capacity = powerOfTwo(capacity);
+        this.maxCapacity = powerOfTwo(maxCapacity);
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        for (int i = 0; i < BUCKETS; i++) {
+            digests[i] = new long[2 * this.capacity];
+            windows[i] = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Returns whether the digest is in the set.
+     *
+     * @param high High 64 bits of the digest.
+     * @param low Low 64 bits of the digest.
+     * @return Whether the digest is in the set.
+     */
+    public synchronized boolean contains(long high, long low) {
+        long window = clock.getAsLong() / windowMillis;
+        return find(window, high, low) >= 0 || find(window - 1, high, low) >= 0;
+    }
+
+    /**
+     * Adds the digest to the set.
+     *
+     * @param high High 64 bits of the digest.
+     * @param low Low 64 bits of the digest.
+     * @return Result: whether the digest was added, was in the set already or could not be remembered.
+     */
+    public synchronized Result add(long high, long low) {
+        long window = clock.getAsLong() / windowMillis;
+        if (find(window, high, low) >= 0 || find(window - 1, high, low) >= 0) {
+            return Result.PRESENT;
+        }
+        int bucket = bucket(window);
+        if (windows[bucket] != window) {
+            if (digests[bucket].length == 2 * capacity) {
+                Arrays.fill(digests[bucket], 0L);
+            } else {
+                digests[bucket] = new long[2 * capacity];
+            }
+            windows[bucket] = window;
+            sizes[bucket] = 0;
+        }
+        int bucketCapacity = digests[bucket].length / 2;
+        if (sizes[bucket] >= maxSize(bucketCapacity)) {
+            if (bucketCapacity >= maxCapacity) {
+                return Result.FULL;
+            }
+            grow(bucket);
+        }
+        insert(digests[bucket], high, low);
+        sizes[bucket]++;
+        return Result.ADDED;
+    }
+
+    /**
+     * Returns number of digests in the set.
+     *
+     * @return Number of digests.
+     */
+    public synchronized int size() {
+        long window = clock.getAsLong() / windowMillis;
+        int size = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (windows[i] == window || windows[i] == window - 1) {
+                size += sizes[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns slot of the digest in the window's bucket.
+     *
+     * @param window Window index.
+     * @param high High 64 bits of the digest.
+     * @param low Low 64 bits of the digest.
+     * @return Slot or -1 if the digest is not there.
+     */
+    private int find(long window, long high, long low) {
+        int bucket = bucket(window);
+        if (windows[bucket] != window) {
+            return -1;
+        }
+        if (high == 0L && low == 0L) {
+            low = 1L;
+        }
+        long[] table = digests[bucket];
+        int mask = table.length / 2 - 1;
+        int slot = slot(high, low, mask);
+        while (table[2 * slot] != 0L || table[2 * slot + 1] != 0L) {
+            if (table[2 * slot] == high && table[2 * slot + 1] == low) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Doubles capacity of the bucket, moving its digests.
+     *
+     * @param bucket Bucket.
+     */
+    private void grow(int bucket) {
+        long[] table = digests[bucket];
+        long[] grown = new long[2 * table.length];
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i] != 0L || table[i + 1] != 0L) {
+                insert(grown, table[i], table[i + 1]);
+            }
+        }
+        digests[bucket] = grown;
+    }
+
+    /**
+     * Inserts the digest, which is not in the table, into the table with a free slot.
+     *
+     * @param table Table.
+     * @param high High 64 bits of the digest.
+     * @param low Low 64 bits of the digest.
+     */
+    private static void insert(long[] table, long high, long low) {
+        if (high == 0L && low == 0L) {
+            low = 1L;
+        }
+        int mask = table.length / 2 - 1;
+        int slot = slot(high, low, mask);
+        while (table[2 * slot] != 0L || table[2 * slot + 1] != 0L) {
+            slot = (slot + 1) & mask;
+        }
+        table[2 * slot] = high;
+        table[2 * slot + 1] = low;
+    }
+
+    /**
+     * Returns maximal number of digests in a bucket of given capacity.
+     *
+     * @param bucketCapacity Number of slots of the bucket.
+     * @return Maximal number of digests.
+     */
+    private static int maxSize(int bucketCapacity) {
+        return Math.max(bucketCapacity / 4 * 3, 1);
+    }
+
+    /**
+     * Returns the value rounded up to power of two, at least 2, so that a filled table has a free slot.
+     *
+     * @param value Positive value.
+     * @return Power of two.
+     */
+    private static int powerOfTwo(int value) {
+        return value <= 2 ? 2 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    /**
+     * Returns bucket of the window.
+     *
+     * @param window Window index.
+     * @return Bucket.
+     */
+    private static int bucket(long window) {
+        return (int) Math.floorMod(window, (long) BUCKETS);
+    }
+
+    /**
+     * Returns home slot of the digest, digests are uniformly distributed already.
+     *
+     * @param high High 64 bits of the digest.
+     * @param low Low 64 bits of the digest.
+     * @param mask Table mask, number of slots minus one.
+     * @return Home slot.
+     */
+    private static int slot(long high, long low, int mask) {
+        return (int) (high ^ low) & mask;
+    }
+
+    /**
+     * Result of addition.
+     */
+    public enum Result {
+
+        /**
+         * Digest is added.
+         */
+        ADDED,
+
+        /**
+         * Digest is in the set already.
+         */
+        PRESENT,
+
+        /**
+         * Digest is not in the set and can't be remembered: the current bucket is at maximal capacity.
+         */
+        FULL
+    }
+}
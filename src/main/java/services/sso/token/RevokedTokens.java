@@ -0,0 +1,201 @@
+package services.sso.token;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory table of revoked access and refresh tokens: per user, "tokens issued at or before time T are revoked" plus
+ * ids of individually revoked tokens with their expiration times. Lookup is a single hash map access, users without
+ * revocations cost nothing. All operations are idempotent, so the table is safely rebuilt from overlapping batches of
+ * stored revocations. Thread safe.
+ */
+public final class RevokedTokens {
+
+    /**
+     * Empty array of token ids or expiration times.
+     */
+    private static final long[] NO_TOKENS = new long[0];
+
+    /**
+     * Revocations by user id.
+     */
+    private final Map<Long, UserRevocations> revocations = new ConcurrentHashMap<>();
+
+    /**
+     * Maximum time to live of tokens, in milliseconds. Revocation of all user's tokens is kept for this time.
+     */
+    private final long maxTimeToLive;
+
+    /**
+     * Constructs revoked tokens table.
+     *
+     * @param maxTimeToLive Maximum time to live of tokens, in milliseconds.
+     */
+    public RevokedTokens(long maxTimeToLive) {
+        this.maxTimeToLive = maxTimeToLive;
+    }
+
+    /**
+     * Returns whether token of the given user with given issue time and id is revoked.
+     *
+     * @param userId User id.
+     * @param tokenIssuedAt Token issue time, in milliseconds since Jan 1, 1970 UTC.
+     * @param tokenId Token id.
+     * @return Whether the token is revoked.
+     */
+    public boolean isRevoked(long userId, long tokenIssuedAt, long tokenId) {
+        UserRevocations userRevocations = revocations.get(userId);
+        return userRevocations != null && userRevocations.isRevoked(tokenIssuedAt, tokenId);
+    }
+
+    /**
+     * Revokes single token of the given user.
+     *
+     * @param userId User id.
+     * @param tokenId Token id.
+     * @param tokenExpires Token expiration time, in milliseconds since Jan 1, 1970 UTC.
+     */
+    public void revokeToken(long userId, long tokenId, long tokenExpires) {
+        revocations.merge(userId, new UserRevocations(Long.MIN_VALUE, new long[]{tokenId}, new long[]{tokenExpires}),
+                UserRevocations::merge);
+    }
+
+    /**
+     * Revokes all tokens of the given user issued at or before given time.
+     *
+     * @param userId User id.
+     * @param time Revocation time, in milliseconds since Jan 1, 1970 UTC.
+     */
+    public void revokeAllTokens(long userId, long time) {
+        revocations.merge(userId, new UserRevocations(time, NO_TOKENS, NO_TOKENS), UserRevocations::merge);
+    }
+
+    /**
+     * Removes revocations of tokens that are expired at the given time.
+     *
+     * @param now Current time, in milliseconds since Jan 1, 1970 UTC.
+     * @return Number of users removed from the table.
+     */
+    public int removeExpired(long now) {
+        int removed = 0;
+        for (Iterator<Map.Entry<Long, UserRevocations>> it = revocations.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, UserRevocations> entry = it.next();
+            UserRevocations current = entry.getValue();
+            UserRevocations updated = current.withoutExpired(now, maxTimeToLive);
+            if (updated == null) {
+                if (revocations.remove(entry.getKey(), current)) {
+                    removed++;
+                }
+            } else if (updated != current) {
+                revocations.replace(entry.getKey(), current, updated);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns number of users with revocations.
+     *
+     * @return Number of users with revocations.
+     */
+    public int size() {
+        return revocations.size();
+    }
+
+    /**
+     * Immutable revocations of a single user.
+     */
+    private static final class UserRevocations {
+
+        /**
+         * Tokens issued at or before this time are revoked.
+         */
+        private final long revokedBefore;
+
+        /**
+         * Sorted ids of individually revoked tokens.
+         */
+        private final long[] tokenIds;
+
+        /**
+         * Expiration times of individually revoked tokens, in the order of their ids.
+         */
+        private final long[] tokenExpirations;
+
+        /**
+         * Constructs revocations of a user.
+         */
+        UserRevocations(long revokedBefore, long[] tokenIds, long[] tokenExpirations) {
+            this.revokedBefore = revokedBefore;
+            this.tokenIds = tokenIds;
+            this.tokenExpirations = tokenExpirations;
+        }
+
+        /**
+         * Returns whether the token with given issue time and id is revoked.
+         */
+        boolean isRevoked(long tokenIssuedAt, long tokenId) {
+            return tokenIssuedAt <= revokedBefore || Arrays.binarySearch(tokenIds, tokenId) >= 0;
+        }
+
+        /**
+         * Returns union of this and other revocations.
+         */
+        UserRevocations merge(UserRevocations other) {
+            long[] mergedIds = tokenIds;
+            long[] mergedExpirations = tokenExpirations;
+            for (int i = 0; i < other.tokenIds.length; i++) {
+                int index = Arrays.binarySearch(mergedIds, other.tokenIds[i]);
+                if (index < 0) {
+                    index = -index - 1;
+                    mergedIds = insert(mergedIds, index, other.tokenIds[i]);
+                    mergedExpirations = insert(mergedExpirations, index, other.tokenExpirations[i]);
+                }
+            }
+            return new UserRevocations(Math.max(revokedBefore, other.revokedBefore), mergedIds, mergedExpirations);
+        }
+
+        /**
+         * Returns revocations without expired tokens: this instance if nothing is expired, null if everything is.
+         */
+        UserRevocations withoutExpired(long now, long timeToLive) {
+            boolean revokedBeforeExpired = revokedBefore == Long.MIN_VALUE || revokedBefore + timeToLive <= now;
+            int alive = 0;
+            for (long tokenExpires : tokenExpirations) {
+                if (tokenExpires > now) {
+                    alive++;
+                }
+            }
+            if (revokedBeforeExpired && alive == 0) {
+                return null;
+            }
+            if (alive == tokenExpirations.length && (!revokedBeforeExpired || revokedBefore == Long.MIN_VALUE)) {
+                return this;
+            }
+            long[] aliveIds = new long[alive];
+            long[] aliveExpirations = new long[alive];
+            int j = 0;
+            for (int i = 0; i < tokenExpirations.length; i++) {
+                if (tokenExpirations[i] > now) {
+                    aliveIds[j] = tokenIds[i];
+                    aliveExpirations[j++] = tokenExpirations[i];
+                }
+            }
+            return new UserRevocations(revokedBeforeExpired ? Long.MIN_VALUE : revokedBefore, aliveIds,
+                    aliveExpirations);
+        }
+
+        /**
+         * Returns copy of the array with the value inserted at given index.
+         */
+        private static long[] insert(long[] array, int index, long value) {
+            long[] grown = new long[array.length + 1];
+            System.arraycopy(array, 0, grown, 0, index);
+            grown[index] = value;
+            System.arraycopy(array, index, grown, index + 1, array.length - index);
+            return grown;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package services.sso.token;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenType;
+import ninja.utils.NinjaProperties;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * XSRF token service. Mints encrypted XSRF tokens for users and reuses a token while at least a half of its time to
+ * live remains, so most requests don't encrypt anything. Thread safe.
+ */
+@Singleton
+public class XsrfTokenService {
+
+    /**
+     * Expirable token encryptor.
+     */
+    private final ExpirableTokenEncryptor encryptor;
+
+    /**
+     * XSRF token time to live, in milliseconds.
+     */
+    private final long timeToLive;
+
+    /**
+     * Recently minted XSRF tokens by user id.
+     */
+    private final Cache<Long, String> recentTokens;
+
+    /**
+     * Constructs XSRF token service.
+     *
+     * @param encryptor Expirable token encryptor.
+     * @param properties Properties.
+     */
+    @Inject
+    public XsrfTokenService(ExpirableTokenEncryptor encryptor, NinjaProperties properties) {
+        this(encryptor,
+                properties.getIntegerOrDie("application.sso.xsrfToken.ttl") * 1800L,
+                properties.getIntegerWithDefault("application.sso.xsrfToken.cache.maxSize", 10_000));
+    }
+
+    /**
+     * Constructs XSRF token service.
+     *
+     * @param encryptor Expirable token encryptor.
+     * @param timeToLive XSRF token time to live, in milliseconds.
+     * @param maximumSize Maximum number of remembered tokens.
+     */
+    public XsrfTokenService(ExpirableTokenEncryptor encryptor, long timeToLive, long maximumSize) {
+        this.encryptor = encryptor;
+        this.timeToLive = timeToLive;
+        this.recentTokens = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(timeToLive / 2, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Returns encrypted XSRF token for given user, valid for at least {@link #getMinimumTimeToLive()}.
+     *
+     * @param userId User id.
+     * @return Encrypted XSRF token.
+     * @throws IllegalStateException In case token encryptor is not set up properly.
+     */
+    public String getXsrfToken(long userId) {
+        try {
+            return recentTokens.get(userId, () ->
+                    encryptor.encrypt(ExpirableToken.newUserToken(ExpirableTokenType.XSRF, userId, timeToLive)));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unexpected exception while encrypting XSRF token.", e.getCause());
+        }
+    }
+
+    /**
+     * Returns lazy XSRF token for given user: the token is obtained only when it is needed.
+     *
+     * @param userId User id.
+     * @return Lazy XSRF token.
+     */
+    public LazyXsrfToken getLazyXsrfToken(long userId) {
+        return new LazyXsrfToken(this, userId);
+    }
+
+    /**
+     * Returns minimum remaining time to live of a token returned by {@link #getXsrfToken(long)}, in milliseconds.
+     *
+     * @return Minimum remaining time to live of a token, in milliseconds.
+     */
+    public long getMinimumTimeToLive() {
+        return timeToLive - timeToLive / 2;
+    }
+}
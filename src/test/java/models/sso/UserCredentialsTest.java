@@ -0,0 +1,78 @@
+package models.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Test;
+import services.sso.PasswordService;
+import services.sso.password.PasswordHashingService;
+import services.sso.password.Pbkdf2PasswordHasher;
+import services.sso.password.Sha512PasswordHasher;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link UserCredentials} stored before password algorithm and cost were recorded.
+ */
+public class UserCredentialsTest {
+
+    /**
+     * Entity manager factory of the test persistence unit, on in-memory database.
+     */
+    EntityManagerFactory factory = Persistence.createEntityManagerFactory("h2-test", properties());
+
+    @After
+    public void tearDown() {
+        factory.close();
+    }
+
+    @Test
+    public void testLegacyCredentials() {
+        byte[] salt = new byte[]{1, 2, 3};
+        byte[] hash = new Sha512PasswordHasher().hash("password", salt);
+        EntityManager entityManager = factory.createEntityManager();
+        entityManager.getTransaction().begin();
+        entityManager.createNativeQuery("INSERT INTO userCredentials (userId, passwordSalt, passwordHash, " +
+                "passwordAlgorithm, passwordCost) VALUES (1, ?, ?, NULL, NULL)")
+                .setParameter(1, salt)
+                .setParameter(2, hash)
+                .executeUpdate();
+        entityManager.getTransaction().commit();
+        entityManager.close();
+
+        entityManager = factory.createEntityManager();
+        UserCredentials credentials = entityManager.find(UserCredentials.class, 1L);
+        entityManager.close();
+
+        assertEquals(PasswordHashAlgorithm.SHA512, credentials.getPasswordAlgorithm());
+        assertEquals(0, credentials.getPasswordCost());
+        PasswordService passwordService = new PasswordService(new PasswordHashingService(
+                new Pbkdf2PasswordHasher(1000), 1, 4, 10_000L, new MetricRegistry()));
+        assertFalse("Outdated hash expected.", passwordService.isCurrent(credentials));
+        assertTrue("Correct password expected.", passwordService.isValidPassword("password", credentials));
+        assertTrue("Correct password expected.", passwordService.isValidPassword("password", salt, hash, null, 0));
+        assertFalse("Wrong password expected.", passwordService.isValidPassword("Password", credentials));
+    }
+
+    /**
+     * Returns properties of the test persistence unit: in-memory database, configured by Ninja otherwise, and no bean
+     * validation.
+     *
+     * @return Properties.
+     */
+    private static Map<String, String> properties() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:userCredentialsTest;DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.connection.username", "sa");
+        properties.put("hibernate.connection.password", "");
+        properties.put("javax.persistence.validation.mode", "none");
+        return properties;
+    }
+}
@@ -0,0 +1,118 @@
+package services.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import models.sso.token.IllegalTokenException;
+import ninja.cache.CacheEhCacheImpl;
+import ninja.cache.NinjaCache;
+import ninja.utils.NinjaMode;
+import ninja.utils.NinjaProperties;
+import ninja.utils.NinjaPropertiesImpl;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import services.sso.captcha.CaptchaImageRenderer;
+import services.sso.captcha.CaptchaPool;
+import services.sso.limits.IPCounterService;
+import services.sso.token.AesPasswordBasedEncryptor;
+import services.sso.token.ExpirableTokenEncryptor;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link CaptchaTokenService}.
+ */
+public class CaptchaTokenServiceTest {
+
+    /**
+     * Logger.
+     */
+    Logger logger = LoggerFactory.getLogger(CaptchaTokenServiceTest.class);
+
+    /**
+     * Properties of test mode.
+     */
+    NinjaProperties properties = new NinjaPropertiesImpl(NinjaMode.test);
+
+    /**
+     * Pool without pre-rendered images.
+     */
+    CaptchaPool pool = new CaptchaPool(new CaptchaImageRenderer("ABC", 4, 240, 50, 6), 0, 0, 16, 300L,
+            new MetricRegistry(), logger);
+
+    /**
+     * Captcha token service.
+     */
+    CaptchaTokenService service = new CaptchaTokenService(
+            new NinjaCache(new CacheEhCacheImpl(logger)),
+            properties,
+            new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor("captchaTestPassword".toCharArray())),
+            new CaptchaImageRenderer("ABC", 4, 240, 50, 6),
+            pool,
+            new IPCounterService(properties, () -> null));
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testUsedTokenIsRejected() throws Exception {
+        String token = service.newCaptchaToken("WORD");
+        service.verifyCaptchaToken(token, "word");
+        try {
+            service.verifyCaptchaToken(token, "WORD");
+            fail("Used token must be rejected.");
+        } catch (CaptchaTokenService.AlreadyUsedTokenException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testTokensAreAcceptedWhenReplaySetIsFull() throws Exception {
+        // Replay set of 2 slots remembers one token per captcha time to live, the rest are shared through the cache.
+        NinjaPropertiesImpl smallReplaySet = new NinjaPropertiesImpl(NinjaMode.test);
+        smallReplaySet.setProperty("application.sso.captcha.replay.capacity", "2");
+        smallReplaySet.setProperty("application.sso.captcha.replay.maxCapacity", "2");
+        CaptchaTokenService fullService = new CaptchaTokenService(
+                new NinjaCache(new CacheEhCacheImpl(logger)),
+                smallReplaySet,
+                new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor("captchaTestPassword".toCharArray())),
+                new CaptchaImageRenderer("ABC", 4, 240, 50, 6),
+                pool,
+                new IPCounterService(smallReplaySet, () -> null));
+        for (int i = 0; i < 10; i++) {
+            String token = fullService.newCaptchaToken("WORD");
+            fullService.verifyCaptchaToken(token, "word");
+            try {
+                fullService.verifyCaptchaToken(token, "word");
+                fail("Used token must be rejected.");
+            } catch (CaptchaTokenService.AlreadyUsedTokenException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testUsedTokenWithChangedLastCharacterIsRejected() throws Exception {
+        // Short word gives encoded length not divisible by 4: the last character has unused bits.
+        String token = service.newCaptchaToken("W");
+        assertNotEquals("Last character must have unused bits.", 0, token.length() % 4);
+        service.verifyCaptchaToken(token, "W");
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+        String prefix = token.substring(0, token.length() - 1);
+        for (char c : alphabet.toCharArray()) {
+            String changed = prefix + c;
+            if (changed.equals(token)) {
+                continue;
+            }
+            try {
+                service.verifyCaptchaToken(changed, "W");
+                fail("Used token with changed last character must be rejected: " + c);
+            } catch (IllegalTokenException | CaptchaTokenService.AlreadyUsedTokenException expected) {
+                // Expected.
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package services.sso;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.BaseEncoding;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.persist.PersistService;
+import com.google.inject.persist.jpa.JpaPersistModule;
+import models.sso.PasswordHashAlgorithm;
+import models.sso.PasswordHistory;
+import models.sso.User;
+import models.sso.UserCredentials;
+import models.sso.UserEvent;
+import models.sso.UserEventType;
+import models.sso.UserGender;
+import ninja.utils.NinjaMode;
+import ninja.utils.NinjaProperties;
+import ninja.utils.NinjaPropertiesImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import services.sso.password.PasswordHashingService;
+import services.sso.password.Pbkdf2PasswordHasher;
+import services.sso.password.Sha512PasswordHasher;
+
+import javax.persistence.EntityManager;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PasswordHistoryService} on in-memory database.
+ */
+public class PasswordHistoryServiceTest {
+
+    /**
+     * Password service.
+     */
+    PasswordService passwordService = new PasswordService(new PasswordHashingService(
+            new Pbkdf2PasswordHasher(1000), 2, 16, 10_000L, new MetricRegistry()));
+
+    /**
+     * Json serializer.
+     */
+    ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Injector.
+     */
+    Injector injector;
+
+    /**
+     * Password history service.
+     */
+    PasswordHistoryService service;
+
+    /**
+     * Test user.
+     */
+    User user;
+
+    @Before
+    public void setUp() {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:passwordHistoryTest;DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.connection.username", "sa");
+        properties.put("hibernate.connection.password", "");
+        properties.put("hibernate.hbm2ddl.auto", "create");
+        properties.put("javax.persistence.validation.mode", "none");
+        injector = Guice.createInjector(new JpaPersistModule("h2-test").properties(properties),
+                new AbstractModule() {
+                    @Override
+                    protected void configure() {
+                        bind(NinjaProperties.class).toInstance(new NinjaPropertiesImpl(NinjaMode.test));
+                        bind(Logger.class).toInstance(LoggerFactory.getLogger(PasswordHistoryServiceTest.class));
+                        bind(PasswordService.class).toInstance(passwordService);
+                        bind(ObjectMapper.class).toInstance(objectMapper);
+                    }
+                });
+        injector.getInstance(PersistService.class).start();
+        service = injector.getInstance(PasswordHistoryService.class);
+        user = new User("historyUser", "history@example.org", null);
+        user.setFirstName("First");
+        user.setLastName("Last");
+        user.setDateOfBirth(LocalDate.of(1980, 1, 1));
+        user.setGender(UserGender.FEMALE);
+        inTransaction(em -> em.persist(user));
+    }
+
+    @After
+    public void tearDown() {
+        injector.getInstance(PersistService.class).stop();
+    }
+
+    @Test
+    public void testHint() {
+        UserCredentials credentials = new UserCredentials();
+        credentials.setUserId(user.getId());
+        passwordService.setPassword(credentials, "formerPassword");
+        inTransaction(em -> service.remember(credentials));
+
+        Optional<Date> changed = service.getLastPasswordChangeDate(user, "formerPassword");
+        assertTrue("Hint expected for the former password.", changed.isPresent());
+        assertTrue(changed.get().getTime() <= System.currentTimeMillis());
+        assertFalse(service.getLastPasswordChangeDate(user, "otherPassword").isPresent());
+    }
+
+    @Test
+    public void testHistorySize() {
+        for (int i = 0; i < 7; i++) {
+            UserCredentials credentials = new UserCredentials();
+            credentials.setUserId(user.getId());
+            passwordService.setPassword(credentials, "password" + i);
+            inTransaction(em -> service.remember(credentials));
+        }
+        assertEquals(5, getHistory().size());
+
+        inTransaction(em -> assertEquals(5, service.removeHistory(user)));
+        assertTrue(getHistory().isEmpty());
+    }
+
+    @Test
+    public void testLegacyPasswordChangeEvent() throws Exception {
+        byte[] salt = passwordService.newSalt();
+        BaseEncoding encoding = BaseEncoding.base64Url().omitPadding();
+        Map<String, Object> data = new HashMap<>();
+        data.put("password.old.salt", encoding.encode(salt));
+        data.put("password.old.hash", encoding.encode(new Sha512PasswordHasher().hash("legacyPassword", salt)));
+        data.put("headers", "userAgent");
+        UserEvent event = newPasswordChangeEvent(data, ZonedDateTime.now(ZoneOffset.UTC).minusDays(1));
+
+        // Sign-in doesn't read legacy events.
+        assertFalse(service.getLastPasswordChangeDate(user, "legacyPassword").isPresent());
+        assertTrue(getHistory().isEmpty());
+
+        service.migrateLegacyPasswordChanges();
+        List<PasswordHistory> history = getHistory();
+        assertEquals(1, history.size());
+        assertEquals(PasswordHashAlgorithm.SHA512, history.get(0).getPasswordAlgorithm());
+        assertArrayEquals(salt, history.get(0).getPasswordSalt());
+        Map<?, ?> stripped = objectMapper.readValue(reload(event).getData(), Map.class);
+        assertFalse(stripped.containsKey("password.old.salt"));
+        assertFalse(stripped.containsKey("password.old.hash"));
+        assertEquals("userAgent", stripped.get("headers"));
+
+        Optional<Date> changed = service.getLastPasswordChangeDate(user, "legacyPassword");
+        assertTrue("Hint expected for the legacy former password.", changed.isPresent());
+        assertEquals(event.getTime().toInstant().toEpochMilli(), changed.get().getTime());
+        assertEquals(1, getHistory().size());
+    }
+
+    @Test
+    public void testLegacyPasswordChangeEventWithAlgorithm() {
+        byte[] salt = passwordService.newSalt();
+        BaseEncoding encoding = BaseEncoding.base64Url().omitPadding();
+        Map<String, Object> data = new HashMap<>();
+        data.put("password.old.salt", encoding.encode(salt));
+        data.put("password.old.hash", encoding.encode(new Pbkdf2PasswordHasher(500).hash("legacyPassword", salt)));
+        data.put("password.old.algorithm", PasswordHashAlgorithm.PBKDF2_SHA512.name());
+        data.put("password.old.cost", 500);
+        newPasswordChangeEvent(data, ZonedDateTime.now(ZoneOffset.UTC).minusDays(1));
+
+        service.migrateLegacyPasswordChanges();
+        assertTrue(service.getLastPasswordChangeDate(user, "legacyPassword").isPresent());
+        assertEquals(500, getHistory().get(0).getPasswordCost());
+    }
+
+    @Test
+    public void testLegacyPasswordChangeEventOutOfHintPeriod() throws Exception {
+        byte[] salt = passwordService.newSalt();
+        BaseEncoding encoding = BaseEncoding.base64Url().omitPadding();
+        Map<String, Object> data = new HashMap<>();
+        data.put("password.old.salt", encoding.encode(salt));
+        data.put("password.old.hash", encoding.encode(new Sha512PasswordHasher().hash("legacyPassword", salt)));
+        UserEvent event = newPasswordChangeEvent(data, ZonedDateTime.now(ZoneOffset.UTC).minusDays(31));
+
+        service.migrateLegacyPasswordChanges();
+        // Migrated with the time of the change, so no hint is given.
+        assertEquals(1, getHistory().size());
+        assertFalse(service.getLastPasswordChangeDate(user, "legacyPassword").isPresent());
+        Map<?, ?> stripped = objectMapper.readValue(reload(event).getData(), Map.class);
+        assertFalse(stripped.containsKey("password.old.hash"));
+    }
+
+    @Test
+    public void testMigrateLegacyPasswordChangesInBatches() {
+        for (int i = 0; i < 150; i++) {
+            byte[] salt = passwordService.newSalt();
+            BaseEncoding encoding = BaseEncoding.base64Url().omitPadding();
+            Map<String, Object> data = new HashMap<>();
+            data.put("password.old.salt", encoding.encode(salt));
+            data.put("password.old.hash", encoding.encode(salt));
+            newPasswordChangeEvent(data, ZonedDateTime.now(ZoneOffset.UTC).minusDays(40).plusMinutes(i));
+        }
+        // Password change events without former password are not migrated.
+        newPasswordChangeEvent(new HashMap<>(), ZonedDateTime.now(ZoneOffset.UTC));
+
+        service.migrateLegacyPasswordChanges();
+        // Only the latest former passwords are kept.
+        List<PasswordHistory> history = getHistory();
+        assertEquals(5, history.size());
+        assertEquals(ZonedDateTime.now(ZoneOffset.UTC).minusDays(40).plusMinutes(149).toInstant().toEpochMilli(),
+                history.get(0).getChanged(), 60_000L);
+        // Nothing is left to migrate on the next start.
+        assertTrue(service.migrateLegacyPasswordChanges(0L).isEmpty());
+    }
+
+    /**
+     * Persists own password change event of the test user.
+     *
+     * @param data Event data.
+     * @param time Event time.
+     * @return Persisted event.
+     */
+    UserEvent newPasswordChangeEvent(Map<String, Object> data, ZonedDateTime time) {
+        UserEvent event = new UserEvent();
+        event.setUser(user);
+        event.setType(UserEventType.PASSWORD_CHANGE);
+        event.setIp("127.0.0.1");
+        event.setTime(time);
+        try {
+            event.setData(objectMapper.writeValueAsBytes(data));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        inTransaction(em -> em.persist(event));
+        return event;
+    }
+
+    /**
+     * Returns password history of the test user, latest first.
+     *
+     * @return Password history.
+     */
+    List<PasswordHistory> getHistory() {
+        EntityManager em = injector.getInstance(EntityManager.class);
+        em.clear();
+        return em.createNamedQuery("PasswordHistory.byUser", PasswordHistory.class)
+                .setParameter("userId", user.getId())
+                .getResultList();
+    }
+
+    /**
+     * Reloads the event from the database.
+     *
+     * @param event Event.
+     * @return Reloaded event.
+     */
+    UserEvent reload(UserEvent event) {
+        EntityManager em = injector.getInstance(EntityManager.class);
+        em.clear();
+        return em.find(UserEvent.class, event.getId());
+    }
+
+    /**
+     * Runs the action in a transaction.
+     *
+     * @param action Action.
+     */
+    void inTransaction(Consumer<EntityManager> action) {
+        EntityManager em = injector.getInstance(EntityManager.class);
+        em.getTransaction().begin();
+        action.accept(em);
+        em.getTransaction().commit();
+    }
+}
@@ -1,9 +1,19 @@
 package services.sso;
 
-import models.sso.User;
+import com.codahale.metrics.MetricRegistry;
+import models.sso.PasswordHashAlgorithm;
 import models.sso.UserCredentials;
 import org.junit.Test;
+import services.sso.password.PasswordHashingService;
+import services.sso.password.Pbkdf2PasswordHasher;
+import services.sso.password.Sha512PasswordHasher;
 
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -11,15 +21,15 @@ import static org.junit.Assert.assertTrue;
  */
 public class PasswordServiceTest {
 
-    PasswordService passwordService = new PasswordService();
+    PasswordService passwordService = new PasswordService(new PasswordHashingService(
+            new Pbkdf2PasswordHasher(1000), 2, 16, 10_000L, new MetricRegistry()));
 
     @Test
     public void testShortPassword() {
         String password = "shortPassword!@#$%^&*()_+";
 
         UserCredentials credentials = new UserCredentials();
-        credentials.setPasswordSalt(passwordService.newSalt());
-        credentials.setPasswordHash(passwordService.passwordHash(password, credentials.getPasswordSalt()));
+        passwordService.setPassword(credentials, password);
 
         assertTrue("Correct password expected.", passwordService.isValidPassword(password, credentials));
     }
@@ -33,9 +43,79 @@ public class PasswordServiceTest {
         String password = passwordBuilder.toString();
 
         UserCredentials credentials = new UserCredentials();
-        credentials.setPasswordSalt(passwordService.newSalt());
-        credentials.setPasswordHash(passwordService.passwordHash(password, credentials.getPasswordSalt()));
+        passwordService.setPassword(credentials, password);
 
         assertTrue("Correct password expected.", passwordService.isValidPassword(password, credentials));
     }
+
+    @Test
+    public void testWrongPassword() {
+        UserCredentials credentials = new UserCredentials();
+        passwordService.setPassword(credentials, "password");
+
+        assertFalse("Wrong password expected.", passwordService.isValidPassword("Password", credentials));
+    }
+
+    @Test
+    public void testLegacyPassword() {
+        byte[] salt = passwordService.newSalt();
+        UserCredentials credentials = new UserCredentials();
+        credentials.setPasswordSalt(salt);
+        credentials.setPasswordHash(new Sha512PasswordHasher().hash("password", salt));
+
+        assertEquals(PasswordHashAlgorithm.SHA512, credentials.getPasswordAlgorithm());
+        assertFalse("Outdated hash expected.", passwordService.isCurrent(credentials));
+        assertTrue("Correct password expected.", passwordService.isValidPassword("password", credentials));
+        assertFalse("Wrong password expected.", passwordService.isValidPassword("Password", credentials));
+    }
+
+    @Test
+    public void testFormerCost() {
+        byte[] salt = passwordService.newSalt();
+        UserCredentials credentials = new UserCredentials();
+        credentials.setPasswordSalt(salt);
+        credentials.setPasswordHash(new Pbkdf2PasswordHasher(500).hash("password", salt));
+        credentials.setPasswordAlgorithm(PasswordHashAlgorithm.PBKDF2_SHA512);
+        credentials.setPasswordCost(500);
+
+        assertFalse("Outdated hash expected.", passwordService.isCurrent(credentials));
+        assertTrue("Correct password expected.", passwordService.isValidPassword("password", credentials));
+    }
+
+    @Test
+    public void testHigherCost() {
+        byte[] salt = passwordService.newSalt();
+        UserCredentials credentials = new UserCredentials();
+        credentials.setPasswordSalt(salt);
+        credentials.setPasswordHash(new Pbkdf2PasswordHasher(2000).hash("password", salt));
+        credentials.setPasswordAlgorithm(PasswordHashAlgorithm.PBKDF2_SHA512);
+        credentials.setPasswordCost(2000);
+
+        // Hashed by a node with higher calibrated cost: not downgraded.
+        assertTrue("Current hash expected.", passwordService.isCurrent(credentials));
+        assertTrue("Correct password expected.", passwordService.isValidPassword("password", credentials));
+    }
+
+    @Test
+    public void testRehash() throws Exception {
+        byte[] salt = passwordService.newSalt();
+        byte[] legacyHash = new Sha512PasswordHasher().hash("password", salt);
+        UserCredentials credentials = new UserCredentials();
+        credentials.setPasswordSalt(salt);
+        credentials.setPasswordHash(legacyHash);
+        assertEquals(PasswordHashAlgorithm.SHA512, credentials.getPasswordAlgorithm());
+        assertFalse("Outdated hash expected.", passwordService.isCurrent(credentials));
+
+        UserCredentials rehashed = passwordService.setPasswordAsync(credentials, "password")
+                .get(10, TimeUnit.SECONDS);
+
+        assertSame(credentials, rehashed);
+        assertTrue("Current hash expected.", passwordService.isCurrent(credentials));
+        assertEquals(PasswordHashAlgorithm.PBKDF2_SHA512, credentials.getPasswordAlgorithm());
+        assertEquals(1000, credentials.getPasswordCost());
+        assertFalse("New salt expected.", Arrays.equals(salt, credentials.getPasswordSalt()));
+        assertFalse("Legacy hash must be replaced.", Arrays.equals(legacyHash, credentials.getPasswordHash()));
+        assertTrue("Correct password expected.", passwordService.isValidPassword("password", credentials));
+        assertFalse("Wrong password expected.", passwordService.isValidPassword("Password", credentials));
+    }
 }
@@ -0,0 +1,184 @@
+package services.sso;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.persist.PersistService;
+import com.google.inject.persist.jpa.JpaPersistModule;
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenType;
+import ninja.utils.NinjaMode;
+import ninja.utils.NinjaProperties;
+import ninja.utils.NinjaPropertiesImpl;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link TokenRevocationService}: two nodes share in-memory database.
+ */
+public class TokenRevocationServiceTest {
+
+    /**
+     * Injectors of the nodes.
+     */
+    List<Injector> nodes = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Injector node : nodes) {
+            node.getInstance(PersistService.class).stop();
+        }
+    }
+
+    @Test
+    public void testRevokeTokenOnce() {
+        TokenRevocationService service = newNode("create");
+        ExpirableToken token = newRefreshToken(60_000L);
+        assertFalse(service.isRevoked(1L, token));
+        assertTrue(service.revokeTokenOnce(1L, token));
+        assertTrue(service.isRevoked(1L, token));
+        assertFalse(service.revokeTokenOnce(1L, token));
+        assertTrue(service.revokeTokenOnce(2L, token));
+        assertTrue(service.revokeTokenOnce(1L, newRefreshToken(120_000L)));
+    }
+
+    @Test
+    public void testTokensWithSameExpirationAreRevokedSeparately() {
+        TokenRevocationService service = newNode("create");
+        ExpirableToken token = newRefreshToken(60_000L);
+        Map<String, String> attributes = new HashMap<>(token.getAttributes());
+        attributes.put(ExpirableToken.TOKEN_ID, Long.toString(token.getTokenId() + 1L));
+        ExpirableToken other = new ExpirableToken(token.getType(), null, attributes, token.getExpires());
+
+        assertTrue(service.revokeTokenOnce(1L, token));
+        assertFalse(service.isRevoked(1L, other));
+        assertTrue(service.revokeTokenOnce(1L, other));
+    }
+
+    @Test
+    public void testRevokeAllTokens() throws Exception {
+        TokenRevocationService service = newNode("create");
+        ExpirableToken before = newRefreshToken(60_000L);
+        // Legacy token without issue time and id, issued one refresh token time to live ago.
+        ExpirableToken legacy = new ExpirableToken(ExpirableTokenType.REFRESH, null,
+                Collections.singletonMap("userId", "1"), before.getExpires() - 60_000L + refreshTokenTimeToLive());
+        service.revokeAllTokens(1L);
+        Thread.sleep(2L);
+        ExpirableToken after = newRefreshToken(60_000L);
+
+        assertTrue(service.isRevoked(1L, before));
+        assertTrue(service.isRevoked(1L, legacy));
+        assertFalse(service.isRevoked(1L, after));
+        assertFalse(service.isRevoked(2L, before));
+    }
+
+    @Test
+    public void testRevocationsAreLoadedOnOtherNode() {
+        TokenRevocationService first = newNode("create");
+        TokenRevocationService second = newNode("none");
+        ExpirableToken token = newRefreshToken(60_000L);
+        ExpirableToken other = newRefreshToken(60_000L);
+
+        assertTrue(first.revokeTokenOnce(1L, token));
+        first.revokeAllTokens(2L);
+        assertFalse(second.isRevoked(1L, token));
+
+        second.loadRevocations();
+        assertTrue(second.isRevoked(1L, token));
+        assertFalse(second.isRevoked(1L, other));
+        assertTrue(second.isRevoked(2L, token));
+    }
+
+    @Test
+    public void testConcurrentRevocationOnTwoNodes() throws Exception {
+        TokenRevocationService[] services = {newNode("create"), newNode("none")};
+        ExpirableToken token = newRefreshToken(60_000L);
+        int threads = 16;
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                TokenRevocationService service = services[i % 2];
+                results.add(executor.submit((Callable<Boolean>) () -> {
+                    start.await();
+                    return service.revokeTokenOnce(1L, token);
+                }));
+            }
+            start.countDown();
+            int revoked = 0;
+            for (Future<Boolean> result : results) {
+                revoked += result.get() ? 1 : 0;
+            }
+            assertEquals("Token must be revoked exactly once.", 1, revoked);
+        } finally {
+            executor.shutdownNow();
+        }
+        // Node that lost the race knows the token is revoked, without loading revocations.
+        assertFalse(services[0].revokeTokenOnce(1L, token));
+        assertFalse(services[1].revokeTokenOnce(1L, token));
+    }
+
+    /**
+     * Starts a node on the shared in-memory database.
+     *
+     * @param schema Hibernate schema action: "create" for the first node, "none" for others.
+     * @return Token revocation service of the node.
+     */
+    TokenRevocationService newNode(String schema) {
+        Map<String, String> properties = new HashMap<>();
+        properties.put("hibernate.connection.url", "jdbc:h2:mem:tokenRevocationTest;DB_CLOSE_DELAY=-1");
+        properties.put("hibernate.connection.username", "sa");
+        properties.put("hibernate.connection.password", "");
+        properties.put("hibernate.hbm2ddl.auto", schema);
+        properties.put("javax.persistence.validation.mode", "none");
+        Injector injector = Guice.createInjector(new JpaPersistModule("h2-test").properties(properties),
+                new AbstractModule() {
+                    @Override
+                    protected void configure() {
+                        bind(NinjaProperties.class).toInstance(new NinjaPropertiesImpl(NinjaMode.test));
+                        bind(Logger.class).toInstance(LoggerFactory.getLogger(TokenRevocationServiceTest.class));
+                    }
+                });
+        injector.getInstance(PersistService.class).start();
+        nodes.add(injector);
+        return injector.getInstance(TokenRevocationService.class);
+    }
+
+    /**
+     * Returns new refresh token.
+     *
+     * @param timeToLive Time to live, in milliseconds.
+     * @return Refresh token.
+     */
+    static ExpirableToken newRefreshToken(long timeToLive) {
+        return ExpirableToken.newRevocableUserToken(ExpirableTokenType.REFRESH, 1L, Collections.emptyMap(),
+                timeToLive);
+    }
+
+    /**
+     * Returns refresh token time to live from test properties.
+     *
+     * @return Refresh token time to live, in milliseconds.
+     */
+    static long refreshTokenTimeToLive() {
+        return 1000L * new NinjaPropertiesImpl(NinjaMode.test).getIntegerOrDie("application.sso.refreshToken.ttl");
+    }
+}
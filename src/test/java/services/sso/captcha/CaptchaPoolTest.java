@@ -0,0 +1,98 @@
+package services.sso.captcha;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CaptchaPool}.
+ */
+public class CaptchaPoolTest {
+
+    /**
+     * Metric registry.
+     */
+    MetricRegistry registry = new MetricRegistry();
+
+    /**
+     * Pool of 2 entries without producer threads.
+     */
+    CaptchaPool pool = new CaptchaPool(new CaptchaImageRenderer("ABC", 4, 240, 50, 9), 2, 0, 16, 300L, registry,
+            LoggerFactory.getLogger(CaptchaPoolTest.class));
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testTakeAndClaimOnce() {
+        assertTrue(pool.fill());
+        assertTrue(pool.fill());
+        assertFalse(pool.fill());
+        assertEquals(2, pool.size());
+
+        CaptchaPool.Entry entry = pool.take();
+        assertNotNull(entry);
+        assertEquals(4, entry.getWord().length());
+        assertEquals(1, pool.size());
+        assertNull(pool.claim(entry.getId() + 1L, entry.getWord()));
+        byte[] image = pool.claim(entry.getId(), entry.getWord());
+        assertArrayEquals(entry.getImage(), image);
+        // PNG signature.
+        assertEquals((byte) 0x89, image[0]);
+        assertEquals((byte) 'P', image[1]);
+        assertNull(pool.claim(entry.getId(), entry.getWord()));
+        assertEquals(1L, count("served"));
+    }
+
+    @Test
+    public void testWrongWord() {
+        pool.fill();
+        CaptchaPool.Entry entry = pool.take();
+        assertNull(pool.claim(entry.getId(), "XXXX"));
+        assertNull(pool.claim(entry.getId(), entry.getWord()));
+    }
+
+    @Test
+    public void testStarvation() {
+        assertNull(pool.take());
+        assertEquals(1L, count("starved"));
+        pool.fill();
+        assertNotNull(pool.take());
+        assertEquals(1L, count("taken"));
+        assertEquals(1L, count("rendered"));
+    }
+
+    @Test
+    public void testProducer() throws InterruptedException {
+        CaptchaPool produced = new CaptchaPool(new CaptchaImageRenderer("ABC", 4, 240, 50, 9), 2, 1, 16, 300L,
+                new MetricRegistry(), LoggerFactory.getLogger(CaptchaPoolTest.class));
+        try {
+            for (int i = 0; i < 500 && produced.size() < 2; i++) {
+                Thread.sleep(10L);
+            }
+            assertEquals(2, produced.size());
+        } finally {
+            produced.shutdown();
+        }
+    }
+
+    /**
+     * Returns count of the pool's meter.
+     *
+     * @param suffix Meter name suffix.
+     * @return Count.
+     */
+    long count(String suffix) {
+        return registry.meter(MetricRegistry.name(CaptchaPool.class, suffix)).getCount();
+    }
+}
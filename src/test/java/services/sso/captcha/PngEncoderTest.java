@@ -0,0 +1,167 @@
+package services.sso.captcha;
+
+import nl.captcha.Captcha;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests and benchmarks {@link PngEncoder}.
+ */
+public class PngEncoderTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(PngEncoderTest.class);
+
+    private final PngEncoder encoder = new PngEncoder(9);
+
+    @Test
+    public void testIndexed() throws IOException {
+        for (int colors : new int[]{1, 2, 3, 4, 5, 16, 17, 256}) {
+            BufferedImage image = new BufferedImage(37, 11, BufferedImage.TYPE_INT_RGB);
+            Random random = new Random(colors);
+            for (int y = 0; y < image.getHeight(); y++) {
+                for (int x = 0; x < image.getWidth(); x++) {
+                    image.setRGB(x, y, 0xFF000000 | (random.nextInt(colors) * 0x010101));
+                }
+            }
+            byte[] png = encoder.encode(image);
+            assertEquals("Indexed color type expected.", 3, png[25]);
+            assertSamePixels(image, png);
+        }
+    }
+
+    @Test
+    public void testTrueColor() throws IOException {
+        BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(1);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        byte[] png = encoder.encode(image);
+        assertEquals("True color type expected.", 2, png[25]);
+        assertSamePixels(image, png);
+    }
+
+    @Test
+    public void testAlpha() throws IOException {
+        BufferedImage image = new BufferedImage(20, 10, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.RED);
+        graphics.fillRect(5, 2, 10, 6);
+        graphics.dispose();
+        byte[] png = encoder.encode(image);
+        assertEquals("Indexed color type expected.", 3, png[25]);
+        assertSamePixels(image, png);
+
+        image = new BufferedImage(40, 20, BufferedImage.TYPE_INT_ARGB);
+        Random random = new Random(2);
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        png = encoder.encode(image);
+        assertEquals("True color with alpha type expected.", 6, png[25]);
+        assertSamePixels(image, png);
+    }
+
+    @Test
+    public void testCaptchaImages() throws IOException {
+        CaptchaImageRenderer renderer = new CaptchaImageRenderer("ABC", 5, 240, 50, 6);
+        for (int i = 0; i < 10; i++) {
+            BufferedImage image = new Captcha.Builder(240, 50)
+                    .addText()
+                    .addBorder()
+                    .gimp(new SimpleFishEyeGimpyRenderer())
+                    .addNoise()
+                    .addBackground()
+                    .build()
+                    .getImage();
+            assertSamePixels(image, encoder.encode(image));
+            BufferedImage rendered = ImageIO.read(new ByteArrayInputStream(renderer.render(renderer.nextWord())));
+            assertEquals(240, rendered.getWidth());
+            assertEquals(50, rendered.getHeight());
+        }
+    }
+
+    @Test
+    public void testPerformance() throws IOException {
+        CaptchaImageRenderer renderer = new CaptchaImageRenderer("123456789ABCDEFGHJKLMNPQRSTUVWXYZ", 5, 240, 50, 6);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(renderer.render(renderer.nextWord())));
+        BufferedImage argb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = argb.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        int iterations = 2000;
+        for (int i = 0; i < iterations / 10; i++) {
+            encodeWithImageIo(argb);
+            encoder.encode(argb);
+        }
+        long start = System.nanoTime();
+        int imageIoSize = 0;
+        for (int i = 0; i < iterations; i++) {
+            imageIoSize = encodeWithImageIo(argb).length;
+        }
+        double imageIo = (System.nanoTime() - start) / 1e9;
+        for (int level : new int[]{1, 6, 9}) {
+            PngEncoder levelEncoder = new PngEncoder(level);
+            start = System.nanoTime();
+            int size = 0;
+            for (int i = 0; i < iterations; i++) {
+                size = levelEncoder.encode(argb).length;
+            }
+            double duration = (System.nanoTime() - start) / 1e9;
+            logger.info("Captcha PNG: ImageIO {} bytes, {} images per second; level {}: {} bytes, {} images per second.",
+                    imageIoSize, (long) (iterations / imageIo), level, size, (long) (iterations / duration));
+        }
+    }
+
+    /**
+     * Asserts that the PNG has the same pixels as the image.
+     *
+     * @param image Image.
+     * @param png PNG image.
+     * @throws IOException In case of decoding error.
+     */
+    private static void assertSamePixels(BufferedImage image, byte[] png) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+        assertArrayEquals(pixels(image), pixels(decoded));
+    }
+
+    /**
+     * Returns pixels of the image.
+     *
+     * @param image Image.
+     * @return Pixels, as ARGB.
+     */
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * Encodes image with ImageIO, as before.
+     *
+     * @param image Image.
+     * @return PNG image.
+     * @throws IOException In case of encoding error.
+     */
+    private static byte[] encodeWithImageIo(BufferedImage image) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+}
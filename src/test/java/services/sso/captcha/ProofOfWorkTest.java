@@ -0,0 +1,65 @@
+package services.sso.captcha;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ProofOfWork}.
+ */
+public class ProofOfWorkTest {
+
+    @Test
+    public void testSolveAndVerify() {
+        String challenge = "challenge-token";
+        String solution = solve(challenge, 12);
+        assertTrue(ProofOfWork.verify(challenge, solution, 12));
+        assertTrue(ProofOfWork.leadingZeroBits(ProofOfWork.hash(challenge, solution)) >= 12);
+        assertFalse(ProofOfWork.verify("other-token", solution, 12));
+        assertFalse(ProofOfWork.verify(challenge, solution, 40));
+    }
+
+    @Test
+    public void testMalformedSolutions() {
+        assertFalse(ProofOfWork.verify("challenge", null, 0));
+        assertFalse(ProofOfWork.verify("challenge", "", 0));
+        assertFalse(ProofOfWork.verify("challenge", "-1", 0));
+        assertFalse(ProofOfWork.verify("challenge", "12a", 0));
+        assertFalse(ProofOfWork.verify("challenge", "12345678901234567890", 0));
+        assertTrue(ProofOfWork.verify("challenge", "1234567890123456789", 0));
+    }
+
+    @Test
+    public void testLeadingZeroBits() {
+        assertEquals(0, ProofOfWork.leadingZeroBits(new byte[]{(byte) 0x80, 0}));
+        assertEquals(7, ProofOfWork.leadingZeroBits(new byte[]{1, 0}));
+        assertEquals(12, ProofOfWork.leadingZeroBits(new byte[]{0, 0x08}));
+        assertEquals(16, ProofOfWork.leadingZeroBits(new byte[]{0, 0}));
+    }
+
+    @Test
+    public void testDifficulty() {
+        assertEquals(16, ProofOfWork.difficulty(0L, 100L, 16, 22));
+        assertEquals(16, ProofOfWork.difficulty(199L, 100L, 16, 22));
+        assertEquals(17, ProofOfWork.difficulty(200L, 100L, 16, 22));
+        assertEquals(19, ProofOfWork.difficulty(800L, 100L, 16, 22));
+        assertEquals(22, ProofOfWork.difficulty(1_000_000L, 100L, 16, 22));
+    }
+
+    /**
+     * Solves the challenge like assets/js/sso/proof-of-work.js does.
+     *
+     * @param challenge Challenge.
+     * @param difficulty Difficulty.
+     * @return Solution.
+     */
+    private static String solve(String challenge, int difficulty) {
+        for (long counter = 0; ; counter++) {
+            if (ProofOfWork.leadingZeroBits(ProofOfWork.hash(challenge, Long.toString(counter))) >= difficulty) {
+                return Long.toString(counter);
+            }
+        }
+    }
+}
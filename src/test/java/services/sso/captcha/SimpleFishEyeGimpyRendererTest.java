@@ -0,0 +1,157 @@
+package services.sso.captcha;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Tests and benchmarks {@link SimpleFishEyeGimpyRenderer}.
+ */
+public class SimpleFishEyeGimpyRendererTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(SimpleFishEyeGimpyRendererTest.class);
+
+    private final SimpleFishEyeGimpyRenderer renderer = new SimpleFishEyeGimpyRenderer();
+
+    @Test
+    public void testSameAsPerPixelDistortion() {
+        for (int type : new int[]{BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB,
+                BufferedImage.TYPE_3BYTE_BGR}) {
+            for (int[] size : new int[][]{{240, 50}, {480, 100}, {7, 3}}) {
+                int width = size[0];
+                int height = size[1];
+                for (double multiplier : new double[]{0.2d, 0.5d, 0.8d}) {
+                    for (int distance : new int[]{width / 8, width / 4}) {
+                        int wMid = (int) (width * multiplier);
+                        BufferedImage expected = newImage(width, height, type);
+                        BufferedImage actual = newImage(width, height, type);
+                        perPixelGimp(expected, wMid, distance);
+                        renderer.gimp(actual, wMid, distance);
+                        assertArrayEquals("Type " + type + ", " + width + "x" + height + ", " + wMid + ", " + distance,
+                                pixels(expected), pixels(actual));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDistorts() {
+        BufferedImage image = newImage(240, 50, BufferedImage.TYPE_INT_ARGB);
+        int[] original = pixels(image);
+        renderer.gimp(image);
+        assertFalse(Arrays.equals(original, pixels(image)));
+    }
+
+    @Test
+    public void testPerformance() {
+        for (int[] size : new int[][]{{240, 50}, {480, 100}, {960, 200}}) {
+            int width = size[0];
+            int height = size[1];
+            int iterations = 2_000_000 / (width * height) * 10;
+            BufferedImage image = newImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            for (int i = 0; i < iterations / 10; i++) {
+                perPixelGimp(image, (int) (width * 0.4d), width / 4);
+                renderer.gimp(image, (int) (width * 0.4d), width / 4);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                perPixelGimp(image, (int) (width * 0.4d), width / 4);
+            }
+            double perPixel = (System.nanoTime() - start) / 1e9;
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                renderer.gimp(image, (int) (width * 0.4d), width / 4);
+            }
+            double raster = (System.nanoTime() - start) / 1e9;
+            logger.info("Fish eye {}x{}: per pixel {} images per second, raster {} images per second.",
+                    width, height, (long) (iterations / perPixel), (long) (iterations / raster));
+        }
+    }
+
+    /**
+     * Returns image of given size and type with random pixels.
+     *
+     * @param width Width.
+     * @param height Height.
+     * @param type Image type.
+     * @return Image.
+     */
+    private static BufferedImage newImage(int width, int height, int type) {
+        Random random = new Random(width * 31L + height);
+        BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt() | 0xFF000000);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns pixels of the image.
+     *
+     * @param image Image.
+     * @return Pixels, as ARGB.
+     */
+    private static int[] pixels(BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+
+    /**
+     * Previous per pixel implementation of the distortion, reference for the tests.
+     *
+     * @param image Image.
+     * @param wMid Horizontal position of the eye center.
+     * @param distance Eye radius.
+     */
+    private static void perPixelGimp(BufferedImage image, int wMid, double distance) {
+        int height = image.getHeight();
+        int width = image.getWidth();
+        int[] pix = new int[height * width];
+        int j = 0;
+        for (int j1 = 0; j1 < width; j1++) {
+            for (int k1 = 0; k1 < height; k1++) {
+                pix[j] = image.getRGB(j1, k1);
+                j++;
+            }
+        }
+        int hMid = image.getHeight() / 2;
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                int relX = x - wMid;
+                int relY = y - hMid;
+                double d1 = Math.sqrt(relX * relX + relY * relY);
+                if (d1 < distance) {
+                    int j2 = wMid + (int) (((fishEyeFormula(d1 / distance) * distance) / d1) * relX);
+                    int k2 = hMid + (int) (((fishEyeFormula(d1 / distance) * distance) / d1) * relY);
+                    int color = pix[j2 * height + k2];
+                    image.setRGB(x, y, color);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fish eye formula.
+     *
+     * @param s Parameter.
+     * @return Result.
+     */
+    private static double fishEyeFormula(double s) {
+        if (s < 0.0D) {
+            return 0.0D;
+        }
+        if (s > 1.0D) {
+            return s;
+        }
+        return -0.75D * s * s * s + 1.5D * s * s + 0.25D * s;
+    }
+}
@@ -0,0 +1,181 @@
+package services.sso.limits;
+
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link BatchedWindowCounters}.
+ */
+public class BatchedWindowCountersTest {
+
+    /**
+     * Fake clock, in milliseconds.
+     */
+    AtomicLong clock = new AtomicLong(1_000_000L);
+
+    /**
+     * Shared store.
+     */
+    InMemorySharedCounterStore store = new InMemorySharedCounterStore(clock::get);
+
+    /**
+     * Counters of the first node, window of 10 seconds.
+     */
+    BatchedWindowCounters node1 = newNode(store, 1024, 1024);
+
+    /**
+     * Counters of the second node, window of 10 seconds.
+     */
+    BatchedWindowCounters node2 = newNode(store, 1024, 1024);
+
+    @Test
+    public void testLocalBeforeFlush() {
+        assertEquals(1L, node1.increment(1L, 2L));
+        assertEquals(2L, node1.increment(1L, 2L));
+        assertEquals(0L, node2.get(1L, 2L));
+        assertEquals(0L, store.getOperations());
+    }
+
+    @Test
+    public void testMergeAfterFlush() {
+        for (int i = 0; i < 3; i++) {
+            node1.increment(1L, 2L);
+        }
+        node2.add(1L, 2L, 4);
+        node1.flush();
+        node2.flush();
+        // Node 2 read back totals after both flushed, node 1 before node 2 flushed.
+        assertEquals(7L, node2.get(1L, 2L));
+        assertEquals(3L, node1.get(1L, 2L));
+        node1.flush();
+        assertEquals(7L, node1.get(1L, 2L));
+        // Pending hit is added to the last total.
+        assertEquals(8L, node1.increment(1L, 2L));
+        assertEquals(0L, node1.get(2L, 1L));
+    }
+
+    @Test
+    public void testBatching() {
+        for (int i = 0; i < 1000; i++) {
+            node1.increment(1L, 2L);
+            node1.increment(3L, 4L);
+        }
+        node1.flush();
+        // One addition per key and one multi-get.
+        assertEquals(3L, store.getOperations());
+        assertEquals(0, node1.getPendingKeys());
+        assertEquals(0L, node2.get(3L, 4L));
+        node2.increment(3L, 4L);
+        node2.flush();
+        assertEquals(1001L, node2.get(3L, 4L));
+        assertEquals(5L, store.getOperations());
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        for (int i = 0; i < 10; i++) {
+            node1.increment(1L, 2L);
+        }
+        node1.flush();
+        node2.flush();
+        assertEquals(0L, node2.get(1L, 2L));
+        // Totals are read back for keys the node has seen.
+        node2.increment(1L, 2L);
+        node2.flush();
+        assertEquals(11L, node2.get(1L, 2L));
+        // A quarter of the next window: three quarters of previous hits are within the sliding window.
+        clock.addAndGet(12_500L);
+        assertEquals(8L, node2.get(1L, 2L));
+        clock.addAndGet(10_000L);
+        node2.flush();
+        assertEquals(0L, node2.get(1L, 2L));
+    }
+
+    @Test
+    public void testMaxPendingKeys() {
+        BatchedWindowCounters node = newNode(store, 1, 1024);
+        node.increment(1L, 2L);
+        node.increment(3L, 4L);
+        assertEquals(1, node.getPendingKeys());
+        assertEquals(1L, node.get(3L, 4L));
+        node.flush();
+        node2.increment(3L, 4L);
+        node2.flush();
+        assertEquals(1L, node2.get(3L, 4L));
+    }
+
+    @Test
+    public void testMaxTotalKeys() {
+        AtomicLong lastGetKeys = new AtomicLong();
+        BatchedWindowCounters node = newNode(new SharedCounterStore() {
+            @Override
+            public long add(String key, long delta, int timeToLiveSeconds) {
+                return store.add(key, delta, timeToLiveSeconds);
+            }
+
+            @Override
+            public Map<String, Long> get(Collection<String> keys) {
+                lastGetKeys.set(keys.size());
+                return store.get(keys);
+            }
+        }, 1024, 4);
+        for (long key = 0; key < 100; key++) {
+            node.increment(key, 0L);
+        }
+        for (int i = 0; i < 10; i++) {
+            node.increment(7L, 0L);
+        }
+        node.flush();
+        assertEquals(4, node.getTotalKeys());
+        // Current and previous window of the kept keys.
+        node.flush();
+        assertEquals(8L, lastGetKeys.get());
+
+        // Key with the largest count is kept.
+        node2.add(7L, 0L, 5);
+        node2.flush();
+        node.flush();
+        assertEquals(16L, node.get(7L, 0L));
+        assertEquals(4, node.getTotalKeys());
+    }
+
+    @Test
+    public void testStoreFailure() {
+        BatchedWindowCounters node = newNode(new SharedCounterStore() {
+            @Override
+            public long add(String key, long delta, int timeToLiveSeconds) {
+                throw new IllegalStateException("Unavailable");
+            }
+
+            @Override
+            public Map<String, Long> get(Collection<String> keys) {
+                throw new IllegalStateException("Unavailable");
+            }
+        }, 1024, 1024);
+        node.increment(1L, 2L);
+        try {
+            node.flush();
+        } catch (IllegalStateException e) {
+            // Logged by flusher.
+        }
+        assertEquals(2L, node.increment(1L, 2L));
+    }
+
+    /**
+     * Returns counters of a node.
+     *
+     * @param sharedStore Shared store.
+     * @param maxPendingKeys Maximal number of keys with pending deltas.
+     * @param maxTotalKeys Maximal number of keys with shared totals.
+     * @return Counters.
+     */
+    BatchedWindowCounters newNode(SharedCounterStore sharedStore, int maxPendingKeys, int maxTotalKeys) {
+        return new BatchedWindowCounters(new SlidingWindowCounters(1024, 10_000L, clock::get), sharedStore,
+                "test", 10_000L, clock::get, maxPendingKeys, maxTotalKeys);
+    }
+}
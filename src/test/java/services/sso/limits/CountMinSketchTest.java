@@ -0,0 +1,120 @@
+package services.sso.limits;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link CountMinSketch}.
+ */
+public class CountMinSketchTest {
+
+    /**
+     * Fake clock, in milliseconds.
+     */
+    AtomicLong clock = new AtomicLong(1_000_000L);
+
+    /**
+     * Sketch with window of 10 seconds, tracking 3 heavy hitters with at least 5 hits.
+     */
+    CountMinSketch sketch = new CountMinSketch(1024, 4, 10_000L, clock::get, 3, 5L);
+
+    @Test
+    public void testIncrement() {
+        assertEquals(0L, sketch.get(1L, 2L));
+        for (long i = 1; i <= 10; i++) {
+            assertEquals(i, sketch.increment(1L, 2L));
+        }
+        assertEquals(1L, sketch.increment(2L, 1L));
+        assertEquals(10L, sketch.get(1L, 2L));
+    }
+
+    @Test
+    public void testDecay() {
+        for (int i = 0; i < 10; i++) {
+            sketch.increment(1L, 2L);
+        }
+        clock.addAndGet(15_000L);
+        assertEquals(5L, sketch.get(1L, 2L));
+        clock.addAndGet(10_000L);
+        assertEquals(0L, sketch.get(1L, 2L));
+    }
+
+    @Test
+    public void testFloodDoesNotHideHeavyHitter() {
+        for (int i = 0; i < 20; i++) {
+            sketch.increment(0L, 7L);
+        }
+        for (long ip = 0; ip < 100_000; ip++) {
+            sketch.increment(0L, 0xFFFF00000000L | ip << 8);
+        }
+        assertTrue(sketch.get(0L, 7L) >= 20L);
+        assertEquals(3, sketch.getHeavyHitters().size());
+    }
+
+    @Test
+    public void testHeavyHitters() {
+        for (long key = 1; key <= 5; key++) {
+            for (int i = 0; i < key * 4; i++) {
+                sketch.increment(0L, key);
+            }
+        }
+        List<CountMinSketch.HeavyHitter> hitters = sketch.getHeavyHitters();
+        assertEquals(3, hitters.size());
+        assertEquals(5L, hitters.get(0).getLow());
+        assertEquals(20L, hitters.get(0).getCount());
+        assertEquals(4L, hitters.get(1).getLow());
+        assertEquals(3L, hitters.get(2).getLow());
+        clock.addAndGet(30_000L);
+        assertTrue(sketch.getHeavyHitters().isEmpty());
+        for (int i = 0; i < 6; i++) {
+            sketch.increment(0L, 9L);
+        }
+        hitters = sketch.getHeavyHitters();
+        assertEquals(1, hitters.size());
+        assertEquals(9L, hitters.get(0).getLow());
+    }
+
+    @Test
+    public void testOutOfOrderClock() {
+        clock.set(60_000L);
+        for (int i = 0; i < 60; i++) {
+            sketch.increment(0L, 7L);
+        }
+        // Stale hit of another key must not zero the cells shared with the heavy hitter.
+        clock.set(59_999L);
+        assertEquals(61L, sketch.increment(0L, 7L));
+        for (long key = 100; key < 2_000; key++) {
+            sketch.increment(0L, key);
+        }
+        clock.set(60_000L);
+        assertTrue(sketch.get(0L, 7L) >= 61L);
+        List<CountMinSketch.HeavyHitter> hitters = sketch.getHeavyHitters();
+        assertEquals(7L, hitters.get(0).getLow());
+        assertTrue(hitters.get(0).getCount() >= 61L);
+    }
+
+    @Test
+    public void testWindowIndexPastIntRange() {
+        // Window of 1 second, clock past 2^31 seconds (year 2038): untouched cells are old, not ahead of the clock.
+        clock.set((1L << 31) * 1000L + 500L);
+        CountMinSketch seconds = new CountMinSketch(1024, 4, 1000L, clock::get, 3, 5L);
+        assertEquals(1L, seconds.increment(0L, 7L));
+        assertEquals(2L, seconds.increment(0L, 7L));
+        clock.addAndGet(2_000L);
+        assertEquals(0L, seconds.get(0L, 7L));
+        assertEquals(1L, seconds.increment(0L, 7L));
+    }
+
+    @Test
+    public void testIpConversion() {
+        long[] ipv4 = IPCounterService.toIpKey("192.168.1.20");
+        assertEquals("192.168.1.20", IPCounterService.toIp(ipv4[0], ipv4[1]));
+        long[] ipv6 = IPCounterService.toIpKey("2001:db8::1");
+        assertEquals("2001:db8::1", IPCounterService.toIp(ipv6[0], ipv6[1]));
+    }
+}
@@ -0,0 +1,143 @@
+package services.sso.limits;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link HierarchicalRateLimiter}.
+ */
+public class HierarchicalRateLimiterTest {
+
+    /**
+     * Metric registry.
+     */
+    MetricRegistry registry = new MetricRegistry();
+
+    /**
+     * Limiter: exact IP captcha at 3 and reject at 6, subnet captcha at 5 and reject at 10, account captcha at 2 (its
+     * reject threshold of 4 is ignored), global reject at 100.
+     */
+    HierarchicalRateLimiter limiter = new HierarchicalRateLimiter(
+            new CounterService("ip", 3600L, 3, 1024),
+            6L,
+            24,
+            64,
+            new HierarchicalRateLimiter.Limit(3600L, 5L, 10L, 1024),
+            new HierarchicalRateLimiter.Limit(3600L, 2L, 4L, 1024),
+            new HierarchicalRateLimiter.Limit(3600L, 0L, 100L, 16),
+            registry);
+
+    @Test
+    public void testExactIp() {
+        assertEquals(RateLimitAction.NONE, limiter.hit("10.0.0.1", null));
+        assertEquals(RateLimitAction.NONE, limiter.hit("10.0.0.1", null));
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("10.0.0.1", null));
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("10.0.0.1", ""));
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("10.0.0.1", " "));
+        assertEquals(RateLimitAction.REJECT, limiter.hit("10.0.0.1", null));
+        assertEquals(RateLimitAction.NONE, limiter.hit("10.0.1.1", null));
+        assertEquals(1L, count("ip.rejected"));
+        assertEquals(3L, count("ip.captcha"));
+    }
+
+    @Test
+    public void testIpv4Subnet() {
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(RateLimitAction.NONE, limiter.hit("192.168.1." + i, null));
+        }
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("192.168.1.5", null));
+        for (int i = 6; i <= 9; i++) {
+            assertEquals(RateLimitAction.CAPTCHA, limiter.hit("192.168.1." + i, null));
+        }
+        assertEquals(RateLimitAction.REJECT, limiter.hit("192.168.1.10", null));
+        assertEquals(RateLimitAction.NONE, limiter.hit("192.168.2.1", null));
+        assertEquals(1L, count("subnet.rejected"));
+    }
+
+    @Test
+    public void testIpv6Subnet() {
+        for (int i = 1; i <= 4; i++) {
+            assertEquals(RateLimitAction.NONE, limiter.hit("2001:db8:0:1::" + i, null));
+        }
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("2001:db8:0:1:ffff::1", null));
+        assertEquals(RateLimitAction.NONE, limiter.hit("2001:db8:0:2::1", null));
+    }
+
+    @Test
+    public void testAccount() {
+        assertEquals(RateLimitAction.NONE, limiter.hit("10.0.0.1", "user@example.com"));
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("10.1.0.1", " User@Example.com "));
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("10.2.0.1", "user@example.com"));
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("10.3.0.1", "user@example.com"));
+        assertEquals(RateLimitAction.NONE, limiter.hit("10.4.0.1", "other@example.com"));
+        assertEquals(3L, count("account.captcha"));
+    }
+
+    @Test
+    public void testAccountFloodIsNeverRejected() {
+        // Only account level is enabled: captcha at 50, reject threshold of 500 is ignored.
+        MetricRegistry accountRegistry = new MetricRegistry();
+        HierarchicalRateLimiter accountLimiter = new HierarchicalRateLimiter(
+                new CounterService("ip", 3600L, 0, 1024),
+                0L,
+                24,
+                64,
+                new HierarchicalRateLimiter.Limit(3600L, 0L, 0L, 1024),
+                new HierarchicalRateLimiter.Limit(300L, 50L, 500L, 1024),
+                new HierarchicalRateLimiter.Limit(1L, 0L, 0L, 16),
+                accountRegistry);
+        for (int i = 0; i < 1000; i++) {
+            RateLimitAction action = accountLimiter.hit("10.0.0.1", "victim@example.com", 10);
+            assertEquals(i < 4 ? RateLimitAction.NONE : RateLimitAction.CAPTCHA, action);
+        }
+        assertEquals(0L, accountRegistry.meter(name("account.rejected")).getCount());
+    }
+
+    @Test
+    public void testGlobal() {
+        for (int i = 0; i < 99; i++) {
+            assertEquals(RateLimitAction.NONE, limiter.hit("10." + i + ".0.1", null));
+        }
+        assertEquals(RateLimitAction.REJECT, limiter.hit("10.100.0.1", null));
+        assertEquals(100L, registry.getGauges().get(name("global.count")).getValue());
+    }
+
+    @Test
+    public void testCost() {
+        assertEquals(RateLimitAction.NONE, limiter.hit("10.0.0.1", null, 2));
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("10.0.0.1", null, 2));
+        assertEquals(RateLimitAction.CAPTCHA, limiter.hit("10.0.0.2", "user@example.com", 4));
+        assertEquals(RateLimitAction.REJECT, limiter.hit("10.0.0.3", null, 10));
+        assertEquals(1L, count("account.captcha"));
+        assertEquals(1L, count("ip.rejected"));
+        assertEquals(1L, count("subnet.rejected"));
+    }
+
+    @Test
+    public void testNotIpLiteral() {
+        assertEquals(RateLimitAction.NONE, limiter.hit("unknown", null));
+        assertEquals(RateLimitAction.NONE, limiter.hit(null, null));
+    }
+
+    /**
+     * Returns count of the limiter's meter.
+     *
+     * @param suffix Meter name suffix.
+     * @return Count.
+     */
+    long count(String suffix) {
+        return registry.meter(name(suffix)).getCount();
+    }
+
+    /**
+     * Returns full metric name.
+     *
+     * @param suffix Metric name suffix.
+     * @return Full metric name.
+     */
+    String name(String suffix) {
+        return HierarchicalRateLimiter.class.getName() + "." + suffix;
+    }
+}
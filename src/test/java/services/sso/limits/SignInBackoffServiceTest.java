@@ -0,0 +1,218 @@
+package services.sso.limits;
+
+import com.codahale.metrics.MetricRegistry;
+import ninja.cache.Cache;
+import ninja.cache.NinjaCache;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for {@link SignInBackoffService}.
+ */
+public class SignInBackoffServiceTest {
+
+    /**
+     * Fake clock, in milliseconds.
+     */
+    AtomicLong clock = new AtomicLong(1_000_000L);
+
+    /**
+     * Metric registry.
+     */
+    MetricRegistry registry = new MetricRegistry();
+
+    /**
+     * Shared cache.
+     */
+    NinjaCache sharedCache = new NinjaCache(new MapCache());
+
+    @Test
+    public void testBackoff() {
+        SignInBackoffService service = newService(null);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0L, service.getRetryAfterMillis("user"));
+            service.onFailure("user");
+        }
+        assertEquals(0L, service.getRetryAfterMillis("user"));
+        service.onFailure("user");
+        assertEquals(1000L, service.getRetryAfterMillis("user"));
+        assertEquals(0L, service.getRetryAfterMillis("other"));
+        clock.addAndGet(1000L);
+        assertEquals(0L, service.getRetryAfterMillis("user"));
+        service.onFailure("user");
+        assertEquals(2000L, service.getRetryAfterMillis("user"));
+        clock.addAndGet(2000L);
+        service.onFailure("user");
+        assertEquals(4000L, service.getRetryAfterMillis("user"));
+        service.onSuccess("user");
+        assertEquals(0L, service.getRetryAfterMillis("user"));
+    }
+
+    @Test
+    public void testDelay() {
+        SignInBackoffService service = newService(null);
+        assertEquals(0L, service.getDelayMillis(3));
+        assertEquals(1000L, service.getDelayMillis(4));
+        assertEquals(256_000L, service.getDelayMillis(12));
+        assertEquals(300_000L, service.getDelayMillis(13));
+        assertEquals(300_000L, service.getDelayMillis(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testSharedCache() {
+        SignInBackoffService first = newService(sharedCache);
+        SignInBackoffService second = newService(sharedCache);
+        for (int i = 0; i < 2; i++) {
+            first.onFailure("user");
+            second.onFailure("user");
+        }
+        assertEquals(1000L, first.getRetryAfterMillis("user"));
+        assertEquals(1000L, newService(sharedCache).getRetryAfterMillis("user"));
+        second.onSuccess("user");
+        assertEquals(0L, newService(sharedCache).getRetryAfterMillis("user"));
+    }
+
+    @Test
+    public void testReset() {
+        SignInBackoffService service = newService(null);
+        for (int i = 0; i < 4; i++) {
+            service.onFailure("user");
+        }
+        assertEquals(1000L, service.getRetryAfterMillis("user"));
+        // Failures are forgotten after an hour without failures.
+        clock.addAndGet(3_600_000L);
+        service.onFailure("user");
+        assertEquals(0L, service.getRetryAfterMillis("user"));
+    }
+
+    @Test
+    public void testAccountsWithinDelayAreNotEvicted() {
+        SignInBackoffService service = newService(null);
+        for (int i = 0; i < 4; i++) {
+            service.onFailure("target");
+        }
+        // Fill memory with accounts within their delay.
+        for (int account = 0; account < 2000; account++) {
+            for (int i = 0; i < 4; i++) {
+                service.onFailure("spray" + account);
+            }
+        }
+        assertEquals(1000L, service.getRetryAfterMillis("target"));
+        service.onFailure("target");
+        assertEquals(2000L, service.getRetryAfterMillis("target"));
+        assertEquals(1000L, service.getRetryAfterMillis("spray0"));
+        assertEquals(0L, service.getRetryAfterMillis("spray1999"));
+        assertEquals(4004L, registry.meter(
+                MetricRegistry.name(SignInBackoffService.class, "untracked")).getCount());
+    }
+
+    @Test
+    public void testAccountsOutOfDelayAreEvicted() {
+        SignInBackoffService service = newService(null);
+        for (int account = 0; account < 1000; account++) {
+            service.onFailure("account" + account);
+        }
+        // Accounts without delay make room for new ones.
+        for (int i = 0; i < 4; i++) {
+            service.onFailure("user");
+        }
+        assertEquals(1000L, service.getRetryAfterMillis("user"));
+    }
+
+    /**
+     * Creates service: 3 free failures, delay from 1 second to 300 seconds, up to 1000 accounts in memory.
+     *
+     * @param cache Shared cache or null.
+     * @return Service.
+     */
+    SignInBackoffService newService(NinjaCache cache) {
+        return new SignInBackoffService(3, 1000L, 300_000L, 3600L, 1000L, cache, clock::get, registry);
+    }
+
+    /**
+     * Map based cache, ignores expiration.
+     */
+    static final class MapCache implements Cache {
+
+        /**
+         * Values.
+         */
+        final Map<String, Object> values = new ConcurrentHashMap<>();
+
+        @Override
+        public void add(String key, Object value, int expiration) {
+            values.putIfAbsent(key, value);
+        }
+
+        @Override
+        public boolean safeAdd(String key, Object value, int expiration) {
+            return values.putIfAbsent(key, value) == null;
+        }
+
+        @Override
+        public void set(String key, Object value, int expiration) {
+            values.put(key, value);
+        }
+
+        @Override
+        public boolean safeSet(String key, Object value, int expiration) {
+            values.put(key, value);
+            return true;
+        }
+
+        @Override
+        public void replace(String key, Object value, int expiration) {
+            values.replace(key, value);
+        }
+
+        @Override
+        public boolean safeReplace(String key, Object value, int expiration) {
+            return values.replace(key, value) != null;
+        }
+
+        @Override
+        public Object get(String key) {
+            return values.get(key);
+        }
+
+        @Override
+        public Map<String, Object> get(String[] keys) {
+            Map<String, Object> result = new HashMap<>();
+            for (String key : keys) {
+                result.put(key, values.get(key));
+            }
+            return result;
+        }
+
+        @Override
+        public long incr(String key, int by) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long decr(String key, int by) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            values.clear();
+        }
+
+        @Override
+        public void delete(String key) {
+            values.remove(key);
+        }
+
+        @Override
+        public boolean safeDelete(String key) {
+            return values.remove(key) != null;
+        }
+    }
+}
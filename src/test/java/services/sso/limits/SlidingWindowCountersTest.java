@@ -0,0 +1,164 @@
+package services.sso.limits;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link SlidingWindowCounters}.
+ */
+public class SlidingWindowCountersTest {
+
+    /**
+     * Fake clock, in milliseconds.
+     */
+    AtomicLong clock = new AtomicLong(1_000_000L);
+
+    /**
+     * Counters with window of 10 seconds.
+     */
+    SlidingWindowCounters counters = new SlidingWindowCounters(1024, 10_000L, clock::get);
+
+    @Test
+    public void testIncrement() {
+        assertEquals(0L, counters.get(1L, 2L));
+        assertEquals(1L, counters.increment(1L, 2L));
+        assertEquals(2L, counters.increment(1L, 2L));
+        assertEquals(2L, counters.get(1L, 2L));
+        assertEquals(0L, counters.get(2L, 1L));
+        assertEquals(1L, counters.increment(2L, 1L));
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        for (int i = 0; i < 10; i++) {
+            counters.increment(1L, 2L);
+        }
+        // A quarter of the next window: three quarters of previous hits are within the sliding window.
+        clock.addAndGet(12_500L);
+        assertEquals(7L, counters.get(1L, 2L));
+        assertEquals(8L, counters.increment(1L, 2L));
+
+        // Previous window is out of the sliding window.
+        clock.addAndGet(10_000L);
+        assertEquals(0L, counters.get(1L, 2L));
+    }
+
+    @Test
+    public void testExpiration() {
+        counters.increment(1L, 2L);
+        clock.addAndGet(19_999L);
+        assertEquals(0L, counters.get(1L, 2L));
+        assertEquals(1L, counters.increment(1L, 2L));
+    }
+
+    @Test
+    public void testOutOfOrderClock() {
+        clock.set(60_000L);
+        for (int i = 0; i < 60; i++) {
+            counters.increment(1L, 2L);
+        }
+        // Clock read before a concurrent hit crossed the window boundary: counted into the newer window.
+        clock.set(59_999L);
+        assertEquals(61L, counters.increment(1L, 2L));
+        assertEquals(61L, counters.get(1L, 2L));
+        clock.set(60_000L);
+        assertEquals(61L, counters.get(1L, 2L));
+        assertEquals(62L, counters.increment(1L, 2L));
+    }
+
+    @Test
+    public void testWindowIndexPastIntRange() {
+        // Window of 1 second, clock past 2^31 seconds (year 2038).
+        clock.set((Integer.MAX_VALUE - 1L) * 1000L);
+        SlidingWindowCounters seconds = new SlidingWindowCounters(1024, 1000L, clock::get);
+        for (int i = 0; i < 10; i++) {
+            seconds.increment(1L, 2L);
+        }
+        clock.addAndGet(1_500L);
+        assertEquals(5L, seconds.get(1L, 2L));
+        assertEquals(6L, seconds.increment(1L, 2L));
+        clock.addAndGet(1_000L);
+        assertEquals(0L, seconds.get(1L, 2L));
+        assertEquals(1L, seconds.increment(1L, 2L));
+        clock.addAndGet(2_000L);
+        assertEquals(0L, seconds.get(1L, 2L));
+
+        // Slots expire across the overflow.
+        SlidingWindowCounters small = new SlidingWindowCounters(4, 1000L, clock::get);
+        for (long key = 0; key < 4; key++) {
+            small.increment(key, 0L);
+        }
+        clock.addAndGet(3_000L);
+        for (long key = 4; key < 8; key++) {
+            assertEquals(1L, small.increment(key, 0L));
+        }
+    }
+
+    @Test
+    public void testConstantMemory() {
+        SlidingWindowCounters small = new SlidingWindowCounters(16, 10_000L, clock::get);
+        for (long key = 0; key < 10_000; key++) {
+            small.increment(key, key);
+        }
+        assertEquals(16, small.capacity());
+        assertEquals(2L, small.increment(9_999L, 9_999L));
+    }
+
+    @Test
+    public void testExpiredSlotsAreReused() {
+        SlidingWindowCounters small = new SlidingWindowCounters(4, 10_000L, clock::get);
+        for (long key = 0; key < 4; key++) {
+            small.increment(key, 0L);
+        }
+        clock.addAndGet(30_000L);
+        for (long key = 4; key < 8; key++) {
+            small.increment(key, 0L);
+        }
+        for (long key = 4; key < 8; key++) {
+            assertEquals(1L, small.get(key, 0L));
+        }
+    }
+
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        int threads = 8;
+        int hits = 5_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            executor.execute(() -> {
+                for (int j = 0; j < hits; j++) {
+                    counters.increment(1L, 2L);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10L, TimeUnit.SECONDS));
+        assertEquals(threads * hits, counters.get(1L, 2L));
+    }
+
+    @Test
+    public void testSaturation() {
+        for (int i = 0; i < 70_000; i++) {
+            counters.increment(1L, 2L);
+        }
+        assertEquals(65_535L, counters.get(1L, 2L));
+    }
+
+    @Test
+    public void testCounterServiceHashesKeys() {
+        CounterService counterService = new CounterService("test", 30L, 3, 1024);
+        assertEquals(1L, counterService.increment("a"));
+        assertEquals(2L, counterService.increment("a"));
+        assertEquals(1L, counterService.increment("b"));
+        assertTrue(counterService.incrementAndCheckLimit("a"));
+        assertTrue(counterService.checkLimit("a"));
+        assertEquals(3L, counterService.getCounter("a"));
+    }
+}
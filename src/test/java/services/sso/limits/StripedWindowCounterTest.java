@@ -0,0 +1,85 @@
+package services.sso.limits;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StripedWindowCounter}.
+ */
+public class StripedWindowCounterTest {
+
+    /**
+     * Fake clock, in milliseconds.
+     */
+    AtomicLong clock = new AtomicLong(1_000_000L);
+
+    /**
+     * Counter with window of 10 seconds.
+     */
+    StripedWindowCounter counter = new StripedWindowCounter(10_000L, clock::get);
+
+    @Test
+    public void testAdd() {
+        assertEquals(0L, counter.get());
+        assertEquals(1L, counter.add(1));
+        assertEquals(4L, counter.add(3));
+        assertEquals(4L, counter.get());
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        counter.add(10);
+        // A quarter of the next window: three quarters of previous hits are within the sliding window.
+        clock.addAndGet(12_500L);
+        assertEquals(7L, counter.get());
+        assertEquals(8L, counter.add(1));
+
+        // Previous window is out of the sliding window.
+        clock.addAndGet(10_000L);
+        assertEquals(0L, counter.get());
+        assertEquals(1L, counter.add(1));
+    }
+
+    @Test
+    public void testExpiration() {
+        counter.add(5);
+        clock.addAndGet(30_000L);
+        assertEquals(0L, counter.get());
+        assertEquals(1L, counter.add(1));
+    }
+
+    @Test
+    public void testClockBehindWindow() {
+        clock.addAndGet(10_000L);
+        counter.add(2);
+        clock.addAndGet(-10_000L);
+        assertEquals(3L, counter.add(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNonPositiveHits() {
+        counter.add(0);
+    }
+
+    @Test
+    public void testConcurrentAdds() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    counter.add(1);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30L, TimeUnit.SECONDS));
+        assertEquals(80_000L, counter.get());
+    }
+}
@@ -0,0 +1,88 @@
+package services.sso.password;
+
+import models.sso.PasswordHashAlgorithm;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PasswordCostCalibrator}.
+ */
+public class PasswordCostCalibratorTest {
+
+    /**
+     * Fake clock, advanced by hashing.
+     */
+    AtomicLong clock = new AtomicLong();
+
+    /**
+     * Calibrator with fake clock.
+     */
+    PasswordCostCalibrator calibrator = new PasswordCostCalibrator(clock::get, 5);
+
+    @Test
+    public void testHighestCostWithinTarget() {
+        // 1 ms per 1000 iterations.
+        PasswordHashingCalibration calibration = calibrator.calibrate(this::hasher, 10_000, 10_000_000, 250L);
+
+        assertTrue(calibration.isCalibrated());
+        assertEquals(250_000, calibration.getCost());
+        assertEquals(250.0, calibration.getP99Millis(), 0.001);
+        assertEquals(4.0, calibration.getHashesPerSecond(), 0.001);
+    }
+
+    @Test
+    public void testMaximalCost() {
+        PasswordHashingCalibration calibration = calibrator.calibrate(this::hasher, 10_000, 50_000, 250L);
+
+        assertEquals(50_000, calibration.getCost());
+    }
+
+    @Test
+    public void testMinimalCostOnSlowMachine() {
+        PasswordHashingCalibration calibration = calibrator.calibrate(this::hasher, 100_000, 10_000_000, 50L);
+
+        assertEquals(100_000, calibration.getCost());
+        assertEquals(100.0, calibration.getP99Millis(), 0.001);
+    }
+
+    @Test
+    public void testMeasure() {
+        PasswordHashingCalibration calibration = calibrator.measure(hasher(20_000));
+
+        assertFalse(calibration.isCalibrated());
+        assertEquals(20_000, calibration.getCost());
+        assertEquals(20.0, calibration.getMeanMillis(), 0.001);
+    }
+
+    /**
+     * Returns hasher that advances fake clock by 1 ms per 1000 of cost.
+     *
+     * @param cost Cost.
+     * @return Hasher.
+     */
+    private PasswordHasher hasher(int cost) {
+        return new PasswordHasher() {
+            @Override
+            public byte[] hash(String password, byte[] salt) {
+                clock.addAndGet(TimeUnit.MICROSECONDS.toNanos(cost));
+                return new byte[0];
+            }
+
+            @Override
+            public PasswordHashAlgorithm getAlgorithm() {
+                return PasswordHashAlgorithm.PBKDF2_SHA512;
+            }
+
+            @Override
+            public int getCost() {
+                return cost;
+            }
+        };
+    }
+}
@@ -0,0 +1,225 @@
+package services.sso.password;
+
+import com.codahale.metrics.MetricRegistry;
+import models.sso.PasswordHashAlgorithm;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link PasswordHashingService} and password hashers.
+ */
+public class PasswordHashingServiceTest {
+
+    static final Logger logger = LoggerFactory.getLogger(PasswordHashingServiceTest.class);
+
+    byte[] salt = "salt".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testHashIsComputedByHasher() {
+        Pbkdf2PasswordHasher hasher = new Pbkdf2PasswordHasher(1000);
+        PasswordHashingService service = new PasswordHashingService(hasher, 1, 1, 10_000L, new MetricRegistry());
+
+        byte[] hash = service.hash("password", salt);
+
+        assertEquals(64, hash.length);
+        assertArrayEquals(hasher.hash("password", salt), hash);
+        assertFalse(Arrays.equals(new Sha512PasswordHasher().hash("password", salt), hash));
+        service.shutdown();
+    }
+
+    @Test
+    public void testFullQueueIsRejected() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        PasswordHasher blockingHasher = hasher((password, salt) -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new byte[0];
+        });
+        MetricRegistry registry = new MetricRegistry();
+        PasswordHashingService service = new PasswordHashingService(blockingHasher, 1, 1, 10_000L, registry);
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        try {
+            // One hash is computed, one waits in the queue.
+            Future<byte[]> first = callers.submit(() -> service.hash("first", salt));
+            started.await();
+            Future<byte[]> second = callers.submit(() -> service.hash("second", salt));
+            while (service.getQueueDepth() == 0) {
+                Thread.sleep(1L);
+            }
+            try {
+                service.hash("third", salt);
+                fail("Hash is expected to be rejected.");
+            } catch (PasswordHashingOverloadedException expected) {
+                // Expected.
+            }
+            assertEquals(1L, registry.meter(MetricRegistry.name(PasswordHashingService.class, "rejected")).getCount());
+            assertEquals(1, registry.getGauges().get(
+                    MetricRegistry.name(PasswordHashingService.class, "queueDepth")).getValue());
+
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            second.get(10, TimeUnit.SECONDS);
+            assertTrue(registry.timer(MetricRegistry.name(PasswordHashingService.class, "latency")).getCount() >= 2L);
+        } finally {
+            release.countDown();
+            callers.shutdownNow();
+            service.shutdown();
+        }
+    }
+
+    @Test(expected = PasswordHashingOverloadedException.class)
+    public void testSlowHashTimesOut() {
+        PasswordHasher slowHasher = hasher((password, salt) -> {
+            try {
+                Thread.sleep(10_000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new byte[0];
+        });
+        PasswordHashingService service = new PasswordHashingService(slowHasher, 1, 1, 50L, new MetricRegistry());
+        try {
+            service.hash("password", salt);
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testSaturatedQueueIsRejectedBeforeSubmission() throws Exception {
+        PasswordHasher slowHasher = hasher((password, salt) -> {
+            try {
+                Thread.sleep(100L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new byte[0];
+        });
+        MetricRegistry registry = new MetricRegistry();
+        PasswordHashingService service = new PasswordHashingService(slowHasher, 1, 10, 250L, registry);
+        try {
+            // Average hashing time is known after the first hash.
+            service.hash("first", salt);
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[3];
+            futures[0] = service.hashAsync("password0", salt);
+            while (service.getQueueDepth() > 0) {
+                Thread.sleep(1L);
+            }
+            futures[1] = service.hashAsync("password1", salt);
+            futures[2] = service.hashAsync("password2", salt);
+            assertEquals(2, service.getQueueDepth());
+            // Two queued hashes and the new one take 300 ms, more than the timeout.
+            CompletableFuture<byte[]> rejected = service.hashAsync("rejected", salt);
+            try {
+                rejected.get(1, TimeUnit.MILLISECONDS);
+                fail("Hash is expected to be rejected.");
+            } catch (ExecutionException expected) {
+                assertTrue(expected.getCause() instanceof PasswordHashingOverloadedException);
+            }
+            assertEquals(2, service.getQueueDepth());
+            assertEquals(1L, registry.meter(MetricRegistry.name(PasswordHashingService.class, "rejected")).getCount());
+            CompletableFuture.allOf(futures).get(10, TimeUnit.SECONDS);
+        } finally {
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void testTimedOutQueuedHashIsDropped() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger computed = new AtomicInteger();
+        PasswordHasher blockingHasher = hasher((password, salt) -> {
+            computed.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new byte[0];
+        });
+        PasswordHashingService service = new PasswordHashingService(blockingHasher, 1, 1, 50L, new MetricRegistry());
+        try {
+            CompletableFuture<byte[]> first = service.hashAsync("first", salt);
+            started.await();
+            try {
+                service.hash("second", salt);
+                fail("Hash is expected to time out.");
+            } catch (PasswordHashingOverloadedException expected) {
+                // Expected.
+            }
+            assertEquals(0, service.getQueueDepth());
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            assertEquals(1, computed.get());
+        } finally {
+            release.countDown();
+            service.shutdown();
+        }
+    }
+
+    @Test
+    public void benchmarkHashers() {
+        PasswordHasher[] hashers = {new Sha512PasswordHasher(), new Pbkdf2PasswordHasher(10_000),
+                new Pbkdf2PasswordHasher(100_000)};
+        for (PasswordHasher hasher : hashers) {
+            hasher.hash("password", salt);
+            int iterations = 5;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                hasher.hash("password", salt);
+            }
+            logger.info("{}: {} ms per hash.", hasher, (System.nanoTime() - start) / iterations / 1_000_000.0);
+        }
+    }
+
+    /**
+     * Returns test hasher that computes hashes with given function.
+     *
+     * @param function Hash function.
+     * @return Test hasher.
+     */
+    private static PasswordHasher hasher(BiFunction<String, byte[], byte[]> function) {
+        return new PasswordHasher() {
+            @Override
+            public byte[] hash(String password, byte[] salt) {
+                return function.apply(password, salt);
+            }
+
+            @Override
+            public PasswordHashAlgorithm getAlgorithm() {
+                return PasswordHashAlgorithm.SHA512;
+            }
+
+            @Override
+            public int getCost() {
+                return 0;
+            }
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package services.sso.token;
+
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenType;
+import models.sso.token.ExpiredTokenException;
+import models.sso.token.IllegalTokenException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Tests for {@link AccessTokenCache}.
+ */
+public class AccessTokenCacheTest {
+
+    ExpirableTokenEncryptor encryptor =
+            new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(ExpirableTokenEncryptorTest.PASSWORD));
+
+    AccessTokenCache cache = new AccessTokenCache(encryptor, 100, 60_000L);
+
+    @Test
+    public void testAccessTokenIsCached() throws Exception {
+        ExpirableToken accessToken = ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 123L, 30_000L);
+        String encrypted = encryptor.encrypt(accessToken);
+
+        ExpirableToken first = cache.decrypt(encrypted);
+        ExpirableToken second = cache.decrypt(encrypted);
+
+        assertEquals(accessToken, first);
+        assertSame("Second lookup is expected to be served from cache.", first, second);
+        assertEquals(1L, cache.size());
+        assertEquals(1L, cache.hitCount());
+        assertEquals(1L, cache.missCount());
+    }
+
+    @Test
+    public void testOtherTokensAreNotCached() throws Exception {
+        String encrypted = encryptor.encrypt(ExpirableToken.newUserToken(ExpirableTokenType.XSRF, 123L, 30_000L));
+
+        cache.decrypt(encrypted);
+        cache.decrypt(encrypted);
+
+        assertEquals(0L, cache.size());
+        assertEquals(0L, cache.hitCount());
+    }
+
+    @Test(expected = ExpiredTokenException.class)
+    public void testCachedTokenExpires() throws Exception {
+        String encrypted = encryptor.encrypt(ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 123L, 50L));
+
+        cache.decrypt(encrypted);
+        Thread.sleep(100L);
+        cache.decrypt(encrypted);
+    }
+
+    @Test(expected = IllegalTokenException.class)
+    public void testIllegalToken() throws Exception {
+        cache.decrypt("illegal");
+    }
+
+    @Test
+    public void testDisabledCache() throws Exception {
+        AccessTokenCache disabledCache = new AccessTokenCache(encryptor, 0, 60_000L);
+        String encrypted = encryptor.encrypt(ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 123L, 30_000L));
+
+        assertEquals(disabledCache.decrypt(encrypted), disabledCache.decrypt(encrypted));
+        assertEquals(0L, disabledCache.size());
+    }
+}
@@ -0,0 +1,128 @@
+package services.sso.token;
+
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenType;
+import models.sso.token.IllegalTokenException;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests and benchmarks {@link AesGcmPasswordBasedEncryptor}.
+ */
+public class AesGcmPasswordBasedEncryptorTest {
+
+    private static final Logger logger = LoggerFactory.getLogger(AesGcmPasswordBasedEncryptorTest.class);
+
+    private byte[] data;
+    private char[] passwordCharacters;
+    private AesPasswordBasedEncryptor cbcEncryptor;
+    private AesGcmPasswordBasedEncryptor gcmEncryptor;
+
+    @Before
+    public void setUp() {
+        this.data = "(?) 1982 Some data to encrypt and decrypt. 1982 Some data to encrypt and decrypt.".
+                getBytes(StandardCharsets.UTF_8);
+        this.passwordCharacters = "password_1234567890_1234567890_!@#$%^&*()_+<>?{}|".toCharArray();
+        this.cbcEncryptor = new AesPasswordBasedEncryptor(passwordCharacters, (short) 128,
+                AesPasswordBasedEncryptor.KeyDerivation.HKDF);
+        this.gcmEncryptor = new AesGcmPasswordBasedEncryptor(passwordCharacters, (short) 128, cbcEncryptor);
+    }
+
+    @Test
+    public void testAes128Gcm() throws Exception {
+        byte[] encrypted = gcmEncryptor.encrypt(data);
+
+        assertEquals("Marker, nonce and tag are expected.", 1 + 12 + data.length + 16, encrypted.length);
+        assertArrayEquals("Decrypted data must match the original.", data, gcmEncryptor.decrypt(encrypted));
+    }
+
+    @Test
+    public void testByteBuffers() throws Exception {
+        ByteBuffer encrypted = ByteBuffer.allocate(gcmEncryptor.getMaxEncryptedLength(data.length) + 8);
+        encrypted.position(8);
+        gcmEncryptor.encrypt(ByteBuffer.wrap(data), encrypted);
+        encrypted.flip().position(8);
+
+        ByteBuffer decrypted = ByteBuffer.allocate(encrypted.remaining());
+        gcmEncryptor.decrypt(encrypted, decrypted);
+        assertArrayEquals("Decrypted data must match the original.",
+                data, Arrays.copyOf(decrypted.array(), decrypted.position()));
+
+        decrypted.clear();
+        gcmEncryptor.decrypt(ByteBuffer.wrap(cbcEncryptor.encrypt(data)), decrypted);
+        assertArrayEquals("Decrypted CBC data must match the original.",
+                data, Arrays.copyOf(decrypted.array(), decrypted.position()));
+    }
+
+    @Test
+    public void testCbcMessagesAreAccepted() throws Exception {
+        assertArrayEquals("Decrypted data must match the original.",
+                data, gcmEncryptor.decrypt(cbcEncryptor.encrypt(data)));
+    }
+
+    @Test
+    public void testTamperedMessageIsRejected() throws Exception {
+        byte[] encrypted = gcmEncryptor.encrypt(data);
+        for (int i = 1; i < encrypted.length; i++) {
+            byte[] tampered = encrypted.clone();
+            tampered[i] ^= 0x01;
+            try {
+                gcmEncryptor.decrypt(tampered);
+                fail("Tampered message must be rejected, byte: " + i);
+            } catch (PasswordBasedEncryptor.DecryptionException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(expected = IllegalTokenException.class)
+    public void testTamperedTokenIsRejected() throws Exception {
+        ExpirableTokenEncryptor encryptor = new ExpirableTokenEncryptor(gcmEncryptor);
+        String token = encryptor.encrypt(ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 1L, 30_000L));
+        int middle = token.length() / 2;
+        char tampered = token.charAt(middle) == 'A' ? 'B' : 'A';
+        encryptor.decrypt(token.substring(0, middle) + tampered + token.substring(middle + 1));
+    }
+
+    /**
+     * Compares throughput of CBC and GCM encryption/decryption for access, XSRF and captcha tokens.
+     */
+    @Test
+    public void testTokenThroughputComparedToCbc() throws Exception {
+        ExpirableToken[] tokens = {
+                ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 1234567L, "role", "ADMIN", 86_400_000L),
+                ExpirableToken.newUserToken(ExpirableTokenType.XSRF, 1234567L, 1_800_000L),
+                ExpirableToken.newCaptchaToken("captcha", "WORLD", 300_000L)
+        };
+        PasswordBasedEncryptor[] encryptors = {cbcEncryptor, gcmEncryptor};
+        int iterations = 20_000;
+        for (ExpirableToken token : tokens) {
+            for (PasswordBasedEncryptor pbe : encryptors) {
+                ExpirableTokenEncryptor encryptor = new ExpirableTokenEncryptor(pbe);
+                for (int i = 0; i < iterations / 10; i++) {
+                    encryptor.decrypt(encryptor.encrypt(token));
+                }
+                long start = System.nanoTime();
+                int size = 0;
+                for (int i = 0; i < iterations; i++) {
+                    String encrypted = encryptor.encrypt(token);
+                    size = encrypted.length();
+                    assertEquals(token, encryptor.decrypt(encrypted));
+                }
+                double duration = (System.nanoTime() - start) / 1e9;
+                logger.info("{} {} token ({} bytes): {} encryptions/decryptions per second.",
+                        pbe.getClass().getSimpleName(), token.getType(), size, (long) (iterations / duration));
+            }
+        }
+    }
+}
@@ -6,10 +6,15 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.crypto.Cipher;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 /**
  * Tests and benchmarks {@link AesPasswordBasedEncryptor}.
@@ -87,6 +92,78 @@ public class AesPasswordBasedEncryptorTest {
                 iterations, totalTime, totalTime / iterations, minTime, maxTime);
     }
 
+    /**
+     * Messages encrypted with master key derived subkeys are decrypted, as well as messages encrypted with PBKDF2
+     * derived keys (transition between modes).
+     */
+    @Test
+    public void testAes128Hkdf() throws Exception {
+        AesPasswordBasedEncryptor hkdfEncryptor = new AesPasswordBasedEncryptor(passwordCharacters, (short) 128,
+                AesPasswordBasedEncryptor.KeyDerivation.HKDF);
+        AesPasswordBasedEncryptor pbkdf2Encryptor = new AesPasswordBasedEncryptor(passwordCharacters, (short) 128,
+                AesPasswordBasedEncryptor.KeyDerivation.PBKDF2);
+
+        byte[] encrypted = hkdfEncryptor.encrypt(data);
+        assertEquals("HKDF flag is expected in header.", 0x81, encrypted[0] & 0xFF);
+        assertArrayEquals("Decrypted data must match the original.", data, hkdfEncryptor.decrypt(encrypted));
+        assertArrayEquals("Decrypted data must match the original.", data, pbkdf2Encryptor.decrypt(encrypted));
+
+        byte[] encryptedWithPbkdf2 = pbkdf2Encryptor.encrypt(data);
+        assertEquals("HKDF flag is not expected in header.", 0x01, encryptedWithPbkdf2[0] & 0xFF);
+        assertArrayEquals("Decrypted data must match the original.", data, hkdfEncryptor.decrypt(encryptedWithPbkdf2));
+    }
+
+    /**
+     * Messages encrypted with byte buffers are decrypted with streams and vice versa.
+     */
+    @Test
+    public void testByteBuffersAndStreams() throws Exception {
+        AesPasswordBasedEncryptor encryptor = new AesPasswordBasedEncryptor(passwordCharacters, (short) 128,
+                AesPasswordBasedEncryptor.KeyDerivation.HKDF);
+        ByteBuffer encrypted = ByteBuffer.allocate(encryptor.getMaxEncryptedLength(data.length));
+        encryptor.encrypt(ByteBuffer.wrap(data), encrypted);
+        encrypted.flip();
+
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        encryptor.decrypt(new ByteArrayInputStream(encrypted.array(), 0, encrypted.limit()), decrypted);
+        assertArrayEquals("Decrypted data must match the original.", data, decrypted.toByteArray());
+
+        ByteArrayOutputStream encryptedWithStreams = new ByteArrayOutputStream();
+        encryptor.encrypt(new ByteArrayInputStream(data), encryptedWithStreams);
+        assertEquals(encrypted.limit(), encryptedWithStreams.size());
+        ByteBuffer decryptedBuffer = ByteBuffer.allocate(encryptedWithStreams.size());
+        encryptor.decrypt(ByteBuffer.wrap(encryptedWithStreams.toByteArray()), decryptedBuffer);
+        assertArrayEquals("Decrypted data must match the original.",
+                data, Arrays.copyOf(decryptedBuffer.array(), decryptedBuffer.position()));
+    }
+
+    @Test(expected = PasswordBasedEncryptor.EncryptionException.class)
+    public void testOutputBufferIsTooSmall() throws Exception {
+        new AesPasswordBasedEncryptor(passwordCharacters).encrypt(ByteBuffer.wrap(data), ByteBuffer.allocate(16));
+    }
+
+    /**
+     * Compares throughput of encryption/decryption with PBKDF2 and HKDF derived keys on the same encryptor instance.
+     */
+    @Test
+    public void testAes128KeyDerivationThroughput() throws Exception {
+        for (AesPasswordBasedEncryptor.KeyDerivation keyDerivation : AesPasswordBasedEncryptor.KeyDerivation.values()) {
+            AesPasswordBasedEncryptor encryptor =
+                    new AesPasswordBasedEncryptor(passwordCharacters, (short) 128, keyDerivation);
+            int iterations = AesPasswordBasedEncryptor.KeyDerivation.HKDF.equals(keyDerivation) ? 20_000 : 1_000;
+            for (int i = 0; i < iterations / 10; i++) {
+                encryptor.decrypt(encryptor.encrypt(data));
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                assertArrayEquals(data, encryptor.decrypt(encryptor.encrypt(data)));
+            }
+            double duration = (System.nanoTime() - start) / 1e9;
+            logger.info("{}: {} encryptions/decryptions in {} sec, {} per second.",
+                    keyDerivation, iterations, duration, (long) (iterations / duration));
+        }
+    }
+
     /**
      * Starts AES encryption checkLimit with given key size.
      *
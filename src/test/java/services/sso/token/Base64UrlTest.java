@@ -0,0 +1,68 @@
+package services.sso.token;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link Base64Url}.
+ */
+public class Base64UrlTest {
+
+    BaseEncoding guavaEncoding = BaseEncoding.base64Url().omitPadding();
+
+    @Test
+    public void testSameAsGuava() {
+        Random random = new Random(1982L);
+        for (int length = 0; length < 100; length++) {
+            byte[] data = new byte[length + 3];
+            random.nextBytes(data);
+
+            char[] encoded = new char[Base64Url.encodedLength(length)];
+            int encodedLength = Base64Url.encode(data, 3, length, encoded);
+            String expected = guavaEncoding.encode(data, 3, length);
+            assertEquals(expected.length(), encodedLength);
+            assertEquals(expected, new String(encoded));
+
+            byte[] decoded = new byte[Base64Url.maxDecodedLength(encodedLength)];
+            assertEquals(length, Base64Url.decode(expected, decoded));
+            assertArrayEquals(Arrays.copyOfRange(data, 3, 3 + length), decoded);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalCharacter() {
+        Base64Url.decode("abc+", new byte[3]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPaddingIsRejected() {
+        Base64Url.decode("ab==", new byte[3]);
+    }
+
+    @Test
+    public void testNonCanonicalTrailingBitsAreRejected() {
+        // "AA" and "AAA" are canonical, same bytes with non-zero unused bits of the last character are not.
+        assertEquals(1, Base64Url.decode("AA", new byte[1]));
+        assertEquals(2, Base64Url.decode("AAA", new byte[2]));
+        for (String encoded : new String[]{"AB", "AP", "AAB", "AAD"}) {
+            try {
+                Base64Url.decode(encoded, new byte[2]);
+                fail("Non-canonical encoding expected to be rejected: " + encoded);
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalLength() {
+        Base64Url.decode("abcde", new byte[4]);
+    }
+}
@@ -0,0 +1,146 @@
+package services.sso.token;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link EcdsaTokenSigner}.
+ */
+public class EcdsaTokenSignerTest {
+
+    static final KeyPair OLD_KEY = EcdsaTokenSigner.generateKeyPair();
+
+    static final KeyPair NEW_KEY = EcdsaTokenSigner.generateKeyPair();
+
+    EcdsaTokenSigner signer = new EcdsaTokenSigner("old", OLD_KEY.getPrivate(),
+            ImmutableMap.of("old", (ECPublicKey) OLD_KEY.getPublic()));
+
+    byte[] data = "Some data to sign.".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testSignAndVerify() {
+        for (int i = 0; i < 100; i++) {
+            byte[] signed = sign(signer, data);
+
+            assertTrue(EcdsaTokenSigner.isSigned(signed));
+            assertArrayEquals(data, verify(signer, signed));
+        }
+    }
+
+    @Test
+    public void testSignatureIsStandard() throws Exception {
+        byte[] signed = sign(signer, data);
+        byte[] signature = Arrays.copyOfRange(signed, signed.length - 64, signed.length);
+
+        // JWS (ES256) signatures are r and s of 32 bytes, as Java 9+ P1363 format.
+        Signature verifier = Signature.getInstance("SHA256withECDSA");
+        verifier.initVerify(OLD_KEY.getPublic());
+        verifier.update(signed, 0, signed.length - 64);
+        assertTrue(verifier.verify(toDer(signature)));
+    }
+
+    @Test
+    public void testTamperedMessageIsRejected() {
+        byte[] signed = sign(signer, data);
+        for (int i = 1; i < signed.length; i++) {
+            byte[] tampered = signed.clone();
+            tampered[i] ^= 0x01;
+            try {
+                verify(signer, tampered);
+                fail("Tampered message must be rejected, byte: " + i);
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testKeyRotation() {
+        Map<String, ECPublicKey> bothKeys = ImmutableMap.of(
+                "new", (ECPublicKey) NEW_KEY.getPublic(),
+                "old", (ECPublicKey) OLD_KEY.getPublic());
+        EcdsaTokenSigner rotatedSigner = new EcdsaTokenSigner("new", NEW_KEY.getPrivate(), bothKeys);
+
+        // Messages signed with the old key are still accepted, new messages are accepted by nodes with new key
+        // published.
+        assertArrayEquals(data, verify(rotatedSigner, sign(signer, data)));
+        EcdsaTokenSigner publishingSigner = new EcdsaTokenSigner("old", OLD_KEY.getPrivate(), bothKeys);
+        assertArrayEquals(data, verify(publishingSigner, sign(rotatedSigner, data)));
+        try {
+            verify(signer, sign(rotatedSigner, data));
+            fail("Unknown key must be rejected.");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+
+        assertEquals(2, rotatedSigner.getJsonWebKeys().size());
+        Map<String, String> jwk = rotatedSigner.getJsonWebKeys().get(0);
+        assertEquals("new", jwk.get("kid"));
+        assertEquals("ES256", jwk.get("alg"));
+        assertEquals(43, jwk.get("x").length());
+        assertEquals(43, jwk.get("y").length());
+    }
+
+    @Test
+    public void testVerifyOnlySigner() {
+        EcdsaTokenSigner verifier = new EcdsaTokenSigner(null, null,
+                ImmutableMap.of("old", (ECPublicKey) OLD_KEY.getPublic()));
+
+        assertFalse(verifier.canSign());
+        assertArrayEquals(data, verify(verifier, sign(signer, data)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCurrentKeyMustBePublished() {
+        new EcdsaTokenSigner("new", NEW_KEY.getPrivate(), ImmutableMap.of("old", (ECPublicKey) OLD_KEY.getPublic()));
+    }
+
+    @Test
+    public void testOtherMessagesAreNotSigned() throws Exception {
+        char[] password = ExpirableTokenEncryptorTest.PASSWORD;
+        assertFalse(EcdsaTokenSigner.isSigned(new AesPasswordBasedEncryptor(password).encrypt(data)));
+        assertFalse(EcdsaTokenSigner.isSigned(new AesPasswordBasedEncryptor(password, (short) 256,
+                AesPasswordBasedEncryptor.KeyDerivation.HKDF).encrypt(data)));
+        assertFalse(EcdsaTokenSigner.isSigned(
+                new AesGcmPasswordBasedEncryptor(password, (short) 128, null).encrypt(data)));
+        assertFalse(EcdsaTokenSigner.isSigned(new HmacTokenSigner(password).sign(data)));
+    }
+
+    static byte[] sign(EcdsaTokenSigner signer, byte[] data) {
+        ByteBuffer output = ByteBuffer.allocate(signer.getSignedLength(data.length));
+        signer.sign(ByteBuffer.wrap(data), output);
+        assertFalse(output.hasRemaining());
+        return output.array();
+    }
+
+    static byte[] verify(EcdsaTokenSigner signer, byte[] message) {
+        ByteBuffer output = ByteBuffer.allocate(message.length);
+        signer.verify(ByteBuffer.wrap(message), output);
+        return Arrays.copyOf(output.array(), output.position());
+    }
+
+    static byte[] toDer(byte[] signature) {
+        byte[] r = new BigInteger(1, Arrays.copyOfRange(signature, 0, 32)).toByteArray();
+        byte[] s = new BigInteger(1, Arrays.copyOfRange(signature, 32, 64)).toByteArray();
+        ByteBuffer der = ByteBuffer.allocate(6 + r.length + s.length);
+        der.put((byte) 0x30).put((byte) (4 + r.length + s.length));
+        der.put((byte) 0x02).put((byte) r.length).put(r);
+        der.put((byte) 0x02).put((byte) s.length).put(s);
+        return der.array();
+    }
+}
@@ -1,9 +1,11 @@
 package services.sso.token;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.io.BaseEncoding;
 import controllers.sso.web.Escapers;
 import models.sso.token.ExpirableToken;
 import models.sso.token.ExpirableTokenEncryptorException;
+import models.sso.token.ExpirableTokenType;
 import models.sso.token.ExpiredTokenException;
 import models.sso.token.IllegalTokenException;
 import org.junit.Test;
@@ -11,13 +13,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.StandardCharsets;
+import java.security.interfaces.ECPublicKey;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test for {@link ExpirableTokenEncryptor}.
@@ -36,7 +43,8 @@ public class ExpirableTokenEncryptorTest {
      * Contructs test.
      */
     public ExpirableTokenEncryptorTest() {
-        this.encryptor = new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(PASSWORD));
+        this.encryptor = new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(PASSWORD),
+                ExpirableTokenEncryptor.Format.BINARY);
     }
 
     @Test
@@ -109,6 +117,229 @@ public class ExpirableTokenEncryptorTest {
         logTestInformation(encrypted, decryptedAccessToken);
     }
 
+    @Test
+    public void testUserTokenWithRole()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        ExpirableToken accessToken =
+                ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 1234567L, "role", "ADMIN", 30_000L);
+
+        String encrypted = encryptor.encrypt(accessToken);
+        ExpirableToken decryptedAccessToken = encryptor.decrypt(encrypted);
+
+        assertEquals("Must be the same tokens.", accessToken, decryptedAccessToken);
+        assertEquals(Long.valueOf(1234567L), decryptedAccessToken.getAttributeAsLong("userId"));
+        assertEquals("ADMIN", decryptedAccessToken.getAttributeValue("role"));
+        logTestInformation(encrypted, decryptedAccessToken);
+    }
+
+    @Test
+    public void testNonCanonicalUserIdAndRole()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("userId", "0123");
+        attributes.put("role", "superuser");
+        ExpirableToken token = ExpirableToken.newToken(ExpirableTokenType.CUSTOM, "scope", attributes, 30_000L);
+
+        assertEquals("Must be the same tokens.", token, encryptor.decrypt(encryptor.encrypt(token)));
+    }
+
+    @Test
+    public void testRevocableToken()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        ExpirableToken refreshToken = ExpirableToken.newRevocableUserToken(
+                ExpirableTokenType.REFRESH, 1234567L, Collections.emptyMap(), 30_000L);
+        ExpirableToken other = ExpirableToken.newRevocableUserToken(
+                ExpirableTokenType.REFRESH, 1234567L, Collections.emptyMap(), 30_000L);
+
+        ExpirableToken decrypted = encryptor.decrypt(encryptor.encrypt(refreshToken));
+
+        assertEquals("Must be the same tokens.", refreshToken, decrypted);
+        assertEquals(Long.valueOf(refreshToken.getExpires() - 30_000L), decrypted.getIssuedAt());
+        assertTrue(decrypted.getTokenId() >= 0L);
+        assertFalse("Token ids must be random.", decrypted.getTokenId().equals(other.getTokenId()));
+    }
+
+    @Test
+    public void testDefaultFormatIsJson()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        ExpirableTokenEncryptor defaultEncryptor = new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(PASSWORD));
+        ExpirableTokenEncryptor jsonEncryptor = new ExpirableTokenEncryptor(
+                new AesPasswordBasedEncryptor(PASSWORD), ExpirableTokenEncryptor.Format.JSON);
+        ExpirableToken accessToken = ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 1234567L, 30_000L);
+
+        String encrypted = defaultEncryptor.encrypt(accessToken);
+
+        assertEquals("Must be the same tokens.", accessToken, encryptor.decrypt(encrypted));
+        assertEquals("Must be serialized as JSON.", jsonEncryptor.encrypt(accessToken).length(), encrypted.length());
+    }
+
+    @Test
+    public void testJsonTokensAreReadable()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        ExpirableTokenEncryptor jsonEncryptor = new ExpirableTokenEncryptor(
+                new AesPasswordBasedEncryptor(PASSWORD), ExpirableTokenEncryptor.Format.JSON);
+        ExpirableToken accessToken =
+                ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 1234567L, "role", "MODERATOR", 30_000L);
+
+        String jsonEncrypted = jsonEncryptor.encrypt(accessToken);
+        String binaryEncrypted = encryptor.encrypt(accessToken);
+
+        assertEquals("Must be the same tokens.", accessToken, encryptor.decrypt(jsonEncrypted));
+        assertEquals("Must be the same tokens.", accessToken, jsonEncryptor.decrypt(binaryEncrypted));
+        assertTrue("Binary token is expected to be shorter.", binaryEncrypted.length() < jsonEncrypted.length());
+        logger.info("Access token size, JSON: {}, binary: {} (bytes).",
+                jsonEncrypted.length(), binaryEncrypted.length());
+    }
+
+    @Test(expected = ExpiredTokenException.class)
+    public void testExpiredBinaryToken()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        ExpirableToken expiredToken = ExpirableToken.newUserToken(ExpirableTokenType.XSRF, 1L, -1L);
+
+        encryptor.decrypt(encryptor.encrypt(expiredToken));
+    }
+
+    @Test
+    public void testSignedToken()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        ExpirableTokenEncryptor signingEncryptor = newSigningEncryptor();
+        ExpirableToken xsrfToken = ExpirableToken.newUserToken(ExpirableTokenType.XSRF, 1234567L, 30_000L);
+        ExpirableToken captchaToken = ExpirableToken.newCaptchaToken("captcha", "WORLD", 30_000L);
+
+        String signed = signingEncryptor.encrypt(xsrfToken);
+        String encrypted = signingEncryptor.encrypt(captchaToken);
+
+        assertTrue(signingEncryptor.isSigned(ExpirableTokenType.XSRF));
+        assertFalse(signingEncryptor.isSigned(ExpirableTokenType.CAPTCHA));
+        assertEquals("Must be the same tokens.", xsrfToken, signingEncryptor.decrypt(signed));
+        assertEquals("Must be the same tokens.", captchaToken, signingEncryptor.decrypt(encrypted));
+        assertFalse("Captcha code must not be readable.",
+                new String(BaseEncoding.base64Url().decode(encrypted), StandardCharsets.ISO_8859_1).contains("WORLD"));
+        assertEquals("Encrypted tokens are accepted by non-signing encryptor.",
+                captchaToken, encryptor.decrypt(encrypted));
+        logger.info("XSRF token size, encrypted: {}, signed: {} (bytes).",
+                encryptor.encrypt(xsrfToken).length(), signed.length());
+    }
+
+    @Test(expected = IllegalTokenException.class)
+    public void testTamperedSignedToken()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        ExpirableTokenEncryptor signingEncryptor = newSigningEncryptor();
+        byte[] signed = BaseEncoding.base64Url().decode(signingEncryptor.encrypt(
+                ExpirableToken.newUserToken(ExpirableTokenType.XSRF, 1234567L, 30_000L)));
+        // Flip a bit of the user id.
+        signed[signed.length - 20] ^= 0x01;
+
+        signingEncryptor.decrypt(BaseEncoding.base64Url().omitPadding().encode(signed));
+    }
+
+    @Test(expected = IllegalTokenException.class)
+    public void testSignedTokenIsRejectedWithoutSigner()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        encryptor.decrypt(newSigningEncryptor().encrypt(
+                ExpirableToken.newUserToken(ExpirableTokenType.XSRF, 1234567L, 30_000L)));
+    }
+
+    @Test
+    public void testPublicKeySignedAccessToken()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        Map<String, ECPublicKey> keys = ImmutableMap.of("1", (ECPublicKey) EcdsaTokenSignerTest.OLD_KEY.getPublic());
+        ExpirableTokenEncryptor signingEncryptor = new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(PASSWORD),
+                ExpirableTokenEncryptor.Format.BINARY, null, Collections.emptySet(),
+                new EcdsaTokenSigner("1", EcdsaTokenSignerTest.OLD_KEY.getPrivate(), keys));
+        ExpirableTokenEncryptor verifyingEncryptor = new ExpirableTokenEncryptor(
+                new AesPasswordBasedEncryptor(PASSWORD), ExpirableTokenEncryptor.Format.BINARY, null,
+                Collections.emptySet(), new EcdsaTokenSigner(null, null, keys));
+        ExpirableToken accessToken =
+                ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 1234567L, "role", "ADMIN", 30_000L);
+
+        String signed = signingEncryptor.encrypt(accessToken);
+
+        assertTrue(signingEncryptor.isSigned(ExpirableTokenType.ACCESS));
+        assertFalse(verifyingEncryptor.isSigned(ExpirableTokenType.ACCESS));
+        assertTrue(EcdsaTokenSigner.isSigned(BaseEncoding.base64Url().decode(signed)));
+        assertEquals("Must be the same tokens.", accessToken, verifyingEncryptor.decrypt(signed));
+        assertEquals("Must be encrypted without current key.", accessToken,
+                signingEncryptor.decrypt(verifyingEncryptor.encrypt(accessToken)));
+        logger.info("Access token size, encrypted: {}, signed with public key: {} (bytes).",
+                encryptor.encrypt(accessToken).length(), signed.length());
+    }
+
+    @Test(expected = IllegalTokenException.class)
+    public void testPublicKeySignedTokenIsRejectedWithoutSigner()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        Map<String, ECPublicKey> keys = ImmutableMap.of("1", (ECPublicKey) EcdsaTokenSignerTest.OLD_KEY.getPublic());
+        ExpirableTokenEncryptor signingEncryptor = new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(PASSWORD),
+                ExpirableTokenEncryptor.Format.BINARY, null, Collections.emptySet(),
+                new EcdsaTokenSigner("1", EcdsaTokenSignerTest.OLD_KEY.getPrivate(), keys));
+
+        encryptor.decrypt(signingEncryptor.encrypt(
+                ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 1234567L, 30_000L)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConfidentialTypeCannotBeSigned() {
+        new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(PASSWORD), ExpirableTokenEncryptor.Format.BINARY,
+                new HmacTokenSigner(PASSWORD), EnumSet.of(ExpirableTokenType.CAPTCHA));
+    }
+
+    @Test
+    public void benchmarkSignedTokenVerification()
+            throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
+        ExpirableTokenEncryptor signingEncryptor = newSigningEncryptor();
+        ExpirableToken xsrfToken = ExpirableToken.newUserToken(ExpirableTokenType.XSRF, 1234567L, 30_000L);
+        ExpirableTokenEncryptor[] encryptors = {encryptor, signingEncryptor};
+        for (ExpirableTokenEncryptor tokenEncryptor : encryptors) {
+            // Unsigned tokens derive the key with PBKDF2 on every decryption.
+            int iterations = tokenEncryptor.isSigned(ExpirableTokenType.XSRF) ? 20_000 : 1_000;
+            String token = tokenEncryptor.encrypt(xsrfToken);
+            for (int i = 0; i < iterations / 10; i++) {
+                tokenEncryptor.decrypt(token);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                tokenEncryptor.decrypt(token);
+            }
+            double duration = (System.nanoTime() - start) / 1e9;
+            logger.info("XSRF token, signed: {}: {} verifications per second.",
+                    tokenEncryptor.isSigned(ExpirableTokenType.XSRF), (long) (iterations / duration));
+        }
+    }
+
+    /**
+     * Logs heap allocation per access token encryption and decryption (when the JVM reports allocated bytes).
+     */
+    @Test
+    public void benchmarkAllocationPerToken() throws Exception {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (!(threadBean instanceof com.sun.management.ThreadMXBean)) {
+            logger.info("Thread allocation is not reported by the JVM.");
+            return;
+        }
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        ExpirableTokenEncryptor gcmEncryptor = new ExpirableTokenEncryptor(
+                new AesGcmPasswordBasedEncryptor(PASSWORD, (short) 128, null));
+        ExpirableToken accessToken =
+                ExpirableToken.newUserToken(ExpirableTokenType.ACCESS, 1234567L, "role", "ADMIN", 30_000L);
+        String encrypted = gcmEncryptor.encrypt(accessToken);
+        int iterations = 20_000;
+        for (int i = 0; i < iterations; i++) {
+            gcmEncryptor.decrypt(gcmEncryptor.encrypt(accessToken));
+        }
+        long threadId = Thread.currentThread().getId();
+        long start = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            gcmEncryptor.encrypt(accessToken);
+        }
+        long encryption = (allocationBean.getThreadAllocatedBytes(threadId) - start) / iterations;
+        start = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            gcmEncryptor.decrypt(encrypted);
+        }
+        long decryption = (allocationBean.getThreadAllocatedBytes(threadId) - start) / iterations;
+        logger.info("Allocated per access token, encryption: {}, decryption: {} (bytes).", encryption, decryption);
+    }
+
     @Test
     public void benchmarkEncryptedTokenSize()
             throws ExpiredTokenException, IllegalTokenException, ExpirableTokenEncryptorException {
@@ -126,6 +357,17 @@ public class ExpirableTokenEncryptorTest {
         }
     }
 
+    /**
+     * Returns encryptor that signs XSRF and restore password tokens.
+     *
+     * @return Encryptor that signs XSRF and restore password tokens.
+     */
+    static ExpirableTokenEncryptor newSigningEncryptor() {
+        return new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(PASSWORD),
+                ExpirableTokenEncryptor.Format.BINARY, new HmacTokenSigner(PASSWORD),
+                EnumSet.of(ExpirableTokenType.XSRF, ExpirableTokenType.RESTORE_PASSWORD));
+    }
+
     /**
      * Runs tests for rfc7519 specification.
      *
@@ -0,0 +1,34 @@
+package services.sso.token;
+
+import com.google.common.io.BaseEncoding;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests {@link Hkdf} with RFC 5869 test vectors.
+ */
+public class HkdfTest {
+
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    @Test
+    public void testRfc5869Case1() throws Exception {
+        byte[] inputKeyMaterial = HEX.decode("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b");
+        byte[] salt = HEX.decode("000102030405060708090a0b0c");
+        byte[] info = HEX.decode("f0f1f2f3f4f5f6f7f8f9");
+        byte[] expected = HEX.decode("3cb25f25faacd57a90434f64d0362f2a2d2d0a90cf1a5a4c5db02d56ecc4c5bf" +
+                "34007208d5b887185865");
+
+        assertArrayEquals(expected, Hkdf.derive(inputKeyMaterial, salt, info, 42));
+    }
+
+    @Test
+    public void testRfc5869Case3() throws Exception {
+        byte[] inputKeyMaterial = HEX.decode("0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b0b");
+        byte[] expected = HEX.decode("8da4e775a563c18f715f802a063c5a31b8a11f5c5ee1879ec3454e5f3c738d2d" +
+                "9d201395faa4b61a96c8");
+
+        assertArrayEquals(expected, Hkdf.derive(inputKeyMaterial, new byte[0], new byte[0], 42));
+    }
+}
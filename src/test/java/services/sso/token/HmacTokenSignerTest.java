@@ -0,0 +1,64 @@
+package services.sso.token;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link HmacTokenSigner}.
+ */
+public class HmacTokenSignerTest {
+
+    HmacTokenSigner signer = new HmacTokenSigner(ExpirableTokenEncryptorTest.PASSWORD);
+
+    byte[] data = "Some data to sign.".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void testSignAndVerify() {
+        byte[] signed = signer.sign(data);
+
+        assertTrue(HmacTokenSigner.isSigned(signed));
+        assertArrayEquals(data, signer.verify(signed));
+        assertArrayEquals(new byte[0], signer.verify(signer.sign(new byte[0])));
+    }
+
+    @Test
+    public void testTamperedMessageIsRejected() {
+        byte[] signed = signer.sign(data);
+        for (int i = 1; i < signed.length; i++) {
+            byte[] tampered = signed.clone();
+            tampered[i] ^= 0x01;
+            try {
+                signer.verify(tampered);
+                fail("Tampered message must be rejected, byte: " + i);
+            } catch (IllegalArgumentException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOtherKeyIsRejected() {
+        new HmacTokenSigner("other password".toCharArray()).verify(signer.sign(data));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncatedMessageIsRejected() {
+        signer.verify(new byte[]{HmacTokenSigner.SIGNED_MARKER, 1, 2, 3});
+    }
+
+    @Test
+    public void testEncryptedMessagesAreNotSigned() throws Exception {
+        char[] password = ExpirableTokenEncryptorTest.PASSWORD;
+        assertFalse(HmacTokenSigner.isSigned(new AesPasswordBasedEncryptor(password).encrypt(data)));
+        assertFalse(HmacTokenSigner.isSigned(new AesPasswordBasedEncryptor(password, (short) 256,
+                AesPasswordBasedEncryptor.KeyDerivation.HKDF).encrypt(data)));
+        assertFalse(HmacTokenSigner.isSigned(
+                new AesGcmPasswordBasedEncryptor(password, (short) 128, null).encrypt(data)));
+    }
+}
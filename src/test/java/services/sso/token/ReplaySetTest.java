@@ -0,0 +1,101 @@
+package services.sso.token;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ReplaySet}.
+ */
+public class ReplaySetTest {
+
+    /**
+     * Fake clock, in milliseconds.
+     */
+    AtomicLong clock = new AtomicLong(1_000_000L);
+
+    /**
+     * Replay set with window of 10 seconds and 16 slots per bucket, growing up to 32 slots.
+     */
+    ReplaySet set = new ReplaySet(10_000L, 16, 32, clock::get);
+
+    @Test
+    public void testAdd() {
+        assertFalse(set.contains(1L, 2L));
+        assertEquals(ReplaySet.Result.ADDED, set.add(1L, 2L));
+        assertTrue(set.contains(1L, 2L));
+        assertEquals(ReplaySet.Result.PRESENT, set.add(1L, 2L));
+        assertFalse(set.contains(2L, 1L));
+        assertEquals(ReplaySet.Result.ADDED, set.add(0L, 0L));
+        assertTrue(set.contains(0L, 0L));
+        assertEquals(2, set.size());
+    }
+
+    @Test
+    public void testExpiration() {
+        set.add(1L, 2L);
+        // Kept for the rest of the window and the next one.
+        clock.addAndGet(19_999L);
+        assertTrue(set.contains(1L, 2L));
+        assertEquals(ReplaySet.Result.PRESENT, set.add(1L, 2L));
+        clock.addAndGet(1L);
+        assertFalse(set.contains(1L, 2L));
+        assertEquals(0, set.size());
+        assertEquals(ReplaySet.Result.ADDED, set.add(1L, 2L));
+    }
+
+    @Test
+    public void testBucketReuse() {
+        set.add(1L, 2L);
+        clock.addAndGet(30_000L);
+        assertFalse(set.contains(1L, 2L));
+        assertEquals(ReplaySet.Result.ADDED, set.add(3L, 4L));
+        assertFalse(set.contains(1L, 2L));
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void testGrowth() {
+        // 3/4 of 16 slots, then the bucket is doubled.
+        for (int i = 0; i < 24; i++) {
+            assertEquals(ReplaySet.Result.ADDED, set.add(i, i * 31L));
+        }
+        for (int i = 0; i < 24; i++) {
+            assertTrue(set.contains(i, i * 31L));
+        }
+        assertEquals(24, set.size());
+    }
+
+    @Test
+    public void testFull() {
+        for (int i = 0; i < 24; i++) {
+            assertEquals(ReplaySet.Result.ADDED, set.add(i, i * 31L));
+        }
+        // Bucket at maximal capacity: a new digest is not remembered, but not reported as present either.
+        assertEquals(ReplaySet.Result.FULL, set.add(100L, 200L));
+        assertFalse(set.contains(100L, 200L));
+        assertEquals(ReplaySet.Result.PRESENT, set.add(5L, 155L));
+        for (int i = 0; i < 24; i++) {
+            assertTrue(set.contains(i, i * 31L));
+        }
+        // Previous bucket is full, current one is empty.
+        clock.addAndGet(10_000L);
+        assertEquals(ReplaySet.Result.ADDED, set.add(100L, 200L));
+        assertTrue(set.contains(5L, 155L));
+        // The full bucket is reset when reused.
+        clock.addAndGet(20_000L);
+        for (int i = 0; i < 24; i++) {
+            assertEquals(ReplaySet.Result.ADDED, set.add(i, i * 17L));
+        }
+        assertEquals(ReplaySet.Result.FULL, set.add(100L, 300L));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMaxCapacityLessThanCapacity() {
+        new ReplaySet(10_000L, 16, 8, clock::get);
+    }
+}
@@ -0,0 +1,75 @@
+package services.sso.token;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link RevokedTokens}.
+ */
+public class RevokedTokensTest {
+
+    static final long TTL = 1000L;
+
+    RevokedTokens revokedTokens = new RevokedTokens(TTL);
+
+    @Test
+    public void testRevokeToken() {
+        revokedTokens.revokeToken(1L, 50L, 5000L);
+        revokedTokens.revokeToken(1L, 30L, 3000L);
+        revokedTokens.revokeToken(1L, 50L, 5000L);
+
+        assertTrue(revokedTokens.isRevoked(1L, 4000L, 50L));
+        assertTrue(revokedTokens.isRevoked(1L, 2000L, 30L));
+        assertFalse(revokedTokens.isRevoked(1L, 4000L, 40L));
+        assertFalse(revokedTokens.isRevoked(2L, 4000L, 50L));
+        assertEquals(1, revokedTokens.size());
+    }
+
+    @Test
+    public void testTokensWithSameExpiration() {
+        revokedTokens.revokeToken(1L, 50L, 5000L);
+
+        assertTrue(revokedTokens.isRevoked(1L, 4000L, 50L));
+        // Other token issued at the same moment.
+        assertFalse(revokedTokens.isRevoked(1L, 4000L, 51L));
+    }
+
+    @Test
+    public void testRevokeAllTokens() {
+        revokedTokens.revokeAllTokens(1L, 10_000L);
+
+        // Issued at or before 10000.
+        assertTrue(revokedTokens.isRevoked(1L, 10_000L, 1L));
+        assertTrue(revokedTokens.isRevoked(1L, 5000L, 2L));
+        // Issued after 10000.
+        assertFalse(revokedTokens.isRevoked(1L, 10_001L, 3L));
+
+        // Earlier revocation doesn't override later one.
+        revokedTokens.revokeAllTokens(1L, 8000L);
+        assertTrue(revokedTokens.isRevoked(1L, 10_000L, 1L));
+    }
+
+    @Test
+    public void testRemoveExpired() {
+        revokedTokens.revokeToken(1L, 50L, 5000L);
+        revokedTokens.revokeToken(1L, 70L, 7000L);
+        revokedTokens.revokeAllTokens(2L, 5000L);
+        revokedTokens.revokeToken(2L, 80L, 8000L);
+
+        assertEquals(0, revokedTokens.removeExpired(5500L));
+        assertFalse(revokedTokens.isRevoked(1L, 4000L, 50L));
+        assertTrue(revokedTokens.isRevoked(1L, 6000L, 70L));
+        assertTrue(revokedTokens.isRevoked(2L, 5000L, 1L));
+
+        assertEquals(1, revokedTokens.removeExpired(7000L));
+        assertEquals(1, revokedTokens.size());
+        assertFalse(revokedTokens.isRevoked(2L, 5000L, 1L));
+        assertTrue(revokedTokens.isRevoked(2L, 7000L, 80L));
+
+        assertEquals(1, revokedTokens.removeExpired(8000L));
+        assertEquals(0, revokedTokens.size());
+    }
+}
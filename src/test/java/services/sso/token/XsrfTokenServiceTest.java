@@ -0,0 +1,55 @@
+package services.sso.token;
+
+import models.sso.token.ExpirableToken;
+import models.sso.token.ExpirableTokenType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link XsrfTokenService}.
+ */
+public class XsrfTokenServiceTest {
+
+    ExpirableTokenEncryptor encryptor =
+            new ExpirableTokenEncryptor(new AesPasswordBasedEncryptor(ExpirableTokenEncryptorTest.PASSWORD));
+
+    XsrfTokenService service = new XsrfTokenService(encryptor, 60_000L, 100);
+
+    @Test
+    public void testTokenIsReused() throws Exception {
+        String first = service.getXsrfToken(123L);
+
+        assertSame("Token is expected to be reused.", first, service.getXsrfToken(123L));
+        assertNotEquals(first, service.getXsrfToken(456L));
+
+        ExpirableToken decrypted = encryptor.decrypt(first);
+        assertEquals(ExpirableTokenType.XSRF, decrypted.getType());
+        assertEquals(Long.valueOf(123L), decrypted.getAttributeAsLong("userId"));
+        assertTrue(decrypted.getExpires() - System.currentTimeMillis() > service.getMinimumTimeToLive());
+    }
+
+    @Test
+    public void testTokenIsRenewedAfterHalfOfTimeToLive() throws Exception {
+        XsrfTokenService shortLivedService = new XsrfTokenService(encryptor, 100L, 100);
+        String first = shortLivedService.getXsrfToken(123L);
+        Thread.sleep(60L);
+
+        assertNotEquals(first, shortLivedService.getXsrfToken(123L));
+    }
+
+    @Test
+    public void testLazyToken() throws Exception {
+        LazyXsrfToken lazyToken = service.getLazyXsrfToken(123L);
+        assertFalse("Token must not be obtained before use.", lazyToken.isObtained());
+
+        String token = lazyToken.toString();
+        assertTrue(lazyToken.isObtained());
+        assertSame(token, lazyToken.get());
+        assertSame(token, service.getXsrfToken(123L));
+    }
+}
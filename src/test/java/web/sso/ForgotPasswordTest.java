@@ -12,6 +12,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.openqa.selenium.By;
 import services.sso.CaptchaTokenService;
+import services.sso.PasswordHistoryService;
 import services.sso.UserService;
 import web.sso.common.TestEntitiesFactory;
 import web.sso.common.WebDriverTest;
@@ -38,6 +39,11 @@ public class ForgotPasswordTest extends WebDriverTest {
      */
     private UserService userService;
 
+    /**
+     * Password history service.
+     */
+    private PasswordHistoryService passwordHistoryService;
+
     /**
      * Email service mock.
      */
@@ -63,6 +69,7 @@ public class ForgotPasswordTest extends WebDriverTest {
         Injector injector = this.getInjector();
 
         this.userService = injector.getBinding(UserService.class).getProvider().get();
+        this.passwordHistoryService = injector.getBinding(PasswordHistoryService.class).getProvider().get();
         this.captchaTokenService = injector.getBinding(CaptchaTokenService.class).getProvider().get();
         this.emailServiceMock = (PostofficeMockImpl) injector.getBinding(Postoffice.class).getProvider().get();
         this.testEntitiesFactory = injector.getBinding(TestEntitiesFactory.class).getProvider().get();
@@ -82,6 +89,7 @@ public class ForgotPasswordTest extends WebDriverTest {
         EntityTransaction transaction = em.getTransaction();
         transaction.begin();
         userService.removeUserEvents(user);
+        passwordHistoryService.removeHistory(user);
         em.remove(em.merge(user));
         transaction.commit();
     }